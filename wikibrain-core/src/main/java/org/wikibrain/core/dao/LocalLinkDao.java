@@ -1,9 +1,12 @@
 package org.wikibrain.core.dao;
 
 
+import gnu.trove.map.TIntObjectMap;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
 
+import java.util.List;
+
 public interface LocalLinkDao extends Dao<LocalLink> {
 
     /**
@@ -44,4 +47,15 @@ public interface LocalLinkDao extends Dao<LocalLink> {
      */
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks) throws DaoException;
 
+    /**
+     * get all inlinks or outlinks for many pages at once
+     *
+     * @param language
+     * @param localIds
+     * @param outlinks true for outlinks, false for inlinks
+     * @return a map from each page id to its links. Pages without links are absent.
+     * @throws DaoException
+     */
+    public TIntObjectMap<List<LocalLink>> getLinks(Language language, int localIds[], boolean outlinks) throws DaoException;
+
 }
@@ -1,5 +1,6 @@
 package org.wikibrain.core.dao;
 
+import gnu.trove.map.TIntObjectMap;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalPage;
@@ -69,6 +70,15 @@ public interface LocalPageDao extends Dao<LocalPage> {
      */
     public Map<Integer, LocalPage> getByIds(Language language, Collection<Integer> pageIds) throws DaoException;
 
+    /**
+     * Get a set of pages by their ids. Prefer this to calling getById in a loop.
+     * @param language the language of the pages
+     * @param pageIds the page ids
+     * @return a map of ids to pages. Ids that do not correspond to pages are absent.
+     * @throws DaoException if there was an error retrieving the pages
+     */
+    public TIntObjectMap<LocalPage> getByIds(Language language, int pageIds[]) throws DaoException;
+
     /**
      * Get a map of pages by their titles
      * @param language the language of the pages
@@ -45,7 +45,7 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      * null.
      *
      * @param component
-     * @return The updated record count
+     * @return The updated record count. Approximate if other threads are incrementing concurrently.
      */
     public int incrementRecords(Class component) throws DaoException;
 
@@ -56,7 +56,7 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      *
      * @param component
      * @param lang
-     * @return The updated record count
+     * @return The updated record count. Approximate if other threads are incrementing concurrently.
      */
     public int incrementRecords(Class component, Language lang) throws DaoException;
 
@@ -67,7 +67,7 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      * every increment. Equivalent to calling incrementErrors with lang null.
      *
      * @param component
-     * @return The updated error count
+     * @return The updated error count. Approximate if other threads are incrementing concurrently.
      */
     public int incrementErrors(Class component) throws DaoException;
 
@@ -78,7 +78,7 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      *
      * @param component
      * @param lang
-     * @return The updated error count
+     * @return The updated error count. Approximate if other threads are incrementing concurrently.
      */
     public int incrementErrors(Class component, Language lang) throws DaoException;
 
@@ -152,6 +152,25 @@ public interface MetaInfoDao extends Dao<MetaInfo> {
      */
     public MetaInfo getInfo(Class component, Language lang) throws DaoException;
 
+    /**
+     * Records the throughput of the most recent bulk load into one of a component's tables.
+     *
+     * @param component
+     * @param table
+     * @param rowsPerSecond
+     * @throws DaoException
+     */
+    public void setLoadRate(Class component, String table, double rowsPerSecond) throws DaoException;
+
+    /**
+     * Returns the rows per second of the most recent bulk load into each of a component's tables.
+     *
+     * @param component
+     * @return A map from table name to rows per second.
+     * @throws DaoException
+     */
+    public Map<String, Double> getLoadRates(Class component) throws DaoException;
+
     /**
      * Returns a map from component name to accumulated MetaInfo across all languages.
      * @return
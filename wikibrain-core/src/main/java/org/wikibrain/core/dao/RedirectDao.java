@@ -28,6 +28,16 @@ public interface RedirectDao extends Dao<Redirect> {
      */
     public Integer resolveRedirect(Language lang, int id) throws DaoException;
 
+    /**
+     * Resolves many potential redirects at once.
+     * @param lang The language to be considered
+     * @param ids The ids of the potential redirects
+     * @return a map from each id that is a redirect to the local id of its destination.
+     *         Ids that are not redirects are absent, and the map's no entry value is -1.
+     * @throws DaoException
+     */
+    public TIntIntMap resolveRedirects(Language lang, int ids[]) throws DaoException;
+
     /**
      * Returns true iff id is a redirect in lang
      * @param lang
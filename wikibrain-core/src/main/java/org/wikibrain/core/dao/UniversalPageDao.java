@@ -46,6 +46,17 @@ public interface UniversalPageDao extends Dao<UniversalPage> {
      */
     public int getUnivPageId(Language language, int localPageId) throws DaoException;
 
+    /**
+     * Returns the universal IDs of many local pages in a language, within the scope
+     * of the specified algorithm.
+     * @param language
+     * @param localPageIds
+     * @return a map from local page ids to universal ids. Pages without a universal id
+     *         are absent, and the map's no entry value is -1.
+     * @throws DaoException
+     */
+    public TIntIntMap getUnivPageIds(Language language, int localPageIds[]) throws DaoException;
+
     /**
      * Returns the universal ID of a local page, within the scope of the specified algorithm.
      * This method is SLOW and should not be used extensively. For mass usage,
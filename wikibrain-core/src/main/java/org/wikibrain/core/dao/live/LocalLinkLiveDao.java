@@ -153,6 +153,20 @@ public class LocalLinkLiveDao implements LocalLinkDao {
         return links;
     }
 
+    public TIntObjectMap<List<LocalLink>> getLinks(Language language, int localIds[], boolean outlinks) throws DaoException {
+        TIntObjectMap<List<LocalLink>> links = new TIntObjectHashMap<List<LocalLink>>();
+        for (int localId : localIds) {
+            List<LocalLink> pageLinks = new ArrayList<LocalLink>();
+            for (LocalLink ll : getLinks(language, localId, outlinks)) {
+                pageLinks.add(ll);
+            }
+            if (!pageLinks.isEmpty()) {
+                links.put(localId, pageLinks);
+            }
+        }
+        return links;
+    }
+
     public static class Provider extends org.wikibrain.conf.Provider<LocalLinkDao> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
@@ -125,6 +125,17 @@ public class LocalPageLiveDao implements LocalPageDao  {
         return pageMap;
     }
 
+    public TIntObjectMap<LocalPage> getByIds(Language language, int pageIds[]) throws DaoException {
+        TIntObjectMap<LocalPage> pages = new TIntObjectHashMap<LocalPage>();
+        for (int pageId : pageIds) {
+            LocalPage page = getById(language, pageId);
+            if (page != null) {
+                pages.put(pageId, page);
+            }
+        }
+        return pages;
+    }
+
     /**
      * Get a map of pages by their titles
      * @param language the language of the pages
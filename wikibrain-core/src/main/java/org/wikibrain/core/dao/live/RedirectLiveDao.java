@@ -70,6 +70,20 @@ public class RedirectLiveDao implements RedirectDao {
         return null; //if the redirect id was the same as the input id, id wasn't a redirect page
     }
 
+    public TIntIntMap resolveRedirects(Language lang, int ids[]) throws DaoException {
+        TIntIntMap dests = new TIntIntHashMap(
+                gnu.trove.impl.Constants.DEFAULT_CAPACITY,
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        for (int id : ids) {
+            Integer dest = resolveRedirect(lang, id);
+            if (dest != null) {
+                dests.put(id, dest);
+            }
+        }
+        return dests;
+    }
+
     public boolean isRedirect(Language lang, int id) throws DaoException {
         LiveAPIQuery.LiveAPIQueryBuilder builder = new LiveAPIQuery.LiveAPIQueryBuilder("INFO", lang);
         builder.addPageid(id);
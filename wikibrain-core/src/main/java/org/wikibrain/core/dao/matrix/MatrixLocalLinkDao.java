@@ -4,6 +4,8 @@ import com.google.code.externalsorting.ExternalSort;
 import com.typesafe.config.Config;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringEscapeUtils;
@@ -219,7 +221,9 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
 
             LOG.info("writing adjacency matrix rows");
             ValueConf vconf = new ValueConf();   // unused because there are no values.
-            SparseMatrixWriter writer = new SparseMatrixWriter(getMatrixFile(), vconf);
+            // links have no values, so only delta encoded column ids are stored.
+            RowCodec codec = new RowCodec(RowCodec.IdEncoding.DELTA_VARINT, RowCodec.ValueEncoding.IMPLICIT);
+            SparseMatrixWriter writer = new SparseMatrixWriter(getMatrixFile(), vconf, codec);
 
             BufferedReader reader = WpIOUtils.openBufferedReader(file);
             TIntList packedDest = new TIntArrayList();
@@ -275,7 +279,7 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
 
             LOG.info("writing transpose of adjacency matrix");
             SparseMatrixTransposer transposer = new SparseMatrixTransposer(matrix, getTransposeFile());
-            transposer.transpose();
+            transposer.transposeExternally(WpThreadUtils.getMaxThreads());
 
             LOG.info("loading transpose of adjacency matrix");
             transpose = new SparseMatrix(getTransposeFile());
@@ -289,6 +293,24 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         return delegate.getLinks(language, localId, outlinks, isParseable, locationType);
     }
 
+    /**
+     * Rows are read from the matrix one page at a time, which is already cheap.
+     */
+    @Override
+    public TIntObjectMap<List<LocalLink>> getLinks(Language language, int localIds[], boolean outlinks) throws DaoException {
+        TIntObjectMap<List<LocalLink>> links = new TIntObjectHashMap<List<LocalLink>>();
+        for (int localId : localIds) {
+            List<LocalLink> pageLinks = new ArrayList<LocalLink>();
+            for (LocalLink ll : getLinks(language, localId, outlinks)) {
+                pageLinks.add(ll);
+            }
+            if (!pageLinks.isEmpty()) {
+                links.put(localId, pageLinks);
+            }
+        }
+        return links;
+    }
+
     @Override
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks) throws DaoException {
         LocalId id = new LocalId(language, localId);
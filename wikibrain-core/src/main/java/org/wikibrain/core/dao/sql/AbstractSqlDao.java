@@ -1,5 +1,6 @@
 package org.wikibrain.core.dao.sql;
 
+import gnu.trove.set.hash.TIntHashSet;
 import org.jodah.typetools.TypeResolver;
 import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
@@ -13,6 +14,9 @@ import javax.sql.DataSource;
 import java.io.*;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,6 +34,11 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
 
     public static final int DEFAULT_FETCH_SIZE = 1000;
 
+    /**
+     * Maximum number of ids bound in a single "IN (...)" clause by the batched lookups.
+     */
+    public static final int MAX_IN_IDS = 1000;
+
     protected final SQLDialect dialect;
     private final String sqlScriptPrefix;
     private final TableField[] fields;
@@ -131,6 +140,11 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
     public void endLoad() throws  DaoException {
         if (loader != null) {
             loader.endLoad();
+            if (loader.getNumLoaded() > 0) {
+                LOG.info(String.format("loaded %d rows into %s at %.1f rows per second",
+                        loader.getNumLoaded(), loader.getTable(), loader.getRowsPerSecond()));
+                metaDao.setLoadRate(klass, loader.getTable(), loader.getRowsPerSecond());
+            }
         }
         executeSqlScriptWithSuffix("-create-indexes.sql");
         if (fields != null && fields.length > 0) {
@@ -165,6 +179,27 @@ public abstract class AbstractSqlDao<T> implements Dao<T> {
         }
     }
 
+    /**
+     * Splits ids into sorted, distinct chunks of at most MAX_IN_IDS ids
+     * that can each be used in an "IN (...)" clause.
+     * @param ids
+     * @return
+     */
+    protected static List<List<Integer>> chunkIds(int ids[]) {
+        int distinct[] = new TIntHashSet(ids).toArray();
+        Arrays.sort(distinct);
+        List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+        for (int i = 0; i < distinct.length; i += MAX_IN_IDS) {
+            int end = Math.min(distinct.length, i + MAX_IN_IDS);
+            List<Integer> chunk = new ArrayList<Integer>(end - i);
+            for (int j = i; j < end; j++) {
+                chunk.add(distinct[j]);
+            }
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
     public int getFetchSize() {
         return fetchSize;
     }
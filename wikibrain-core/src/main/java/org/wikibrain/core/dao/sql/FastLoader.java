@@ -1,46 +1,88 @@
 package org.wikibrain.core.dao.sql;
 
 import org.apache.commons.lang3.StringUtils;
-import org.jooq.Table;
+import org.jooq.SQLDialect;
 import org.jooq.TableField;
 import org.jooq.tools.jdbc.JDBCUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Bulk loads data in batch form to speed up insertions.
  *
+ * On PostgreSQL, rows are streamed through binary COPY commands. Elsewhere (and for
+ * PostGIS tables) they are inserted in JDBC batches.
+ *
+ * The loader starts with a single inserter thread and adds inserters while rows back
+ * up in the buffer and each new inserter measurably increases throughput.
+ *
  * @author Shilad Sen
  */
 public class FastLoader {
 
-    private static final int NUM_INSERTERS = Math.min(WpThreadUtils.getMaxThreads(), 4);
+    private static final int MAX_INSERTERS = WpThreadUtils.getMaxThreads();
 
     private static final Object POSION_PILL = new Object();
-    private boolean isPostGisLoader = false;
 
     static final Logger LOG = Logger.getLogger(FastLoader.class.getName());
     static final int BATCH_SIZE = 1000;
 
+    /**
+     * Rows sent through each COPY command.
+     */
+    static final int COPY_BATCH_SIZE = 10000;
+
+    /**
+     * Encoded bytes buffered before they are sent to the COPY command.
+     */
+    static final int COPY_BUFFER_BYTES = 1024 * 1024;
+
+    /**
+     * After this many failed COPY commands the loader only uses inserts.
+     */
+    static final int MAX_COPY_FAILURES = 3;
+
+    /**
+     * How often the throughput is measured to decide whether to add an inserter.
+     */
+    static final long RESIZE_INTERVAL_MILLIS = 10000;
+
+    /**
+     * The relative throughput gain from the last inserter required to add another.
+     */
+    static final double MIN_RESIZE_GAIN = 0.1;
+
     private final WpDataSource ds;
     private final String table;
     private final String[] fields;
+    private final boolean isPostGisLoader;
+
+    // Column types for binary copies, or null if copies aren't used.
+    private final PostgresCopyEncoder.ColumnType[] copyTypes;
+    private final AtomicInteger copyFailures = new AtomicInteger();
 
     private BlockingQueue<Object[]> rowBuffer =
-            new ArrayBlockingQueue<Object[]>(BATCH_SIZE * NUM_INSERTERS * 2);
+            new ArrayBlockingQueue<Object[]>(BATCH_SIZE * 8);
 
     static enum InserterState {
         RUNNING,            // In normal working mode
@@ -49,46 +91,37 @@ public class FastLoader {
         SHUTDOWN            // Already shutdown
     }
 
-    private Thread [] inserters = new Thread[NUM_INSERTERS];
+    private final List<Thread> inserters = new ArrayList<Thread>();
     private volatile InserterState inserterState = null;
 
+    // Throughput accounting
+    private final AtomicLong numQueued = new AtomicLong();
+    private final AtomicLong numLoaded = new AtomicLong();
+    private volatile long startMillis = -1;
+    private volatile long endMillis = -1;
+    private long lastResizeMillis;
+    private long loadedAtLastResize = 0;
+    private double rateBeforeResize = 0.0;
+    private boolean growing = true;
+
     public FastLoader(WpDataSource ds, TableField[] fields) throws DaoException {
         this(ds, fields[0].getTable().getName(), getFieldNames(fields));
     }
 
-    public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader) throws DaoException {
-        this(ds,table, fields);
-        this.isPostGisLoader = isPostGisLoader;
+    public FastLoader(WpDataSource ds, String table, String[] fields) throws DaoException {
+        this(ds, table, fields, false);
     }
 
-    public FastLoader(WpDataSource ds, String table, String[] fields) throws DaoException {
+    public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader) throws DaoException {
         this.ds = ds;
         this.table = table;
         this.fields = fields;
+        this.isPostGisLoader = isPostGisLoader;
+        this.copyTypes = getCopyTypes();
+        this.lastResizeMillis = System.currentTimeMillis();
 
-        for (int i = 0; i < inserters.length; i++) {
-            inserters[i] = new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        insertBatches();
-                    } catch (DaoException e) {
-                        LOG.log(Level.SEVERE, "inserter failed", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
-                    } catch (SQLException e) {
-                        LOG.log(Level.SEVERE, "inserter failed", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
-                    } catch (InterruptedException e) {
-                        LOG.log(Level.SEVERE, "inserter interrupted", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
-                    }
-                }
-            });
-            inserters[i].start();
-        }
         inserterState = InserterState.RUNNING;
+        addInserter();
     }
 
     private static String[] getFieldNames(TableField[] fields) {
@@ -99,6 +132,55 @@ public class FastLoader {
         return names;
     }
 
+    /**
+     * Returns the column types used to encode binary copies, or null if the
+     * rows should be inserted instead.
+     */
+    private PostgresCopyEncoder.ColumnType[] getCopyTypes() throws DaoException {
+        if (isPostGisLoader || ds.getDialect() != SQLDialect.POSTGRES) {
+            return null;
+        }
+        Connection cnx = null;
+        try {
+            cnx = ds.getConnection();
+            PostgresCopyEncoder.ColumnType[] types = PostgresCopyEncoder.getColumnTypes(cnx, table, fields);
+            if (types == null) {
+                LOG.info("table " + table + " has columns that cannot be copied, using inserts");
+            }
+            return types;
+        } catch (SQLException e) {
+            throw new DaoException(e);
+        } finally {
+            AbstractSqlDao.quietlyCloseConn(cnx);
+        }
+    }
+
+    private void addInserter() {
+        Thread inserter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    insertBatches();
+                } catch (DaoException e) {
+                    LOG.log(Level.SEVERE, "inserter failed", e);
+                    inserterState = InserterState.FAILED;
+                    rowBuffer.clear();  // allow any existing puts to go through
+                } catch (SQLException e) {
+                    LOG.log(Level.SEVERE, "inserter failed", e);
+                    inserterState = InserterState.FAILED;
+                    rowBuffer.clear();  // allow any existing puts to go through
+                } catch (InterruptedException e) {
+                    LOG.log(Level.SEVERE, "inserter interrupted", e);
+                    inserterState = InserterState.FAILED;
+                    rowBuffer.clear();  // allow any existing puts to go through
+                }
+            }
+        });
+        synchronized (inserters) {
+            inserters.add(inserter);
+        }
+        inserter.start();
+    }
+
     /**
      * Saves a value to the datastore.
      * @param values
@@ -106,7 +188,7 @@ public class FastLoader {
      */
     private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
     public void load(Object ... values) throws DaoException {
-        if (inserters == null || inserterState != InserterState.RUNNING) {
+        if (inserterState != InserterState.RUNNING) {
             throw new IllegalStateException("inserter thread in state " + inserterState);
         }
         // Hack convert dates to Timestamps
@@ -123,6 +205,46 @@ public class FastLoader {
         } catch (InterruptedException e) {
             throw new DaoException(e);
         }
+        long n = numQueued.incrementAndGet();
+        if (n == 1) {
+            startMillis = System.currentTimeMillis();
+        } else if (n % BATCH_SIZE == 0) {
+            maybeAddInserter();
+        }
+    }
+
+    /**
+     * Adds an inserter if rows are backing up in the buffer and the last inserter
+     * that was added increased the throughput. Once an inserter does not help,
+     * the number of inserters stays fixed.
+     */
+    private synchronized void maybeAddInserter() {
+        long now = System.currentTimeMillis();
+        if (!growing || now - lastResizeMillis < RESIZE_INTERVAL_MILLIS) {
+            return;
+        }
+        long loaded = numLoaded.get();
+        double rate = 1000.0 * (loaded - loadedAtLastResize) / (now - lastResizeMillis);
+        lastResizeMillis = now;
+        loadedAtLastResize = loaded;
+
+        if (rowBuffer.size() < rowBuffer.remainingCapacity()) {
+            return;     // inserters are keeping up
+        }
+        int numInserters;
+        synchronized (inserters) {
+            numInserters = inserters.size();
+        }
+        if (numInserters >= MAX_INSERTERS || rate < rateBeforeResize * (1.0 + MIN_RESIZE_GAIN)) {
+            growing = false;
+            LOG.info(String.format("loading %s with %d inserters at %.1f rows per second",
+                    table, numInserters, rate));
+        } else {
+            rateBeforeResize = rate;
+            addInserter();
+            LOG.fine(String.format("added inserter %d for %s at %.1f rows per second",
+                    numInserters + 1, table, rate));
+        }
     }
 
     private void insertBatches() throws DaoException, SQLException, InterruptedException {
@@ -153,10 +275,17 @@ public class FastLoader {
                     "VALUES (" + StringUtils.join(questions, ",") + ");";
             statement = cnx.prepareStatement(sql);
 
+            PostgresCopyEncoder encoder = null;
+            if (copyTypes != null) {
+                encoder = new PostgresCopyEncoder(copyTypes);
+            }
+
+            int maxBatchSize = (encoder == null) ? BATCH_SIZE : COPY_BATCH_SIZE;
+            List<Object[]> batch = new ArrayList<Object[]>(maxBatchSize);
             while (!finished && inserterState != InserterState.FAILED) {
                 // accumulate batch
-                int batchSize = 0;
-                while (!finished && batchSize < BATCH_SIZE && inserterState != InserterState.FAILED) {
+                batch.clear();
+                while (!finished && batch.size() < maxBatchSize && inserterState != InserterState.FAILED) {
                     Object row[] = rowBuffer.poll(100, TimeUnit.MILLISECONDS);
                     if (row == null) {
                         // do nothing
@@ -164,27 +293,21 @@ public class FastLoader {
                         rowBuffer.put(new Object[]{POSION_PILL});
                         finished = true;
                     } else {
-                        batchSize++;
-                        for (int i = 0; i < row.length; i++) {
-                            if(row[i] != null && row[i].getClass().equals(java.lang.Character.class))
-                                 statement.setObject(i + 1, row[i].toString());
-                            else
-                                statement.setObject(i + 1, row[i]);
-                        }
-                        statement.addBatch();
+                        batch.add(row);
                     }
                 }
-                try {
-                    statement.executeBatch();
-                    cnx.commit();
-                } catch (SQLException e) {
-                    cnx.rollback();
-                    while (e != null) {
-                        LOG.log(Level.SEVERE, "insert batch failed, attempting to continue:", e);
-                        e = e.getNextException();
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                if (encoder == null
+                        || copyFailures.get() >= MAX_COPY_FAILURES
+                        || !copyBatch(cnx, encoder, batch)) {
+                    // A failed insert loses its whole batch, so insert copy batches in smaller pieces
+                    for (int i = 0; i < batch.size(); i += BATCH_SIZE) {
+                        insertBatch(cnx, statement, batch.subList(i, Math.min(batch.size(), i + BATCH_SIZE)));
                     }
                 }
-                statement.clearBatch();
+                numLoaded.addAndGet(batch.size());
             }
         } finally {
             if (statement != null) {
@@ -194,6 +317,87 @@ public class FastLoader {
         }
     }
 
+    private void insertBatch(Connection cnx, PreparedStatement statement, List<Object[]> batch) throws SQLException {
+        for (Object row[] : batch) {
+            for (int i = 0; i < row.length; i++) {
+                if(row[i] != null && row[i].getClass().equals(java.lang.Character.class))
+                     statement.setObject(i + 1, row[i].toString());
+                else
+                    statement.setObject(i + 1, row[i]);
+            }
+            statement.addBatch();
+        }
+        try {
+            statement.executeBatch();
+            cnx.commit();
+        } catch (SQLException e) {
+            cnx.rollback();
+            while (e != null) {
+                LOG.log(Level.SEVERE, "insert batch failed, attempting to continue:", e);
+                e = e.getNextException();
+            }
+        }
+        statement.clearBatch();
+    }
+
+    /**
+     * Streams a batch of rows through a binary COPY command.
+     * @return True if the rows were copied. If false, the transaction has been
+     * rolled back and the rows should be inserted instead.
+     */
+    private boolean copyBatch(Connection cnx, PostgresCopyEncoder encoder, List<Object[]> batch) throws SQLException {
+        String sql = "COPY " + table + " (" + StringUtils.join(fields, ",") + ") FROM STDIN (FORMAT binary)";
+        CopyIn copy = null;
+        try {
+            copy = getPgConnection(cnx).getCopyAPI().copyIn(sql);
+            encoder.writeHeader();
+            for (Object row[] : batch) {
+                encoder.writeRow(row);
+                if (encoder.size() >= COPY_BUFFER_BYTES) {
+                    encoder.sendTo(copy);
+                }
+            }
+            encoder.writeTrailer();
+            encoder.sendTo(copy);
+            copy.endCopy();
+            cnx.commit();
+            return true;
+        } catch (SQLException e) {
+            abortCopy(cnx, copy, e);
+        } catch (IOException e) {
+            abortCopy(cnx, copy, e);
+        } catch (RuntimeException e) {
+            // values that cannot be converted to their column's type
+            abortCopy(cnx, copy, e);
+        } finally {
+            encoder.reset();
+        }
+        return false;
+    }
+
+    private static PGConnection getPgConnection(Connection cnx) throws SQLException {
+        if (cnx instanceof PGConnection) {
+            return (PGConnection) cnx;
+        }
+        return cnx.unwrap(PGConnection.class);     // pooled connections
+    }
+
+    private void abortCopy(Connection cnx, CopyIn copy, Exception e) throws SQLException {
+        int n = copyFailures.incrementAndGet();
+        LOG.log(Level.WARNING, "copy into " + table + " failed, inserting the rows instead:", e);
+        if (n == MAX_COPY_FAILURES) {
+            LOG.warning("too many failed copies into " + table + ", only using inserts");
+        }
+        if (copy != null && copy.isActive()) {
+            try {
+                copy.cancelCopy();
+            } catch (SQLException e2) {
+                LOG.log(Level.FINE, "cancelling copy failed:", e2);
+            }
+        }
+        cnx.rollback();
+    }
+
     public void endLoad() throws DaoException {
         try {
             if (inserterState == InserterState.RUNNING) {
@@ -203,19 +407,47 @@ public class FastLoader {
         } catch (InterruptedException e) {
             throw new DaoException(e);
         }
-        for (Thread inserter : inserters) {
-            if (inserter != null) {
-                try {
-                    inserter.join(60000);
-                } catch (InterruptedException e) {
-                    throw new DaoException(e);
-                }
+        List<Thread> toJoin;
+        synchronized (inserters) {
+            toJoin = new ArrayList<Thread>(inserters);
+        }
+        for (Thread inserter : toJoin) {
+            try {
+                inserter.join(60000);
+            } catch (InterruptedException e) {
+                throw new DaoException(e);
             }
         }
+        if (inserterState != InserterState.SHUTDOWN) {
+            endMillis = System.currentTimeMillis();
+        }
         inserterState = InserterState.SHUTDOWN;
     }
 
     public void close() throws  DaoException {
         endLoad();
     }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return The number of rows passed to the database (including rows that failed to load).
+     */
+    public long getNumLoaded() {
+        return numLoaded.get();
+    }
+
+    /**
+     * @return Rows loaded per second, measured from the first call to load() until
+     * endLoad() (or now, if the load has not ended).
+     */
+    public double getRowsPerSecond() {
+        if (startMillis < 0) {
+            return 0.0;
+        }
+        long end = (endMillis < 0) ? System.currentTimeMillis() : endMillis;
+        return 1000.0 * numLoaded.get() / Math.max(1, end - startMillis);
+    }
 }
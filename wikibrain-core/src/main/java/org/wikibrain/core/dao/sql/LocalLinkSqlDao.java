@@ -1,6 +1,8 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -14,6 +16,7 @@ import org.wikibrain.core.model.LocalLink;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -132,9 +135,8 @@ public class LocalLinkSqlDao extends AbstractSqlDao<LocalLink> implements LocalL
                 record = result.get(0);
             }
             return buildLocalLink(record, true);
-        } catch (RuntimeException e) {
+        } finally {
             freeJooq(context);
-            throw e;
         }
     }
 
@@ -193,6 +195,43 @@ public class LocalLinkSqlDao extends AbstractSqlDao<LocalLink> implements LocalL
         }
     }
 
+    @Override
+    public TIntObjectMap<List<LocalLink>> getLinks(Language language, int localIds[], boolean outlinks) throws DaoException {
+        Field<Integer> idField;
+        if (outlinks){
+            idField = Tables.LOCAL_LINK.SOURCE_ID;
+        } else {
+            idField = Tables.LOCAL_LINK.DEST_ID;
+        }
+        TIntObjectMap<List<LocalLink>> links = new TIntObjectHashMap<List<LocalLink>>(localIds.length);
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : chunkIds(localIds)) {
+                Cursor<Record> result = context.select()
+                        .from(Tables.LOCAL_LINK)
+                        .where(Tables.LOCAL_LINK.LANG_ID.equal(language.getId()))
+                        .and(idField.in(chunk))
+                        .fetchLazy(getFetchSize());
+                try {
+                    for (Record record : result) {
+                        int id = record.getValue(idField);
+                        List<LocalLink> pageLinks = links.get(id);
+                        if (pageLinks == null) {
+                            pageLinks = new ArrayList<LocalLink>();
+                            links.put(id, pageLinks);
+                        }
+                        pageLinks.add(buildLocalLink(record, outlinks));
+                    }
+                } finally {
+                    result.close();
+                }
+            }
+            return links;
+        } finally {
+            freeJooq(context);
+        }
+    }
+
     private Iterable<LocalLink> buildLocalLinks(Cursor<Record> result, final boolean outlink, DSLContext context){
         return new SimpleSqlDaoIterable<LocalLink>(result, context) {
             @Override
@@ -1,8 +1,13 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -17,19 +22,17 @@ import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.Title;
-import org.wikibrain.utils.ParallelForEach;
-import org.wikibrain.utils.Procedure;
-import org.wikibrain.utils.WpThreadUtils;
+import org.wikibrain.utils.MappedLongTable;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 /**
  */
 public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalPageDao {
-    private volatile TLongIntHashMap titlesToIds = null;
+    private volatile MappedLongTable titlesToIds = null;
     private RedirectSqlDao redirectSqlDao;
 
     public LocalPageSqlDao(WpDataSource dataSource) throws DaoException {
@@ -221,13 +224,59 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         if (pageIds == null || pageIds.isEmpty()) {
             return null;
         }
+        int ids[] = new int[pageIds.size()];
+        int i = 0;
+        for (Integer pageId : pageIds) {
+            ids[i++] = pageId;
+        }
+        TIntObjectMap<LocalPage> pages = getByIds(language, ids);
         Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
         for (Integer pageId : pageIds){
-            map.put(pageId, getById(language, pageId));
+            map.put(pageId, pages.get(pageId));
         }
         return map;
     }
 
+    @Override
+    public TIntObjectMap<LocalPage> getByIds(Language language, int pageIds[]) throws DaoException {
+        TIntObjectMap<LocalPage> pages = new TIntObjectHashMap<LocalPage>(pageIds.length);
+        TIntArrayList redirectIds = new TIntArrayList();
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : chunkIds(pageIds)) {
+                Result<Record> result = context.select().
+                        from(Tables.LOCAL_PAGE).
+                        where(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId())).
+                        and(Tables.LOCAL_PAGE.PAGE_ID.in(chunk)).
+                        fetch();
+                for (Record record : result) {
+                    LocalPage page = buildUnresolvedLocalPage(record);
+                    pages.put(page.getLocalId(), page);
+                    if (page.isRedirect()) {
+                        redirectIds.add(page.getLocalId());
+                    }
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
+        if (redirectSqlDao == null || redirectIds.isEmpty()) {
+            return pages;
+        }
+
+        // Resolve all the redirects with one more round of batched lookups,
+        // keeping the redirect page itself if its destination is missing.
+        TIntIntMap dests = redirectSqlDao.resolveRedirects(language, redirectIds.toArray());
+        TIntObjectMap<LocalPage> destPages = getByIds(language, dests.values());
+        for (int redirectId : redirectIds.toArray()) {
+            LocalPage page = destPages.get(dests.get(redirectId));
+            if (page != null) {
+                pages.put(redirectId, page);
+            }
+        }
+        return pages;
+    }
+
     @Override
     public Map<Title, LocalPage> getByTitles(Language language, Collection<Title> titles, NameSpace nameSpace) throws DaoException {
         if (titles == null || titles.isEmpty()) {
@@ -245,7 +294,7 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         if (titlesToIds==null){
             buildTitlesToIds();
         }
-        return titlesToIds.get(Title.longHashCode(language, title, nameSpace));
+        return titlesToIds.getInt(Title.longHashCode(language, title, nameSpace), -1);
     }
 
     @Override
@@ -253,7 +302,7 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         if (titlesToIds==null){
             buildTitlesToIds();
         }
-        return titlesToIds.get(title.longHashCode());
+        return titlesToIds.getInt(title.longHashCode(), -1);
     }
 
     /**
@@ -285,6 +334,16 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
                 return page;
             }
         }
+        return buildUnresolvedLocalPage(record);
+    }
+
+    /**
+     * Builds the page for a record without following it if it is a redirect.
+     * @param record
+     * @return
+     */
+    private LocalPage buildUnresolvedLocalPage(Record record) {
+        Language lang = Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID));
         Title title = new Title(
                 record.getValue(Tables.LOCAL_PAGE.TITLE), true,
                 LanguageInfo.getByLanguage(lang));
@@ -299,6 +358,12 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         );
     }
 
+    /**
+     * Maps the table from title hashes to page ids (with redirects resolved), building
+     * it first if it is not cached or is out of date. The table lives on disk, so lookups
+     * need no heap-resident map and the table is shared by JVMs using the same cache.
+     * @throws DaoException
+     */
     protected synchronized void buildTitlesToIds() throws DaoException {
         if (titlesToIds != null) {
             return;
@@ -307,65 +372,106 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         if (redirectSqlDao == null) {
             key += ".noRedirect";
         }
-        if (cache!=null) {
-            TLongIntHashMap map = (TLongIntHashMap)cache.get(key, LocalPage.class);
-            if (map!=null){
-                titlesToIds = map;
-                return;
+        key += ".table";
+        try {
+            File file;
+            if (cache != null) {
+                file = cache.getCacheFile(key);
+                if (cache.isUpToDate(key, LocalPage.class)) {
+                    titlesToIds = new MappedLongTable(file);
+                    return;
+                }
+            } else {
+                file = File.createTempFile("titlesToIds", ".table");
+                file.deleteOnExit();
             }
+            LOG.info("Building title to id table. This will only happen once!");
+            writeTitlesToIds(file);
+            titlesToIds = new MappedLongTable(file);
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
-        LOG.info("Building title to id cache. This will only happen once!");
-        final int n = getCount(new DaoFilter());
+    }
+
+    /**
+     * Writes the title to id table in a single pass over the pages of each language.
+     * Redirects are resolved using all of the language's redirects, fetched in bulk.
+     */
+    private void writeTitlesToIds(File file) throws DaoException, IOException {
+        TLongArrayList hashes = new TLongArrayList();
+        TIntArrayList ids = new TIntArrayList();
+        int numRedirects = 0;
+        int numResolved = 0;
         DSLContext context = getJooq();
         try {
-            Cursor<Record> cursor = context.select().
-                    from(Tables.LOCAL_PAGE).
-                    fetchLazy(getFetchSize());
-            final TLongIntHashMap map = new TLongIntHashMap(
-                    Constants.DEFAULT_CAPACITY,
-                    Constants.DEFAULT_LOAD_FACTOR,
-                    -1, -1);
-            final AtomicInteger numRedirects = new AtomicInteger();
-            final AtomicInteger numResolved = new AtomicInteger();
-            ParallelForEach.iterate(
-                    cursor.iterator(), WpThreadUtils.getMaxThreads(), 10000,
-                    new Procedure<Record>() {
-                        @Override
-                        public void call(Record record) throws Exception {
-                            long hash = Title.longHashCode(
-                                record.getValue(Tables.LOCAL_PAGE.LANG_ID),
-                                record.getValue(Tables.LOCAL_PAGE.TITLE),
-                                record.getValue(Tables.LOCAL_PAGE.NAME_SPACE));
-                            if (redirectSqlDao != null && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)){
-                                numRedirects.incrementAndGet();
-                                Integer dest = redirectSqlDao.resolveRedirect(
-                                        Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID)),
-                                        record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                                if (dest != null) {
-                                    numResolved.incrementAndGet();
-                                    synchronized (map) {
-                                        map.put(hash, dest);
-                                    }
-                                }
-                            } else {
-                                synchronized (map) {
-                                    map.put(hash, record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                                }
-                            }
-                            if (map.size() % 500000 == 0) {
-                                LOG.info("built title cache entry " + map.size() + " of " + n);
+            List<Short> langIds = context.selectDistinct(Tables.LOCAL_PAGE.LANG_ID)
+                    .from(Tables.LOCAL_PAGE)
+                    .fetch(Tables.LOCAL_PAGE.LANG_ID);
+            for (short langId : langIds) {
+                TIntIntMap redirects = null;
+                if (redirectSqlDao != null) {
+                    redirects = redirectSqlDao.getAllRedirectIdsToDestIds(Language.getById(langId));
+                }
+                Cursor<Record4<String, Short, Integer, Boolean>> cursor = context.select(
+                            Tables.LOCAL_PAGE.TITLE,
+                            Tables.LOCAL_PAGE.NAME_SPACE,
+                            Tables.LOCAL_PAGE.PAGE_ID,
+                            Tables.LOCAL_PAGE.IS_REDIRECT)
+                        .from(Tables.LOCAL_PAGE)
+                        .where(Tables.LOCAL_PAGE.LANG_ID.eq(langId))
+                        .fetchLazy(getFetchSize());
+                try {
+                    for (Record4<String, Short, Integer, Boolean> record : cursor) {
+                        int id = record.value3();
+                        if (redirects != null && record.value4()) {
+                            numRedirects++;
+                            id = redirects.get(id);
+                            if (id < 0) {
+                                continue;
                             }
-
+                            numResolved++;
+                        }
+                        hashes.add(Title.longHashCode(langId, record.value1(), record.value2()));
+                        ids.add(id);
+                        if (hashes.size() % 500000 == 0) {
+                            LOG.info("built title table entry " + hashes.size());
                         }
-                    }, Integer.MAX_VALUE);
-            LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
-            if (cache!=null){
-                cache.put(key, map);
+                    }
+                } finally {
+                    cursor.close();
+                }
             }
-            titlesToIds = map;
         } finally {
             freeJooq(context);
         }
+        LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
+
+        // Distinct titles should hash differently, but keep the first of any duplicates
+        long sorted[] = hashes.toArray();
+        Arrays.sort(sorted);
+        TLongSet duplicates = new TLongHashSet();
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] == sorted[i - 1]) {
+                duplicates.add(sorted[i]);
+            }
+        }
+        sorted = null;
+        if (!duplicates.isEmpty()) {
+            LOG.warning("found " + duplicates.size() + " duplicate title hashes");
+            TLongSet seen = new TLongHashSet();
+            TLongArrayList uniqueHashes = new TLongArrayList(hashes.size());
+            TIntArrayList uniqueIds = new TIntArrayList(ids.size());
+            for (int i = 0; i < hashes.size(); i++) {
+                long h = hashes.get(i);
+                if (!duplicates.contains(h) || seen.add(h)) {
+                    uniqueHashes.add(h);
+                    uniqueIds.add(ids.get(i));
+                }
+            }
+            hashes = uniqueHashes;
+            ids = uniqueIds;
+        }
+        MappedLongTable.write(file, hashes.toArray(), ids.toArray());
     }
 
     @Override
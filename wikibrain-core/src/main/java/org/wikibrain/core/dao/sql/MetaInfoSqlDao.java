@@ -1,5 +1,8 @@
 package org.wikibrain.core.dao.sql;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.typesafe.config.Config;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
@@ -15,9 +18,17 @@ import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.MetaInfo;
 import org.wikibrain.utils.JvmUtils;
 
+import java.lang.ref.WeakReference;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,11 +40,28 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     private static final Object NULL_KEY = new Object();
 
-    private static final int COUNTS_PER_FLUSH = 5000;
+    // How often counts are written to the database by the background flusher
+    private static final long FLUSH_INTERVAL_MILLIS = 5000;
+
+    // Shared by all daos so each one does not need its own thread
+    private static final ScheduledExecutorService FLUSHER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "meta-info-flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // Key in the json dictionary of extra info that holds rows per second by table
+    private static final String LOAD_RATES_KEY = "loadRates";
 
     private final ConcurrentHashMap<Class, Map<Language, MetaInfo>> counters =
             new ConcurrentHashMap<Class, Map<Language, MetaInfo>>();
 
+    private final AtomicBoolean flusherStarted = new AtomicBoolean(false);
+
     public MetaInfoSqlDao(WpDataSource dataSource) throws DaoException {
         super(dataSource, null, "/db/meta-info");
     }
@@ -51,8 +79,15 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
         return JooqUtils.tableExists(context, Tables.META_INFO);
     }
 
+    @Override
+    public void clear() throws DaoException {
+        counters.clear();
+        super.clear();
+    }
+
     @Override
     public void clear(Class component) throws DaoException {
+        counters.remove(component);
         if (!tableExists()) {
             return;
         }
@@ -71,6 +106,10 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     @Override
     public void clear(Class component, Language lang) throws DaoException {
+        Map<Language, MetaInfo> langInfos = counters.get(component);
+        if (langInfos != null) {
+            langInfos.remove(lang == null ? NULL_KEY : lang);
+        }
         if (!tableExists()) {
             return;
         }
@@ -99,10 +138,7 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     @Override
     public int incrementRecords(Class component, Language lang, int n) throws DaoException {
-        MetaInfo info = getInfo(component, lang);
-        n = info.incrementNumRecords(n);
-        maybeFlush(info);
-        return n;
+        return getInfo(component, lang).incrementNumRecords(n);
     }
 
     @Override
@@ -142,10 +178,7 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
 
     @Override
     public int incrementErrors(Class component, Language lang) throws DaoException {
-        MetaInfo info = getInfo(component, lang);
-        int n = info.incrementNumErrors();
-        maybeFlush(info);
-        return n;
+        return getInfo(component, lang).incrementNumErrors();
     }
 
     @Override
@@ -279,6 +312,7 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
                         freeJooq(context);
                     }
                     ((Map)langInfos).put(langKey, info);
+                    startFlusher();
                 }
             }
         }
@@ -360,11 +394,134 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
         }
     }
 
-    private void maybeFlush(MetaInfo info) throws DaoException {
-        if (info.numNotWritten() > COUNTS_PER_FLUSH) {
-            synchronized (info) {
-                if (info.numNotWritten() > COUNTS_PER_FLUSH) {
+    @Override
+    public void setLoadRate(Class component, String table, double rowsPerSecond) throws DaoException {
+        // Both this and flush() may insert the component's row for a null language,
+        // so they synchronize on the same meta info to avoid inserting it twice.
+        MetaInfo info = getInfo(component, null);
+        synchronized (info) {
+            DSLContext context = getJooq();
+            try {
+                if (!tableExists(context)) {
+                    return;
+                }
+                Condition condition = Tables.META_INFO.COMPONENT.eq(component.getSimpleName())
+                        .and(Tables.META_INFO.LANG_ID.isNull());
+                Record1<String> record = context.select(Tables.META_INFO.OTHER)
+                        .from(Tables.META_INFO)
+                        .where(condition)
+                        .fetchOne();
+
+                JsonObject other = parseOther(record == null ? null : record.value1());
+                JsonObject rates = other.has(LOAD_RATES_KEY)
+                        ? other.getAsJsonObject(LOAD_RATES_KEY)
+                        : new JsonObject();
+                rates.addProperty(table, rowsPerSecond);
+                other.add(LOAD_RATES_KEY, rates);
+
+                if (record == null) {
+                    context.insertInto(Tables.META_INFO,
+                            Tables.META_INFO.COMPONENT, Tables.META_INFO.LANG_ID,
+                            Tables.META_INFO.NUM_RECORDS, Tables.META_INFO.NUM_ERRORS,
+                            Tables.META_INFO.LAST_UPDATED, Tables.META_INFO.OTHER)
+                            .values(component.getSimpleName(), (Short) null, 0, 0,
+                                    new Timestamp(System.currentTimeMillis()), other.toString())
+                            .execute();
+                } else {
+                    context.update(Tables.META_INFO)
+                            .set(Tables.META_INFO.OTHER, other.toString())
+                            .where(condition)
+                            .execute();
+                }
+                JooqUtils.commit(context);
+            } catch (RuntimeException e) {
+                JooqUtils.rollbackQuietly(context);
+                throw e;
+            } finally {
+                freeJooq(context);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Double> getLoadRates(Class component) throws DaoException {
+        DSLContext context = getJooq();
+        try {
+            Map<String, Double> rates = new TreeMap<String, Double>();
+            if (!tableExists(context)) {
+                return rates;
+            }
+            Record1<String> record = context.select(Tables.META_INFO.OTHER)
+                    .from(Tables.META_INFO)
+                    .where(Tables.META_INFO.COMPONENT.eq(component.getSimpleName()))
+                    .and(Tables.META_INFO.LANG_ID.isNull())
+                    .fetchOne();
+            if (record == null) {
+                return rates;
+            }
+            JsonObject other = parseOther(record.value1());
+            if (other.has(LOAD_RATES_KEY)) {
+                for (Map.Entry<String, JsonElement> entry : other.getAsJsonObject(LOAD_RATES_KEY).entrySet()) {
+                    rates.put(entry.getKey(), entry.getValue().getAsDouble());
+                }
+            }
+            return rates;
+        } finally {
+            freeJooq(context);
+        }
+    }
+
+    /**
+     * Parses the json dictionary of extra info stored with a component.
+     */
+    private static JsonObject parseOther(String json) {
+        if (json == null || json.trim().isEmpty()) {
+            return new JsonObject();
+        }
+        try {
+            return new JsonParser().parse(json).getAsJsonObject();
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "ignoring invalid meta info: " + json, e);
+            return new JsonObject();
+        }
+    }
+
+    /**
+     * Starts periodically writing the counts that have changed to the database,
+     * so that callers incrementing counts never wait on the database.
+     * The task holds a weak reference, and stops once the dao is garbage collected.
+     */
+    private void startFlusher() {
+        if (!flusherStarted.compareAndSet(false, true)) {
+            return;
+        }
+        final WeakReference<MetaInfoSqlDao> daoRef = new WeakReference<MetaInfoSqlDao>(this);
+        final AtomicReference<ScheduledFuture> future = new AtomicReference<ScheduledFuture>();
+        future.set(FLUSHER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                MetaInfoSqlDao dao = daoRef.get();
+                if (dao != null) {
+                    dao.flushChanged();
+                } else if (future.get() != null) {
+                    future.get().cancel(false);
+                }
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private void flushChanged() {
+        for (Map<Language, MetaInfo> langInfos : counters.values()) {
+            for (MetaInfo info : langInfos.values()) {
+                if (info.numNotWritten() == 0) {
+                    continue;
+                }
+                try {
                     flush(info);
+                } catch (DaoException e) {
+                    LOG.log(Level.WARNING, "writing meta info failed:", e);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "writing meta info failed:", e);
                 }
             }
         }
@@ -377,11 +534,14 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
                 Condition langCondition = (info.getLanguage() == null)
                         ? Tables.META_INFO.LANG_ID.isNull()
                         : Tables.META_INFO.LANG_ID.eq(info.getLanguage().getId());
+                Date updated = info.getLastUpdated();
+                Timestamp lastUpdated = new Timestamp(
+                        (updated == null) ? System.currentTimeMillis() : updated.getTime());
 
                 int n = context.update(Tables.META_INFO)
                         .set(Tables.META_INFO.NUM_ERRORS, info.getNumErrors())
                         .set(Tables.META_INFO.NUM_RECORDS, info.getNumRecords())
-                        .set(Tables.META_INFO.LAST_UPDATED, new Timestamp(info.getLastUpdated().getTime()))
+                        .set(Tables.META_INFO.LAST_UPDATED, lastUpdated)
                         .where(Tables.META_INFO.COMPONENT.eq(info.getComponent().getSimpleName()))
                         .and(langCondition)
                         .execute();
@@ -393,7 +553,7 @@ public class MetaInfoSqlDao extends AbstractSqlDao<MetaInfo> implements MetaInfo
                             Tables.META_INFO.LAST_UPDATED)
                             .values(info.getComponent().getSimpleName(), langId,
                                     info.getNumRecords(), info.getNumErrors(),
-                                    new Timestamp(info.getLastUpdated().getTime()))
+                                    lastUpdated)
                             .execute();
                 }
                 info.markAsWritten();
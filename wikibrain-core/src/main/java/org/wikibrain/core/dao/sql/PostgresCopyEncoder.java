@@ -0,0 +1,222 @@
+package org.wikibrain.core.dao.sql;
+
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Encodes rows in the binary format read by PostgreSQL's "COPY ... FROM STDIN (FORMAT binary)".
+ * Values are converted to the types of the destination columns, so callers can pass an
+ * Integer for a SMALLINT column just as they can with a JDBC insert.
+ */
+class PostgresCopyEncoder {
+    private static final byte[] SIGNATURE = {
+            'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0
+    };
+
+    // Microseconds between the unix epoch and the postgres epoch (2000-01-01)
+    private static final long POSTGRES_EPOCH_MICROS = 946684800000000L;
+
+    static enum ColumnType {
+        INT2, INT4, INT8, BOOL, FLOAT4, FLOAT8, TEXT, BYTEA, TIMESTAMP, TIMESTAMPTZ
+    }
+
+    private final ColumnType[] types;
+    private final Buffer buffer = new Buffer();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+
+    PostgresCopyEncoder(ColumnType[] types) {
+        this.types = types;
+    }
+
+    /**
+     * Looks up the types of some columns in a table.
+     * @param cnx
+     * @param table
+     * @param fields
+     * @return The column types, or null if some column cannot be copied in binary form
+     * (for example, PostGIS geometries).
+     * @throws SQLException
+     */
+    static ColumnType[] getColumnTypes(Connection cnx, String table, String[] fields) throws SQLException {
+        Map<String, String> typeNames = new HashMap<String, String>();
+        ResultSet rs = cnx.getMetaData().getColumns(null, null, table.toLowerCase(), null);
+        try {
+            while (rs.next()) {
+                typeNames.put(
+                        rs.getString("COLUMN_NAME").toLowerCase(),
+                        rs.getString("TYPE_NAME").toLowerCase());
+            }
+        } finally {
+            rs.close();
+        }
+        ColumnType types[] = new ColumnType[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = getColumnType(typeNames.get(fields[i].toLowerCase()));
+            if (types[i] == null) {
+                return null;
+            }
+        }
+        return types;
+    }
+
+    private static ColumnType getColumnType(String typeName) {
+        if (typeName == null) {
+            return null;
+        } else if (typeName.equals("int2") || typeName.equals("smallserial")) {
+            return ColumnType.INT2;
+        } else if (typeName.equals("int4") || typeName.equals("serial")) {
+            return ColumnType.INT4;
+        } else if (typeName.equals("int8") || typeName.equals("bigserial")) {
+            return ColumnType.INT8;
+        } else if (typeName.equals("bool")) {
+            return ColumnType.BOOL;
+        } else if (typeName.equals("float4")) {
+            return ColumnType.FLOAT4;
+        } else if (typeName.equals("float8")) {
+            return ColumnType.FLOAT8;
+        } else if (typeName.equals("text") || typeName.equals("varchar") || typeName.equals("bpchar")) {
+            return ColumnType.TEXT;
+        } else if (typeName.equals("bytea")) {
+            return ColumnType.BYTEA;
+        } else if (typeName.equals("timestamp")) {
+            return ColumnType.TIMESTAMP;
+        } else if (typeName.equals("timestamptz")) {
+            return ColumnType.TIMESTAMPTZ;
+        } else {
+            return null;
+        }
+    }
+
+    public void writeHeader() throws IOException {
+        out.write(SIGNATURE);
+        out.writeInt(0);    // flags
+        out.writeInt(0);    // header extension length
+    }
+
+    public void writeRow(Object[] row) throws IOException {
+        if (row.length != types.length) {
+            throw new IllegalArgumentException();
+        }
+        out.writeShort(types.length);
+        for (int i = 0; i < row.length; i++) {
+            writeValue(types[i], row[i]);
+        }
+    }
+
+    public void writeTrailer() throws IOException {
+        out.writeShort(-1);
+    }
+
+    /**
+     * @return The number of encoded bytes that have not yet been sent.
+     */
+    public int size() {
+        return buffer.size();
+    }
+
+    /**
+     * Sends the encoded bytes to a copy operation and clears them.
+     * @param copy
+     * @throws SQLException
+     */
+    public void sendTo(CopyIn copy) throws SQLException {
+        if (buffer.size() > 0) {
+            copy.writeToCopy(buffer.getBytes(), 0, buffer.size());
+        }
+        buffer.reset();
+    }
+
+    public void reset() {
+        buffer.reset();
+    }
+
+    private void writeValue(ColumnType type, Object value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte bytes[];
+        switch (type) {
+            case INT2:
+                out.writeInt(2);
+                out.writeShort(((Number) value).shortValue());
+                break;
+            case INT4:
+                out.writeInt(4);
+                out.writeInt(((Number) value).intValue());
+                break;
+            case INT8:
+                out.writeInt(8);
+                out.writeLong(((Number) value).longValue());
+                break;
+            case BOOL:
+                out.writeInt(1);
+                out.writeByte((Boolean) value ? 1 : 0);
+                break;
+            case FLOAT4:
+                out.writeInt(4);
+                out.writeFloat(((Number) value).floatValue());
+                break;
+            case FLOAT8:
+                out.writeInt(8);
+                out.writeDouble(((Number) value).doubleValue());
+                break;
+            case TEXT:
+                bytes = value.toString().getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                break;
+            case BYTEA:
+                bytes = (byte[]) value;
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                break;
+            case TIMESTAMP:
+            case TIMESTAMPTZ:
+                out.writeInt(8);
+                out.writeLong(toPostgresMicros((Timestamp) value, type == ColumnType.TIMESTAMP));
+                break;
+            default:
+                throw new IllegalStateException("unknown type: " + type);
+        }
+    }
+
+    /**
+     * Converts a timestamp to microseconds since the postgres epoch.
+     * Timestamps without a time zone hold the local wall clock time, as they do for JDBC inserts.
+     */
+    private static long toPostgresMicros(Timestamp ts, boolean localTime) {
+        long millis = ts.getTime();
+        if (localTime) {
+            millis += TimeZone.getDefault().getOffset(millis);
+        }
+        long seconds = millis / 1000;
+        if (millis % 1000 < 0) {
+            seconds--;
+        }
+        return seconds * 1000000 + ts.getNanos() / 1000 - POSTGRES_EPOCH_MICROS;
+    }
+
+    /**
+     * Exposes the internal buffer so it can be sent without a copy.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(1024 * 1024);
+        }
+
+        byte[] getBytes() {
+            return buf;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import org.wikibrain.core.model.Redirect;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -115,6 +116,31 @@ public class
         }
     }
 
+    @Override
+    public TIntIntMap resolveRedirects(Language lang, int ids[]) throws DaoException {
+        TIntIntMap dests = new TIntIntHashMap(
+                ids.length,
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : chunkIds(ids)) {
+                Result<Record2<Integer, Integer>> result = context
+                        .select(Tables.REDIRECT.SRC_PAGE_ID, Tables.REDIRECT.DEST_PAGE_ID)
+                        .from(Tables.REDIRECT)
+                        .where(Tables.REDIRECT.LANG_ID.equal(lang.getId()))
+                        .and(Tables.REDIRECT.SRC_PAGE_ID.in(chunk))
+                        .fetch();
+                for (Record2<Integer, Integer> record : result) {
+                    dests.put(record.value1(), record.value2());
+                }
+            }
+            return dests;
+        } finally {
+            freeJooq(context);
+        }
+    }
+
     @Override
     public boolean isRedirect(Language lang, int id) throws DaoException {
         DSLContext context = getJooq();
@@ -172,6 +172,32 @@ public class UniversalPageSqlDao extends AbstractSqlDao<UniversalPage> implement
         }
     }
 
+    @Override
+    public TIntIntMap getUnivPageIds(Language language, int localPageIds[]) throws DaoException {
+        TIntIntMap ids = new TIntIntHashMap(
+                localPageIds.length,
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        DSLContext context = getJooq();
+        try {
+            for (List<Integer> chunk : chunkIds(localPageIds)) {
+                Result<Record2<Integer, Integer>> result = context
+                        .select(Tables.UNIVERSAL_PAGE.PAGE_ID, Tables.UNIVERSAL_PAGE.UNIV_ID)
+                        .from(Tables.UNIVERSAL_PAGE)
+                        .where(Tables.UNIVERSAL_PAGE.LANG_ID.eq(language.getId()))
+                        .and(Tables.UNIVERSAL_PAGE.PAGE_ID.in(chunk))
+                        .and(Tables.UNIVERSAL_PAGE.ALGORITHM_ID.eq(algorithmId))
+                        .fetch();
+                for (Record2<Integer, Integer> record : result) {
+                    ids.put(record.value1(), record.value2());
+                }
+            }
+            return ids;
+        } finally {
+            freeJooq(context);
+        }
+    }
+
     @Override
     public int getUnivPageId(LocalPage localPage) throws DaoException {
         return getUnivPageId(localPage.getLanguage(), localPage.getLocalId());
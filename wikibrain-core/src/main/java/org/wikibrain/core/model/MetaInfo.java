@@ -1,6 +1,7 @@
 package org.wikibrain.core.model;
 
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.StripedCounter;
 
 import java.util.Date;
 
@@ -16,16 +17,20 @@ public class MetaInfo {
 
     // The last count of (records + errors) written to the database.
     // Can be used internally when delaying writes
-    private int lastWrite = 0;
+    private volatile long lastWrite = 0;
 
     // component + language uniquely define a meta info. language can be null.
     private final Class component;
     private final Language language;
 
     // accumulators
-    private int numRecords = 0;
-    private int numErrors = 0;
+    private final StripedCounter numRecords = new StripedCounter();
+    private final StripedCounter numErrors = new StripedCounter();
+
+    // lastUpdated is refreshed lazily, when it is read after the counts change,
+    // so increments never write to a field shared between threads.
     private Date lastUpdated = null;
+    private long countAtLastUpdate = 0;
 
     public MetaInfo(Class component) {
         this(component, null);
@@ -43,25 +48,28 @@ public class MetaInfo {
         this.component = component;
         this.language = language;
         this.id = id;
-        this.numRecords = numRecords;
-        this.numErrors = numErrors;
+        this.numRecords.add(numRecords);
+        this.numErrors.add(numErrors);
         this.lastUpdated = lastUpdated;
+        this.countAtLastUpdate = numRecords + numErrors;
+        this.lastWrite = numRecords + numErrors;
     }
 
+    // Increments return the updated count by summing the counter's stripes. This only
+    // reads them, so it is cheap, but the result is approximate under concurrent increments.
     public int incrementNumRecords() {
         return incrementNumRecords(1);
     }
 
-    public synchronized int incrementNumErrors() {
-        lastUpdated = new Date();
-        return ++numErrors;
+    public int incrementNumErrors() {
+        numErrors.increment();
+        return getNumErrors();
     }
 
 
-    public synchronized  int incrementNumRecords(int n) {
-        lastUpdated = new Date();
-        numRecords += n;
-        return numRecords;
+    public int incrementNumRecords(int n) {
+        numRecords.add(n);
+        return getNumRecords();
     }
 
     public long getId() {
@@ -69,7 +77,7 @@ public class MetaInfo {
     }
 
     public int getLastWrite() {
-        return lastWrite;
+        return (int) lastWrite;
     }
 
     public Language getLanguage() {
@@ -77,23 +85,32 @@ public class MetaInfo {
     }
 
     public int getNumRecords() {
-        return numRecords;
+        return (int) numRecords.sum();
     }
 
     public int getNumErrors() {
-        return numErrors;
+        return (int) numErrors.sum();
     }
 
-    public Date getLastUpdated() {
+    public synchronized Date getLastUpdated() {
+        long count = getCount();
+        if (count != countAtLastUpdate) {
+            lastUpdated = new Date();
+            countAtLastUpdate = count;
+        }
         return lastUpdated;
     }
 
     public int numNotWritten() {
-        return numErrors + numRecords - lastWrite;
+        return (int) (getCount() - lastWrite);
     }
 
     public void markAsWritten() {
-        lastWrite = numErrors + numRecords;
+        lastWrite = getCount();
+    }
+
+    private long getCount() {
+        return numErrors.sum() + numRecords.sum();
     }
 
     public Class getComponent() {
@@ -101,28 +118,32 @@ public class MetaInfo {
     }
 
     public synchronized void clear() {
-        numErrors = 0;
-        numRecords = 0;
+        numErrors.reset();
+        numRecords.reset();
         lastWrite = 0;
         lastUpdated = null;
+        countAtLastUpdate = 0;
     }
 
     /**
      * Merges the accumulated values of the passed-in info with the current values.
      * @param info
      */
-    public void merge(MetaInfo info) {
+    public synchronized void merge(MetaInfo info) {
         if (!info.component.equals(component)) {
             throw new IllegalArgumentException();
         }
-        numErrors += info.numErrors;
-        numRecords += info.numRecords;
-        lastWrite = numErrors + numRecords;
-
-        if (lastUpdated == null) {
-            lastUpdated = info.lastUpdated;
-        } else if (info.lastUpdated != null && info.lastUpdated.compareTo(lastUpdated) > 0) {
-            lastUpdated = info.lastUpdated;
+        Date infoUpdated = info.getLastUpdated();
+        Date updated = getLastUpdated();
+        numErrors.add(info.getNumErrors());
+        numRecords.add(info.getNumRecords());
+        lastWrite = getCount();
+        countAtLastUpdate = lastWrite;
+
+        if (updated == null) {
+            lastUpdated = infoUpdated;
+        } else if (infoUpdated != null && infoUpdated.compareTo(updated) > 0) {
+            lastUpdated = infoUpdated;
         }
     }
 
@@ -131,9 +152,9 @@ public class MetaInfo {
         return "MetaInfo{" +
                 "component=" + component +
                 ", language=" + language +
-                ", numRecords=" + numRecords +
-                ", numErrors=" + numErrors +
-                ", lastUpdated=" + lastUpdated +
+                ", numRecords=" + getNumRecords() +
+                ", numErrors=" + getNumErrors() +
+                ", lastUpdated=" + getLastUpdated() +
                 '}';
     }
 }
@@ -1,6 +1,6 @@
 package org.wikibrain.core.dao;
 
-
+import gnu.trove.map.TIntObjectMap;
 import org.junit.Test;
 import org.wikibrain.core.dao.sql.LocalPageSqlDao;
 import org.wikibrain.core.dao.sql.TestDaoUtil;
@@ -49,6 +49,10 @@ public class TestLocalPageDao {
         assert (pages.get(7).equals(page));
         assert (pages.get(7).equals(savedPage));
 
+        TIntObjectMap<LocalPage> batch = dao.getByIds(lang.getLanguage(), new int[] { 7, 8 });
+        assert (batch.size() == 1);
+        assert (batch.get(7).equals(page));
+
         List<Title> titles = new ArrayList<Title>();
         titles.add(new Title("test", lang));
         Map<Title, LocalPage> morePages = dao.getByTitles(lang.getLanguage(), titles, NameSpace.ARTICLE);
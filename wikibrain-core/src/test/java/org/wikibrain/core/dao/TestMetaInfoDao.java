@@ -9,6 +9,7 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 
 import java.io.IOException;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -102,4 +103,22 @@ public class TestMetaInfoDao {
         assertTrue(langs.containsLanguage(EN));
 
     }
+
+    @Test
+    public void testLoadRates() throws DaoException {
+        assertTrue(dao.getLoadRates(String.class).isEmpty());
+        dao.setLoadRate(String.class, "FOO", 1000.0);
+        dao.incrementRecords(String.class, null);
+        dao.sync(String.class);
+        dao.setLoadRate(String.class, "BAR", 20.0);
+        dao.setLoadRate(String.class, "FOO", 2000.0);
+
+        dao = new MetaInfoSqlDao(ds);
+        Map<String, Double> rates = dao.getLoadRates(String.class);
+        assertEquals(2, rates.size());
+        assertEquals(2000.0, rates.get("FOO"), 0.01);
+        assertEquals(20.0, rates.get("BAR"), 0.01);
+        assertEquals(1, dao.getInfo(String.class, null).getNumRecords());
+        assertTrue(dao.getLoadRates(Boolean.class).isEmpty());
+    }
 }
@@ -40,6 +40,12 @@ public class TestRedirectDao {
         assert (redirectDao.resolveRedirect(lang, 1)==5);
         assert (redirectDao.resolveRedirect(lang, 2)==6);
 
+        TIntIntMap resolved = redirectDao.resolveRedirects(lang, new int[] { 0, 2, 3, 2, 9 });
+        assert (resolved.size() == 2);
+        assert (resolved.get(0)==5);
+        assert (resolved.get(2)==6);
+        assert (resolved.get(3)==-1);
+
         LocalPage lp = new LocalPage(lang, 5, new Title("The Joy of Testing: The GLaDoS Story", langInfo), NameSpace.ARTICLE);
         TIntSet redirects = redirectDao.getRedirects(lp);
         assert (redirects.contains(0));
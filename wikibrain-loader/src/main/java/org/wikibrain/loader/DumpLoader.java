@@ -23,7 +23,7 @@ import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.parser.DumpSplitter;
 import org.wikibrain.parser.WpParseException;
-import org.wikibrain.parser.xml.PageXmlParser;
+import org.wikibrain.parser.xml.StaxPageParser;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpThreadUtils;
@@ -74,23 +74,32 @@ public class DumpLoader {
 
     /**
      * Expects file name format starting with lang + "wiki" for example, "enwiki"
+     * The file may be a regular articles dump or a multistream dump.
      * @param file
      */
     public void load(final File file) {
-        final Language lang = FileMatcher.ARTICLES.getLanguage(file.getAbsolutePath());
+        FileMatcher matcher = FileMatcher.MULTISTREAM.matchFiles(Arrays.asList(file)).isEmpty()
+                ? FileMatcher.ARTICLES : FileMatcher.MULTISTREAM;
+        final Language lang = matcher.getLanguage(file.getAbsolutePath());
         if (!keepProcessingArticles(lang)) {
             return;
         }
         DumpSplitter parser = new DumpSplitter(file);
+        final ThreadLocal<StaxPageParser> pageParsers = new ThreadLocal<StaxPageParser>();
         ParallelForEach.iterate(
-                parser.iterator(),
+                parser.byteIterator(),
                 WpThreadUtils.getMaxThreads(),
                 1000,
-                new Procedure<String>() {
+                new Procedure<byte[]>() {
                     @Override
-                    public void call(String page) throws Exception {
+                    public void call(byte[] page) throws Exception {
+                        StaxPageParser pageParser = pageParsers.get();
+                        if (pageParser == null) {
+                            pageParser = new StaxPageParser(LanguageInfo.getByLanguage(lang));
+                            pageParsers.set(pageParser);
+                        }
                         try {
-                            processOnePage(file, lang, page);
+                            processOnePage(file, lang, pageParser, page);
                         } catch (WpParseException e) {
                             LOG.log(Level.WARNING, "parsing of " + file.getPath() + " failed:", e);
                         }
@@ -100,14 +109,13 @@ public class DumpLoader {
         );
     }
 
-    private void processOnePage(File file, Language lang, String page) throws WpParseException {
+    private void processOnePage(File file, Language lang, StaxPageParser parser, byte[] page) throws WpParseException {
         if (!keepProcessingArticles(lang)) {
             return;
         }
         if (allPages.incrementAndGet() % 10000 == 0) {
             LOG.info("processing article " + allPages.get() + " found " + interestingPages.get() + " interesting articles");
         }
-        PageXmlParser parser = new PageXmlParser(LanguageInfo.getByLanguage(lang));
         RawPage rp = parser.parse(page);
         if (isInteresting(rp)) {
             interestingPages.incrementAndGet();
@@ -213,6 +221,9 @@ public class DumpLoader {
         List<File> paths;
         if (cmd.getArgList().isEmpty()) {
             paths = env.getFiles(FileMatcher.ARTICLES);
+            if (paths.isEmpty()) {
+                paths = env.getFiles(FileMatcher.MULTISTREAM);
+            }
         } else {
             paths = new ArrayList<File>();
             for (Object arg : cmd.getArgList()) {
@@ -8,19 +8,27 @@ import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.core.cmd.FileMatcher;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.DaoFilter;
 import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.dao.RawPageDao;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.lucene.LuceneIndexer;
 import org.wikibrain.lucene.LuceneOptions;
 import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.parser.DumpSplitter;
+import org.wikibrain.parser.WpParseException;
+import org.wikibrain.parser.xml.StaxPageParser;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -28,6 +36,7 @@ import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -59,6 +68,7 @@ public class LuceneLoader {
     private final LuceneOptions[] luceneOptions;
 
     private LuceneIndexer luceneIndexer;
+    private int numShards = 1;
 
     public LuceneLoader(RawPageDao rawPageDao, MetaInfoDao metaDao, LuceneOptions[] luceneOptions, Collection<NameSpace> namespaces) {
         this.rawPageDao = rawPageDao;
@@ -67,6 +77,14 @@ public class LuceneLoader {
         this.namespaces = namespaces;
     }
 
+    /**
+     * Sets the number of index shards that are written in parallel and merged at the end.
+     * @param numShards
+     */
+    public void setNumShards(int numShards) {
+        this.numShards = numShards;
+    }
+
     /**
      * NOTE: only one language can be loaded at a time.
      * @param language
@@ -81,7 +99,7 @@ public class LuceneLoader {
                     .setRedirect(false);
             int n = rawPageDao.getCount(filter);
             int i = 0;
-            luceneIndexer = new LuceneIndexer(language, luceneOptions);
+            luceneIndexer = new LuceneIndexer(language, numShards, luceneOptions);
             for (RawPage rawPage : rawPageDao.get(filter)) {
                 queue.put(rawPage);
                 if (++i % 1000 == 0) {
@@ -103,6 +121,68 @@ public class LuceneLoader {
         }
     }
 
+    /**
+     * Indexes the pages in article dumps without reading them from the raw page table.
+     * Titles of redirects are still read from the database, so the dumps must already be loaded.
+     *
+     * NOTE: only one language can be loaded at a time.
+     * @param language
+     * @param dumps
+     * @throws WikiBrainException
+     */
+    public synchronized void load(final Language language, List<File> dumps) throws WikiBrainException, ConfigurationException {
+        final LanguageInfo langInfo = LanguageInfo.getByLanguage(language);
+        final ThreadLocal<StaxPageParser> pageParsers = new ThreadLocal<StaxPageParser>();
+        final AtomicInteger numPages = new AtomicInteger();
+        try {
+            luceneIndexer = new LuceneIndexer(language, numShards, luceneOptions);
+            for (final File dump : dumps) {
+                LOG.info("indexing pages in " + dump);
+                ParallelForEach.iterate(
+                        new DumpSplitter(dump).byteIterator(),
+                        WpThreadUtils.getMaxThreads(),
+                        MAX_QUEUE,
+                        new Procedure<byte[]>() {
+                            @Override
+                            public void call(byte[] xml) throws Exception {
+                                StaxPageParser parser = pageParsers.get();
+                                if (parser == null) {
+                                    parser = new StaxPageParser(langInfo);
+                                    pageParsers.set(parser);
+                                }
+                                RawPage rp;
+                                try {
+                                    rp = parser.parse(xml);
+                                } catch (WpParseException e) {
+                                    LOG.log(Level.WARNING, "parsing of " + dump + " failed:", e);
+                                    metaDao.incrementErrorsQuietly(LuceneSearcher.class, language);
+                                    return;
+                                }
+                                if (rp.isRedirect() || !namespaces.contains(rp.getNamespace())) {
+                                    return;
+                                }
+                                try {
+                                    luceneIndexer.indexPage(rp);
+                                    metaDao.incrementRecords(LuceneSearcher.class, language);
+                                } catch (Exception e) {
+                                    metaDao.incrementErrorsQuietly(LuceneSearcher.class, language);
+                                    LOG.log(Level.WARNING, "exception while indexing " + rp.getTitle(), e);
+                                }
+                                if (numPages.incrementAndGet() % 1000 == 0) {
+                                    LOG.log(Level.INFO, "RawPages indexed " + language + ": " + numPages.get());
+                                }
+                            }
+                        },
+                        -1);
+            }
+        } finally {
+            if (luceneIndexer != null) {
+                IOUtils.closeQuietly(luceneIndexer);
+                luceneIndexer = null;
+            }
+        }
+    }
+
     public void endLoad() {
         if (luceneIndexer != null) {
             luceneIndexer.close();
@@ -185,6 +265,17 @@ public class LuceneLoader {
                         .withLongOpt("indexes")
                         .withDescription("the types of indexes to store, separated by commas")
                         .create("i"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("shards")
+                        .withDescription("the number of index shards written in parallel and then merged")
+                        .create("n"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("from-dump")
+                        .withDescription("index pages directly from the article dumps instead of the raw page table")
+                        .create("s"));
         EnvBuilder.addStandardOptions(options);
 
         CommandLineParser parser = new PosixParser();
@@ -232,11 +323,22 @@ public class LuceneLoader {
         }
 
         final LuceneLoader loader = new LuceneLoader(rawPageDao, metaDao, luceneOptions, namespaces);
+        if (cmd.hasOption("n")) {
+            loader.setNumShards(Integer.valueOf(cmd.getOptionValue("n")));
+        }
 
         LOG.log(Level.INFO, "Begin indexing");
 
         for (Language lang : languages) {
-            loader.load(lang);
+            if (cmd.hasOption("s")) {
+                List<File> dumps = env.getFiles(lang, FileMatcher.ARTICLES);
+                if (dumps.isEmpty()) {
+                    dumps = env.getFiles(lang, FileMatcher.MULTISTREAM);
+                }
+                loader.load(lang, dumps);
+            } else {
+                loader.load(lang);
+            }
         }
 
         loader.endLoad();
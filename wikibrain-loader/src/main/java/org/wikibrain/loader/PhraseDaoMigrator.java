@@ -0,0 +1,68 @@
+package org.wikibrain.loader;
+
+import org.apache.commons.cli.*;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.DefaultOptionBuilder;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.StringNormalizer;
+import org.wikibrain.phrases.PhraseAnalyzerCompactDao;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts the object databases of phrase analyzers that were loaded with the "objectdb"
+ * dao into the files read by the "compact" dao. The object databases are left in place.
+ * Once an analyzer has been migrated, set its dao type to "compact" to use the new files.
+ */
+public class PhraseDaoMigrator {
+    private static final Logger LOG = Logger.getLogger(PhraseDaoMigrator.class.getName());
+
+    public static void main(String args[]) throws ConfigurationException, DaoException {
+        Options options = new Options();
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArgs()
+                        .withLongOpt("analyzer")
+                        .withDescription("the name of the phrase analyzer to migrate")
+                        .create("p"));
+        EnvBuilder.addStandardOptions(options);
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println( "Invalid option usage: " + e.getMessage());
+            new HelpFormatter().printHelp("PhraseDaoMigrator", options);
+            return;
+        }
+
+        Env env = new EnvBuilder(cmd).build();
+        List<String> toMigrate = env.getConfiguration().get().getStringList("phrases.toLoad");
+        if (cmd.hasOption("p")) {
+            toMigrate = Arrays.asList(cmd.getOptionValues("p"));
+        }
+
+        File basePath = new File(env.getConfiguration().get().getString("phrases.path"));
+        for (String name : toMigrate) {
+            File path = new File(basePath, name);
+            if (!new File(path, "resolve").isDirectory() || !new File(path, "describe").isDirectory()) {
+                LOG.log(Level.WARNING, "no object database for phrase analyzer " + name + " in " + path);
+                continue;
+            }
+            String normalizerName = env.getConfiguration().get().getString("phrases.analyzer." + name + ".dao.normalizer");
+            StringNormalizer normalizer = env.getConfigurator().get(StringNormalizer.class, normalizerName);
+            LOG.log(Level.INFO, "MIGRATING PHRASE DAO FOR " + name);
+            PhraseAnalyzerCompactDao dao = new PhraseAnalyzerCompactDao(normalizer, path, false);
+            dao.importObjectDb(path);
+            dao.close();
+            LOG.log(Level.INFO, "DONE");
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.wikibrain.loader;
 
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -15,6 +17,7 @@ import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.InterLanguageLink;
 import org.wikibrain.core.model.LocalCategoryMember;
 import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.parser.wiki.*;
 
 import java.io.File;
@@ -38,6 +41,11 @@ public class WikiTextLoader {
                         .withLongOpt("drop-tables")
                         .withDescription("drop and recreate all tables")
                         .create("d"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("from-dump")
+                        .withDescription("parse wikitext directly from the article dumps instead of the raw page table")
+                        .create("s"));
         EnvBuilder.addStandardOptions(options);
 
         CommandLineParser parser = new PosixParser();
@@ -93,9 +101,29 @@ public class WikiTextLoader {
                         public void notify(LocalLink link) { linkSet.addLink(link); }
                     });
 
-            WikiTextDumpParser dumpParser = new WikiTextDumpParser(
-                    rpDao, LanguageInfo.getByLanguage(lang), LanguageSet.ALL);
-            dumpParser.parse(visitors);
+            if (cmd.hasOption("s")) {
+                // Only parse the pages that the dump loader kept.
+                // Redirects produce no links, and resolving them costs a query per page.
+                TIntSet pageIds = new TIntHashSet();
+                for (LocalPage page : lpDao.get(new DaoFilter().setLanguages(lang).setRedirect(false))) {
+                    pageIds.add(page.getLocalId());
+                }
+                List<File> dumps = env.getFiles(lang, FileMatcher.ARTICLES);
+                if (dumps.isEmpty()) {
+                    dumps = env.getFiles(lang, FileMatcher.MULTISTREAM);
+                }
+                for (File dump : dumps) {
+                    LOG.info("parsing wikitext in " + dump);
+                    WikiTextDumpParser dumpParser = new WikiTextDumpParser(
+                            dump, LanguageInfo.getByLanguage(lang), LanguageSet.ALL);
+                    dumpParser.setValidIds(pageIds);
+                    dumpParser.parse(visitors);
+                }
+            } else {
+                WikiTextDumpParser dumpParser = new WikiTextDumpParser(
+                        rpDao, LanguageInfo.getByLanguage(lang), LanguageSet.ALL);
+                dumpParser.parse(visitors);
+            }
 
             linkSet.finish();
 
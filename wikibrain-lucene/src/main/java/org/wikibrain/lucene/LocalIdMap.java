@@ -0,0 +1,80 @@
+package org.wikibrain.lucene;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps between Lucene document ids and local page ids for a single index reader.
+ * Both directions are array or hash lookups, so no documents are loaded and no queries are run.
+ *
+ * Ids are read from the local id DocValues written by LuceneIndexer.
+ * Indexes built before the DocValues were added fall back to the FieldCache.
+ */
+class LocalIdMap {
+    private final int[] docToLocal;
+    private final TIntIntMap localToDoc;
+
+    LocalIdMap(IndexReader reader) throws IOException {
+        docToLocal = new int[reader.maxDoc()];
+        Arrays.fill(docToLocal, -1);
+        localToDoc = new TIntIntHashMap(reader.numDocs() * 4 / 3 + 1, 0.75f, -1, -1);
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader leaf = context.reader();
+            Bits liveDocs = leaf.getLiveDocs();
+            int localIds[] = readLocalIds(leaf);
+            for (int i = 0; i < localIds.length; i++) {
+                if (liveDocs == null || liveDocs.get(i)) {
+                    docToLocal[context.docBase + i] = localIds[i];
+                    localToDoc.put(localIds[i], context.docBase + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the local id of every document in a segment, including deleted documents.
+     * @param leaf
+     * @return An array indexed by the segment's document ids.
+     * @throws IOException
+     */
+    static int[] readLocalIds(AtomicReader leaf) throws IOException {
+        int localIds[] = new int[leaf.maxDoc()];
+        NumericDocValues values = leaf.getNumericDocValues(LuceneOptions.LOCAL_ID_FIELD_NAME);
+        if (values != null) {
+            for (int i = 0; i < localIds.length; i++) {
+                localIds[i] = (int) values.get(i);
+            }
+        } else {
+            FieldCache.Ints ints = FieldCache.DEFAULT.getInts(leaf, LuceneOptions.LOCAL_ID_FIELD_NAME, FieldCache.NUMERIC_UTILS_INT_PARSER, false);
+            for (int i = 0; i < localIds.length; i++) {
+                localIds[i] = ints.get(i);
+            }
+        }
+        return localIds;
+    }
+
+    /**
+     * @param docId
+     * @return The local id of the document, or -1 if the document does not exist.
+     */
+    int getLocalId(int docId) {
+        return (docId >= 0 && docId < docToLocal.length) ? docToLocal[docId] : -1;
+    }
+
+    /**
+     * @param localId
+     * @return The Lucene id of the page, or -1 if the page is not indexed.
+     */
+    int getDocId(int localId) {
+        return localToDoc.get(localId);
+    }
+}
@@ -5,8 +5,10 @@ import org.apache.commons.io.IOUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.wikibrain.conf.ConfigurationException;
@@ -22,19 +24,35 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
  * This class is used to index raw pages during the load process.
  *
+ * Pages can be split across several shards, each with its own IndexWriter,
+ * so that many threads can index at once without contending for a single writer.
+ * The shards are merged into the language's index when the indexer is closed.
+ *
  * @author Ari Weiland
  *
  */
 public class LuceneIndexer implements Closeable {
+    private static final Logger LOG = Logger.getLogger(LuceneIndexer.class.getName());
+
+    // RAM used to buffer documents, divided among the shards
+    public static final double RAM_BUFFER_MB = 256.0;
+    public static final double MIN_SHARD_RAM_BUFFER_MB = 32.0;
 
     private final File root;
     private final Language language;
-    private final IndexWriter writer;
+    private final File langRoot;
+    private final File shardRoot;
+    private final IndexWriter[] writers;
+    private final AtomicInteger[] shardCounts;
+    private final long startTime = System.currentTimeMillis();
     private final LuceneOptions[] options;
     private final LuceneOptions mainOptions;
     private final TextFieldBuilder builder;
@@ -61,10 +79,30 @@ public class LuceneIndexer implements Closeable {
      * @param options an array of LuceneOptions objects. There must be at least one specified.
      */
     public LuceneIndexer(Language language, LuceneOptions... options) throws ConfigurationException {
-        this(language, options[0].luceneRoot, options);
+        this(language, options[0].luceneRoot, 1, options);
+    }
+
+    /**
+     * Constructs a LuceneIndexer that splits the index for the specified
+     * language into numShards shards while indexing. Indexes are then placed
+     * in language-specific subdirectories specified by the first element in options.
+     *
+     * @param language the language in which this searcher can operate
+     * @param numShards the number of shards, each with its own writer.
+     * @param options an array of LuceneOptions objects. There must be at least one specified.
+     */
+    public LuceneIndexer(Language language, int numShards, LuceneOptions... options) throws ConfigurationException {
+        this(language, options[0].luceneRoot, numShards, options);
     }
 
     private LuceneIndexer(Language language, File root, LuceneOptions... options) throws ConfigurationException {
+        this(language, root, 1, options);
+    }
+
+    private LuceneIndexer(Language language, File root, int numShards, LuceneOptions... options) throws ConfigurationException {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Illegal number of shards: " + numShards);
+        }
         try {
             this.root = root;
             this.language = language;
@@ -76,19 +114,40 @@ public class LuceneIndexer implements Closeable {
                     mainOptions.configurator.get(RedirectDao.class));
 
 
-                File langRoot = new File(root, language.getLangCode());
-                if (langRoot.exists()) {
-                    FileUtils.deleteQuietly(langRoot);
+                this.langRoot = new File(root, language.getLangCode());
+                this.shardRoot = new File(root, language.getLangCode() + "-shards");
+                FileUtils.deleteQuietly(langRoot);
+                FileUtils.deleteQuietly(shardRoot);
+                this.writers = new IndexWriter[numShards];
+                this.shardCounts = new AtomicInteger[numShards];
+                for (int i = 0; i < numShards; i++) {
+                    File dir = (numShards == 1) ? langRoot : new File(shardRoot, "" + i);
+                    writers[i] = new IndexWriter(FSDirectory.open(dir), getWriterConfig(numShards));
+                    shardCounts[i] = new AtomicInteger();
                 }
-                WikiBrainAnalyzer analyzer = new WikiBrainAnalyzer(language, mainOptions);
-                Directory directory = FSDirectory.open(langRoot);
-                IndexWriterConfig iwc = new IndexWriterConfig(mainOptions.matchVersion, analyzer);
-                writer = new IndexWriter(directory, iwc);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Each shard's writer gets an equal part of the RAM buffer. Shards also merge
+     * less often than usual, since they are merged into a single index at the end.
+     * A single writer uses Lucene's defaults.
+     */
+    private IndexWriterConfig getWriterConfig(int numShards) {
+        IndexWriterConfig iwc = new IndexWriterConfig(mainOptions.matchVersion, new WikiBrainAnalyzer(language, mainOptions));
+        if (numShards > 1) {
+            iwc.setRAMBufferSizeMB(Math.max(MIN_SHARD_RAM_BUFFER_MB, RAM_BUFFER_MB / numShards));
+            iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+            TieredMergePolicy policy = new TieredMergePolicy();
+            policy.setSegmentsPerTier(30.0);
+            policy.setMaxMergeAtOnce(30);
+            iwc.setMergePolicy(policy);
+        }
+        return iwc;
+    }
+
     public File getRoot() {
         return root;
     }
@@ -112,9 +171,11 @@ public class LuceneIndexer implements Closeable {
         try {
             Document document = new Document();
             Field localIdField = new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, page.getLocalId(), Field.Store.YES);
+            Field localIdValuesField = new NumericDocValuesField(LuceneOptions.LOCAL_ID_FIELD_NAME, page.getLocalId());
             Field langIdField = new IntField(LuceneOptions.LANG_ID_FIELD_NAME, page.getLanguage().getId(), Field.Store.YES);
             Field canonicalTitleField = builder.buildTextField(page, new TextFieldElements().addTitle());
             document.add(localIdField);
+            document.add(localIdValuesField);
             document.add(langIdField);
             document.add(canonicalTitleField);
             if (!page.isRedirect()) {
@@ -122,17 +183,75 @@ public class LuceneIndexer implements Closeable {
                     document.add(builder.buildTextField(page, option.elements));
                 }
             }
-            writer.addDocument(document);
+            int shard = page.getLocalId() % writers.length;
+            writers[shard].addDocument(document);
+            int n = shardCounts[shard].incrementAndGet();
+            if (n % 10000 == 0) {
+                logShard(shard);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void logShard(int shard) {
+        int n = shardCounts[shard].get();
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - startTime) / 1000.0);
+        LOG.info(String.format("indexed %d documents in %s shard %d of %d (%.1f docs/s)",
+                n, language.getLangCode(), shard, writers.length, n / seconds));
+    }
+
     /**
      * Method should be called when done indexing.
+     * If the index has several shards, they are merged into a single index.
+     * If any writer fails to close, the shards are left in place and are not merged.
      */
-    public void close() {
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
         closed = true;
-        IOUtils.closeQuietly(writer);
+        IOException failure = null;
+        for (int i = 0; i < writers.length; i++) {
+            logShard(i);
+            try {
+                writers[i].close();
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "closing " + language.getLangCode() + " shard " + i + " failed", e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+        if (writers.length > 1) {
+            try {
+                mergeShards();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void mergeShards() throws IOException {
+        LOG.info("merging " + writers.length + " shards into " + langRoot);
+        Directory shards[] = new Directory[writers.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = FSDirectory.open(new File(shardRoot, "" + i));
+        }
+        IndexWriterConfig iwc = new IndexWriterConfig(mainOptions.matchVersion, new WikiBrainAnalyzer(language, mainOptions));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(langRoot), iwc);
+        try {
+            writer.addIndexes(shards);
+            writer.maybeMerge();
+        } finally {
+            writer.close();
+            for (Directory dir : shards) {
+                IOUtils.closeQuietly(dir);
+            }
+        }
+        FileUtils.deleteQuietly(shardRoot);
     }
 }
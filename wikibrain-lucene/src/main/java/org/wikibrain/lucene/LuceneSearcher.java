@@ -1,22 +1,27 @@
 package org.wikibrain.lucene;
 
 import com.typesafe.config.Config;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,11 +29,16 @@ import java.util.logging.Logger;
  *
  * This class wraps the lucene search into a class that can handle any specified language
  *
+ * Searches are threadsafe. A single query can be spread across the segments of an index
+ * by specifying segmentThreads, and many queries can be run at once with searchBatch().
+ * The thread pool for batches is created by the first call to searchBatch(). Call close()
+ * to shut down the thread pools and close the indexes.
+ *
  * @author Ari Weiland
  * @author Yulun Li
  *
 */
-public class LuceneSearcher {
+public class LuceneSearcher implements Closeable {
 
     private static final Logger LOG = Logger.getLogger(LuceneSearcher.class.getName());
 
@@ -38,9 +48,13 @@ public class LuceneSearcher {
     private final Map<Language, IndexSearcher> searchers;
     private final Map<Language, DirectoryReader> readers;
     private final Map<Language, WikiBrainAnalyzer> analyzers;
+    private final Map<Language, LocalIdMap> idMaps;
     private final LuceneOptions options;
+    private final ExecutorService segmentExecutor;
+    private ExecutorService batchExecutor = null;
+    private boolean closed = false;
 
-    private int hitCount = DEFAULT_HIT_COUNT;
+    private volatile int hitCount = DEFAULT_HIT_COUNT;
 
     /**
      * Constructs a LuceneSearcher that will run lucene queries on sets of articles
@@ -52,7 +66,7 @@ public class LuceneSearcher {
      * @param root the root directory in which each language contains its own lucene directory
      */
     public LuceneSearcher(LanguageSet languages, File root) {
-        this(languages, root, LuceneOptions.getDefaultOptions());
+        this(languages, root, LuceneOptions.getDefaultOptions(), 1);
     }
 
     /**
@@ -63,25 +77,41 @@ public class LuceneSearcher {
      * @param options a LuceneOptions object containing specific options for lucene
      */
     public LuceneSearcher(LanguageSet languages, LuceneOptions options) {
-        this(languages, options.luceneRoot, options);
+        this(languages, options.luceneRoot, options, 1);
     }
 
-    private LuceneSearcher(LanguageSet languages, File root, LuceneOptions options) {
+    /**
+     * Constructs a LuceneSearcher that will run lucene queries on sets of articles
+     * in any language in the LanguageSet. The directory is specified within options.
+     *
+     * @param languages the language set in which this searcher can operate
+     * @param options a LuceneOptions object containing specific options for lucene
+     * @param segmentThreads the number of threads used to search the segments of an index
+     *                       for a single query. If 1, each query is run in the calling thread.
+     */
+    public LuceneSearcher(LanguageSet languages, LuceneOptions options, int segmentThreads) {
+        this(languages, options.luceneRoot, options, segmentThreads);
+    }
+
+    private LuceneSearcher(LanguageSet languages, File root, LuceneOptions options, int segmentThreads) {
         try {
             System.err.println("LOADING LANGUAGES " + languages);
             this.root = root;
+            this.segmentExecutor = (segmentThreads > 1) ? newExecutor("lucene-segment", segmentThreads) : null;
             this.searchers = new HashMap<Language, IndexSearcher>();
             this.readers = new HashMap<Language, DirectoryReader>();
             this.analyzers = new HashMap<Language, WikiBrainAnalyzer>();
+            this.idMaps = new HashMap<Language, LocalIdMap>();
             for (Language language : languages) {
                 File langRoot = new File(root, language.getLangCode());
                 if (!langRoot.isDirectory()) {
                     throw new IllegalArgumentException("no index at location: " + langRoot);
                 }
-                Directory directory = FSDirectory.open(langRoot);
+                Directory directory = new MMapDirectory(langRoot);
                 DirectoryReader reader = DirectoryReader.open(directory);
                 readers.put(language, reader);
-                searchers.put(language, new IndexSearcher(reader));
+                searchers.put(language, new IndexSearcher(reader, segmentExecutor));
+                idMaps.put(language, new LocalIdMap(reader));
                 analyzers.put(language, new WikiBrainAnalyzer(language, options));
             }
             this.options = options;
@@ -90,6 +120,49 @@ public class LuceneSearcher {
         }
     }
 
+    private static ExecutorService newExecutor(final String name, int numThreads) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private synchronized ExecutorService getBatchExecutor() {
+        if (closed) {
+            throw new IllegalStateException("searcher is closed");
+        }
+        if (batchExecutor == null) {
+            batchExecutor = newExecutor("lucene-batch", WpThreadUtils.getMaxThreads());
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * Shuts down the thread pools and closes the index readers.
+     * The searcher cannot be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+        }
+        if (segmentExecutor != null) {
+            segmentExecutor.shutdownNow();
+        }
+        for (DirectoryReader reader : readers.values()) {
+            reader.close();
+        }
+    }
+
     public File getRoot() {
         return root;
     }
@@ -102,6 +175,9 @@ public class LuceneSearcher {
         return options;
     }
 
+    /**
+     * @return the number of hits returned by searches that do not specify a hit count.
+     */
     public int getHitCount() {
         return hitCount;
     }
@@ -148,7 +224,6 @@ public class LuceneSearcher {
     public WikiBrainScoreDoc[] search(Query query, Language language, int hitCount, Filter filter, boolean resolveWpIds) {
         if (!searchers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
         try {
-            this.hitCount = hitCount;
             ScoreDoc[] scoreDocs = searchers.get(language).search(query, filter, hitCount).scoreDocs;
             WikiBrainScoreDoc[] wikibrainScoreDocs = new WikiBrainScoreDoc[scoreDocs.length];
             for (int i = 0; i < scoreDocs.length; i++) {
@@ -162,40 +237,82 @@ public class LuceneSearcher {
         }
     }
 
+    /**
+     * Runs many queries at once in the specified language.
+     * At most WpThreadUtils.getMaxThreads() queries from all batches run at the same time.
+     *
+     * @param queries
+     * @param language
+     * @param hitCount
+     * @param filter
+     * @param resolveWpIds if True, returns wikipedia ids. otherwise returns lucene ids.
+     * @return the results of each query, in the same order as the queries.
+     */
+    public List<WikiBrainScoreDoc[]> searchBatch(List<Query> queries, final Language language, final int hitCount, final Filter filter, final boolean resolveWpIds) {
+        if (!searchers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
+        ExecutorService executor = getBatchExecutor();
+        List<Future<WikiBrainScoreDoc[]>> futures = new ArrayList<Future<WikiBrainScoreDoc[]>>();
+        for (final Query query : queries) {
+            futures.add(executor.submit(new Callable<WikiBrainScoreDoc[]>() {
+                @Override
+                public WikiBrainScoreDoc[] call() throws Exception {
+                    return search(query, language, hitCount, filter, resolveWpIds);
+                }
+            }));
+        }
+        List<WikiBrainScoreDoc[]> results = new ArrayList<WikiBrainScoreDoc[]>();
+        try {
+            for (Future<WikiBrainScoreDoc[]> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<WikiBrainScoreDoc[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    public List<WikiBrainScoreDoc[]> searchBatch(List<Query> queries, Language language) {
+        return searchBatch(queries, language, this.hitCount, null, true);
+    }
+
     /**
      * Retrieves the local ID for a specified lucene document,
      * within a given language.
      *
      * @param docId
      * @param language
-     * @return
+     * @return the local id, or -1 if the document does not exist
      */
     public int getLocalIdFromDocId(int docId, Language language) {
-        try {
-            if (docId != -1) {
-                Document document = searchers.get(language).doc(docId);
-                return (Integer) document.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue();
-            } else {
-                LOG.log(Level.WARNING, "This docId does not exist: " + docId);
-                return -1;
-            }
-        }  catch (IOException e) {
-            throw new RuntimeException(e);
+        if (!idMaps.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
+        int localId = idMaps.get(language).getLocalId(docId);
+        if (localId < 0) {
+            LOG.log(Level.WARNING, "This docId does not exist: " + docId);
         }
+        return localId;
     }
 
+    /**
+     * Retrieves the lucene document id for a specified local ID,
+     * within a given language.
+     *
+     * @param localId
+     * @param language
+     * @return the lucene id, or -1 if the page is not indexed
+     * @throws DaoException
+     */
     public int getDocIdFromLocalId(int localId, Language language) throws DaoException {
-        Query query = NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, localId, true, true);
-        try {
-            ScoreDoc[] hits = searchers.get(language).search(query, 1).scoreDocs;
-            if (hits.length == 0) {
-                return -1;
-            } else {
-                return hits[0].doc;
-            }
-        } catch (IOException e) {
-            throw new DaoException(e);
-        }
+        if (!idMaps.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
+        return idMaps.get(language).getDocId(localId);
     }
 
     public DirectoryReader getReaderByLanguage(Language language) {
@@ -237,7 +354,8 @@ public class LuceneSearcher {
         public LuceneSearcher get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
             return new LuceneSearcher(
                     getConfigurator().get(LanguageSet.class),
-                    getConfigurator().get(LuceneOptions.class, config.getString("options"))
+                    getConfigurator().get(LuceneOptions.class, config.getString("options")),
+                    config.hasPath("segmentThreads") ? config.getInt("segmentThreads") : 1
             );
         }
     }
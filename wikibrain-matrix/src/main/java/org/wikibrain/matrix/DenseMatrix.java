@@ -47,11 +47,30 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
      * @throws java.io.IOException
      */
     public DenseMatrix(File path) throws IOException {
+        this(path, MemoryMappedMatrix.DEFAULT_STORAGE_MODE);
+    }
+
+    /**
+     * Create a dense matrix based on the data in a particular file.
+     * @param path Path to the matrix data file.
+     * @param mode Whether rows are memory mapped or loaded into heap / direct buffers.
+     * @throws java.io.IOException
+     */
+    public DenseMatrix(File path, MemoryMappedMatrix.StorageMode mode) throws IOException {
         this.path = path;
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
         readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets);
+        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets, mode);
+    }
+
+    /**
+     * Faults in all pages of a memory mapped matrix in parallel.
+     * @param numThreads
+     * @throws IOException
+     */
+    public void warmup(int numThreads) throws IOException {
+        rowBuffers.warmup(numThreads);
     }
 
     private void readHeaders() throws IOException {
@@ -109,6 +128,11 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         }
     }
 
+    @Override
+    public DenseRowCursor newCursor() {
+        return new DenseRowCursor(rowBuffers, vconf, colIds);
+    }
+
     @Override
     public int[] getRowIds() {
         return rowBuffers.getRowIdsInDiskOrder();
@@ -119,6 +143,41 @@ public class DenseMatrix implements Matrix<DenseMatrixRow> {
         return colIds;
     }
 
+    /**
+     * Unpacks the values of the specified rows into a single contiguous array.
+     * Row i occupies [i * numCols, (i + 1) * numCols). Missing rows are all zeros.
+     * @param rowIds
+     * @return
+     * @throws IOException
+     */
+    public float[] getRowBlock(int rowIds[]) throws IOException {
+        int dim = colIds.length;
+        float block[] = new float[rowIds.length * dim];
+        DenseRowCursor cursor = newCursor();
+        for (int i = 0; i < rowIds.length; i++) {
+            if (cursor.moveTo(rowIds[i])) {
+                cursor.getColValues(block, i * dim);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Computes the cosine similarity between each pair of rows in rowIds x colIds.
+     * Both sets of rows are unpacked into contiguous blocks and scored in tiles.
+     * Pairs involving a missing row have similarity 0.
+     *
+     * @param rowIds
+     * @param colIds
+     * @return A matrix whose (i, j) entry is the similarity of rowIds[i] and colIds[j].
+     * @throws IOException
+     */
+    public float[][] cosimilarity(int rowIds[], int colIds[]) throws IOException {
+        float rows[] = getRowBlock(rowIds);
+        float cols[] = (rowIds == colIds) ? rows : getRowBlock(colIds);
+        return DenseVectors.cosimilarity(rows, rowIds.length, cols, colIds.length, this.colIds.length);
+    }
+
     @Override
     public int getNumRows() {
         return numRows;
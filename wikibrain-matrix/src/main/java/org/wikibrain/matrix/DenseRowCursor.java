@@ -0,0 +1,97 @@
+package org.wikibrain.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A cursor over the rows of a dense matrix.
+ * The cursor reads rows directly from the pages of the matrix, so moving
+ * it onto a row and reading its columns does not allocate any objects.
+ * @see DenseMatrix#newCursor()
+ */
+public final class DenseRowCursor extends BaseMatrixRow implements RowCursor {
+    private final MemoryMappedMatrix rowBuffers;
+    private final ValueConf vconf;
+    private final int colIds[];
+
+    private ByteBuffer page;
+    private int rowIndex;
+    private int valPos;     // position of the first column value in page
+
+    DenseRowCursor(MemoryMappedMatrix rowBuffers, ValueConf vconf, int colIds[]) {
+        this.rowBuffers = rowBuffers;
+        this.vconf = vconf;
+        this.colIds = colIds;
+    }
+
+    @Override
+    public boolean moveTo(int rowId) throws IOException {
+        long offset = rowBuffers.getRowOffset(rowId);
+        if (offset < 0) {
+            page = null;
+            return false;
+        }
+        int pageIndex = rowBuffers.getPageIndex(offset);
+        if (pageIndex < 0) {
+            throw new IllegalArgumentException("did not find row " + rowId + " with offset " + offset);
+        }
+        ByteBuffer b = rowBuffers.getPageBuffer(pageIndex);
+        int pos = (int) (offset - rowBuffers.getPageBufferStart(pageIndex));
+        if (b.getInt(pos) != DenseMatrixRow.HEADER) {
+            throw new IllegalArgumentException("Invalid header for row " + rowId);
+        }
+        page = b;
+        rowIndex = b.getInt(pos + 4);
+        valPos = pos + 8;
+        return true;
+    }
+
+    @Override
+    public boolean isValid() {
+        return page != null;
+    }
+
+    @Override
+    public int getColIndex(int i) {
+        return colIds[i];
+    }
+
+    @Override
+    public float getColValue(int i) {
+        return vconf.unpack(page.getShort(valPos + 2 * i));
+    }
+
+    @Override
+    public int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public int getNumCols() {
+        return colIds.length;
+    }
+
+    @Override
+    public int getColIds(int dest[]) {
+        System.arraycopy(colIds, 0, dest, 0, colIds.length);
+        return colIds.length;
+    }
+
+    @Override
+    public int getColValues(float dest[]) {
+        return getColValues(dest, 0);
+    }
+
+    /**
+     * Copies the values of the current row into dest, starting at offset.
+     * @return The number of values copied.
+     */
+    public int getColValues(float dest[], int offset) {
+        int p = valPos;
+        for (int i = 0; i < colIds.length; i++) {
+            dest[offset + i] = vconf.unpack(page.getShort(p));
+            p += 2;
+        }
+        return colIds.length;
+    }
+}
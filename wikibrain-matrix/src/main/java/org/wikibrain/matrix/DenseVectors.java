@@ -0,0 +1,135 @@
+package org.wikibrain.matrix;
+
+/**
+ * Kernels for dense float vectors.
+ *
+ * The loops are unrolled with independent accumulators and contain no branches or
+ * bounds that vary per element, so HotSpot can auto-vectorize them. Batches of vectors
+ * are stored contiguously in a single float array (vector i starts at i * dim) and
+ * scored in tiles that fit in the L1 / L2 caches.
+ */
+public final class DenseVectors {
+
+    /**
+     * Number of row and column vectors scored together in a tile.
+     */
+    public static final int TILE_SIZE = 32;
+
+    private DenseVectors() {}
+
+    public static float dot(float a[], float b[]) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("vectors have different lengths: " + a.length + " and " + b.length);
+        }
+        return dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Computes the dot product of a[aOff..aOff+n) and b[bOff..bOff+n).
+     */
+    public static float dot(float a[], int aOff, float b[], int bOff, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[aOff + i] * b[bOff + i];
+            s1 += a[aOff + i + 1] * b[bOff + i + 1];
+            s2 += a[aOff + i + 2] * b[bOff + i + 2];
+            s3 += a[aOff + i + 3] * b[bOff + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[aOff + i] * b[bOff + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static float norm(float a[]) {
+        return norm(a, 0, a.length);
+    }
+
+    public static float norm(float a[], int off, int n) {
+        return (float) Math.sqrt(dot(a, off, a, off, n));
+    }
+
+    /**
+     * @return The cosine similarity of a and b, or 0 if either has zero length.
+     */
+    public static float cosine(float a[], float b[]) {
+        float na = norm(a);
+        float nb = norm(b);
+        if (na == 0 || nb == 0) {
+            return 0;
+        }
+        return dot(a, b) / (na * nb);
+    }
+
+    /**
+     * Scales each of the vectors stored in block to unit length.
+     * Vectors with zero length are left unchanged.
+     */
+    public static void normalize(float block[], int numVectors, int dim) {
+        for (int v = 0; v < numVectors; v++) {
+            int off = v * dim;
+            float n = norm(block, off, dim);
+            if (n > 0) {
+                float inv = 1.0f / n;
+                for (int i = 0; i < dim; i++) {
+                    block[off + i] *= inv;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the dot products of every row vector with every column vector.
+     * The computation proceeds in tiles of TILE_SIZE rows and columns, so each
+     * column vector in a tile is read from cache for all the rows in the tile.
+     *
+     * @param rows Row vectors, stored contiguously.
+     * @param numRows Number of row vectors.
+     * @param cols Column vectors, stored contiguously.
+     * @param numCols Number of column vectors.
+     * @param dim Length of each vector.
+     * @param dest Receives dest[i][j] = rows[i] dot cols[j].
+     */
+    public static void dotTiles(float rows[], int numRows, float cols[], int numCols, int dim, float dest[][]) {
+        for (int r0 = 0; r0 < numRows; r0 += TILE_SIZE) {
+            int r1 = Math.min(numRows, r0 + TILE_SIZE);
+            for (int c0 = 0; c0 < numCols; c0 += TILE_SIZE) {
+                int c1 = Math.min(numCols, c0 + TILE_SIZE);
+                for (int r = r0; r < r1; r++) {
+                    float out[] = dest[r];
+                    int rOff = r * dim;
+                    for (int c = c0; c < c1; c++) {
+                        out[c] = dot(rows, rOff, cols, c * dim, dim);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the cosine similarity of every row vector with every column vector.
+     * Vectors with zero length have similarity 0 with everything.
+     *
+     * @see #dotTiles(float[], int, float[], int, int, float[][])
+     */
+    public static float[][] cosimilarity(float rows[], int numRows, float cols[], int numCols, int dim) {
+        float rowNorms[] = new float[numRows];
+        for (int i = 0; i < numRows; i++) {
+            rowNorms[i] = norm(rows, i * dim, dim);
+        }
+        float colNorms[] = new float[numCols];
+        for (int j = 0; j < numCols; j++) {
+            colNorms[j] = norm(cols, j * dim, dim);
+        }
+        float result[][] = new float[numRows][numCols];
+        dotTiles(rows, numRows, cols, numCols, dim, result);
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numCols; j++) {
+                float d = rowNorms[i] * colNorms[j];
+                result[i][j] = (d == 0) ? 0 : result[i][j] / d;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,458 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk approximate nearest neighbor index for dense vectors under cosine similarity.
+ *
+ * The index is an inverted file: vectors are partitioned into lists by spherical k-means,
+ * and each list is stored contiguously on disk. A query is compared to the centroid of
+ * every list, and only the vectors in the numProbes closest lists are scored. Probing
+ * all lists gives exact results.
+ *
+ * The file contains a header (marker, version, dimensions, number of lists, number of
+ * vectors), the centroids, the start of each list, the ids of the vectors, and finally
+ * the unit-length vectors themselves, grouped by list. Centroids and ids are read onto
+ * the heap; the vectors are memory mapped one list at a time.
+ */
+public class IvfIndex implements Closeable {
+    private static final Logger LOG = Logger.getLogger(IvfIndex.class.getName());
+
+    public static final int FILE_HEADER = 0xabcd1f;
+    public static final int FORMAT_VERSION = 1;
+
+    public static final int DEFAULT_NUM_PROBES = 16;
+    public static final int DEFAULT_NUM_ITERATIONS = 10;
+
+    /**
+     * Number of vectors per list used to train the centroids.
+     */
+    public static final int SAMPLES_PER_LIST = 64;
+
+    /**
+     * Number of vectors assigned to lists together in a tile.
+     */
+    private static final int ASSIGN_CHUNK_SIZE = 1024;
+
+    private static final int HEADER_SIZE = 20;
+
+    private final File path;
+    private final FileChannel channel;
+    private final int dim;
+    private final int numLists;
+    private final int numVectors;
+    private final float centroids[];
+    private final int listStarts[];
+    private final int ids[];
+    private final FloatBuffer lists[];
+
+    private final ThreadLocal<float[]> scratch = new ThreadLocal<float[]>();
+
+    public IvfIndex(File path) throws IOException {
+        this.path = path;
+        this.channel = new FileInputStream(path).getChannel();
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt(0) != FILE_HEADER) {
+            throw new IOException("invalid file header: " + header.getInt(0));
+        }
+        if (header.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unsupported index version: " + header.getInt(4));
+        }
+        this.dim = header.getInt(8);
+        this.numLists = header.getInt(12);
+        this.numVectors = header.getInt(16);
+
+        long pos = HEADER_SIZE;
+        long length = 4L * numLists * dim + 4L * (numLists + 1) + 4L * numVectors;
+        MappedByteBuffer meta = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+        this.centroids = new float[numLists * dim];
+        meta.asFloatBuffer().get(centroids);
+        meta.position(4 * numLists * dim);
+        this.listStarts = new int[numLists + 1];
+        meta.asIntBuffer().get(listStarts);
+        meta.position(4 * numLists * dim + 4 * (numLists + 1));
+        this.ids = new int[numVectors];
+        meta.asIntBuffer().get(ids);
+
+        long vectorStart = pos + length;
+        this.lists = new FloatBuffer[numLists];
+        for (int i = 0; i < numLists; i++) {
+            long start = vectorStart + 4L * dim * listStarts[i];
+            long size = 4L * dim * (listStarts[i + 1] - listStarts[i]);
+            lists[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size).asFloatBuffer();
+        }
+        info("opened index with " + numVectors + " vectors of dimension " + dim + " in " + numLists + " lists");
+    }
+
+    /**
+     * Returns the approximate nearest neighbors of the query.
+     *
+     * @param query The query vector. It does not need to have unit length.
+     * @param k Maximum number of results.
+     * @param numProbes Number of lists to scan. Larger values are slower but more accurate.
+     * @param validIds If not null, only vectors with these ids are returned.
+     * @return The neighbors, most similar first.
+     */
+    public Neighbors search(float query[], int k, int numProbes, TIntSet validIds) {
+        if (query.length != dim) {
+            throw new IllegalArgumentException("expected query of dimension " + dim + ", found " + query.length);
+        }
+        float norm = DenseVectors.norm(query);
+        if (norm == 0 || k <= 0) {
+            return new Neighbors(new int[0], new float[0]);
+        }
+
+        // find the closest lists
+        numProbes = Math.max(1, Math.min(numProbes, numLists));
+        TopK closest = new TopK(numProbes);
+        for (int i = 0; i < numLists; i++) {
+            closest.add(i, DenseVectors.dot(query, 0, centroids, i * dim, dim));
+        }
+
+        TopK top = new TopK(k);
+        for (int list : closest.toNeighbors().ids) {
+            int n = listStarts[list + 1] - listStarts[list];
+            float vectors[] = getScratch(n * dim);
+            FloatBuffer fb = lists[list].duplicate();
+            fb.clear();
+            fb.get(vectors, 0, n * dim);
+            for (int i = 0; i < n; i++) {
+                int id = ids[listStarts[list] + i];
+                if (validIds == null || validIds.contains(id)) {
+                    top.add(id, DenseVectors.dot(query, 0, vectors, i * dim, dim) / norm);
+                }
+            }
+        }
+        return top.toNeighbors();
+    }
+
+    /**
+     * Returns the exact nearest neighbors of the query by scanning every list.
+     * @see #search(float[], int, int, gnu.trove.set.TIntSet)
+     */
+    public Neighbors searchExact(float query[], int k, TIntSet validIds) {
+        return search(query, k, numLists, validIds);
+    }
+
+    private float[] getScratch(int size) {
+        float s[] = scratch.get();
+        if (s == null || s.length < size) {
+            s = new float[Math.max(size, s == null ? 0 : s.length * 2)];
+            scratch.set(s);
+        }
+        return s;
+    }
+
+    public int getDimensions() {
+        return dim;
+    }
+
+    public int getNumLists() {
+        return numLists;
+    }
+
+    public int getNumVectors() {
+        return numVectors;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The results of a nearest neighbor search, most similar first.
+     */
+    public static class Neighbors {
+        public final int ids[];
+        public final float scores[];
+
+        public Neighbors(int ids[], float scores[]) {
+            this.ids = ids;
+            this.scores = scores;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * Builds an index with the default number of lists and iterations.
+     * @see #build(java.io.File, int[], float[][], int, int, int, long)
+     */
+    public static void build(File path, int ids[], float vectors[][], int numThreads) throws IOException {
+        int numLists = (int) Math.max(1, Math.min(65536, Math.round(Math.sqrt(ids.length))));
+        build(path, ids, vectors, numLists, DEFAULT_NUM_ITERATIONS, numThreads, 0);
+    }
+
+    /**
+     * Builds an index and writes it to a file.
+     *
+     * @param path Destination file.
+     * @param ids Id of each vector.
+     * @param vectors The vectors. All must have the same dimension. They are not modified.
+     * @param numLists Number of lists (k-means clusters).
+     * @param numIterations Number of k-means iterations.
+     * @param numThreads Number of threads used to assign vectors to lists.
+     * @param seed Random seed for sampling.
+     * @throws IOException
+     */
+    public static void build(File path, int ids[], float vectors[][], int numLists,
+                             int numIterations, int numThreads, long seed) throws IOException {
+        if (ids.length != vectors.length) {
+            throw new IllegalArgumentException("number of ids and vectors differ");
+        }
+        if (ids.length == 0) {
+            throw new IllegalArgumentException("cannot build an index without vectors");
+        }
+        int dim = vectors[0].length;
+        numLists = Math.max(1, Math.min(numLists, ids.length));
+        Random random = new Random(seed);
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            // Train centroids on a sample of the vectors
+            int sample[] = samplePositions(random, ids.length, Math.min(ids.length, numLists * SAMPLES_PER_LIST));
+            float centroids[] = new float[numLists * dim];
+            for (int i = 0; i < numLists; i++) {
+                System.arraycopy(vectors[sample[i]], 0, centroids, i * dim, dim);
+            }
+            DenseVectors.normalize(centroids, numLists, dim);
+            for (int iter = 0; iter < numIterations; iter++) {
+                int assignments[] = assign(exec, vectors, sample, centroids, numLists, dim);
+                float sums[] = new float[numLists * dim];
+                int counts[] = new int[numLists];
+                for (int i = 0; i < sample.length; i++) {
+                    float v[] = vectors[sample[i]];
+                    int off = assignments[i] * dim;
+                    for (int j = 0; j < dim; j++) {
+                        sums[off + j] += v[j];
+                    }
+                    counts[assignments[i]]++;
+                }
+                for (int c = 0; c < numLists; c++) {
+                    if (counts[c] == 0) {
+                        // reseed empty lists with a random sample vector
+                        System.arraycopy(vectors[sample[random.nextInt(sample.length)]], 0, sums, c * dim, dim);
+                    }
+                }
+                DenseVectors.normalize(sums, numLists, dim);
+                centroids = sums;
+                LOG.info("finished k-means iteration " + (iter + 1) + " of " + numIterations);
+            }
+
+            // Assign every vector to its closest list
+            int all[] = new int[ids.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            int assignments[] = assign(exec, vectors, all, centroids, numLists, dim);
+            write(path, ids, vectors, centroids, assignments, numLists, dim);
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private static int[] samplePositions(Random random, int n, int size) {
+        int positions[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i;
+        }
+        // partial Fisher-Yates shuffle
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(n - i);
+            int t = positions[i]; positions[i] = positions[j]; positions[j] = t;
+        }
+        int sample[] = new int[size];
+        System.arraycopy(positions, 0, sample, 0, size);
+        return sample;
+    }
+
+    /**
+     * Returns the index of the closest centroid to each of the selected vectors.
+     * Vectors are scored against the centroids in tiles, in parallel.
+     */
+    private static int[] assign(ExecutorService exec, final float vectors[][], final int selected[],
+                                final float centroids[], final int numLists, final int dim) throws IOException {
+        final int assignments[] = new int[selected.length];
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int start = 0; start < selected.length; start += ASSIGN_CHUNK_SIZE) {
+            final int from = start;
+            final int to = Math.min(selected.length, start + ASSIGN_CHUNK_SIZE);
+            futures.add(exec.submit(new Runnable() {
+                public void run() {
+                    int n = to - from;
+                    float block[] = new float[n * dim];
+                    for (int i = 0; i < n; i++) {
+                        System.arraycopy(vectors[selected[from + i]], 0, block, i * dim, dim);
+                    }
+                    float scores[][] = new float[n][numLists];
+                    DenseVectors.dotTiles(block, n, centroids, numLists, dim, scores);
+                    for (int i = 0; i < n; i++) {
+                        int best = 0;
+                        for (int c = 1; c < numLists; c++) {
+                            if (scores[i][c] > scores[i][best]) {
+                                best = c;
+                            }
+                        }
+                        assignments[from + i] = best;
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return assignments;
+    }
+
+    private static void write(File path, int ids[], float vectors[][], float centroids[],
+                              int assignments[], int numLists, int dim) throws IOException {
+        // counting sort of the vectors by list
+        int listStarts[] = new int[numLists + 1];
+        for (int a : assignments) {
+            listStarts[a + 1]++;
+        }
+        for (int i = 0; i < numLists; i++) {
+            listStarts[i + 1] += listStarts[i];
+        }
+        int order[] = new int[ids.length];
+        int next[] = new int[numLists];
+        System.arraycopy(listStarts, 0, next, 0, numLists);
+        for (int i = 0; i < assignments.length; i++) {
+            order[next[assignments[i]]++] = i;
+        }
+
+        File tmp = File.createTempFile(path.getName() + "-", ".tmp", path.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 4 * 1024 * 1024));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(dim);
+            out.writeInt(numLists);
+            out.writeInt(ids.length);
+            for (float c : centroids) {
+                out.writeFloat(c);
+            }
+            for (int s : listStarts) {
+                out.writeInt(s);
+            }
+            for (int i : order) {
+                out.writeInt(ids[i]);
+            }
+            for (int i : order) {
+                float v[] = vectors[i];
+                float norm = DenseVectors.norm(v);
+                float scale = (norm == 0) ? 0 : 1.0f / norm;
+                for (int j = 0; j < dim; j++) {
+                    out.writeFloat(v[j] * scale);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        FileUtils.deleteQuietly(path);
+        FileUtils.moveFile(tmp, path);
+        LOG.info("wrote index with " + ids.length + " vectors in " + numLists + " lists to " + path);
+    }
+
+    /**
+     * Keeps the k highest scoring ids in a min-heap.
+     */
+    private static class TopK {
+        private final int ids[];
+        private final float scores[];
+        private int size = 0;
+
+        TopK(int k) {
+            ids = new int[k];
+            scores = new float[k];
+        }
+
+        void add(int id, float score) {
+            if (size < ids.length) {
+                int i = size++;
+                ids[i] = id;
+                scores[i] = score;
+                siftUp(i);
+            } else if (score > scores[0]) {
+                ids[0] = id;
+                scores[0] = score;
+                siftDown(0, size);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (scores[parent] <= scores[i]) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int n) {
+            while (true) {
+                int smallest = i;
+                int l = 2 * i + 1, r = l + 1;
+                if (l < n && scores[l] < scores[smallest]) smallest = l;
+                if (r < n && scores[r] < scores[smallest]) smallest = r;
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int ti = ids[i]; ids[i] = ids[j]; ids[j] = ti;
+            float ts = scores[i]; scores[i] = scores[j]; scores[j] = ts;
+        }
+
+        /**
+         * Sorts the heap in place (highest score first) and returns its contents.
+         */
+        Neighbors toNeighbors() {
+            for (int n = size - 1; n > 0; n--) {
+                swap(0, n);
+                siftDown(0, n);
+            }
+            int resultIds[] = new int[size];
+            float resultScores[] = new float[size];
+            System.arraycopy(ids, 0, resultIds, 0, size);
+            System.arraycopy(scores, 0, resultScores, 0, size);
+            return new Neighbors(resultIds, resultScores);
+        }
+    }
+
+    private void info(String message) {
+        LOG.log(Level.INFO, "ivf index " + path + ": " + message);
+    }
+}
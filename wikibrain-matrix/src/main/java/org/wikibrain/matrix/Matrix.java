@@ -19,6 +19,13 @@ public interface Matrix<T extends MatrixRow> extends Iterable<T>, Closeable {
      */
     <T extends MatrixRow> T getRow(int rowId) throws IOException;
 
+    /**
+     * Creates a new cursor that can be repositioned onto rows without allocating.
+     * Cursors are not thread-safe, so each thread should create its own.
+     * @return
+     */
+    RowCursor newCursor();
+
     /**
      * Gets all row ids.
      * @return
@@ -8,11 +8,14 @@ import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,20 +23,71 @@ import java.util.logging.Logger;
 /**
  * A wrapper around a file channel that contains a matrix in row major order.
  * Returns rows at a particular offset in the form of ByteBuffers backed by a memory mapped file.
+ *
+ * The file is split into pages that align with row boundaries. A page directory
+ * (the sorted start offsets of the pages) is used to binary search for the page
+ * containing a particular row.
+ *
+ * Pages can either be memory mapped (the default), or fully loaded into heap
+ * or direct buffers when the matrix is opened (see {@link StorageMode}).
  */
 public class MemoryMappedMatrix {
     public static final Logger LOG = Logger.getLogger(MemoryMappedMatrix.class.getName());
 
     public static final int PAGE_SIZE = 1024 * 1024 * 1024;     // 1GB
 
+    /**
+     * Mapped pages start at a multiple of this offset in the file so that
+     * the kernel can back them with transparent huge pages where supported.
+     */
+    public static final int HUGE_PAGE_SIZE = 2 * 1024 * 1024;  // 2MB
+
+    /**
+     * Granularity at which pages are touched during warmup.
+     */
+    public static final int OS_PAGE_SIZE = 4096;
+
+    /**
+     * Size of the chunks that are handed to warmup threads.
+     */
+    public static final int WARMUP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * How the pages of a matrix are stored in memory.
+     */
+    public static enum StorageMode {
+        /**
+         * Pages are memory mapped read-only and faulted in on demand by the OS.
+         */
+        MMAP,
+
+        /**
+         * Pages are read into byte arrays on the java heap when the matrix is opened.
+         * Combined with -XX:+UseLargePages or -XX:+UseTransparentHugePages this keeps
+         * the matrix in huge pages.
+         */
+        HEAP,
+
+        /**
+         * Pages are read into direct (off-heap) buffers when the matrix is opened.
+         */
+        DIRECT
+    }
+
+    public static final StorageMode DEFAULT_STORAGE_MODE = StorageMode.MMAP;
+
     private FileChannel channel;
     protected List<MappedBufferWrapper> buffers = new ArrayList<MappedBufferWrapper>();
     private File path;
+    private final StorageMode mode;
 
     private final IntBuffer rowIds;     // row ids in order of offsets on disk
     private final LongBuffer rowOffsets;      // row offsets associated with sorted ids
     private final int numRows;
 
+    // page directory: start offsets of buffers in increasing order
+    private long pageStarts[] = new long[0];
+
     private WeakReference<int[]> rowIdsInDiskOrder = null;
 
     public MemoryMappedMatrix(File path, FileChannel channel,TIntLongHashMap rowOffsets) throws IOException {
@@ -41,8 +95,13 @@ public class MemoryMappedMatrix {
     }
 
     public MemoryMappedMatrix(File path, FileChannel channel, IntBuffer rowIds, LongBuffer rowOffsets) throws IOException {
+        this(path, channel, rowIds, rowOffsets, DEFAULT_STORAGE_MODE);
+    }
+
+    public MemoryMappedMatrix(File path, FileChannel channel, IntBuffer rowIds, LongBuffer rowOffsets, StorageMode mode) throws IOException {
         this.path = path;
         this.channel = channel;
+        this.mode = mode;
         if (rowIds.capacity() != rowOffsets.capacity()) {
             throw new IllegalArgumentException();
         }
@@ -57,6 +116,9 @@ public class MemoryMappedMatrix {
             lastId = rowIds.get(i);
         }
         pageInRows();
+        if (mode != StorageMode.MMAP) {
+            loadPages(Runtime.getRuntime().availableProcessors());
+        }
     }
 
     public void close() throws IOException {
@@ -94,13 +156,99 @@ public class MemoryMappedMatrix {
             lastPos = pos;
         }
         addBuffer(startPos, channel.size());
+
+        pageStarts = new long[buffers.size()];
+        for (int i = 0; i < buffers.size(); i++) {
+            pageStarts[i] = buffers.get(i).start;
+        }
     }
 
 
     private void addBuffer(long startPos, long endPos) throws IOException {
         long length = endPos - startPos;
         debug("adding page at " + startPos + " of length " + length);
-        buffers.add(new MappedBufferWrapper(channel, startPos, endPos));
+        buffers.add(new MappedBufferWrapper(channel, startPos, endPos, mode));
+    }
+
+    /**
+     * Reads all pages into memory using the specified number of threads.
+     * Used by the HEAP and DIRECT storage modes.
+     */
+    private void loadPages(int numThreads) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (final MappedBufferWrapper wrapper : buffers) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    try {
+                        wrapper.load();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        runAll(tasks, numThreads);
+        info("loaded " + buffers.size() + " pages into " + mode + " buffers in " +
+                (System.currentTimeMillis() - start) + " millis");
+    }
+
+    /**
+     * Touches every OS page of the matrix in parallel so that later row
+     * accesses do not incur page faults. This is a no-op for matrices whose
+     * pages were already loaded into the heap or direct buffers.
+     *
+     * @param numThreads Number of threads that should fault in pages.
+     */
+    public void warmup(int numThreads) throws IOException {
+        if (mode != StorageMode.MMAP) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        final long checksums[] = new long[1];
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (final MappedBufferWrapper wrapper : buffers) {
+            final ByteBuffer page = wrapper.getBuffer();
+            final int length = page.capacity();
+            for (int i = 0; i < length; i += WARMUP_CHUNK_SIZE) {
+                final int from = i;
+                final int to = (int) Math.min(length, (long) i + WARMUP_CHUNK_SIZE);
+                tasks.add(new Runnable() {
+                    public void run() {
+                        long sum = 0;
+                        for (int j = from; j < to; j += OS_PAGE_SIZE) {
+                            sum += page.get(j);
+                        }
+                        // keep the JIT from eliminating the reads
+                        synchronized (checksums) {
+                            checksums[0] += sum;
+                        }
+                    }
+                });
+            }
+        }
+        runAll(tasks, numThreads);
+        info("warmed up " + buffers.size() + " pages using " + numThreads + " threads in " +
+                (System.currentTimeMillis() - start) + " millis (checksum " + checksums[0] + ")");
+    }
+
+    private void runAll(List<Runnable> tasks, int numThreads) throws IOException {
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, tasks.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Runnable r : tasks) {
+                futures.add(exec.submit(r));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            exec.shutdown();
+        }
     }
 
     public ByteBuffer getRow(int rowId) throws IOException {
@@ -108,25 +256,47 @@ public class MemoryMappedMatrix {
         if (targetOffset < 0) {
             return null;
         }
-        MappedBufferWrapper row = null;
-        // TODO: binary search
-        for (int i = 0; i < buffers.size(); i++) {
-            MappedBufferWrapper wrapper = buffers.get(i);
-            if (wrapper.start <= targetOffset && targetOffset < wrapper.end) {
-                row = wrapper;
-            }
-        }
-        if (row == null) {
+        int page = getPageIndex(targetOffset);
+        if (page < 0) {
             throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
         }
-        return row.get(targetOffset);
+        return buffers.get(page).get(targetOffset);
+    }
+
+    /**
+     * Returns the index of the page containing the specified file offset, or -1.
+     */
+    int getPageIndex(long offset) {
+        int i = Arrays.binarySearch(pageStarts, offset);
+        if (i < 0) {
+            i = -i - 2;     // the largest page start less than the offset
+        }
+        if (i < 0 || offset >= buffers.get(i).end) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the buffer backing an entire page.
+     * Callers must only use absolute get methods on the returned buffer.
+     */
+    ByteBuffer getPageBuffer(int page) throws IOException {
+        return buffers.get(page).getBuffer();
+    }
+
+    /**
+     * Returns the file offset that corresponds to position 0 in the page's buffer.
+     */
+    long getPageBufferStart(int page) {
+        return buffers.get(page).bufferStart;
     }
 
-    private long getRowOffset(int rowId) {
+    long getRowOffset(int rowId) {
         int lo = 0;
         int hi = numRows - 1;
         while (lo <= hi) {
-            int mid = (lo + hi) / 2;
+            int mid = (lo + hi) >>> 1;
             int midId = rowIds.get(mid);
 
             if (rowId < midId) {
@@ -140,24 +310,70 @@ public class MemoryMappedMatrix {
         return -1;
     }
 
+    public StorageMode getStorageMode() {
+        return mode;
+    }
+
     static class MappedBufferWrapper {
         FileChannel channel;
-        MappedByteBuffer buffer;
+        StorageMode mode;
+        volatile ByteBuffer buffer;
         long start;
         long end;
+        long bufferStart;   // offset in the file of position 0 in the buffer
 
-        public MappedBufferWrapper(FileChannel channel, long start, long end) {
+        public MappedBufferWrapper(FileChannel channel, long start, long end, StorageMode mode) {
             this.channel = channel;
             this.start = start;
             this.end = end;
+            this.mode = mode;
+            if (mode == StorageMode.MMAP) {
+                this.bufferStart = start - start % HUGE_PAGE_SIZE;
+            } else {
+                this.bufferStart = start;
+            }
         }
-        public synchronized ByteBuffer get(long position) throws IOException {
-            if (buffer == null) {
-                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+        /**
+         * Returns the buffer backing the entire page.
+         * Callers must only use absolute get methods on the returned buffer.
+         */
+        public ByteBuffer getBuffer() throws IOException {
+            ByteBuffer b = buffer;
+            if (b == null) {
+                b = load();
             }
-            buffer.position((int) (position - start));
-            return buffer.slice();
+            return b;
         }
+
+        public synchronized ByteBuffer load() throws IOException {
+            if (buffer != null) {
+                return buffer;
+            }
+            if (mode == StorageMode.MMAP) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, bufferStart, end - bufferStart);
+            } else {
+                int length = (int) (end - bufferStart);
+                ByteBuffer b = (mode == StorageMode.DIRECT)
+                        ? ByteBuffer.allocateDirect(length)
+                        : ByteBuffer.allocate(length);
+                while (b.hasRemaining()) {
+                    if (channel.read(b, bufferStart + b.position()) < 0) {
+                        throw new IOException("unexpected end of file at " + (bufferStart + b.position()));
+                    }
+                }
+                b.clear();
+                buffer = b;
+            }
+            return buffer;
+        }
+
+        public ByteBuffer get(long position) throws IOException {
+            ByteBuffer b = getBuffer().duplicate();
+            b.position((int) (position - bufferStart));
+            return b.slice();
+        }
+
         public synchronized void close() {
             buffer = null;
         }
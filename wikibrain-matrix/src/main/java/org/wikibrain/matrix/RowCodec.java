@@ -0,0 +1,245 @@
+package org.wikibrain.matrix;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Describes how the columns of sparse matrix rows are encoded on disk.
+ *
+ * A codec combines an encoding for column ids with an encoding for column values.
+ * The codec is chosen when a matrix is written and recorded in the matrix header.
+ * {@link #LEGACY} (fixed 32 bit ids, values packed into 16 bits by the ValueConf)
+ * is the original layout, and the only one that can be wrapped by a
+ * SparseMatrixRow without decoding.
+ *
+ * Every encoded row starts with a 12 byte header: the row marker, the row id
+ * and the number of columns. Column ids follow, then column values.
+ */
+public final class RowCodec implements Serializable {
+
+    public static enum IdEncoding {
+        /**
+         * Each column id is stored in four bytes.
+         */
+        FIXED32,
+
+        /**
+         * The first column id is stored as a zig-zag varint, and each following
+         * id as a varint of its difference from the previous id.
+         */
+        DELTA_VARINT
+    }
+
+    public static enum ValueEncoding {
+        /**
+         * Values are packed into two bytes over the ValueConf's range.
+         */
+        PACKED16,
+
+        /**
+         * Values are quantized into one byte over the ValueConf's range.
+         */
+        QUANTIZED8,
+
+        /**
+         * Values are stored as four byte floats.
+         */
+        FLOAT32,
+
+        /**
+         * No values are stored. All values are the codec's implicit value.
+         */
+        IMPLICIT
+    }
+
+    public static final float DEFAULT_IMPLICIT_VALUE = 1.0f;
+
+    public static final RowCodec LEGACY = new RowCodec(IdEncoding.FIXED32, ValueEncoding.PACKED16);
+
+    private final IdEncoding idEncoding;
+    private final ValueEncoding valueEncoding;
+    private final float implicitValue;
+
+    public RowCodec(IdEncoding idEncoding, ValueEncoding valueEncoding) {
+        this(idEncoding, valueEncoding, DEFAULT_IMPLICIT_VALUE);
+    }
+
+    public RowCodec(IdEncoding idEncoding, ValueEncoding valueEncoding, float implicitValue) {
+        this.idEncoding = idEncoding;
+        this.valueEncoding = valueEncoding;
+        this.implicitValue = implicitValue;
+    }
+
+    public IdEncoding getIdEncoding() {
+        return idEncoding;
+    }
+
+    public ValueEncoding getValueEncoding() {
+        return valueEncoding;
+    }
+
+    public float getImplicitValue() {
+        return implicitValue;
+    }
+
+    /**
+     * @return True if rows are stored in the original fixed layout.
+     */
+    public boolean isLegacy() {
+        return idEncoding == IdEncoding.FIXED32 && valueEncoding == ValueEncoding.PACKED16;
+    }
+
+    /**
+     * @return An upper bound on the number of bytes needed to encode a row.
+     */
+    public int getMaxEncodedLength(int numCols) {
+        int idBytes = (idEncoding == IdEncoding.FIXED32) ? 4 : 5;
+        int valBytes;
+        switch (valueEncoding) {
+            case PACKED16: valBytes = 2; break;
+            case QUANTIZED8: valBytes = 1; break;
+            case FLOAT32: valBytes = 4; break;
+            default: valBytes = 0; break;
+        }
+        return 12 + numCols * (idBytes + valBytes);
+    }
+
+    /**
+     * Encodes a row at the current position of dest.
+     * The row's columns must be sorted by id.
+     */
+    public void encode(MatrixRow row, ValueConf vconf, ByteBuffer dest) {
+        int n = row.getNumCols();
+        dest.putInt(SparseMatrixRow.HEADER);
+        dest.putInt(row.getRowIndex());
+        dest.putInt(n);
+        if (idEncoding == IdEncoding.FIXED32) {
+            for (int i = 0; i < n; i++) {
+                dest.putInt(row.getColIndex(i));
+            }
+        } else {
+            int last = 0;
+            for (int i = 0; i < n; i++) {
+                int id = row.getColIndex(i);
+                if (i == 0) {
+                    putVarint(dest, (id << 1) ^ (id >> 31));
+                } else {
+                    putVarint(dest, id - last);
+                }
+                last = id;
+            }
+        }
+        switch (valueEncoding) {
+            case PACKED16:
+                for (int i = 0; i < n; i++) {
+                    dest.putShort(vconf.pack(row.getColValue(i)));
+                }
+                break;
+            case QUANTIZED8:
+                for (int i = 0; i < n; i++) {
+                    float normalized = (vconf.pinchScore(row.getColValue(i)) - vconf.minScore) / vconf.range;
+                    dest.put((byte) (Math.round(normalized * 255) + Byte.MIN_VALUE));
+                }
+                break;
+            case FLOAT32:
+                for (int i = 0; i < n; i++) {
+                    dest.putFloat(row.getColValue(i));
+                }
+                break;
+            case IMPLICIT:
+                break;
+        }
+    }
+
+    /**
+     * Decodes the row that starts at position pos of src into ids and vals.
+     * Only absolute get methods are used, so src may be shared between threads.
+     *
+     * @param ids Must have at least as many elements as the row has columns.
+     * @param vals Must have at least as many elements as the row has columns.
+     * @return The number of columns in the row.
+     */
+    public int decode(ByteBuffer src, int pos, ValueConf vconf, int ids[], float vals[]) {
+        int n = src.getInt(pos + 8);
+        pos += 12;
+        if (idEncoding == IdEncoding.FIXED32) {
+            for (int i = 0; i < n; i++) {
+                ids[i] = src.getInt(pos);
+                pos += 4;
+            }
+        } else {
+            int last = 0;
+            for (int i = 0; i < n; i++) {
+                // inline varint decoding
+                int x = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = src.get(pos++);
+                    x |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                if (i == 0) {
+                    last = (x >>> 1) ^ -(x & 1);
+                } else {
+                    last += x;
+                }
+                ids[i] = last;
+            }
+        }
+        switch (valueEncoding) {
+            case PACKED16:
+                for (int i = 0; i < n; i++) {
+                    vals[i] = vconf.unpack(src.getShort(pos));
+                    pos += 2;
+                }
+                break;
+            case QUANTIZED8:
+                for (int i = 0; i < n; i++) {
+                    vals[i] = (src.get(pos++) - Byte.MIN_VALUE) / 255.0f * vconf.range + vconf.minScore;
+                }
+                break;
+            case FLOAT32:
+                for (int i = 0; i < n; i++) {
+                    vals[i] = src.getFloat(pos);
+                    pos += 4;
+                }
+                break;
+            case IMPLICIT:
+                for (int i = 0; i < n; i++) {
+                    vals[i] = implicitValue;
+                }
+                break;
+        }
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer dest, int x) {
+        while ((x & ~0x7f) != 0) {
+            dest.put((byte) ((x & 0x7f) | 0x80));
+            x >>>= 7;
+        }
+        dest.put((byte) x);
+    }
+
+    /**
+     * Parses a codec description of the form "idEncoding/valueEncoding",
+     * for example "DELTA_VARINT/FLOAT32". "legacy" is also accepted.
+     */
+    public static RowCodec parse(String s) {
+        s = s.trim().toUpperCase();
+        if (s.equals("LEGACY")) {
+            return LEGACY;
+        }
+        String tokens[] = s.split("/");
+        if (tokens.length != 2) {
+            throw new IllegalArgumentException("Invalid row codec: " + s);
+        }
+        return new RowCodec(IdEncoding.valueOf(tokens[0].trim()), ValueEncoding.valueOf(tokens[1].trim()));
+    }
+
+    @Override
+    public String toString() {
+        return idEncoding + "/" + valueEncoding;
+    }
+}
@@ -0,0 +1,40 @@
+package org.wikibrain.matrix;
+
+import java.io.IOException;
+
+/**
+ * A reusable, allocation-free view over the rows of a matrix.
+ *
+ * Unlike {@link Matrix#getRow(int)}, which creates a new row object for each call,
+ * a cursor is repositioned onto a row in place. A cursor is not thread-safe;
+ * each thread should create (and hold on to) its own cursors.
+ */
+public interface RowCursor extends MatrixRow {
+
+    /**
+     * Positions the cursor on a particular row.
+     * @param rowId
+     * @return True if the row exists, false otherwise.
+     * @throws IOException
+     */
+    boolean moveTo(int rowId) throws IOException;
+
+    /**
+     * @return True if the cursor is positioned on a row.
+     */
+    boolean isValid();
+
+    /**
+     * Copies the column ids of the current row into dest.
+     * @param dest Must have at least getNumCols() elements.
+     * @return The number of columns copied.
+     */
+    int getColIds(int dest[]);
+
+    /**
+     * Copies the column values of the current row into dest.
+     * @param dest Must have at least getNumCols() elements.
+     * @return The number of columns copied.
+     */
+    int getColValues(float dest[]);
+}
@@ -26,8 +26,21 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
     // default header page size is 100MB, will be expanded if necessary
     public static final int DEFAULT_HEADER_SIZE = 100 * 1024 * 1024;
 
+    /**
+     * Marks a matrix in the original format: fixed 32 bit column ids and packed 16 bit values.
+     * The header is: marker, min score, max score, num rows.
+     */
     public static final int FILE_HEADER = 0xabcdef;
 
+    /**
+     * Marks a versioned matrix whose rows are encoded with a {@link RowCodec}.
+     * The header is: marker, version, min score, max score, num rows, id encoding (byte),
+     * value encoding (byte), two bytes of padding, implicit value, reserved int.
+     */
+    public static final int FILE_HEADER_V2 = 0xabcdf2;
+
+    public static final int FORMAT_VERSION = 2;
+
     MemoryMappedMatrix rowBuffers;
 
     private int numRows = 0;
@@ -39,8 +52,19 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
 
 
     private ValueConf vconf;
+    private RowCodec codec = RowCodec.LEGACY;
 
     public SparseMatrix(File path) throws IOException {
+        this(path, MemoryMappedMatrix.DEFAULT_STORAGE_MODE);
+    }
+
+    /**
+     * Opens a sparse matrix.
+     * @param path Path to the matrix data file.
+     * @param mode Whether rows are memory mapped or loaded into heap / direct buffers.
+     * @throws IOException
+     */
+    public SparseMatrix(File path, MemoryMappedMatrix.StorageMode mode) throws IOException {
         this.path = path;
         if (!path.isFile()) {
             throw new IOException("File does not exist: " + path);
@@ -48,7 +72,16 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         info("initializing sparse matrix with file length " + FileUtils.sizeOf(path));
         this.channel = (new FileInputStream(path)).getChannel();
         readHeaders();
-        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets);
+        rowBuffers = new MemoryMappedMatrix(path, channel, rowIds, rowOffsets, mode);
+    }
+
+    /**
+     * Faults in all pages of a memory mapped matrix in parallel.
+     * @param numThreads
+     * @throws IOException
+     */
+    public void warmup(int numThreads) throws IOException {
+        rowBuffers.warmup(numThreads);
     }
 
     public long lastModified() {
@@ -58,25 +91,40 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
     private void readHeaders() throws IOException {
         long size = Math.min(channel.size(), DEFAULT_HEADER_SIZE);
         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
-        if (buffer.getInt(0) != FILE_HEADER) {
+        int start;
+        if (buffer.getInt(0) == FILE_HEADER) {
+            this.vconf = new ValueConf(buffer.getFloat(4), buffer.getFloat(8));
+            this.numRows = buffer.getInt(12);
+            this.codec = RowCodec.LEGACY;
+            start = 16;
+        } else if (buffer.getInt(0) == FILE_HEADER_V2) {
+            if (buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("unsupported matrix format version: " + buffer.getInt(4));
+            }
+            this.vconf = new ValueConf(buffer.getFloat(8), buffer.getFloat(12));
+            this.numRows = buffer.getInt(16);
+            this.codec = new RowCodec(
+                    RowCodec.IdEncoding.values()[buffer.get(20)],
+                    RowCodec.ValueEncoding.values()[buffer.get(21)],
+                    buffer.getFloat(24));
+            start = 32;
+        } else {
             throw new IOException("invalid file header: " + buffer.getInt(0));
         }
-        this.vconf = new ValueConf(buffer.getFloat(4), buffer.getFloat(8));
-        this.numRows = buffer.getInt(12);
-        int headerSize = 16 + 12*numRows;
+        int headerSize = start + 12*numRows;
         if (headerSize > DEFAULT_HEADER_SIZE) {
             info("maxPageSize not large enough for entire header. Resizing to " + headerSize);
             buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerSize);
         }
 
-        debug("preparing buffer for " + numRows + " rows");
-        buffer.position(16);
+        debug("preparing buffer for " + numRows + " rows with codec " + codec);
+        buffer.position(start);
         buffer.limit(buffer.position() + 4 * numRows);
         rowIds = buffer.slice().asIntBuffer();
         if (rowIds.capacity() != numRows) {
             throw new IllegalStateException();
         }
-        buffer.position(16 + 4 * numRows);
+        buffer.position(start + 4 * numRows);
         buffer.limit(buffer.position() + 8 * numRows);
         rowOffsets = buffer.slice().asLongBuffer();
         if (rowOffsets.capacity() != numRows) {
@@ -90,11 +138,18 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         ByteBuffer bb = rowBuffers.getRow(rowId);
         if (bb == null) {
             return null;
-        } else {
+        } else if (codec.isLegacy()) {
             return new SparseMatrixRow(vconf, bb);
+        } else {
+            return SparseMatrixRow.decode(vconf, codec, bb, 0);
         }
     }
 
+    @Override
+    public SparseRowCursor newCursor() {
+        return new SparseRowCursor(rowBuffers, vconf, codec);
+    }
+
     @Override
     public int[] getRowIds() {
         return rowBuffers.getRowIdsInDiskOrder();
@@ -109,6 +164,13 @@ public class SparseMatrix implements Matrix<SparseMatrixRow> {
         return vconf;
     }
 
+    /**
+     * @return The codec used to encode the rows of the matrix.
+     */
+    public RowCodec getCodec() {
+        return codec;
+    }
+
     @Override
     public Iterator<SparseMatrixRow> iterator() {
         return new SparseMatrixIterator();
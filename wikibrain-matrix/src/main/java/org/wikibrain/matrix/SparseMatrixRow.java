@@ -6,6 +6,7 @@ import org.apache.commons.lang3.ArrayUtils;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
@@ -17,6 +18,10 @@ import java.util.logging.Logger;
  * The row can either be created from the component data, or from a byte buffer.
  * This means that the object can wrap data from an mmap'd file in the correct format.
  *
+ * Rows created from float values keep the (pinched) floats in arrays, so they can be
+ * written with any {@link RowCodec}. The packed byte buffer is only built if it is
+ * requested. Rows read with a non-legacy codec are decoded into arrays as well.
+ *
  * Newly created rows are reordered so that the columns appear in sorted order.
  */
 public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
@@ -50,6 +55,13 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     private ShortBuffer valBuffer;
     private ValueConf vconf;
 
+    /**
+     * Column ids and values for rows that are not backed by a buffer.
+     */
+    private int rowIndex;
+    private int colIds[];
+    private float colVals[];
+
     public SparseMatrixRow(ValueConf vconf, int rowIndex, TIntFloatMap row) {
         this(vconf, rowIndex, row.keys(), row.values());
     }
@@ -62,12 +74,42 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     }
 
     public SparseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], float colVals[]) {
+        this(vconf, rowIndex, colIds, colVals, true);
+    }
+
+    private SparseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], float colVals[], boolean pinch) {
+        assert(colIds.length == colVals.length);
         this.vconf = vconf;
-        short packed[] = new short[colVals.length];
+        this.rowIndex = rowIndex;
+        this.colIds = Arrays.copyOf(colIds, colIds.length);
+        this.colVals = new float[colVals.length];
         for (int i = 0; i < colVals.length; i++) {
-            packed[i] = vconf.pack(colVals[i]);
+            this.colVals[i] = pinch ? vconf.pinchScore(colVals[i]) : colVals[i];
+        }
+        if (!isNonDecreasing(this.colIds)) {
+            quickSort(this.colIds, this.colVals, 0, this.colIds.length - 1);
+            if (!isNonDecreasing(this.colIds)) {
+                throw new IllegalStateException();
+            }
         }
-        createBuffer(rowIndex, colIds, packed);
+    }
+
+    /**
+     * Decodes a row that was encoded with the specified codec.
+     * @param vconf
+     * @param codec
+     * @param buffer A buffer containing the row.
+     * @param pos The position of the row in the buffer.
+     */
+    public static SparseMatrixRow decode(ValueConf vconf, RowCodec codec, ByteBuffer buffer, int pos) {
+        if (buffer.getInt(pos) != HEADER) {
+            throw new IllegalArgumentException("Invalid header in byte buffer");
+        }
+        int n = buffer.getInt(pos + 8);
+        int ids[] = new int[n];
+        float vals[] = new float[n];
+        codec.decode(buffer, pos, vconf, ids, vals);
+        return new SparseMatrixRow(vconf, buffer.getInt(pos + 4), ids, vals, false);
     }
 
     public SparseMatrixRow(ValueConf vconf, int rowIndex, int colIds[], short colVals[]) {
@@ -136,6 +178,41 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
     }
 
 
+    // Adapted from http://www.programcreek.com/2012/11/quicksort-array-in-java/
+    private void quickSort(int colIds[], float colVals[], int low, int high) {
+        if (colIds.length == 0 || low >= high)
+            return;
+
+        // pick the pivot
+        int middle = (low + high) / 2;
+        int pivot = colIds[middle];
+
+        // partition around the pivot
+        int i = low, j = high;
+        while (i <= j) {
+            while (colIds[i] < pivot) {
+                i++;
+            }
+            while (colIds[j] > pivot) {
+                j--;
+            }
+            if (i <= j) {
+                int temp = colIds[i];
+                float tempV = colVals[i];
+                colIds[i] = colIds[j];
+                colVals[i] = colVals[j];
+                colIds[j] = temp;
+                colVals[j] = tempV;
+                i++;
+                j--;
+            }
+        }
+
+        //recursively sort two sub parts
+        quickSort(colIds, colVals, low, j);
+        quickSort(colIds, colVals, i, high);
+    }
+
     static boolean isNonDecreasing(int A[]) {
         int lastId = Integer.MIN_VALUE;
         for (int i = 0; i < A.length; i++) {
@@ -171,29 +248,46 @@ public final class SparseMatrixRow extends BaseMatrixRow implements MatrixRow {
 
     @Override
     public final int getColIndex(int i) {
-        return idBuffer.get(i);
+        return (colIds != null) ? colIds[i] : idBuffer.get(i);
     }
 
     @Override
     public final float getColValue(int i) {
-        return vconf.unpack(valBuffer.get(i));
+        return (colIds != null) ? colVals[i] : vconf.unpack(valBuffer.get(i));
     }
 
     public final short getPackedColValue(int i) {
-        return valBuffer.get(i);
+        return (colIds != null) ? vconf.pack(colVals[i]) : valBuffer.get(i);
     }
 
     @Override
     public final int getRowIndex() {
-        return headerBuffer.get(1);
+        return (colIds != null) ? rowIndex : headerBuffer.get(1);
     }
 
     @Override
     public final int getNumCols() {
-        return headerBuffer.get(2);
+        return (colIds != null) ? colIds.length : headerBuffer.get(2);
+    }
+
+    /**
+     * @return The number of bytes used by the row, excluding padding.
+     */
+    public int getByteLength() {
+        return 12 + 6 * getNumCols();
     }
 
-    public ByteBuffer getBuffer() {
+    /**
+     * @return The row in the legacy layout (fixed ids, packed values).
+     */
+    public synchronized ByteBuffer getBuffer() {
+        if (buffer == null) {
+            short packed[] = new short[colVals.length];
+            for (int i = 0; i < colVals.length; i++) {
+                packed[i] = vconf.pack(colVals[i]);
+            }
+            createBuffer(rowIndex, colIds, packed);
+        }
         return buffer;
     }
 
@@ -12,7 +12,8 @@ public class SparseMatrixSorter {
         int rowIds[] = matrix.getRowIds();
         rowIds = Arrays.copyOf(rowIds, rowIds.length);
         Arrays.sort(rowIds);
-        SparseMatrixWriter writer = new SparseMatrixWriter(file, matrix.getValueConf());
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, matrix.getValueConf(), matrix.getCodec());
+        writer.setExpectedNumRows(rowIds.length);
         for (int id : rowIds) {
             writer.writeRow(matrix.getRow(id));
 
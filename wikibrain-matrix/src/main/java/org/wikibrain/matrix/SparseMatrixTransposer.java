@@ -3,27 +3,32 @@ package org.wikibrain.matrix;
 import gnu.trove.impl.Constants;
 import gnu.trove.impl.hash.TIntHash;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.list.array.TShortArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 public class SparseMatrixTransposer {
     final static Logger LOG = Logger.getLogger(SparseMatrixTransposer.class.getName());
 
+    /**
+     * Maximum number of runs that are merged at once.
+     * Each open run holds a file handle and a 1MB read buffer.
+     */
+    static final int MAX_MERGE_FAN_IN = 64;
+
     private SparseMatrixWriter writer;
     private SparseMatrix matrix;
     private int colIds[];
     private TIntIntHashMap colCounts = new TIntIntHashMap();
     private int bufferMb;
     private int numColsTransposed = 0;
+    private int numDistinctCols = 0;
 
 
     public SparseMatrixTransposer(SparseMatrix m, File f) throws IOException {
@@ -32,13 +37,14 @@ public class SparseMatrixTransposer {
 
     public SparseMatrixTransposer(SparseMatrix m, File f, int bufferMb) throws IOException {
         this.matrix = m;
-        this.writer = new SparseMatrixWriter(f, m.getValueConf());
+        this.writer = new SparseMatrixWriter(f, m.getValueConf(), m.getCodec());
         this.bufferMb = bufferMb;
         this.numColsTransposed = 0;
     }
 
     public void transpose() throws IOException {
         countCellsPerColumn();
+        writer.setExpectedNumRows(colIds.length);
         while (numColsTransposed < colIds.length) {
             Map<Integer, RowAccumulator> batch = accumulateBatch();
             writeBatch(batch.values());
@@ -46,6 +52,351 @@ public class SparseMatrixTransposer {
         this.writer.finish();
     }
 
+    /**
+     * Transposes the matrix using an external merge sort.
+     *
+     * The source matrix is scanned exactly once by numThreads threads, each of which
+     * reads a contiguous (on disk) range of rows. Each thread buffers (col, row, value)
+     * cells, sorts them by column and row when its share of the buffer fills up, and
+     * spills them to a run file. The sorted runs are then k-way merged straight into
+     * the writer. If there are more than MAX_MERGE_FAN_IN runs, groups of runs are first
+     * merged into longer runs, so the transpose takes roughly two sequential passes over
+     * the data, plus one for each extra level of merging.
+     *
+     * @param numThreads Number of threads that scan the source matrix.
+     * @throws IOException
+     */
+    public void transposeExternally(int numThreads) throws IOException {
+        File runDir = File.createTempFile("transpose", "runs");
+        FileUtils.deleteQuietly(runDir);
+        FileUtils.forceMkdir(runDir);
+        try {
+            List<File> runs = writeSortedRuns(runDir, numThreads);
+            while (runs.size() > MAX_MERGE_FAN_IN) {
+                runs = mergeRunGroups(runDir, runs);
+            }
+            writer.setExpectedNumRows(numDistinctCols);
+            mergeRuns(runs);
+            this.writer.finish();
+        } finally {
+            FileUtils.deleteQuietly(runDir);
+        }
+    }
+
+    private List<File> writeSortedRuns(final File runDir, int numThreads) throws IOException {
+        final int rowIds[] = matrix.getRowIds();     // in disk order
+        final List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+        final List<BitSet> colsSeen = Collections.synchronizedList(new ArrayList<BitSet>());
+        final TIntHashSet negativeCols = new TIntHashSet();
+        numThreads = Math.max(1, Math.min(numThreads, rowIds.length));
+        final int cellsPerThread = (int) Math.max(1024,
+                Math.min(Integer.MAX_VALUE - 8, 1024L * 1024L * bufferMb / numThreads / BYTES_PER_CELL));
+
+        LOG.info("scanning " + rowIds.length + " rows with " + numThreads + " threads and " +
+                cellsPerThread + " buffered cells per thread");
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < numThreads; t++) {
+                final int from = (int) ((long) rowIds.length * t / numThreads);
+                final int to = (int) ((long) rowIds.length * (t + 1) / numThreads);
+                futures.add(exec.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        RunBuffer buffer = new RunBuffer(cellsPerThread);
+                        BitSet cols = new BitSet();
+                        SparseRowCursor row = matrix.newCursor();
+                        for (int i = from; i < to; i++) {
+                            if (!row.moveTo(rowIds[i])) {
+                                throw new IllegalStateException("missing row " + rowIds[i]);
+                            }
+                            int rowId = row.getRowIndex();
+                            for (int j = 0; j < row.getNumCols(); j++) {
+                                if (buffer.isFull()) {
+                                    runs.add(buffer.spill(runDir));
+                                }
+                                int colId = row.getColIndex(j);
+                                if (colId >= 0) {
+                                    cols.set(colId);
+                                } else {
+                                    synchronized (negativeCols) {
+                                        negativeCols.add(colId);
+                                    }
+                                }
+                                buffer.add(colId, rowId, getValueBits(row, j));
+                            }
+                        }
+                        colsSeen.add(cols);
+                        if (buffer.size() > 0) {
+                            runs.add(buffer.spill(runDir));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            exec.shutdown();
+        }
+        BitSet allCols = new BitSet();
+        for (BitSet cols : colsSeen) {
+            allCols.or(cols);
+        }
+        numDistinctCols = allCols.cardinality() + negativeCols.size();
+        LOG.info("wrote " + runs.size() + " sorted runs with " + numDistinctCols + " distinct columns to " + runDir);
+        return runs;
+    }
+
+    /**
+     * Merges each group of MAX_MERGE_FAN_IN runs into a single run, and deletes the merged runs.
+     */
+    private List<File> mergeRunGroups(File runDir, List<File> runs) throws IOException {
+        List<File> merged = new ArrayList<File>();
+        for (int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+            List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_FAN_IN));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            File f = File.createTempFile("run", ".bin", runDir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1024 * 1024));
+            PriorityQueue<RunReader> queue = openRuns(group);
+            try {
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    out.writeLong(reader.key);
+                    out.writeInt(reader.val);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } finally {
+                for (RunReader reader : queue) {
+                    reader.close();
+                }
+                out.close();
+            }
+            for (File run : group) {
+                FileUtils.deleteQuietly(run);
+            }
+            merged.add(f);
+        }
+        LOG.info("merged " + runs.size() + " runs into " + merged.size() + " runs");
+        return merged;
+    }
+
+    private PriorityQueue<RunReader> openRuns(List<File> runs) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+        try {
+            for (File f : runs) {
+                RunReader reader = new RunReader(f);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            throw e;
+        }
+        return queue;
+    }
+
+    private void mergeRuns(List<File> runs) throws IOException {
+        PriorityQueue<RunReader> queue = openRuns(runs);
+        try {
+            TIntArrayList rowIds = new TIntArrayList();
+            TIntArrayList vals = new TIntArrayList();
+            long lastCol = Long.MIN_VALUE;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                int col = (int) (reader.key >> 32);
+                if (col != lastCol && !rowIds.isEmpty()) {
+                    writer.writeRow(makeRow((int) lastCol, rowIds.toArray(), vals.toArray()));
+                    numColsTransposed++;
+                    rowIds.resetQuick();
+                    vals.resetQuick();
+                }
+                lastCol = col;
+                rowIds.add(unpackRow(reader.key));
+                vals.add(reader.val);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            if (!rowIds.isEmpty()) {
+                writer.writeRow(makeRow((int) lastCol, rowIds.toArray(), vals.toArray()));
+                numColsTransposed++;
+            }
+            LOG.info("merged " + runs.size() + " runs into " + numColsTransposed + " transposed rows");
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Packs a cell's column and row into a long that sorts by column, then row.
+     */
+    static long packCell(int col, int row) {
+        return ((long) col << 32) | ((row ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    static int unpackRow(long key) {
+        return ((int) key) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the bits of a cell's value that are carried through the transpose:
+     * the packed value for legacy matrices (so values are not requantized), and
+     * the raw float bits otherwise.
+     */
+    private int getValueBits(MatrixRow row, int i) {
+        if (matrix.getCodec().isLegacy()) {
+            return (row instanceof SparseRowCursor)
+                    ? ((SparseRowCursor) row).getPackedColValue(i)
+                    : ((SparseMatrixRow) row).getPackedColValue(i);
+        } else {
+            return Float.floatToRawIntBits(row.getColValue(i));
+        }
+    }
+
+    private SparseMatrixRow makeRow(int rowId, int colIds[], int valueBits[]) {
+        ValueConf vconf = matrix.getValueConf();
+        if (matrix.getCodec().isLegacy()) {
+            short packed[] = new short[valueBits.length];
+            for (int i = 0; i < valueBits.length; i++) {
+                packed[i] = (short) valueBits[i];
+            }
+            return new SparseMatrixRow(vconf, rowId, colIds, packed);
+        } else {
+            float vals[] = new float[valueBits.length];
+            for (int i = 0; i < valueBits.length; i++) {
+                vals[i] = Float.intBitsToFloat(valueBits[i]);
+            }
+            return new SparseMatrixRow(vconf, rowId, colIds, vals);
+        }
+    }
+
+    private static final int BYTES_PER_CELL = 8 + 4;
+
+    /**
+     * A buffer of cells for a single scanning thread.
+     */
+    private static class RunBuffer {
+        long keys[];
+        int vals[];
+        int n = 0;
+
+        RunBuffer(int capacity) {
+            keys = new long[capacity];
+            vals = new int[capacity];
+        }
+
+        boolean isFull() { return n == keys.length; }
+
+        int size() { return n; }
+
+        void add(int col, int row, int val) {
+            keys[n] = packCell(col, row);
+            vals[n] = val;
+            n++;
+        }
+
+        File spill(File dir) throws IOException {
+            sort(0, n - 1);
+            File f = File.createTempFile("run", ".bin", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1024 * 1024));
+            try {
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeInt(vals[i]);
+                }
+            } finally {
+                out.close();
+            }
+            n = 0;
+            return f;
+        }
+
+        // Adapted from http://www.programcreek.com/2012/11/quicksort-array-in-java/
+        private void sort(int low, int high) {
+            while (low < high) {
+                long pivot = keys[(low + high) >>> 1];
+                int i = low, j = high;
+                while (i <= j) {
+                    while (keys[i] < pivot) {
+                        i++;
+                    }
+                    while (keys[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        long tk = keys[i]; keys[i] = keys[j]; keys[j] = tk;
+                        int tv = vals[i]; vals[i] = vals[j]; vals[j] = tv;
+                        i++;
+                        j--;
+                    }
+                }
+                // recurse on the smaller part to bound the stack depth
+                if (j - low < high - i) {
+                    sort(low, j);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the cells of a sorted run in order.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private long remaining;
+        long key;
+        int val;
+
+        RunReader(File f) throws IOException {
+            this.remaining = f.length() / BYTES_PER_CELL;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1024 * 1024));
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            key = in.readLong();
+            val = in.readInt();
+            remaining--;
+            return true;
+        }
+
+        void close() {
+            IOUtils.closeQuietly(in);
+        }
+
+        @Override
+        public int compareTo(RunReader that) {
+            return (key < that.key) ? -1 : ((key == that.key) ? 0 : 1);
+        }
+    }
+
     private void countCellsPerColumn() throws IOException {
         for (int id : matrix.getRowIds()) {
             MatrixRow row = matrix.getRow(id);
@@ -85,7 +436,7 @@ public class SparseMatrixTransposer {
                 if (!colIdsInBatch.contains(colId)) {
                     continue;
                 }
-                short colValue = row.getPackedColValue(i);
+                int colValue = getValueBits(row, i);
                 if (!transposedBatch.containsKey(colId)) {
                     transposedBatch.put(colId, new RowAccumulator(colId));
                 }
@@ -104,7 +455,7 @@ public class SparseMatrixTransposer {
 
     protected void writeBatch(Collection<RowAccumulator> batch) throws IOException {
         for (RowAccumulator ra: batch) {
-            writer.writeRow(ra.toRow(matrix.getValueConf()));
+            writer.writeRow(makeRow(ra.id, ra.colIds.toArray(), ra.colVals.toArray()));
         }
     }
 
@@ -118,21 +469,18 @@ public class SparseMatrixTransposer {
             // row accumulator object itself
             BYTES_PER_OBJECT + 4 + 2 * BYTES_PER_REF +
             // ids and values in accumulator
-            EXPANSION_FACTOR * numEntries * (4 + 2)
+            EXPANSION_FACTOR * numEntries * (4 + 4)
         ) / (1024.0 * 1024.0);
     }
 
     private static class RowAccumulator {
         int id;
         TIntArrayList colIds = new TIntArrayList();
-        TShortArrayList colVals = new TShortArrayList();
+        TIntArrayList colVals = new TIntArrayList();
         RowAccumulator(int id) {
             this.id = id;
         }
-        SparseMatrixRow toRow(ValueConf vconf) {
-            return new SparseMatrixRow(vconf, id, colIds.toArray(), colVals.toArray());
-        }
-        void addCol(int id, short val) {
+        void addCol(int id, int val) {
             this.colIds.add(id);
             this.colVals.add(val);
         }
@@ -159,16 +507,24 @@ public class SparseMatrixTransposer {
 
     public static void main(String args[]) throws IOException {
         int bufferMbs = 0;
+        int numThreads = 0;
         if (args.length == 2) {
             bufferMbs = defaultBufferSizeInMbs();
         } else if (args.length == 3) {
             bufferMbs = Integer.valueOf(args[2]);
+        } else if (args.length == 4) {
+            bufferMbs = Integer.valueOf(args[2]);
+            numThreads = Integer.valueOf(args[3]);
         } else {
-            System.err.println("usage: java " + SparseMatrixTransposer.class.getName() + " input_path output_path {buffer_in_MBs}");
+            System.err.println("usage: java " + SparseMatrixTransposer.class.getName() + " input_path output_path {buffer_in_MBs} {external_sort_threads}");
             System.exit(1);
         }
         SparseMatrix matrix = new SparseMatrix(new File(args[0]));
         SparseMatrixTransposer transposer = new SparseMatrixTransposer(matrix, new File(args[1]), bufferMbs);
-        transposer.transpose();
+        if (numThreads > 0) {
+            transposer.transposeExternally(numThreads);
+        } else {
+            transposer.transpose();
+        }
     }
 }
@@ -1,112 +1,340 @@
 package org.wikibrain.matrix;
 
-import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntLongHashMap;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Writes a sparse matrix.
+ *
+ * Rows may be written concurrently from many threads. Each thread copies its rows
+ * into its own append segment; when a segment fills up, the thread atomically
+ * reserves a region of the file and writes the segment there with a positional
+ * write, so threads never wait on each other for I/O.
+ *
+ * Space for the header is reserved at the start of the file, so the body never
+ * has to be copied. If more rows are written than were reserved for, the body is
+ * moved behind a larger header when the matrix is finished.
+ *
+ * The matrix is written to a temporary file next to the destination and renamed
+ * into place by finish(), so a matrix that is open for reading is never truncated.
+ *
+ * Rows are encoded with the writer's {@link RowCodec}. Matrices written with the
+ * legacy codec use the original file format, so older readers can still open them.
+ */
 public class SparseMatrixWriter {
 
     public static final byte ROW_PADDING = Byte.MIN_VALUE;
 
+    /**
+     * Number of rows for which header space is reserved by default.
+     */
+    public static final int DEFAULT_RESERVED_ROWS = 64 * 1024;
+
+    /**
+     * Size of the append segment for each writing thread.
+     */
+    public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
     private static final Logger LOG = Logger.getLogger(SparseMatrixWriter.class.getName());
 
     private File path;
+    private File tmpPath;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private ValueConf vconf;
+    private RowCodec codec;
+
     private TIntLongHashMap rowOffsets = new TIntLongHashMap();
     private TIntArrayList rowIndexes = new TIntArrayList();
-    private File bodyPath;
-    private BufferedOutputStream body;
-    private long bodyOffset = 0;
-    private ValueConf vconf;
+
+    private volatile long bodyStart = -1;
+    private int reservedRows = DEFAULT_RESERVED_ROWS;
+    private final AtomicLong bodyEnd = new AtomicLong();
+    private final long startTime = System.currentTimeMillis();
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final ThreadLocal<Segment> localSegment = new ThreadLocal<Segment>() {
+        @Override
+        protected Segment initialValue() {
+            Segment s = new Segment();
+            synchronized (segments) {
+                segments.add(s);
+            }
+            return s;
+        }
+    };
 
     public SparseMatrixWriter(File path, ValueConf conf) throws IOException {
+        this(path, conf, RowCodec.LEGACY);
+    }
+
+    public SparseMatrixWriter(File path, ValueConf conf, RowCodec codec) throws IOException {
         this.path = path;
         this.vconf = conf;
-        info("writing matrix to " + path);
+        this.codec = codec;
+        info("writing matrix to " + path + " with codec " + codec);
 
-        // write tmp matrix file
-        this.bodyPath = File.createTempFile("matrix", null);
-        this.bodyPath.deleteOnExit();
-        this.body = new BufferedOutputStream(new FileOutputStream(bodyPath));
+        File dir = path.getAbsoluteFile().getParentFile();
+        this.tmpPath = File.createTempFile(path.getName() + "-", ".tmp", dir);
+        this.tmpPath.deleteOnExit();
+        this.file = new RandomAccessFile(tmpPath, "rw");
+        this.channel = file.getChannel();
 
-        info("writing body to tmp file at " + bodyPath);
+        info("writing body to tmp file at " + tmpPath);
+    }
+
+    /**
+     * Reserves header space for the specified number of rows.
+     * Must be called before the first row is written.
+     * @param numRows
+     */
+    public synchronized void setExpectedNumRows(int numRows) {
+        if (bodyStart >= 0) {
+            throw new IllegalStateException("setExpectedNumRows() must be called before rows are written");
+        }
+        this.reservedRows = numRows;
     }
 
-    public synchronized void writeRow(SparseMatrixRow row) throws IOException {
+    public void writeRow(SparseMatrixRow row) throws IOException {
         if (!row.getValueConf().almostEquals(vconf)) {
             throw new IllegalArgumentException("Value conf for row does not match the writer's value conf");
         }
-        row.getBuffer().rewind();
-        byte[] bytes = new byte[row.getBuffer().remaining()];
-        row.getBuffer().get(bytes, 0, bytes.length);
+        if (bodyStart < 0) {
+            reserveHeader();
+        }
+        localSegment.get().add(row);
+    }
+
+    private synchronized void reserveHeader() {
+        if (bodyStart < 0) {
+            bodyEnd.set(align(getHeaderSize(reservedRows)));
+            bodyStart = bodyEnd.get();
+        }
+    }
 
-        rowOffsets.put(row.getRowIndex(), bodyOffset);
-        rowIndexes.add(row.getRowIndex());
+    /**
+     * Reserves a region of the file and writes the buffer there.
+     * @return The offset of the region.
+     */
+    private long append(ByteBuffer buffer) throws IOException {
+        long offset = bodyEnd.getAndAdd(buffer.remaining());
+        writeFully(buffer, offset);
+        return offset;
+    }
 
-        body.write(bytes);
-        bodyOffset += bytes.length;
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
 
-        // pad rows to 8 byte offsets to speed things up.
-        while (bodyOffset % 8 != 0) {
-            bodyOffset++;
-            body.write(ROW_PADDING);
+    private void addOffsets(TIntArrayList ids, TIntArrayList positions, long base) {
+        synchronized (rowOffsets) {
+            for (int i = 0; i < ids.size(); i++) {
+                rowOffsets.put(ids.get(i), base + positions.get(i));
+                rowIndexes.add(ids.get(i));
+            }
         }
     }
 
     public void finish() throws IOException {
-        body.close();
-        info("wrote " + bodyOffset + " bytes in body of matrix");
+        if (bodyStart < 0) {
+            reserveHeader();
+        }
+        synchronized (segments) {
+            for (Segment s : segments) {
+                s.flush();
+            }
+        }
+        long bodyLength = bodyEnd.get() - bodyStart;
+        info("wrote " + bodyLength + " bytes in body of matrix");
 
-        // write offset file
-        info("generating header");
-        int sizeHeader = 16 + rowOffsets.size() * (4 + 8);
-        body = new BufferedOutputStream(new FileOutputStream(path));
-        body.write(intToBytes(SparseMatrix.FILE_HEADER));
-        body.write(floatToBytes(vconf.minScore));
-        body.write(floatToBytes(vconf.maxScore));
-        body.write(intToBytes(rowOffsets.size()));
-
-        // Next write row indexes in sorted order (4 bytes per row)
+        // Row indexes in sorted order (4 bytes per row)
         int sortedIndexes[] = rowIndexes.toArray();
         Arrays.sort(sortedIndexes);
-        for (int rowIndex : sortedIndexes) {
-            body.write(intToBytes(rowIndex));
+        int numRows = sortedIndexes.length;
+
+        info("generating header");
+        long headerSize = getHeaderSize(numRows);
+        long shift = 0;
+        if (headerSize > bodyStart) {
+            // The reserved header space was too small; the body must move.
+            shift = align(headerSize) - bodyStart;
+            warn("header for " + numRows + " rows exceeds the space reserved for " +
+                    reservedRows + " rows; copying body to make room");
         }
 
+        ByteBuffer header = ByteBuffer.allocate((int) headerSize);
+        if (codec.isLegacy()) {
+            header.putInt(SparseMatrix.FILE_HEADER);
+            header.putFloat(vconf.minScore);
+            header.putFloat(vconf.maxScore);
+            header.putInt(numRows);
+        } else {
+            header.putInt(SparseMatrix.FILE_HEADER_V2);
+            header.putInt(SparseMatrix.FORMAT_VERSION);
+            header.putFloat(vconf.minScore);
+            header.putFloat(vconf.maxScore);
+            header.putInt(numRows);
+            header.put((byte) codec.getIdEncoding().ordinal());
+            header.put((byte) codec.getValueEncoding().ordinal());
+            header.putShort((short) 0);
+            header.putFloat(codec.getImplicitValue());
+            header.putInt(0);   // reserved
+        }
+        for (int rowIndex : sortedIndexes) {
+            header.putInt(rowIndex);
+        }
         // Next write offsets for sorted indexes. (8 bytes per row)
         for (int rowIndex : sortedIndexes) {
-            long rowOffset = rowOffsets.get(rowIndex);
-            body.write(longToBytes(rowOffset + sizeHeader));
+            header.putLong(rowOffsets.get(rowIndex) + shift);
+        }
+        header.flip();
+
+        if (shift == 0) {
+            writeFully(header, 0);
+            channel.truncate(bodyEnd.get());
+            channel.close();
+            file.close();
+        } else {
+            File movedPath = File.createTempFile(path.getName() + "-", ".tmp", tmpPath.getParentFile());
+            RandomAccessFile moved = new RandomAccessFile(movedPath, "rw");
+            try {
+                FileChannel dest = moved.getChannel();
+                while (header.hasRemaining()) {
+                    dest.write(header);
+                }
+                dest.position(bodyStart + shift);
+                long pos = bodyStart;
+                while (pos < bodyEnd.get()) {
+                    pos += channel.transferTo(pos, bodyEnd.get() - pos, dest);
+                }
+            } finally {
+                moved.close();
+                channel.close();
+                file.close();
+            }
+            FileUtils.deleteQuietly(tmpPath);
+            tmpPath = movedPath;
+        }
+
+        if (!tmpPath.renameTo(path)) {
+            FileUtils.deleteQuietly(path);
+            FileUtils.moveFile(tmpPath, path);
         }
 
-        InputStream r = new FileInputStream(bodyPath);
+        double secs = Math.max(0.001, (System.currentTimeMillis() - startTime) / 1000.0);
+        long size = FileUtils.sizeOf(path);
+        info(String.format("wrote %d bytes to %s in %.1f seconds (%.1f MB/s)",
+                size, path, secs, size / (1024.0 * 1024.0) / secs));
+    }
+
+    private long getHeaderSize(int numRows) {
+        return (codec.isLegacy() ? 16 : 32) + numRows * (4L + 8L);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * An append buffer owned by a single writing thread.
+     */
+    private class Segment {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+        final TIntArrayList ids = new TIntArrayList();
+        final TIntArrayList positions = new TIntArrayList();
 
-        // append other file
-        IOUtils.copyLarge(r, body);
-        r.close();
-        body.flush();
-        body.close();
+        void add(SparseMatrixRow row) throws IOException {
+            ByteBuffer src = null;
+            int length;
+            if (codec.isLegacy()) {
+                src = row.getBuffer().duplicate();
+                length = row.getByteLength();
+                src.limit(length);
+                src.position(0);
+            } else {
+                length = codec.getMaxEncodedLength(row.getNumCols());
+            }
 
-        info("wrote " + FileUtils.sizeOf(path) + " bytes to " + path);
+            // pad rows to 8 byte offsets to speed things up.
+            int padded = (int) align(length);
+            if (padded > buffer.remaining()) {
+                flush();
+            }
+            if (padded > buffer.capacity()) {
+                // too large for a segment; write the row directly
+                ByteBuffer b = ByteBuffer.allocate(padded);
+                if (src == null) {
+                    codec.encode(row, vconf, b);
+                } else {
+                    b.put(src);
+                }
+                int end = (int) align(b.position());
+                while (b.position() < end) {
+                    b.put(ROW_PADDING);
+                }
+                b.flip();
+                long offset = append(b);
+                synchronized (rowOffsets) {
+                    rowOffsets.put(row.getRowIndex(), offset);
+                    rowIndexes.add(row.getRowIndex());
+                }
+                return;
+            }
+            ids.add(row.getRowIndex());
+            positions.add(buffer.position());
+            if (src == null) {
+                codec.encode(row, vconf, buffer);
+            } else {
+                buffer.put(src);
+            }
+            while ((buffer.position() & 7) != 0) {
+                buffer.put(ROW_PADDING);
+            }
+        }
+
+        void flush() throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            long base = append(buffer);
+            addOffsets(ids, positions, base);
+            buffer.clear();
+            ids.resetQuick();
+            positions.resetQuick();
+        }
     }
 
     private void info(String message) {
         LOG.log(Level.INFO, "sparse matrix writer " + path + ": " + message);
     }
 
+    private void warn(String message) {
+        LOG.log(Level.WARNING, "sparse matrix writer " + path + ": " + message);
+    }
+
     public static void write(File file, Iterator<SparseMatrixRow> rows) throws IOException {
         write(file, rows, new ValueConf());
     }
     public static void write(File file, Iterator<SparseMatrixRow> rows, ValueConf vconf) throws IOException {
-        SparseMatrixWriter w = new SparseMatrixWriter(file, vconf);
+        write(file, rows, vconf, RowCodec.LEGACY);
+    }
+    public static void write(File file, Iterator<SparseMatrixRow> rows, ValueConf vconf, RowCodec codec) throws IOException {
+        SparseMatrixWriter w = new SparseMatrixWriter(file, vconf, codec);
         while (rows.hasNext()) {
             w.writeRow(rows.next());
         }
@@ -117,14 +345,7 @@ public class SparseMatrixWriter {
         return vconf;
     }
 
-    private static byte[] intToBytes(int i) {
-        return ByteBuffer.allocate(4).putInt(i).array();
-    }
-
-    private static byte[] longToBytes(long i) {
-        return ByteBuffer.allocate(8).putLong(i).array();
-    }
-    private static byte[] floatToBytes(float f) {
-        return ByteBuffer.allocate(4).putFloat(f).array();
+    public RowCodec getCodec() {
+        return codec;
     }
 }
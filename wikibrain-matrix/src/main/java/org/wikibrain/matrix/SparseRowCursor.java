@@ -0,0 +1,140 @@
+package org.wikibrain.matrix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A cursor over the rows of a sparse matrix.
+ * The cursor reads rows directly from the pages of the matrix, so moving
+ * it onto a row and reading its columns does not allocate any objects.
+ *
+ * Rows of matrices that use a non-legacy {@link RowCodec} are decoded into
+ * arrays owned by the cursor when it moves, and the arrays are reused.
+ * @see SparseMatrix#newCursor()
+ */
+public final class SparseRowCursor extends BaseMatrixRow implements RowCursor {
+    private final MemoryMappedMatrix rowBuffers;
+    private final ValueConf vconf;
+    private final RowCodec codec;
+
+    private ByteBuffer page;
+    private int rowIndex;
+    private int numCols;
+    private int idPos;      // position of the first column id in page
+    private int valPos;     // position of the first column value in page
+
+    // decoded columns; only used for non-legacy codecs
+    private int ids[];
+    private float vals[];
+
+    SparseRowCursor(MemoryMappedMatrix rowBuffers, ValueConf vconf) {
+        this(rowBuffers, vconf, RowCodec.LEGACY);
+    }
+
+    SparseRowCursor(MemoryMappedMatrix rowBuffers, ValueConf vconf, RowCodec codec) {
+        this.rowBuffers = rowBuffers;
+        this.vconf = vconf;
+        this.codec = codec;
+        if (!codec.isLegacy()) {
+            ids = new int[16];
+            vals = new float[16];
+        }
+    }
+
+    @Override
+    public boolean moveTo(int rowId) throws IOException {
+        long offset = rowBuffers.getRowOffset(rowId);
+        if (offset < 0) {
+            page = null;
+            return false;
+        }
+        int pageIndex = rowBuffers.getPageIndex(offset);
+        if (pageIndex < 0) {
+            throw new IllegalArgumentException("did not find row " + rowId + " with offset " + offset);
+        }
+        ByteBuffer b = rowBuffers.getPageBuffer(pageIndex);
+        int pos = (int) (offset - rowBuffers.getPageBufferStart(pageIndex));
+        if (b.getInt(pos) != SparseMatrixRow.HEADER) {
+            throw new IllegalArgumentException("Invalid header for row " + rowId);
+        }
+        page = b;
+        rowIndex = b.getInt(pos + 4);
+        numCols = b.getInt(pos + 8);
+        idPos = pos + 12;
+        valPos = idPos + 4 * numCols;
+        if (ids != null) {
+            if (numCols > ids.length) {
+                int n = Math.max(numCols, ids.length * 2);
+                ids = new int[n];
+                vals = new float[n];
+            }
+            codec.decode(b, pos, vconf, ids, vals);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isValid() {
+        return page != null;
+    }
+
+    @Override
+    public int getColIndex(int i) {
+        return (ids != null) ? ids[i] : page.getInt(idPos + 4 * i);
+    }
+
+    @Override
+    public float getColValue(int i) {
+        return (ids != null) ? vals[i] : vconf.unpack(page.getShort(valPos + 2 * i));
+    }
+
+    public short getPackedColValue(int i) {
+        return (ids != null) ? vconf.pack(vals[i]) : page.getShort(valPos + 2 * i);
+    }
+
+    @Override
+    public int getRowIndex() {
+        return rowIndex;
+    }
+
+    @Override
+    public int getNumCols() {
+        return numCols;
+    }
+
+    @Override
+    public int getColIds(int dest[]) {
+        if (ids != null) {
+            System.arraycopy(ids, 0, dest, 0, numCols);
+            return numCols;
+        }
+        int p = idPos;
+        for (int i = 0; i < numCols; i++) {
+            dest[i] = page.getInt(p);
+            p += 4;
+        }
+        return numCols;
+    }
+
+    @Override
+    public int getColValues(float dest[]) {
+        if (ids != null) {
+            System.arraycopy(vals, 0, dest, 0, numCols);
+            return numCols;
+        }
+        int p = valPos;
+        for (int i = 0; i < numCols; i++) {
+            dest[i] = vconf.unpack(page.getShort(p));
+            p += 2;
+        }
+        return numCols;
+    }
+
+    public ValueConf getValueConf() {
+        return vconf;
+    }
+
+    public RowCodec getCodec() {
+        return codec;
+    }
+}
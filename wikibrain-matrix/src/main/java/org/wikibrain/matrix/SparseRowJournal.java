@@ -0,0 +1,234 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of sparse matrix rows that is used to checkpoint
+ * long running matrix builds.
+ *
+ * Rows are appended as they are computed, and the journal is flushed to disk every
+ * checkpointInterval rows. If the build dies, the next build replays the rows in the
+ * journal instead of recomputing them. Each record carries a checksum, so a record
+ * that was only partially written when the process died is discarded along with
+ * everything after it.
+ *
+ * The journal header records the value conf and a caller supplied tag that should
+ * identify the parameters of the build. A journal whose header does not match is
+ * discarded.
+ */
+public class SparseRowJournal implements Closeable {
+    private static final Logger LOG = Logger.getLogger(SparseRowJournal.class.getName());
+
+    public static final int FILE_HEADER = 0xabcd70;
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+    private static final int HEADER_SIZE = 20;
+
+    private final File path;
+    private final ValueConf vconf;
+    private final long tag;
+    private final int checkpointInterval;
+
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    private int numUnflushed = 0;
+    private int numRows = 0;
+
+    public SparseRowJournal(File path, ValueConf vconf, long tag) {
+        this(path, vconf, tag, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param path Location of the journal.
+     * @param vconf Value conf of the rows in the journal.
+     * @param tag Identifies the build. Journals with a different tag are discarded.
+     * @param checkpointInterval Number of rows appended between flushes to disk.
+     */
+    public SparseRowJournal(File path, ValueConf vconf, long tag, int checkpointInterval) {
+        this.path = path;
+        this.vconf = vconf;
+        this.tag = tag;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Writes every intact row in an existing journal to the writer and opens the
+     * journal for appending. A missing or mismatched journal is replaced by an empty one.
+     *
+     * @param writer Receives replayed rows. May be null.
+     * @return The ids of the replayed rows.
+     * @throws IOException
+     */
+    public synchronized TIntSet open(SparseMatrixWriter writer) throws IOException {
+        if (out != null) {
+            throw new IllegalStateException("journal " + path + " is already open");
+        }
+        TIntSet replayed = new TIntHashSet();
+        long validLength = path.isFile() ? replay(writer, replayed) : -1;
+        if (validLength < 0) {
+            FileUtils.deleteQuietly(path);
+            replayed.clear();
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(path, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+            LOG.info("resuming from journal " + path + " with " + replayed.size() + " completed rows");
+        }
+        if (path.getParentFile() != null) {
+            path.getParentFile().mkdirs();
+        }
+        stream = new FileOutputStream(path, validLength >= 0);
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        if (validLength < 0) {
+            out.writeInt(FILE_HEADER);
+            out.writeLong(tag);
+            out.writeFloat(vconf.minScore);
+            out.writeFloat(vconf.maxScore);
+            checkpoint();
+        }
+        numRows = replayed.size();
+        return replayed;
+    }
+
+    /**
+     * Reads the journal, passing intact rows to the writer.
+     * @return The length of the intact prefix of the journal, or -1 if the journal cannot be used.
+     */
+    private long replay(SparseMatrixWriter writer, TIntSet replayed) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            long length = path.length();
+            if (length < HEADER_SIZE
+            ||  in.readInt() != FILE_HEADER
+            ||  in.readLong() != tag
+            ||  !vconf.almostEquals(new ValueConf(in.readFloat(), in.readFloat()))) {
+                LOG.info("discarding stale journal " + path);
+                return -1;
+            }
+            long offset = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (offset + 8 <= length) {
+                int rowId = in.readInt();
+                int numCols = in.readInt();
+                long recordLength = 8L + 8L * numCols + 8L;
+                if (numCols < 0 || offset + recordLength > length) {
+                    break;
+                }
+                byte bytes[] = new byte[8 * numCols];
+                in.readFully(bytes);
+                long checksum = in.readLong();
+                crc.reset();
+                crc.update(bytes);
+                if (checksum != (crc.getValue() ^ rowId)) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                int colIds[] = new int[numCols];
+                float colVals[] = new float[numCols];
+                for (int i = 0; i < numCols; i++) {
+                    colIds[i] = buffer.getInt();
+                }
+                for (int i = 0; i < numCols; i++) {
+                    colVals[i] = buffer.getFloat();
+                }
+                if (replayed.add(rowId) && writer != null) {
+                    writer.writeRow(new SparseMatrixRow(vconf, rowId, colIds, colVals));
+                }
+                offset += recordLength;
+            }
+            if (offset < length) {
+                LOG.info("discarding " + (length - offset) + " bytes of incomplete rows at the end of " + path);
+            }
+            return offset;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Appends a row to the journal. Safe to call from multiple threads.
+     * @param row
+     * @throws IOException
+     */
+    public void append(SparseMatrixRow row) throws IOException {
+        int numCols = row.getNumCols();
+        ByteBuffer buffer = ByteBuffer.allocate(8 * numCols);
+        for (int i = 0; i < numCols; i++) {
+            buffer.putInt(row.getColIndex(i));
+        }
+        for (int i = 0; i < numCols; i++) {
+            buffer.putFloat(row.getColValue(i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array());
+        long checksum = crc.getValue() ^ row.getRowIndex();
+
+        synchronized (this) {
+            if (out == null) {
+                throw new IllegalStateException("journal " + path + " is not open");
+            }
+            out.writeInt(row.getRowIndex());
+            out.writeInt(numCols);
+            out.write(buffer.array());
+            out.writeLong(checksum);
+            numRows++;
+            if (++numUnflushed >= checkpointInterval) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Forces all appended rows to disk.
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (out != null) {
+            out.flush();
+            stream.getChannel().force(false);
+            numUnflushed = 0;
+        }
+    }
+
+    /**
+     * @return The number of rows in the journal, including replayed rows.
+     */
+    public synchronized int getNumRows() {
+        return numRows;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            checkpoint();
+            out.close();
+            out = null;
+            stream = null;
+        }
+    }
+
+    /**
+     * Closes and removes the journal. Called once the build it protects has finished.
+     * @throws IOException
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        FileUtils.deleteQuietly(path);
+    }
+}
@@ -0,0 +1,103 @@
+package org.wikibrain.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the recall and latency of approximate IvfIndex searches against an exact scan.
+ *
+ * usage: java BenchIvfIndex {num_vectors} {dimensions} {num_queries}
+ */
+public class BenchIvfIndex {
+    public static final int K = 10;
+
+    public static void main(String args[]) throws IOException {
+        int numVectors = args.length > 0 ? Integer.valueOf(args[0]) : 200000;
+        int dim = args.length > 1 ? Integer.valueOf(args[1]) : 200;
+        int numQueries = args.length > 2 ? Integer.valueOf(args[2]) : 200;
+
+        Random random = new Random();
+        float vectors[][] = createClusteredVectors(random, numVectors, dim, 1000);
+        int ids[] = new int[numVectors];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        File tmp = File.createTempFile("ivf", null);
+        tmp.deleteOnExit();
+        long start = System.currentTimeMillis();
+        IvfIndex.build(tmp, ids, vectors, Runtime.getRuntime().availableProcessors());
+        System.out.println("built index in " + (System.currentTimeMillis() - start) + " millis");
+
+        IvfIndex index = new IvfIndex(tmp);
+        float queries[][] = new float[numQueries][];
+        int exact[][] = new int[numQueries][];
+        start = System.nanoTime();
+        for (int q = 0; q < numQueries; q++) {
+            queries[q] = vectors[random.nextInt(numVectors)];
+            exact[q] = index.searchExact(queries[q], K, null).ids;
+        }
+        double exactMillis = (System.nanoTime() - start) / 1000000.0 / numQueries;
+        System.out.println(String.format("exact scan: %.3f millis per query", exactMillis));
+
+        for (int probes : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+            int hits = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < numQueries; q++) {
+                int found[] = index.search(queries[q], K, probes, null).ids;
+                for (int id : found) {
+                    for (int e : exact[q]) {
+                        if (id == e) hits++;
+                    }
+                }
+            }
+            double millis = (System.nanoTime() - start) / 1000000.0 / numQueries;
+            System.out.println(String.format("probes=%d: recall@%d=%.3f, %.3f millis per query (%.1fx faster)",
+                    probes, K, hits / (double) (K * numQueries), millis, exactMillis / millis));
+        }
+        index.close();
+    }
+
+    /**
+     * Creates vectors scattered around random cluster centers.
+     */
+    public static float[][] createClusteredVectors(Random random, int n, int dim, int numClusters) {
+        float centers[][] = new float[numClusters][dim];
+        for (float c[] : centers) {
+            for (int j = 0; j < dim; j++) {
+                c[j] = (float) random.nextGaussian();
+            }
+        }
+        float vectors[][] = new float[n][dim];
+        for (int i = 0; i < n; i++) {
+            float c[] = centers[random.nextInt(numClusters)];
+            for (int j = 0; j < dim; j++) {
+                vectors[i][j] = c[j] + 0.5f * (float) random.nextGaussian();
+            }
+        }
+        return vectors;
+    }
+
+    /**
+     * Returns the ids of the k vectors most similar to the query, most similar first.
+     */
+    public static int[] bruteForce(int ids[], float vectors[][], float query[], int k) {
+        final float scores[] = new float[vectors.length];
+        Integer order[] = new Integer[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            scores[i] = DenseVectors.cosine(query, vectors[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Float.compare(scores[b], scores[a]);
+            }
+        });
+        int result[] = new int[k];
+        for (int i = 0; i < k; i++) {
+            result[i] = ids[order[i]];
+        }
+        return result;
+    }
+}
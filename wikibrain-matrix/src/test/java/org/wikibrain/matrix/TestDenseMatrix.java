@@ -9,6 +9,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestDenseMatrix {
@@ -64,6 +65,54 @@ public class TestDenseMatrix {
         }
     }
 
+    @Test
+    public void testCursor() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        DenseMatrixWriter.write(tmp, srcRows.iterator());
+        DenseMatrix m = new DenseMatrix(tmp);
+        RowCursor cursor = m.newCursor();
+        int ids[] = new int[NUM_COLS];
+        float vals[] = new float[NUM_COLS];
+        for (DenseMatrixRow srcRow : srcRows) {
+            assertTrue(cursor.moveTo(srcRow.getRowIndex()));
+            assertEquals(srcRow.getRowIndex(), cursor.getRowIndex());
+            assertEquals(srcRow.getNumCols(), cursor.getColIds(ids));
+            assertEquals(srcRow.getNumCols(), cursor.getColValues(vals));
+            for (int i = 0; i < srcRow.getNumCols(); i++) {
+                assertEquals(srcRow.getColIndex(i), ids[i]);
+                assertEquals(srcRow.getColValue(i), vals[i], 0.01);
+            }
+        }
+        assertFalse(cursor.moveTo(-1));
+    }
+
+    @Test
+    public void testCosimilarity() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        DenseMatrixWriter.write(tmp, srcRows.iterator());
+        DenseMatrix m = new DenseMatrix(tmp);
+        int rowIds[] = new int[50];
+        int colIds[] = new int[70];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = srcRows.get(i).getRowIndex();
+        }
+        for (int i = 0; i < colIds.length; i++) {
+            colIds[i] = srcRows.get(srcRows.size() - 1 - i).getRowIndex();
+        }
+        colIds[3] = -1;     // missing row
+        float cosim[][] = m.cosimilarity(rowIds, colIds);
+        for (int i = 0; i < rowIds.length; i++) {
+            float v1[] = m.getRow(rowIds[i]).getValues();
+            for (int j = 0; j < colIds.length; j++) {
+                if (colIds[j] < 0) {
+                    assertEquals(0.0, cosim[i][j], 0.0);
+                } else {
+                    float v2[] = m.getRow(colIds[j]).getValues();
+                    assertEquals(DenseVectors.cosine(v1, v2), cosim[i][j], 0.0001);
+                }
+            }
+        }
+    }
 
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         int j = 0;
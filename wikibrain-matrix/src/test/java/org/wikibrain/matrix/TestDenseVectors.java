@@ -0,0 +1,67 @@
+package org.wikibrain.matrix;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestDenseVectors {
+
+    @Test
+    public void testDot() {
+        Random random = new Random();
+        for (int n : new int[] { 0, 1, 3, 4, 7, 100, 301 }) {
+            float a[] = randomVector(random, n);
+            float b[] = randomVector(random, n);
+            double expected = 0.0;
+            for (int i = 0; i < n; i++) {
+                expected += a[i] * b[i];
+            }
+            assertEquals(expected, DenseVectors.dot(a, b), 0.0001);
+            assertEquals(Math.sqrt(dot(a, a)), DenseVectors.norm(a), 0.0001);
+        }
+    }
+
+    @Test
+    public void testCosimilarity() {
+        Random random = new Random();
+        int dim = 37;
+        int numRows = 45;
+        int numCols = 70;
+        float rows[] = randomVector(random, numRows * dim);
+        float cols[] = randomVector(random, numCols * dim);
+        float cosim[][] = DenseVectors.cosimilarity(rows, numRows, cols, numCols, dim);
+        for (int i = 0; i < numRows; i++) {
+            for (int j = 0; j < numCols; j++) {
+                float r[] = new float[dim];
+                float c[] = new float[dim];
+                System.arraycopy(rows, i * dim, r, 0, dim);
+                System.arraycopy(cols, j * dim, c, 0, dim);
+                double expected = dot(r, c) / Math.sqrt(dot(r, r) * dot(c, c));
+                assertEquals(expected, cosim[i][j], 0.0001);
+            }
+        }
+
+        DenseVectors.normalize(rows, numRows, dim);
+        for (int i = 0; i < numRows; i++) {
+            assertEquals(1.0, DenseVectors.norm(rows, i * dim, dim), 0.0001);
+        }
+    }
+
+    private static double dot(float a[], float b[]) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static float[] randomVector(Random random, int n) {
+        float v[] = new float[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = random.nextFloat() * 2 - 1;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,83 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestIvfIndex {
+    private static final int NUM_VECTORS = 5000;
+    private static final int DIM = 20;
+
+    @Test
+    public void testExactSearch() throws IOException {
+        Random random = new Random(1);
+        float vectors[][] = BenchIvfIndex.createClusteredVectors(random, NUM_VECTORS, DIM, 50);
+        int ids[] = new int[NUM_VECTORS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i * 3 + 7;
+        }
+        File tmp = File.createTempFile("ivf", null);
+        IvfIndex.build(tmp, ids, vectors, 2);
+        IvfIndex index = new IvfIndex(tmp);
+        assertEquals(NUM_VECTORS, index.getNumVectors());
+        assertEquals(DIM, index.getDimensions());
+
+        for (int q = 0; q < 20; q++) {
+            float query[] = vectors[random.nextInt(NUM_VECTORS)];
+            IvfIndex.Neighbors exact = index.searchExact(query, 10, null);
+            int best[] = BenchIvfIndex.bruteForce(ids, vectors, query, 10);
+            assertEquals(10, exact.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(best[i], exact.ids[i]);
+                if (i > 0) {
+                    assertTrue(exact.scores[i - 1] >= exact.scores[i]);
+                }
+            }
+            assertEquals(1.0, exact.scores[0], 0.0001);
+        }
+        index.close();
+    }
+
+    @Test
+    public void testApproximateSearch() throws IOException {
+        Random random = new Random(2);
+        float vectors[][] = BenchIvfIndex.createClusteredVectors(random, NUM_VECTORS, DIM, 50);
+        int ids[] = new int[NUM_VECTORS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        File tmp = File.createTempFile("ivf", null);
+        IvfIndex.build(tmp, ids, vectors, 2);
+        IvfIndex index = new IvfIndex(tmp);
+
+        int hits = 0;
+        int total = 0;
+        TIntSet validIds = new TIntHashSet();
+        for (int i = 0; i < NUM_VECTORS; i += 2) {
+            validIds.add(i);
+        }
+        for (int q = 0; q < 50; q++) {
+            float query[] = vectors[random.nextInt(NUM_VECTORS)];
+            int best[] = BenchIvfIndex.bruteForce(ids, vectors, query, 10);
+            IvfIndex.Neighbors approx = index.search(query, 10, IvfIndex.DEFAULT_NUM_PROBES, null);
+            for (int id : approx.ids) {
+                for (int b : best) {
+                    if (b == id) hits++;
+                }
+            }
+            total += best.length;
+
+            for (int id : index.search(query, 10, IvfIndex.DEFAULT_NUM_PROBES, validIds).ids) {
+                assertTrue(validIds.contains(id));
+            }
+        }
+        assertTrue("recall was " + hits / (double) total, hits >= 0.9 * total);
+        index.close();
+    }
+}
@@ -3,8 +3,11 @@ package org.wikibrain.matrix;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -36,6 +39,45 @@ public class TestSparseMatrix {
         Matrix m2 = new SparseMatrix(tmp);
     }
 
+    @Test
+    public void testParallelWrite() throws Exception {
+        File tmp = File.createTempFile("matrix", null);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf());
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = offset; i < srcRows.size(); i += 4) {
+                            writer.writeRow(srcRows.get(i));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        writer.finish();
+        verifyIsSourceMatrix(new SparseMatrix(tmp));
+    }
+
+    @Test
+    public void testHeaderLargerThanReserved() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf());
+        writer.setExpectedNumRows(10);
+        for (SparseMatrixRow row : srcRows) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        verifyIsSourceMatrix(new SparseMatrix(tmp));
+    }
+
     @Test
     public void testExpandPageForHeader() throws IOException {
         List<SparseMatrixRow> shortRows = TestUtils.createSparseTestMatrixRows(1000, 100, false);
@@ -62,6 +104,51 @@ public class TestSparseMatrix {
         }
     }
 
+    @Test
+    public void testTransposeExternally() throws IOException {
+        for (int numThreads : new int[] { 1, 4 }) {
+            File tmp1 = File.createTempFile("matrix", null);
+            File tmp2 = File.createTempFile("matrix", null);
+            File tmp3 = File.createTempFile("matrix", null);
+            SparseMatrixWriter.write(tmp1, srcRows.iterator());
+            SparseMatrix m = new SparseMatrix(tmp1);
+            // a one MB buffer forces many runs to be spilled and merged
+            new SparseMatrixTransposer(m, tmp2, 1).transposeExternally(numThreads);
+            SparseMatrix m2 = new SparseMatrix(tmp2);
+            new SparseMatrixTransposer(m2, tmp3, 1).transposeExternally(numThreads);
+            Matrix m3 = new SparseMatrix(tmp3);
+            verifyIsSourceMatrixUnordered(m3, .001);
+            assertEquals(srcRows.size(), m3.getNumRows());
+        }
+    }
+
+    @Test
+    public void testTransposeExternallyManyRuns() throws IOException {
+        File tmp1 = File.createTempFile("matrix", null);
+        File tmp2 = File.createTempFile("matrix", null);
+        File tmp3 = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp1, srcRows.iterator());
+        // the smallest buffer spills far more than MAX_MERGE_FAN_IN runs
+        new SparseMatrixTransposer(new SparseMatrix(tmp1), tmp2, 0).transposeExternally(2);
+        SparseMatrix m2 = new SparseMatrix(tmp2);
+        new SparseMatrixTransposer(m2, tmp3, 0).transposeExternally(2);
+        Matrix m3 = new SparseMatrix(tmp3);
+        verifyIsSourceMatrixUnordered(m3, .001);
+        assertEquals(srcRows.size(), m3.getNumRows());
+    }
+
+    @Test
+    public void testRowCopiesIds() {
+        int ids[] = { 5, 1, 3 };
+        float vals[] = { 0.5f, 0.1f, 0.3f };
+        SparseMatrixRow row = new SparseMatrixRow(new ValueConf(), 7, ids, vals);
+        assertArrayEquals(new int[] { 5, 1, 3 }, ids);
+        ids[0] = 100;
+        assertEquals(1, row.getColIndex(0));
+        assertEquals(3, row.getColIndex(1));
+        assertEquals(5, row.getColIndex(2));
+        assertEquals(0.5f, row.getColValue(2), 0.01);
+    }
 
     @Test
     public void testRows() throws IOException {
@@ -73,6 +160,120 @@ public class TestSparseMatrix {
         }
     }
 
+    @Test
+    public void testStorageModes() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        for (MemoryMappedMatrix.StorageMode mode : MemoryMappedMatrix.StorageMode.values()) {
+            SparseMatrix m = new SparseMatrix(tmp, mode);
+            m.warmup(2);
+            verifyIsSourceMatrix(m);
+            assertNull(m.getRow(-1));
+            m.close();
+        }
+    }
+    @Test
+    public void testCursor() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        SparseMatrix m = new SparseMatrix(tmp);
+        RowCursor cursor = m.newCursor();
+        int ids[] = new int[MAX_COLS];
+        float vals[] = new float[MAX_COLS];
+        for (SparseMatrixRow srcRow : srcRows) {
+            assertTrue(cursor.moveTo(srcRow.getRowIndex()));
+            assertEquals(srcRow.getRowIndex(), cursor.getRowIndex());
+            assertEquals(srcRow.getNumCols(), cursor.getNumCols());
+            assertEquals(srcRow.getNumCols(), cursor.getColIds(ids));
+            assertEquals(srcRow.getNumCols(), cursor.getColValues(vals));
+            for (int i = 0; i < srcRow.getNumCols(); i++) {
+                assertEquals(srcRow.getColIndex(i), cursor.getColIndex(i));
+                assertEquals(srcRow.getColIndex(i), ids[i]);
+                assertEquals(srcRow.getColValue(i), cursor.getColValue(i), 0.01);
+                assertEquals(srcRow.getColValue(i), vals[i], 0.01);
+            }
+        }
+        assertFalse(cursor.moveTo(-1));
+        assertFalse(cursor.isValid());
+    }
+
+    @Test
+    public void testCodecs() throws IOException {
+        for (RowCodec.IdEncoding ide : RowCodec.IdEncoding.values()) {
+            for (RowCodec.ValueEncoding ve : RowCodec.ValueEncoding.values()) {
+                RowCodec codec = new RowCodec(ide, ve);
+                File tmp = File.createTempFile("matrix", null);
+                SparseMatrixWriter.write(tmp, srcRows.iterator(), new ValueConf(), codec);
+                SparseMatrix m = new SparseMatrix(tmp);
+                assertEquals(codec.toString(), m.getCodec().toString());
+                RowCursor cursor = m.newCursor();
+                for (SparseMatrixRow srcRow : srcRows) {
+                    MatrixRow destRow = m.getRow(srcRow.getRowIndex());
+                    assertTrue(cursor.moveTo(srcRow.getRowIndex()));
+                    assertEquals(srcRow.getNumCols(), destRow.getNumCols());
+                    assertEquals(srcRow.getNumCols(), cursor.getNumCols());
+                    for (int i = 0; i < srcRow.getNumCols(); i++) {
+                        assertEquals(srcRow.getColIndex(i), destRow.getColIndex(i));
+                        assertEquals(srcRow.getColIndex(i), cursor.getColIndex(i));
+                        float expected = (ve == RowCodec.ValueEncoding.IMPLICIT) ? 1.0f : srcRow.getColValue(i);
+                        double delta = (ve == RowCodec.ValueEncoding.FLOAT32) ? 0.0 : 0.01;
+                        assertEquals(expected, destRow.getColValue(i), delta);
+                        assertEquals(expected, cursor.getColValue(i), delta);
+                    }
+                }
+                m.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCodecTranspose() throws IOException {
+        RowCodec codec = RowCodec.parse("DELTA_VARINT/FLOAT32");
+        File tmp1 = File.createTempFile("matrix", null);
+        File tmp2 = File.createTempFile("matrix", null);
+        File tmp3 = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp1, srcRows.iterator(), new ValueConf(), codec);
+        new SparseMatrixTransposer(new SparseMatrix(tmp1), tmp2, 1).transposeExternally(2);
+        SparseMatrix m2 = new SparseMatrix(tmp2);
+        assertEquals(codec.toString(), m2.getCodec().toString());
+        new SparseMatrixTransposer(m2, tmp3, 1).transpose();
+        verifyIsSourceMatrixUnordered(new SparseMatrix(tmp3), 0.0);
+    }
+
+    @Test
+    public void testLegacyFormat() throws IOException {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        DataInputStream in = new DataInputStream(new FileInputStream(tmp));
+        try {
+            assertEquals(SparseMatrix.FILE_HEADER, in.readInt());
+        } finally {
+            in.close();
+        }
+        SparseMatrix m = new SparseMatrix(tmp);
+        assertTrue(m.getCodec().isLegacy());
+        verifyIsSourceMatrix(m);
+
+        File compact = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(compact, srcRows.iterator(), new ValueConf(), RowCodec.parse("DELTA_VARINT/IMPLICIT"));
+        assertTrue(compact.length() < tmp.length() / 2);
+    }
+
+    @Test
+    public void testNegativeIds() throws IOException {
+        int ids[] = { Integer.MIN_VALUE, -5, 0, 7, 300, Integer.MAX_VALUE };
+        float vals[] = { -1.0f, 0.5f, 0.0f, 1.0f, 0.25f, -0.3f };
+        SparseMatrixRow row = new SparseMatrixRow(new ValueConf(), -3, ids, vals);
+        RowCodec codec = RowCodec.parse("DELTA_VARINT/QUANTIZED8");
+        ByteBuffer buffer = ByteBuffer.allocate(codec.getMaxEncodedLength(ids.length));
+        codec.encode(row, new ValueConf(), buffer);
+        SparseMatrixRow decoded = SparseMatrixRow.decode(new ValueConf(), codec, buffer, 0);
+        assertEquals(-3, decoded.getRowIndex());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], decoded.getColIndex(i));
+            assertEquals(vals[i], decoded.getColValue(i), 0.01);
+        }
+    }
 
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         assertEquals(srcRows.size(), m.getNumRows());
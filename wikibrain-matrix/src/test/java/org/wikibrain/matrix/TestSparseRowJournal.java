@@ -0,0 +1,95 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestSparseRowJournal {
+
+    @Test
+    public void testResume() throws IOException {
+        List<SparseMatrixRow> rows = TestUtils.createSparseTestMatrixRows(200, 50, false);
+        File path = File.createTempFile("journal", null);
+        path.delete();
+        path.deleteOnExit();
+
+        // First build journals half of the rows, then "dies"
+        SparseRowJournal journal = new SparseRowJournal(path, new ValueConf(), 42, 10);
+        assertTrue(journal.open(null).isEmpty());
+        for (int i = 0; i < 100; i++) {
+            journal.append(rows.get(i));
+        }
+        journal.close();
+
+        // Chop the last record in half
+        long length = path.length();
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        raf.setLength(length - 4);
+        raf.close();
+
+        // Second build replays 99 rows and computes the rest
+        File matrixPath = File.createTempFile("matrix", null);
+        matrixPath.deleteOnExit();
+        SparseMatrixWriter writer = new SparseMatrixWriter(matrixPath, new ValueConf());
+        journal = new SparseRowJournal(path, new ValueConf(), 42, 10);
+        TIntSet replayed = journal.open(writer);
+        assertEquals(99, replayed.size());
+        assertFalse(replayed.contains(rows.get(99).getRowIndex()));
+        for (SparseMatrixRow row : rows) {
+            if (!replayed.contains(row.getRowIndex())) {
+                writer.writeRow(row);
+                journal.append(row);
+            }
+        }
+        assertEquals(200, journal.getNumRows());
+        writer.finish();
+        journal.delete();
+        assertFalse(path.exists());
+
+        SparseMatrix matrix = new SparseMatrix(matrixPath);
+        assertEquals(200, matrix.getNumRows());
+        for (SparseMatrixRow row : rows) {
+            SparseMatrixRow row2 = matrix.getRow(row.getRowIndex());
+            assertEquals(row.getNumCols(), row2.getNumCols());
+            for (int i = 0; i < row.getNumCols(); i++) {
+                assertEquals(row.getColIndex(i), row2.getColIndex(i));
+                assertEquals(row.getColValue(i), row2.getColValue(i), 0.001);
+            }
+        }
+        matrix.close();
+    }
+
+    @Test
+    public void testStaleJournal() throws IOException {
+        List<SparseMatrixRow> rows = TestUtils.createSparseTestMatrixRows(20, 10, false);
+        File path = File.createTempFile("journal", null);
+        path.delete();
+        path.deleteOnExit();
+
+        SparseRowJournal journal = new SparseRowJournal(path, new ValueConf(), 1);
+        journal.open(null);
+        for (SparseMatrixRow row : rows) {
+            journal.append(row);
+        }
+        journal.close();
+
+        // same parameters
+        journal = new SparseRowJournal(path, new ValueConf(), 1);
+        assertEquals(20, journal.open(null).size());
+        journal.close();
+
+        // different tag
+        journal = new SparseRowJournal(path, new ValueConf(), 2);
+        assertEquals(0, journal.open(null).size());
+        journal.close();
+        journal = new SparseRowJournal(path, new ValueConf(), 1);
+        assertEquals(0, journal.open(null).size());
+        journal.close();
+    }
+}
@@ -1,11 +1,22 @@
 package org.wikibrain.parser;
 
-import org.apache.commons.compress.archivers.ArchiveException;
+import gnu.trove.list.array.TLongArrayList;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.wikibrain.utils.BlockingQueueIterator;
 import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
-import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,15 +24,30 @@ import java.util.logging.Logger;
  * Iterates over a file containing an XML dump of wikipedia.
  * Each string is the contents of a single article.
  * Iterators are independent, so multiple iterators can simultaneously open a dump file.
+ *
+ * If the file is a multistream dump and the index Wikimedia publishes alongside it exists,
+ * the independent bzip2 streams are decompressed in parallel by several producer threads.
+ * Articles are then returned in no particular order.
  */
 public class DumpSplitter implements Iterable<String> {
     public static final String ARTICLE_BEGIN = "<page>";
     public static final String ARTICLE_END = "</page>";
     private static final int MAX_ARTICLE_LENGTH = 10000000;     // Maximum length of article
 
+    private static final String MULTISTREAM_SUFFIX = "-multistream.xml.bz2";
+    private static final String MULTISTREAM_INDEX_SUFFIX = "-multistream-index.txt.bz2";
+
+    // Compressed bytes decompressed by a single producer task
+    private static final long DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+    // Maximum number of articles waiting to be consumed
+    private static final int MAX_QUEUE = 1000;
 
     private static final Logger LOG = Logger.getLogger(DumpSplitter.class.getName());
+    static final Charset UTF8 = Charset.forName("UTF-8");
     private File path;
+    private int numProducers = Math.max(1, WpThreadUtils.getMaxThreads() / 2);
+    private long segmentBytes = DEFAULT_SEGMENT_BYTES;
 
     /**
      * Creates an iterator over the given file.
@@ -36,114 +62,199 @@ public class DumpSplitter implements Iterable<String> {
         return path;
     }
 
+    /**
+     * Sets the number of threads that decompress a multistream dump.
+     * @param numProducers
+     */
+    public void setNumProducers(int numProducers) {
+        this.numProducers = numProducers;
+    }
+
+    /**
+     * Sets the approximate number of compressed bytes in each segment of a
+     * multistream dump that is decompressed by a single task.
+     */
+    void setSegmentBytes(long segmentBytes) {
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * @return The index of a multistream dump, or null if the file is not a
+     * multistream dump or its index does not exist.
+     */
+    public File getMultistreamIndex() {
+        String name = path.getName();
+        if (!name.endsWith(MULTISTREAM_SUFFIX)) {
+            return null;
+        }
+        File index = new File(path.getParentFile(),
+                name.substring(0, name.length() - MULTISTREAM_SUFFIX.length()) + MULTISTREAM_INDEX_SUFFIX);
+        return index.isFile() ? index : null;
+    }
+
     @Override
     public Iterator<String> iterator() {
+        return new ArticleIterator(byteIterator());
+    }
+
+    /**
+     * Iterates over the UTF-8 encoded xml of each article, without decoding it.
+     * This is useful for parsers that read bytes, such as StaxPageParser.
+     * @return
+     */
+    public Iterator<byte[]> byteIterator() {
         try {
-            return new ArticleIterator(path);
+            File index = getMultistreamIndex();
+            if (index == null || numProducers <= 1) {
+                return new ArticleBytesIterator(path);
+            } else {
+                return new MultistreamIterator(index);
+            }
         } catch (IOException e) {
             LOG.log(Level.SEVERE, "article iterator construction failed", e);
             throw new RuntimeException(e);
-        } catch (ArchiveException e) {
-            LOG.log(Level.SEVERE, "article iterator construction failed", e);
-            throw new RuntimeException(e);
-        } catch (XMLStreamException e) {
-            LOG.log(Level.SEVERE, "article iterator construction failed", e);
-            throw new RuntimeException(e);
         }
     }
 
-    public class ArticleIterator implements Iterator<String> {
-
-        private BufferedReader reader;
-        private String buffer = null;
-        private int lineNum = 0;
-        private boolean closed = false;
-
-        public ArticleIterator(File path) throws IOException, ArchiveException, XMLStreamException {
-            reader = WpIOUtils.openBufferedReader(path);
-        }
-
-        private void fillBuffer() {
-            if (closed || buffer != null) {
-                return;
-            }
-            try {
-                String articleOpen = readToArticleBegin();
-                if (articleOpen == null) {
-                    return;
-                }
-                buffer = readToArticleClose(articleOpen);
-            } catch (IOException e) {
-                logParseError("parser failed", e);
-                e.printStackTrace();
-            }
-        }
-
-        /**
-         * Reads until it finds the beginning of an article.
-         * @return the line with the beginning tag.
-         * @throws IOException
-         */
-        private String readToArticleBegin() throws IOException {
+    /**
+     * Reads the offsets of the bzip2 streams in a multistream dump from its index and groups
+     * consecutive streams into segments of about segmentBytes compressed bytes.
+     * Index lines have the form "offset:pageId:title".
+     *
+     * @return The offsets at which segments start, followed by the length of the file.
+     */
+    private TLongArrayList readSegmentOffsets(File index) throws IOException {
+        TLongArrayList offsets = new TLongArrayList();
+        offsets.add(0);     // the first stream holds the siteinfo, and is not in the index
+        BufferedReader reader = WpIOUtils.openBufferedReader(index);
+        try {
+            long last = 0;
             while (true) {
-                String line = readLine();
+                String line = reader.readLine();
                 if (line == null) {
-                    return null;
+                    break;
+                }
+                int i = line.indexOf(':');
+                if (i <= 0) {
+                    continue;
                 }
-                if (line.trim().equals(ARTICLE_BEGIN)) {
-                    return line + "\n";
+                long offset = Long.valueOf(line.substring(0, i));
+                if (offset >= last + segmentBytes) {
+                    offsets.add(offset);
+                    last = offset;
                 }
             }
+        } finally {
+            reader.close();
         }
+        offsets.add(path.length());
+        return offsets;
+    }
 
-        /**
-         * Reads until the end of the article.
-         * If the article is too long, it truncates the article and adds a closing tag.
-         * @param articleOpen First line of the article.
-         * @return
-         */
-        private String readToArticleClose(String articleOpen) throws IOException {
-            StringBuffer buffer = new StringBuffer(articleOpen);
-            while (true) {
-                String line = readLine();
-                if (line == null) {
-                    logParseError("reached eof in middle of article");
-                    buffer.append(ARTICLE_END + "\n");
-                    break;
+    /**
+     * Decompresses segments of a multistream dump in parallel and returns the articles
+     * in the order they are found.
+     */
+    public class MultistreamIterator extends BlockingQueueIterator<byte[]> {
+        public MultistreamIterator(File index) throws IOException {
+            this(index, new ArrayBlockingQueue<byte[]>(MAX_QUEUE), new AtomicBoolean(false));
+        }
+
+        private MultistreamIterator(File index, final BlockingQueue<byte[]> queue, final AtomicBoolean finished) throws IOException {
+            super(queue, finished);
+
+            TLongArrayList offsets = readSegmentOffsets(index);
+            LOG.info("decompressing " + (offsets.size() - 1) + " segments of " + path +
+                    " with " + numProducers + " threads");
+
+            // Daemon threads, so an abandoned iterator does not keep the jvm alive
+            ExecutorService exec = Executors.newFixedThreadPool(numProducers, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "dump-splitter-" + path.getName());
+                    t.setDaemon(true);
+                    return t;
                 }
-                if (buffer.length() + line.length() > MAX_ARTICLE_LENGTH) {
-                    logParseError("truncating overly long article");
-                    buffer.append(ARTICLE_END + "\n");
-                    break;
+            });
+            final AtomicInteger segmentsLeft = new AtomicInteger(offsets.size() - 1);
+            for (int i = 0; i + 1 < offsets.size(); i++) {
+                final long start = offsets.get(i);
+                final long end = offsets.get(i + 1);
+                exec.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            splitSegment(start, end, queue);
+                        } catch (Exception e) {
+                            LOG.log(Level.SEVERE, "parsing " + path + " failed in segment starting at byte " + start + ":", e);
+                        } finally {
+                            if (segmentsLeft.decrementAndGet() == 0) {
+                                finished.set(true);
+                            }
+                        }
+                    }
+                });
+            }
+            if (segmentsLeft.get() == 0) {
+                finished.set(true);
+            }
+            exec.shutdown();
+        }
+
+        private void splitSegment(long start, long end, BlockingQueue<byte[]> queue) throws IOException, InterruptedException {
+            InputStream input = new FileInputStream(path);
+            try {
+                long skipped = 0;
+                while (skipped < start) {
+                    long n = input.skip(start - skipped);
+                    if (n <= 0) {
+                        throw new EOFException();
+                    }
+                    skipped += n;
                 }
-                buffer.append(line + "\n");
-                if (line.trim().equals(ARTICLE_END)) {
-                    break;
+                InputStream segment = new BZip2CompressorInputStream(
+                        new BufferedInputStream(new BoundedInputStream(input, end - start)), true);
+                PageScanner scanner = new PageScanner(segment, MAX_ARTICLE_LENGTH, path.toString());
+                while (true) {
+                    byte[] article = scanner.nextBytes();
+                    if (article == null) {
+                        break;
+                    }
+                    queue.put(article);
                 }
+            } finally {
+                input.close();
             }
-            return buffer.toString();
         }
+    }
 
-        private void logParseError(String message) {
-            LOG.log(Level.SEVERE, "parsing " + path + "  failed in line " + message);
-        }
+    /**
+     * Splits a single compressed or uncompressed stream.
+     */
+    public class ArticleBytesIterator implements Iterator<byte[]> {
+
+        private final PageScanner scanner;
+        private byte[] buffer = null;
+        private boolean closed = false;
 
-        private void logParseError(String message, Exception e) {
-            LOG.log(Level.SEVERE, "parsing " + path + "  failed in line " + message + ":", e);
+        public ArticleBytesIterator(File path) throws IOException {
+            scanner = new PageScanner(WpIOUtils.openInputStream(path), MAX_ARTICLE_LENGTH, path.toString());
         }
 
-        private String readLine() throws IOException {
-            if (closed) {
-                return null;
+        private void fillBuffer() {
+            if (closed || buffer != null) {
+                return;
             }
-            String line = reader.readLine();
-            if (line == null) {
-                reader.close();
+            try {
+                buffer = scanner.nextBytes();
+                if (buffer == null) {
+                    scanner.close();
+                    closed = true;
+                }
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "parsing " + path + " failed:", e);
                 closed = true;
-                return null;
             }
-            lineNum++;
-            return line;
         }
 
         @Override
@@ -152,9 +263,9 @@ public class DumpSplitter implements Iterable<String> {
             return (buffer != null);
         }
 
-        public String next() {
+        public byte[] next() {
             fillBuffer();
-            String tmp = buffer;
+            byte[] tmp = buffer;
             buffer = null;
             return tmp;
         }
@@ -164,4 +275,30 @@ public class DumpSplitter implements Iterable<String> {
             throw new UnsupportedOperationException();
         }
     }
+
+    /**
+     * Decodes the articles returned by another iterator.
+     */
+    public static class ArticleIterator implements Iterator<String> {
+        private final Iterator<byte[]> impl;
+
+        public ArticleIterator(Iterator<byte[]> impl) {
+            this.impl = impl;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return impl.hasNext();
+        }
+
+        public String next() {
+            byte[] article = impl.next();
+            return (article == null) ? null : new String(article, UTF8);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,149 @@
+package org.wikibrain.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits a stream of dump xml into pages by scanning for the page tags on raw bytes.
+ * Pages are returned as bytes, so nothing is decoded until a page is parsed.
+ *
+ * Page tags cannot appear escaped inside a page's text, so searching for the bytes
+ * of the tags is safe. Each page includes the indentation of its opening tag
+ * and the newline that follows its closing tag.
+ */
+class PageScanner {
+    private static final Logger LOG = Logger.getLogger(PageScanner.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] BEGIN = DumpSplitter.ARTICLE_BEGIN.getBytes(UTF8);
+    private static final byte[] END = DumpSplitter.ARTICLE_END.getBytes(UTF8);
+    private static final byte[] TRUNCATED_END = ("\n" + DumpSplitter.ARTICLE_END + "\n").getBytes(UTF8);
+
+    // Bytes kept from the tail of the buffer while looking for the next page
+    private static final int KEEP = 64;
+
+    private final InputStream input;
+    private final int maxPageBytes;
+    private final String name;
+
+    private byte[] buffer = new byte[1024 * 1024];
+    private int pos = 0;        // first byte that has not yet been consumed
+    private int limit = 0;      // end of the valid bytes in the buffer
+    private boolean eof = false;
+
+    /**
+     * @param input The (decompressed) xml.
+     * @param maxPageBytes Pages longer than this are truncated.
+     * @param name Name of the input used in log messages.
+     */
+    PageScanner(InputStream input, int maxPageBytes, String name) {
+        this.input = input;
+        this.maxPageBytes = maxPageBytes;
+        this.name = name;
+    }
+
+    /**
+     * @return The UTF-8 encoded xml of the next page, or null if there are no more pages.
+     * @throws IOException
+     */
+    byte[] nextBytes() throws IOException {
+        int begin;
+        while ((begin = indexOf(BEGIN, pos)) < 0) {
+            if (eof) {
+                pos = limit;
+                return null;
+            }
+            pos = Math.max(pos, limit - KEEP);
+            read();
+        }
+
+        // include the indentation of the opening tag
+        while (begin > pos && (buffer[begin - 1] == ' ' || buffer[begin - 1] == '\t')) {
+            begin--;
+        }
+        pos = begin;
+
+        // read() may move the page, so offsets are kept relative to its start while reading
+        int end;
+        int from = pos;
+        while ((end = indexOf(END, from)) < 0) {
+            if (limit - pos > maxPageBytes) {
+                LOG.log(Level.SEVERE, "parsing " + name + " failed: truncating overly long article");
+                return truncate(maxPageBytes);
+            }
+            if (eof) {
+                LOG.log(Level.SEVERE, "parsing " + name + " failed: reached eof in middle of article");
+                return truncate(limit - pos);
+            }
+            from = Math.max(pos, limit - END.length + 1) - pos;
+            read();
+            from += pos;
+        }
+        end += END.length;
+        if (end == limit && !eof) {
+            end -= pos;
+            read();
+            end += pos;
+        }
+        if (end < limit && buffer[end] == '\n') {
+            end++;
+        }
+        byte[] page = Arrays.copyOfRange(buffer, pos, end);
+        pos = end;
+        return page;
+    }
+
+    void close() throws IOException {
+        input.close();
+    }
+
+    private byte[] truncate(int length) {
+        byte[] page = Arrays.copyOfRange(buffer, pos, pos + length + TRUNCATED_END.length);
+        System.arraycopy(TRUNCATED_END, 0, page, length, TRUNCATED_END.length);
+        pos = limit;
+        return page;
+    }
+
+    private int indexOf(byte[] pattern, int from) {
+        int last = limit - pattern.length;
+        for (int i = from; i <= last; i++) {
+            if (buffer[i] != pattern[0]) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && buffer[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads more bytes. If the buffer is full, the unconsumed bytes are first moved
+     * to the start of the buffer, which is grown if they fill more than half of it.
+     * This is the only place bytes are moved, and it resets pos to 0.
+     */
+    private void read() throws IOException {
+        if (limit == buffer.length) {
+            int remaining = limit - pos;
+            byte[] dest = (remaining > buffer.length / 2) ? new byte[buffer.length * 2] : buffer;
+            System.arraycopy(buffer, pos, dest, 0, remaining);
+            buffer = dest;
+            limit = remaining;
+            pos = 0;
+        }
+        int n = input.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+}
@@ -1,38 +1,55 @@
 package org.wikibrain.parser.wiki;
 
+import gnu.trove.set.TIntSet;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.DaoFilter;
 import org.wikibrain.core.dao.RawPageDao;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.DumpSplitter;
+import org.wikibrain.parser.WpParseException;
+import org.wikibrain.parser.xml.StaxPageParser;
+import org.wikibrain.utils.BlockingQueueIterator;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpThreadUtils;
 
-import java.util.ArrayList;
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Runs a WikiTextParser over every page in a language.
+ *
+ * Pages are read either from a RawPageDao or, to avoid reading every page body
+ * back out of the database, directly from a dump file. In the latter case the dump
+ * is streamed through three stages joined by bounded queues: splitting the dump
+ * into page xml, parsing the xml into RawPages, and parsing the wikitext.
  */
-public class
-        WikiTextDumpParser {
+public class WikiTextDumpParser {
     public static final Logger LOG = Logger.getLogger(WikiTextDumpParser.class.getName());
 
     // maximum number of raw pages in the parsing buffer
     public static final int MAX_QUEUE = 1000;
 
+    // namespaces of pages parsed from a dump file
+    public static final List<NameSpace> DEFAULT_NAMESPACES = Arrays.asList(NameSpace.ARTICLE, NameSpace.CATEGORY);
+
     private final LanguageInfo language;
     private final RawPageDao rawPageDao;
+    private final File dumpFile;
     private final LanguageSet allowedLanguages;
     private int maxThreads = WpThreadUtils.getMaxThreads();
+    private Collection<NameSpace> namespaces = DEFAULT_NAMESPACES;
+    private TIntSet validIds = null;
 
 
     public WikiTextDumpParser(RawPageDao rawPageDao, LanguageInfo language) {
@@ -43,12 +60,45 @@ public class
         this.language = language;
         this.allowedLanguages = allowedIllLangs;
         this.rawPageDao = rawPageDao;
+        this.dumpFile = null;
+    }
+
+    /**
+     * Creates a parser that reads pages directly from a dump file.
+     * The local pages and redirects for the language must already be loaded,
+     * because the visitors use them to resolve the destinations of links.
+     *
+     * @param dumpFile An articles dump, possibly compressed.
+     * @param language
+     * @param allowedIllLangs
+     */
+    public WikiTextDumpParser(File dumpFile, LanguageInfo language, LanguageSet allowedIllLangs) {
+        this.language = language;
+        this.allowedLanguages = allowedIllLangs;
+        this.rawPageDao = null;
+        this.dumpFile = dumpFile;
     }
 
     public void setMaxThreads(int maxThreads) {
         this.maxThreads = maxThreads;
     }
 
+    /**
+     * Sets the namespaces of pages parsed from a dump file.
+     * Has no effect when pages are read from a RawPageDao.
+     */
+    public void setNamespaces(Collection<NameSpace> namespaces) {
+        this.namespaces = namespaces;
+    }
+
+    /**
+     * Restricts the pages parsed from a dump file to the given local ids.
+     * Has no effect when pages are read from a RawPageDao.
+     */
+    public void setValidIds(TIntSet validIds) {
+        this.validIds = validIds;
+    }
+
     /**
      * Parses the input file completely. First splits the file into individual PageXmls via
      * DumpPageXmlParser, then parses each page via WikiTextParser
@@ -60,6 +110,10 @@ public class
     }
 
     public synchronized void parse(List<ParserVisitor> visitors) throws DaoException {
+        if (dumpFile != null) {
+            parseDump(visitors);
+            return;
+        }
 
         DaoFilter daoFilter = new DaoFilter().setLanguages(language.getLanguage());
         ParallelForEach.iterate(
@@ -71,6 +125,78 @@ public class
         );
     }
 
+    private void parseDump(List<ParserVisitor> visitors) {
+        final BlockingQueue<RawPage> pages = new ArrayBlockingQueue<RawPage>(MAX_QUEUE);
+        final AtomicBoolean xmlFinished = new AtomicBoolean(false);
+
+        // Xml parsing is much cheaper than wikitext parsing, so it gets fewer threads.
+        final int xmlThreads = Math.max(1, maxThreads / 4);
+        Thread xmlStage = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ParallelForEach.iterate(
+                            new DumpSplitter(dumpFile).byteIterator(),
+                            xmlThreads,
+                            MAX_QUEUE,
+                            new XmlProcedure(pages),
+                            Integer.MAX_VALUE
+                    );
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "splitting of " + dumpFile + " failed:", e);
+                } finally {
+                    xmlFinished.set(true);
+                }
+            }
+        }, "wikitext-xml-" + dumpFile.getName());
+        xmlStage.setDaemon(true);
+        xmlStage.start();
+
+        ParallelForEach.iterate(
+                new BlockingQueueIterator<RawPage>(pages, xmlFinished),
+                maxThreads,
+                MAX_QUEUE,
+                new ParserProcedure(visitors),
+                10000
+        );
+    }
+
+    private boolean isInteresting(RawPage rp) {
+        if (rp == null || rp.getNamespace() == null) {
+            return false;
+        } else if (validIds != null && !validIds.contains(rp.getLocalId())) {
+            return false;
+        } else {
+            return namespaces.contains(rp.getNamespace());
+        }
+    }
+
+    class XmlProcedure implements Procedure<byte[]> {
+        private final ThreadLocal<StaxPageParser> parserHolder = new ThreadLocal<StaxPageParser>();
+        private final BlockingQueue<RawPage> pages;
+
+        XmlProcedure(BlockingQueue<RawPage> pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public void call(byte[] xml) throws InterruptedException {
+            StaxPageParser parser = parserHolder.get();
+            if (parser == null) {
+                parser = new StaxPageParser(language);
+                parserHolder.set(parser);
+            }
+            try {
+                RawPage rp = parser.parse(xml);
+                if (isInteresting(rp)) {
+                    pages.put(rp);
+                }
+            } catch (WpParseException e) {
+                LOG.log(Level.WARNING, "parsing of " + dumpFile + " failed:", e);
+            }
+        }
+    }
+
     class ParserProcedure implements Procedure<RawPage> {
         private final ThreadLocal<WikiTextParser> parserHolder = new ThreadLocal<WikiTextParser>();
         private final List<ParserVisitor> visitors;
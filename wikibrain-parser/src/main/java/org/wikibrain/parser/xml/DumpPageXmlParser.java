@@ -13,7 +13,7 @@ import java.util.logging.Logger;
 public class DumpPageXmlParser implements Iterable<RawPage> {
     public static final Logger LOG = Logger.getLogger(DumpSplitter.class.getName());
 
-    private final PageXmlParser parser;
+    private final StaxPageParser parser;
     DumpSplitter impl;
     LanguageInfo language;
 
@@ -24,7 +24,7 @@ public class DumpPageXmlParser implements Iterable<RawPage> {
     public DumpPageXmlParser(File file, LanguageInfo language) {
         this.language = language;
         this.impl = new DumpSplitter(file);
-        this.parser = new PageXmlParser(language);
+        this.parser = new StaxPageParser(language);
     }
 
     @Override
@@ -33,11 +33,11 @@ public class DumpPageXmlParser implements Iterable<RawPage> {
     }
 
     public class IteratorImpl implements Iterator<RawPage> {
-        private final Iterator<String> iterImpl;
+        private final Iterator<byte[]> iterImpl;
         private RawPage buff;
 
         public IteratorImpl() {
-            this.iterImpl = impl.iterator();
+            this.iterImpl = impl.byteIterator();
         }
 
         @Override
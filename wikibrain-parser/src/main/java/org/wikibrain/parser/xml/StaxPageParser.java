@@ -0,0 +1,176 @@
+package org.wikibrain.parser.xml;
+
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.parser.WpParseException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Logger;
+
+/**
+ * Parses the Xml associated with Wikipedia pages using a streaming (StAX) reader.
+ *
+ * Unlike PageXmlParser, pages are read directly from their encoded bytes, so each page
+ * is decoded and tokenized once, and no copy of the page's xml is built as a String.
+ * For the xml in Wikipedia dumps, the results match those of PageXmlParser.
+ *
+ * Instances are not threadsafe, but they are meant to be reused. Keep one per thread.
+ */
+public class StaxPageParser {
+    private static final Logger LOG = Logger.getLogger(StaxPageParser.class.getName());
+
+    // Factories are threadsafe once they are configured
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+        FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    // xmlDumpDateFormat is not static because it isn't threadsafe.
+    private final SimpleDateFormat xmlDumpDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    private final LanguageInfo language;
+
+    public StaxPageParser(LanguageInfo language) {
+        this.language = language;
+    }
+
+    /**
+     * Parses the UTF-8 encoded xml of a single page, as returned by DumpSplitter.byteIterator().
+     * @param xml
+     * @return
+     * @throws WpParseException
+     */
+    public RawPage parse(byte[] xml) throws WpParseException {
+        try {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml), "UTF-8");
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return parse(reader);
+                    }
+                }
+                throw new WpParseException("no page element");
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new WpParseException(e);
+        }
+    }
+
+    /**
+     * Parses a page from a reader positioned at the start of a page element.
+     * When this method returns, the reader is positioned at the end of the page element.
+     *
+     * @param reader
+     * @return
+     * @throws XMLStreamException
+     * @throws WpParseException
+     */
+    public RawPage parse(XMLStreamReader reader) throws XMLStreamException, WpParseException {
+        if (!reader.isStartElement() || !reader.getLocalName().equals("page")) {
+            throw new WpParseException("expected page element, found " + reader.getEventType());
+        }
+        String title = null;
+        String idString = null;
+        String revisionIdString = null;
+        String timestampString = null;
+        String formatString = null;
+        String modelString = null;
+        String redirectTitle = null;
+        String body = null;
+
+        // depth 1 is the page element
+        int depth = 1;
+        boolean inRevision = false;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                if (depth == 1) {
+                    inRevision = false;
+                }
+            } else if (event == XMLStreamConstants.END_DOCUMENT) {
+                throw new WpParseException("reached end of document in middle of page");
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                // getElementText() consumes the end tag, so the depth doesn't change
+                if (depth == 1 && name.equals("title")) {
+                    title = reader.getElementText();
+                } else if (depth == 1 && name.equals("id")) {
+                    idString = reader.getElementText();
+                } else if (depth == 1 && name.equals("redirect")) {
+                    redirectTitle = reader.getAttributeValue(null, "title");
+                    depth++;
+                } else if (depth == 1 && name.equals("revision")) {
+                    inRevision = true;
+                    depth++;
+                } else if (depth == 2 && inRevision && revisionIdString == null && name.equals("id")) {
+                    revisionIdString = reader.getElementText();
+                } else if (depth == 2 && inRevision && timestampString == null && name.equals("timestamp")) {
+                    timestampString = reader.getElementText();
+                } else if (depth == 2 && inRevision && formatString == null && name.equals("format")) {
+                    formatString = reader.getElementText();
+                } else if (depth == 2 && inRevision && modelString == null && name.equals("model")) {
+                    modelString = reader.getElementText();
+                } else if (depth == 2 && inRevision && body == null && name.equals("text")) {
+                    body = reader.getElementText();
+                } else {
+                    depth++;
+                }
+            }
+        }
+
+        if (title == null) {
+            throw new WpParseException("no title for article");
+        }
+        if (idString == null) {
+            throw new WpParseException("no id for article");
+        }
+        if (revisionIdString == null) {
+            throw new WpParseException("no revision id for article");
+        }
+        if (body == null) {
+            body = "";
+        }
+        Date lastEdit = null;
+        try {
+            lastEdit = xmlDumpDateFormat.parse(timestampString);
+        } catch (Exception e) {
+            LOG.warning("Could not parse last edited date: " + timestampString);
+        }
+        title = title.trim();
+        RawPage rp = new RawPage(
+                Integer.valueOf(idString.trim()),
+                Integer.valueOf(revisionIdString.trim()),
+                title,
+                body,
+                lastEdit,
+                language.getLanguage(),
+                getNameSpace(title),
+                redirectTitle != null,
+                false,   // TODO: FIXME by properly parsing disambigs!
+                redirectTitle
+        );
+        if (formatString != null) {
+            rp.setFormat(formatString);
+        }
+        if (modelString != null) {
+            rp.setModel(modelString);
+        }
+        return rp;
+    }
+
+    private NameSpace getNameSpace(String title) {
+        return new Title(title, language).getNamespace();
+    }
+}
@@ -0,0 +1,71 @@
+package org.wikibrain.parser;
+
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.parser.xml.PageXmlParser;
+import org.wikibrain.parser.xml.StaxPageParser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares the speed of parsing dump pages into RawPages with PageXmlParser,
+ * as DumpLoader used to, and with a reused StaxPageParser.
+ *
+ * Usage: BenchmarkPageParser [dump-file [lang-code [rounds]]]
+ * By default the english test dump is parsed 2000 times.
+ *
+ * Results on a single core linux vm, english test dump (44 pages, 1000 rounds):
+ * PageXmlParser, new instance per page: 730 pages per second
+ * StaxPageParser, reused: 7.0K pages per second
+ */
+public class BenchmarkPageParser {
+    public static void main(String args[]) throws Exception {
+        File dump = new File(args.length > 0 ? args[0] : "src/test/resources/org/wikibrain/parser/en_test.xml");
+        LanguageInfo lang = LanguageInfo.getByLangCode(args.length > 1 ? args[1] : "en");
+        int rounds = args.length > 2 ? Integer.valueOf(args[2]) : 2000;
+
+        List<byte[]> pages = new ArrayList<byte[]>();
+        Iterator<byte[]> iter = new DumpSplitter(dump).byteIterator();
+        while (iter.hasNext()) {
+            pages.add(iter.next());
+        }
+        System.out.println("read " + pages.size() + " pages from " + dump);
+
+        // warm up the jit
+        benchmarkPageXmlParser(lang, pages, rounds / 10);
+        benchmarkStaxPageParser(lang, pages, rounds / 10);
+
+        long start = System.currentTimeMillis();
+        benchmarkPageXmlParser(lang, pages, rounds);
+        report("PageXmlParser, new instance per page", pages.size() * rounds, start);
+
+        start = System.currentTimeMillis();
+        benchmarkStaxPageParser(lang, pages, rounds);
+        report("StaxPageParser, reused", pages.size() * rounds, start);
+    }
+
+    private static void benchmarkPageXmlParser(LanguageInfo lang, List<byte[]> pages, int rounds) throws WpParseException {
+        for (int i = 0; i < rounds; i++) {
+            for (byte[] page : pages) {
+                new PageXmlParser(lang).parse(new String(page, DumpSplitter.UTF8));
+            }
+        }
+    }
+
+    private static void benchmarkStaxPageParser(LanguageInfo lang, List<byte[]> pages, int rounds) throws WpParseException {
+        StaxPageParser parser = new StaxPageParser(lang);
+        for (int i = 0; i < rounds; i++) {
+            for (byte[] page : pages) {
+                parser.parse(page);
+            }
+        }
+    }
+
+    private static void report(String name, int numPages, long start) {
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        System.out.println(String.format("%s: %d pages in %.1f seconds (%.0f pages per second)",
+                name, numPages, seconds, numPages / seconds));
+    }
+}
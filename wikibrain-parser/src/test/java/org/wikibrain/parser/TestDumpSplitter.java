@@ -1,9 +1,16 @@
 package org.wikibrain.parser;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import org.wikibrain.utils.WpIOUtils;
+
 import static org.junit.Assert.*;
 
-import java.io.File;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class TestDumpSplitter {
     public static final File EN_DUMP = new File("src/test/resources/org/wikibrain/parser/en_test.xml");
@@ -70,4 +77,56 @@ public class TestDumpSplitter {
             i++;
         }
     }
+
+    @Test
+    public void testMultistream() throws IOException {
+        List<String> expected = new ArrayList<String>();
+        for (String text : new DumpSplitter(EN_DUMP)) {
+            expected.add(text);
+        }
+
+        // Rewrite the test dump as a multistream dump with five articles per stream
+        String xml = FileUtils.readFileToString(EN_DUMP, "UTF-8");
+        File dir = WpIOUtils.createTempDirectory("multistream");
+        File dump = new File(dir, "enwiki-20140101-pages-articles-multistream.xml.bz2");
+        File index = new File(dir, "enwiki-20140101-pages-articles-multistream-index.txt.bz2");
+        FileOutputStream out = new FileOutputStream(dump);
+        BufferedWriter indexWriter = WpIOUtils.openBZ2Writer(index);
+        int begin = xml.indexOf(expected.get(0));
+        writeStream(out, xml.substring(0, begin));
+        for (int i = 0; i < expected.size(); i += 5) {
+            long offset = out.getChannel().position();
+            StringBuilder stream = new StringBuilder();
+            for (int j = i; j < i + 5 && j < expected.size(); j++) {
+                indexWriter.write(offset + ":" + j + ":Title " + j + "\n");
+                stream.append(expected.get(j));
+            }
+            writeStream(out, stream.toString());
+        }
+        writeStream(out, "</mediawiki>\n");
+        out.close();
+        indexWriter.close();
+
+        DumpSplitter ds = new DumpSplitter(dump);
+        assertEquals(index, ds.getMultistreamIndex());
+        ds.setNumProducers(3);
+        ds.setSegmentBytes(1);
+        List<String> actual = new ArrayList<String>();
+        for (String text : ds) {
+            actual.add(text);
+        }
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private void writeStream(OutputStream out, String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BZip2CompressorOutputStream bz2 = new BZip2CompressorOutputStream(bytes);
+        bz2.write(text.getBytes("UTF-8"));
+        bz2.close();
+        out.write(bytes.toByteArray());
+    }
 }
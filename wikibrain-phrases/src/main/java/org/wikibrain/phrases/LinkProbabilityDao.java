@@ -1,6 +1,8 @@
 package org.wikibrain.phrases;
 
 import com.typesafe.config.Config;
+import gnu.trove.iterator.TLongFloatIterator;
+import gnu.trove.iterator.TLongIterator;
 import gnu.trove.map.TLongFloatMap;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.hash.TLongFloatHashMap;
@@ -30,6 +32,7 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -48,6 +51,7 @@ public class LinkProbabilityDao {
     private ObjectDb<Double> db;
     private TLongFloatMap cache = null;
     private TLongSet subGrams = null;
+    private MappedLongTable table = null;
 
 
     public LinkProbabilityDao(File path, LanguageSet langs, RawPageDao pageDao, PhraseAnalyzerDao phraseDao) throws DaoException {
@@ -73,6 +77,10 @@ public class LinkProbabilityDao {
     }
 
     public boolean isSubgram(Language lang, String phrase, boolean normalize) {
+        MappedLongTable t = table;
+        if (t != null) {
+            return t.containsKey(hashCode(lang, cleanString(lang, phrase, normalize)));
+        }
         if (cache == null || subGrams == null) {
             throw new IllegalArgumentException("Subgrams require a cache!");
         }
@@ -107,6 +115,11 @@ public class LinkProbabilityDao {
             throw new IllegalStateException("Dao has not yet been built. Call build()");
         }
         String normalizedMention = cleanString(language, mention, normalize);
+        MappedLongTable t = table;
+        if (t != null) {
+            float p = t.getFloat(hashCode(language, normalizedMention), 0.0f);
+            return (p < 0) ? 0.0 : p;  // subgrams that are not anchors are -1
+        }
         String key = language.getLangCode() + ":" + normalizedMention;
 
         Double d = null;
@@ -124,7 +137,32 @@ public class LinkProbabilityDao {
         }
     }
 
+    /**
+     * Enables or disables the cache of link probabilities and subgrams.
+     *
+     * If the dao has been built, the cache is the memory mapped table written by
+     * build() (which is written now if it does not yet exist). Otherwise an on-heap
+     * cache is filled in while the dao is built.
+     *
+     * @param useCache
+     */
     public synchronized void useCache(boolean useCache) {
+        if (useCache && db != null) {
+            try {
+                if (!getTablePath().isFile()) {
+                    writeTable();
+                }
+                table = new MappedLongTable(getTablePath());
+                cache = null;
+                subGrams = null;
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "could not use mapped table " + getTablePath() + ", building cache", e);
+            }
+        }
+        if (!useCache) {
+            table = null;
+        }
         if (useCache && db == null) {
             this.cache = new TLongFloatHashMap();   // build cache later
         } else if (useCache) {
@@ -140,7 +178,7 @@ public class LinkProbabilityDao {
                 } else {
                     String tokens[] = entry.getKey().split(":", 2);
                     Language lang = Language.getByLangCode(tokens[0]);
-                    long hash = hashCode(lang, entry.getKey());
+                    long hash = hashCode(lang, tokens[1]);
                     cache.put(hash, entry.getRight().floatValue());
                 }
             }
@@ -156,6 +194,10 @@ public class LinkProbabilityDao {
         if (db != null) {
             db.close();
         }
+        if (table != null) {
+            table = null;
+            cache = new TLongFloatHashMap();    // remapped once the build finishes
+        }
         if (path.exists()) {
             FileUtils.deleteQuietly(path);
         }
@@ -169,6 +211,66 @@ public class LinkProbabilityDao {
         for (Language lang : langs) {
             this.build(lang);
         }
+        try {
+            writeTable();
+            if (cache != null) {
+                table = new MappedLongTable(getTablePath());
+                cache = null;
+                subGrams = null;
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * @return The memory mapped table of link probabilities and subgrams.
+     */
+    public File getTablePath() {
+        return new File(path, "linkProbability.table");
+    }
+
+    /**
+     * Writes a memory mapped table from the mention hash of every phrase and subgram in
+     * the database to its link probability. Subgrams that are not themselves anchor texts
+     * have probability -1. The table can be shared by all JVMs on a host.
+     *
+     * @throws IOException
+     */
+    private void writeTable() throws IOException {
+        LOG.info("writing link probability table " + getTablePath());
+        TLongFloatMap probs = new TLongFloatHashMap();
+        TLongSet subgrams = new TLongHashSet();
+        Iterator<Pair<String, Double>> iter = db.iterator();
+        while (iter.hasNext()) {
+            Pair<String, Double> entry = iter.next();
+            if (entry.getKey().startsWith(":s:")) {
+                subgrams.add(Long.valueOf(entry.getKey().substring(3)));
+            } else {
+                String tokens[] = entry.getKey().split(":", 2);
+                Language lang = Language.getByLangCode(tokens[0]);
+                probs.put(hashCode(lang, tokens[1]), entry.getRight().floatValue());
+            }
+        }
+        TLongIterator subgramIter = subgrams.iterator();
+        while (subgramIter.hasNext()) {
+            long h = subgramIter.next();
+            if (!probs.containsKey(h)) {
+                probs.put(h, -1.0f);
+            }
+        }
+        subgrams = null;
+
+        long keys[] = new long[probs.size()];
+        float values[] = new float[probs.size()];
+        TLongFloatIterator probIter = probs.iterator();
+        for (int i = 0; probIter.hasNext(); i++) {
+            probIter.advance();
+            keys[i] = probIter.key();
+            values[i] = probIter.value();
+        }
+        probs = null;
+        MappedLongTable.write(getTablePath(), keys, values);
     }
 
     private void build(Language lang) throws DaoException {
@@ -263,16 +365,19 @@ public class LinkProbabilityDao {
         }
     }
 
-    private TLongIntMap getPhraseLinkCounts(Language lang) {
-        Iterator<Pair<String, PrunedCounts<Integer>>> phraseIter = phraseDao.getAllPhraseCounts(lang);
-        TLongIntMap counts = new TLongIntHashMap();
-        while (phraseIter.hasNext()) {
-            Pair<String, PrunedCounts<Integer>> pair = phraseIter.next();
-            String phrase = cleanString(lang, pair.getLeft());
-            long hash = hashCode(lang, phrase);
-            int n = pair.getRight().getTotal();
-            counts.adjustOrPutValue(hash, n, n);
-        }
+    private TLongIntMap getPhraseLinkCounts(final Language lang) {
+        final TLongIntMap counts = new TLongIntHashMap();
+        phraseDao.forEachPhraseCounts(lang, WpThreadUtils.getMaxThreads(), new Procedure<Pair<String, PrunedCounts<Integer>>>() {
+            @Override
+            public void call(Pair<String, PrunedCounts<Integer>> pair) throws Exception {
+                String phrase = cleanString(lang, pair.getLeft());
+                long hash = LinkProbabilityDao.this.hashCode(lang, phrase);
+                int n = pair.getRight().getTotal();
+                synchronized (counts) {
+                    counts.adjustOrPutValue(hash, n, n);
+                }
+            }
+        });
         return counts;
     }
 
@@ -0,0 +1,525 @@
+package org.wikibrain.phrases;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A read-only, memory mapped file of binary records sorted by binary key.
+ *
+ * The file contains a header, the records, and an index of record offsets:
+ *
+ * <pre>
+ * header:  int magic, int version, long numRecords, long indexOffset
+ * records: varint keyLength, key bytes, varint valueLength, value bytes
+ * index:   long offset of each record, in key order
+ * </pre>
+ *
+ * Records are mapped in chunks, and the builder ensures no record crosses a chunk
+ * boundary. Keys are compared as unsigned bytes. Lookups are binary searches over
+ * the index and are safe to call from multiple threads.
+ */
+class MappedRecordFile {
+    private static final Logger LOG = Logger.getLogger(MappedRecordFile.class.getName());
+
+    public static final int FILE_HEADER = 0xabcd5e;
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    static final int CHUNK_BITS = 30;
+    static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final int INDEX_CHUNK_LONGS = 1 << 27;
+
+    private final File path;
+    private final long numRecords;
+    private final ByteBuffer chunks[];
+    private final ByteBuffer index[];
+
+    public MappedRecordFile(File path) throws IOException {
+        this.path = path;
+        FileInputStream input = new FileInputStream(path);
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {}
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != FILE_HEADER) {
+                throw new IOException("invalid record file header in " + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("unknown record file version " + version + " in " + path);
+            }
+            numRecords = header.getLong();
+            long indexOffset = header.getLong();
+
+            int numChunks = (int) ((indexOffset + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            chunks = new ByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                long start = i * CHUNK_SIZE;
+                long size = Math.min(CHUNK_SIZE, indexOffset - start);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+
+            int numIndexChunks = (int) ((numRecords + INDEX_CHUNK_LONGS - 1) / INDEX_CHUNK_LONGS);
+            index = new ByteBuffer[numIndexChunks];
+            for (int i = 0; i < numIndexChunks; i++) {
+                long first = 1L * i * INDEX_CHUNK_LONGS;
+                long n = Math.min(INDEX_CHUNK_LONGS, numRecords - first);
+                index[i] = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset + 8 * first, 8 * n);
+            }
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        LOG.info("mapped " + numRecords + " records from " + path);
+    }
+
+    public long size() {
+        return numRecords;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    private long getOffset(long i) {
+        return index[(int) (i / INDEX_CHUNK_LONGS)].getLong((int) (8 * (i % INDEX_CHUNK_LONGS)));
+    }
+
+    /**
+     * @return A read-only buffer positioned at the start of record i.
+     */
+    private ByteBuffer getRecord(long i) {
+        long offset = getOffset(i);
+        ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)].duplicate();
+        chunk.position((int) (offset & (CHUNK_SIZE - 1)));
+        return chunk;
+    }
+
+    /**
+     * @return The key of record i.
+     */
+    public byte[] getKey(long i) {
+        ByteBuffer record = getRecord(i);
+        byte key[] = new byte[readVarint(record)];
+        record.get(key);
+        return key;
+    }
+
+    /**
+     * @return A read-only buffer whose remaining bytes are the value of record i.
+     */
+    public ByteBuffer getValue(long i) {
+        ByteBuffer record = getRecord(i);
+        int keyLength = readVarint(record);
+        record.position(record.position() + keyLength);
+        int valueLength = readVarint(record);
+        record.limit(record.position() + valueLength);
+        return record.slice();
+    }
+
+    /**
+     * @return The index of the first record whose key is greater than or equal to the given key.
+     */
+    public long lowerBound(byte key[]) {
+        long lo = 0;
+        long hi = numRecords;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (compareKey(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return The index of the record with the given key, or -1 if there is none.
+     */
+    public long find(byte key[]) {
+        long i = lowerBound(key);
+        return (i < numRecords && compareKey(i, key) == 0) ? i : -1;
+    }
+
+    /**
+     * @return True if the key of record i starts with the prefix.
+     */
+    public boolean hasPrefix(long i, byte prefix[]) {
+        ByteBuffer record = getRecord(i);
+        int n = readVarint(record);
+        if (n < prefix.length) {
+            return false;
+        }
+        int pos = record.position();
+        for (int j = 0; j < prefix.length; j++) {
+            if (record.get(pos + j) != prefix[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the key of record i to a key, without copying it.
+     */
+    private int compareKey(long i, byte key[]) {
+        ByteBuffer record = getRecord(i);
+        int n = readVarint(record);
+        int pos = record.position();
+        int m = Math.min(n, key.length);
+        for (int j = 0; j < m; j++) {
+            int c = (record.get(pos + j) & 0xff) - (key[j] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return n - key.length;
+    }
+
+    static int compareKeys(byte k1[], byte k2[]) {
+        int m = Math.min(k1.length, k2.length);
+        for (int j = 0; j < m; j++) {
+            int c = (k1[j] & 0xff) - (k2[j] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return k1.length - k2.length;
+    }
+
+    static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int getVarintLength(int value) {
+        int n = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Builds a record file from records added in any order.
+     *
+     * Records are buffered in memory and spilled to sorted runs on disk when the buffer
+     * fills up. The runs are then merged into the final file. If a key is added more than
+     * once, the record added last wins. An existing record file can be merged in as the
+     * oldest source of records.
+     */
+    static class Builder {
+        private final File tmpDir;
+        private final long maxBufferBytes;
+        private final List<Record> buffer = new ArrayList<Record>();
+        private final List<File> runs = new ArrayList<File>();
+        private long bufferBytes = 0;
+        private long sequence = 0;
+        private MappedRecordFile base = null;
+
+        /**
+         * @param tmpDir Directory for sorted runs.
+         * @param maxBufferBytes Approximate number of bytes of records buffered before a run is spilled.
+         */
+        Builder(File tmpDir, long maxBufferBytes) {
+            this.tmpDir = tmpDir;
+            this.maxBufferBytes = maxBufferBytes;
+        }
+
+        /**
+         * Merges in the records of an existing file. They are overridden by added records.
+         */
+        void setBase(MappedRecordFile base) {
+            this.base = base;
+        }
+
+        boolean isEmpty() {
+            return buffer.isEmpty() && runs.isEmpty();
+        }
+
+        void add(byte key[], byte value[]) throws IOException {
+            buffer.add(new Record(key, value, sequence++));
+            bufferBytes += key.length + value.length + 64;
+            if (bufferBytes >= maxBufferBytes) {
+                spill();
+            }
+        }
+
+        private void spill() throws IOException {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            Collections.sort(buffer);
+            tmpDir.mkdirs();
+            File run = File.createTempFile("run", ".bin", tmpDir);
+            run.deleteOnExit();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+            try {
+                for (Record r : buffer) {
+                    r.write(out);
+                }
+            } finally {
+                out.close();
+            }
+            runs.add(run);
+            buffer.clear();
+            bufferBytes = 0;
+        }
+
+        /**
+         * Writes the merged records to the destination, replacing it atomically.
+         * If the build fails, the added records are kept so it can be retried.
+         */
+        void build(File dest) throws IOException {
+            List<RecordSource> sources = new ArrayList<RecordSource>();
+            try {
+                if (base != null) {
+                    sources.add(new BaseSource(base));
+                }
+                for (File run : runs) {
+                    sources.add(new RunSource(run));
+                }
+                Collections.sort(buffer);
+                sources.add(new BufferSource(buffer));
+                write(dest, sources);
+            } finally {
+                for (RecordSource s : sources) {
+                    IOUtils.closeQuietly(s);
+                }
+            }
+            for (File run : runs) {
+                FileUtils.deleteQuietly(run);
+            }
+            runs.clear();
+            buffer.clear();
+            bufferBytes = 0;
+        }
+
+        private void write(File dest, List<RecordSource> sources) throws IOException {
+            PriorityQueue<RecordSource> queue = new PriorityQueue<RecordSource>();
+            for (RecordSource s : sources) {
+                if (s.advance()) {
+                    queue.add(s);
+                }
+            }
+
+            File tmp = new File(dest.getPath() + ".tmp");
+            File indexTmp = new File(dest.getPath() + ".index.tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+            DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTmp), 1 << 20));
+            long offset = HEADER_SIZE;
+            long numRecords = 0;
+            try {
+                out.writeInt(FILE_HEADER);
+                out.writeInt(VERSION);
+                out.writeLong(0);
+                out.writeLong(0);
+                while (!queue.isEmpty()) {
+                    // Take the newest record with the smallest key, and skip older ones.
+                    Record r = queue.poll().takeAndRequeue(queue);
+                    while (!queue.isEmpty() && compareKeys(queue.peek().current.key, r.key) == 0) {
+                        Record older = queue.poll().takeAndRequeue(queue);
+                        if (older.sequence > r.sequence) {
+                            r = older;
+                        }
+                    }
+                    int length = getVarintLength(r.key.length) + r.key.length
+                            + getVarintLength(r.value.length) + r.value.length;
+                    if (length > CHUNK_SIZE) {
+                        throw new IOException("record of " + length + " bytes is too large");
+                    }
+                    long chunkEnd = ((offset >>> CHUNK_BITS) + 1) << CHUNK_BITS;
+                    if (offset + length > chunkEnd) {
+                        for (; offset < chunkEnd; offset++) {
+                            out.write(0);
+                        }
+                    }
+                    indexOut.writeLong(offset);
+                    writeVarint(out, r.key.length);
+                    out.write(r.key);
+                    writeVarint(out, r.value.length);
+                    out.write(r.value);
+                    offset += length;
+                    numRecords++;
+                }
+                for (; offset % 8 != 0; offset++) {
+                    out.write(0);
+                }
+                indexOut.close();
+                FileInputStream indexIn = new FileInputStream(indexTmp);
+                try {
+                    IOUtils.copyLarge(indexIn, out);
+                } finally {
+                    indexIn.close();
+                }
+            } finally {
+                IOUtils.closeQuietly(out);
+                IOUtils.closeQuietly(indexOut);
+                FileUtils.deleteQuietly(indexTmp);
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.seek(8);
+                raf.writeLong(numRecords);
+                raf.writeLong(offset);
+            } finally {
+                raf.close();
+            }
+            if (dest.exists() && !dest.delete()) {
+                throw new IOException("could not replace " + dest);
+            }
+            if (!tmp.renameTo(dest)) {
+                throw new IOException("could not rename " + tmp + " to " + dest);
+            }
+            LOG.info("wrote " + numRecords + " records to " + dest);
+        }
+    }
+
+    private static class Record implements Comparable<Record> {
+        final byte key[];
+        final byte value[];
+        final long sequence;
+
+        Record(byte key[], byte value[], long sequence) {
+            this.key = key;
+            this.value = value;
+            this.sequence = sequence;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
+            out.writeLong(sequence);
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            byte key[] = new byte[in.readInt()];
+            in.readFully(key);
+            byte value[] = new byte[in.readInt()];
+            in.readFully(value);
+            return new Record(key, value, in.readLong());
+        }
+
+        @Override
+        public int compareTo(Record that) {
+            int c = compareKeys(key, that.key);
+            return (c != 0) ? c : (sequence < that.sequence ? -1 : (sequence > that.sequence ? 1 : 0));
+        }
+    }
+
+    /**
+     * A sorted stream of records that is merged with others.
+     */
+    private static abstract class RecordSource implements Closeable, Comparable<RecordSource> {
+        Record current;
+
+        /**
+         * Moves to the next record.
+         * @return False if there are no more records.
+         */
+        abstract boolean advance() throws IOException;
+
+        Record takeAndRequeue(PriorityQueue<RecordSource> queue) throws IOException {
+            Record r = current;
+            if (advance()) {
+                queue.add(this);
+            }
+            return r;
+        }
+
+        @Override
+        public int compareTo(RecordSource that) {
+            return current.compareTo(that.current);
+        }
+
+        @Override
+        public void close() throws IOException {}
+    }
+
+    private static class BufferSource extends RecordSource {
+        private final Iterator<Record> iter;
+
+        BufferSource(List<Record> records) {
+            iter = records.iterator();
+        }
+
+        boolean advance() {
+            current = iter.hasNext() ? iter.next() : null;
+            return current != null;
+        }
+    }
+
+    private static class RunSource extends RecordSource {
+        private final DataInputStream in;
+
+        RunSource(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                current = Record.read(in);
+                return true;
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Records of an existing file. They are older than any added record.
+     */
+    private static class BaseSource extends RecordSource {
+        private final MappedRecordFile file;
+        private long i = 0;
+
+        BaseSource(MappedRecordFile file) {
+            this.file = file;
+        }
+
+        boolean advance() {
+            if (i >= file.size()) {
+                current = null;
+                return false;
+            }
+            ByteBuffer value = file.getValue(i);
+            byte bytes[] = new byte[value.remaining()];
+            value.get(bytes);
+            current = new Record(file.getKey(i), bytes, -1);
+            i++;
+            return true;
+        }
+    }
+}
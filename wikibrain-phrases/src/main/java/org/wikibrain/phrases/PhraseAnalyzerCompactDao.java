@@ -0,0 +1,494 @@
+package org.wikibrain.phrases;
+
+import com.sleepycat.je.DatabaseException;
+import com.typesafe.config.Config;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.StringNormalizer;
+import org.wikibrain.utils.ObjectDb;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists information about phrases to page relationships in compact, memory mapped files.
+ *
+ * Unlike PhraseAnalyzerObjectDbDao, which stores Java serialized PrunedCounts, records
+ * are stored in a primitive binary format:
+ *
+ * <ul>
+ *     <li>phrases.bin maps (language id, normalized phrase) to the total count and the
+ *     page ids, sorted and delta encoded as varints, followed by their counts.</li>
+ *     <li>pages.bin maps (language id, page id) to the total count and the phrases
+ *     with their counts, in decreasing order by count.</li>
+ * </ul>
+ *
+ * Both files are sorted by key and memory mapped read-only, so lookups are a binary
+ * search and a small decode, and all records of a language are adjacent. Saved counts are
+ * buffered (spilling sorted runs to disk) and merged into the files when the dao is
+ * flushed, closed, or next read.
+ */
+public class PhraseAnalyzerCompactDao implements PhraseAnalyzerDao {
+    private static final Logger LOG = Logger.getLogger(PhraseAnalyzerCompactDao.class.getName());
+
+    public static final long DEFAULT_BUFFER_BYTES = 64L * 1024 * 1024;
+
+    private static final String UTF8 = "UTF-8";
+
+    private final StringNormalizer normalizer;
+    private final File dir;
+    private final Store phrases;
+    private final Store pages;
+
+    /**
+     * Creates a new dao using the given directory.
+     * @param normalizer
+     * @param path
+     * @param isNew If true, delete any information contained in the directory.
+     * @throws DaoException
+     */
+    public PhraseAnalyzerCompactDao(StringNormalizer normalizer, File path, boolean isNew) throws DaoException {
+        this.dir = path;
+        this.normalizer = normalizer;
+        if (isNew && path.exists()) {
+            FileUtils.deleteQuietly(path);
+        }
+        path.mkdirs();
+        try {
+            phrases = new Store(new File(path, "phrases.bin"));
+            pages = new Store(new File(path, "pages.bin"));
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void savePageCounts(Language lang, int wpId, PrunedCounts<String> counts) throws DaoException {
+        try {
+            pages.add(pageKey(lang, wpId), encodePageCounts(counts));
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void savePhraseCounts(Language lang, String phrase, PrunedCounts<Integer> counts) throws DaoException {
+        phrase = normalizer.normalize(lang, phrase);
+        try {
+            phrases.add(phraseKey(lang, phrase), encodePhraseCounts(counts));
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public Iterator<String> getAllPhrases(Language lang) {
+        final Iterator<Pair<String, PrunedCounts<Integer>>> iter = getAllPhraseCounts(lang);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return iter.next().getLeft();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Pair<String, PrunedCounts<Integer>>> getAllPhraseCounts(Language lang) {
+        final MappedRecordFile file;
+        try {
+            file = phrases.getFile();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (file == null) {
+            return Collections.<Pair<String, PrunedCounts<Integer>>>emptyList().iterator();
+        }
+        final byte prefix[] = langPrefix(lang);
+        final long start = file.lowerBound(prefix);
+        return new Iterator<Pair<String, PrunedCounts<Integer>>>() {
+            long i = start;
+
+            @Override
+            public boolean hasNext() {
+                return i < file.size() && file.hasPrefix(i, prefix);
+            }
+
+            @Override
+            public Pair<String, PrunedCounts<Integer>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                byte key[] = file.getKey(i);
+                String phrase = decodeString(key, 2, key.length - 2);
+                PrunedCounts<Integer> counts = decodePhraseCounts(file.getValue(i), Integer.MAX_VALUE);
+                i++;
+                return Pair.of(phrase, counts);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void forEachPhraseCounts(Language lang, int numThreads, final Procedure<Pair<String, PrunedCounts<Integer>>> fn) {
+        final MappedRecordFile file;
+        try {
+            file = phrases.getFile();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (file == null) {
+            return;
+        }
+        // language ids are positive, so the next id's prefix bounds the range
+        byte next[] = langPrefix(lang);
+        if (++next[1] == 0) {
+            next[0]++;
+        }
+        final long start = file.lowerBound(langPrefix(lang));
+        final long end = file.lowerBound(next);
+        final long numPartitions = Math.max(1, Math.min(end - start, 4L * numThreads));
+        ParallelForEach.range(0, (int) numPartitions, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer p) throws Exception {
+                long from = start + (end - start) * p / numPartitions;
+                long to = start + (end - start) * (p + 1) / numPartitions;
+                for (long i = from; i < to; i++) {
+                    byte key[] = file.getKey(i);
+                    String phrase = decodeString(key, 2, key.length - 2);
+                    try {
+                        fn.call(Pair.of(phrase, decodePhraseCounts(file.getValue(i), Integer.MAX_VALUE)));
+                    } catch (Exception e) {
+                        LOG.log(Level.SEVERE, "error processing phrase " + phrase, e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public StringNormalizer getStringNormalizer() {
+        return normalizer;
+    }
+
+    /**
+     * Gets pages related to a phrase.
+     *
+     * @param lang
+     * @param phrase
+     * @param maxPages
+     * @return Map from page ids (in the local language) to the number of occurrences
+     * ordered by decreasing count.
+     * @throws DaoException
+     */
+    @Override
+    public PrunedCounts<Integer> getPhraseCounts(Language lang, String phrase, int maxPages) throws DaoException {
+        phrase = normalizer.normalize(lang, phrase);
+        try {
+            ByteBuffer value = phrases.get(phraseKey(lang, phrase));
+            return (value == null) ? null : decodePhraseCounts(value, maxPages);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * Gets phrases related to a page.
+     * @param lang
+     * @param wpId Local page id
+     * @param maxPhrases
+     * @return Map from phrasese (in the local language) to the number of occurrences
+     * ordered by decreasing count.
+     * @throws DaoException
+     */
+    @Override
+    public PrunedCounts<String> getPageCounts(Language lang, int wpId, int maxPhrases) throws DaoException {
+        try {
+            ByteBuffer value = pages.get(pageKey(lang, wpId));
+            return (value == null) ? null : decodePageCounts(value, maxPhrases);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            phrases.getFile();
+            pages.getFile();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Copies the contents of a PhraseAnalyzerObjectDbDao directory into this dao.
+     * Keys in the object database are already normalized, so they are not normalized again.
+     *
+     * @param objectDbDir Directory containing the "describe" and "resolve" object databases.
+     * @throws DaoException
+     */
+    public void importObjectDb(File objectDbDir) throws DaoException {
+        try {
+            ObjectDb<PrunedCounts<String>> describeDb = new ObjectDb<PrunedCounts<String>>(new File(objectDbDir, "describe"), false);
+            try {
+                int n = 0;
+                for (Pair<String, PrunedCounts<String>> pair : describeDb) {
+                    String parts[] = pair.getLeft().split(":", 2);
+                    Language lang = Language.getByLangCode(parts[0]);
+                    pages.add(pageKey(lang, Integer.valueOf(parts[1])), encodePageCounts(pair.getRight()));
+                    if (++n % 100000 == 0) {
+                        LOG.info("migrated page counts for " + n + " pages");
+                    }
+                }
+            } finally {
+                describeDb.close();
+            }
+            ObjectDb<PrunedCounts<Integer>> resolveDb = new ObjectDb<PrunedCounts<Integer>>(new File(objectDbDir, "resolve"), false);
+            try {
+                int n = 0;
+                for (Pair<String, PrunedCounts<Integer>> pair : resolveDb) {
+                    String parts[] = pair.getLeft().split(":", 2);
+                    Language lang = Language.getByLangCode(parts[0]);
+                    phrases.add(phraseKey(lang, parts[1]), encodePhraseCounts(pair.getRight()));
+                    if (++n % 100000 == 0) {
+                        LOG.info("migrated phrase counts for " + n + " phrases");
+                    }
+                }
+            } finally {
+                resolveDb.close();
+            }
+            flush();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } catch (DatabaseException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private static byte[] langPrefix(Language lang) {
+        short id = lang.getId();
+        return new byte[] { (byte) (id >>> 8), (byte) id };
+    }
+
+    private static byte[] phraseKey(Language lang, String phrase) throws IOException {
+        byte bytes[] = phrase.getBytes(UTF8);
+        return ByteBuffer.allocate(2 + bytes.length)
+                .putShort(lang.getId())
+                .put(bytes)
+                .array();
+    }
+
+    /**
+     * The sign bit is flipped so that negative ids sort before positive ones.
+     */
+    private static byte[] pageKey(Language lang, int wpId) {
+        return ByteBuffer.allocate(6)
+                .putShort(lang.getId())
+                .putInt(wpId ^ Integer.MIN_VALUE)
+                .array();
+    }
+
+    private static String decodeString(byte bytes[], int offset, int length) {
+        try {
+            return new String(bytes, offset, length, UTF8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] encodePhraseCounts(PrunedCounts<Integer> counts) throws IOException {
+        int ids[] = new int[counts.size()];
+        int i = 0;
+        for (int id : counts.keySet()) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 + 4 * ids.length);
+        MappedRecordFile.writeVarint(out, counts.getTotal());
+        MappedRecordFile.writeVarint(out, ids.length);
+        int last = 0;
+        for (int id : ids) {
+            MappedRecordFile.writeVarint(out, id - last);
+            last = id;
+        }
+        for (int id : ids) {
+            MappedRecordFile.writeVarint(out, counts.get(id));
+        }
+        return out.toByteArray();
+    }
+
+    static PrunedCounts<Integer> decodePhraseCounts(ByteBuffer value, int maxPages) {
+        int total = MappedRecordFile.readVarint(value);
+        int n = MappedRecordFile.readVarint(value);
+        final int ids[] = new int[n];
+        final int counts[] = new int[n];
+        int last = 0;
+        for (int i = 0; i < n; i++) {
+            last += MappedRecordFile.readVarint(value);
+            ids[i] = last;
+        }
+        for (int i = 0; i < n; i++) {
+            counts[i] = MappedRecordFile.readVarint(value);
+        }
+
+        // Order by decreasing count, breaking ties by id
+        Integer order[] = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                int c1 = counts[i1];
+                int c2 = counts[i2];
+                return (c1 != c2) ? (c1 > c2 ? -1 : 1) : (i1 - i2);
+            }
+        });
+        PrunedCounts<Integer> result = new PrunedCounts<Integer>(total);
+        for (int i = 0; i < n && i < maxPages; i++) {
+            result.put(ids[order[i]], counts[order[i]]);
+        }
+        return result;
+    }
+
+    static byte[] encodePageCounts(PrunedCounts<String> counts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 + 16 * counts.size());
+        MappedRecordFile.writeVarint(out, counts.getTotal());
+        MappedRecordFile.writeVarint(out, counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            byte bytes[] = entry.getKey().getBytes(UTF8);
+            MappedRecordFile.writeVarint(out, bytes.length);
+            out.write(bytes);
+            MappedRecordFile.writeVarint(out, entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    static PrunedCounts<String> decodePageCounts(ByteBuffer value, int maxPhrases) {
+        int total = MappedRecordFile.readVarint(value);
+        int n = MappedRecordFile.readVarint(value);
+        PrunedCounts<String> result = new PrunedCounts<String>(total);
+        for (int i = 0; i < n && i < maxPhrases; i++) {
+            byte bytes[] = new byte[MappedRecordFile.readVarint(value)];
+            value.get(bytes);
+            result.put(decodeString(bytes, 0, bytes.length), MappedRecordFile.readVarint(value));
+        }
+        return result;
+    }
+
+    /**
+     * A record file along with the records saved since it was last built.
+     */
+    private class Store {
+        private final File path;
+        private final MappedRecordFile.Builder builder;
+        private volatile MappedRecordFile file;
+        private volatile boolean dirty = false;
+
+        Store(File path) throws IOException {
+            this.path = path;
+            this.builder = new MappedRecordFile.Builder(new File(dir, "tmp"), DEFAULT_BUFFER_BYTES);
+            this.file = path.isFile() ? new MappedRecordFile(path) : null;
+        }
+
+        synchronized void add(byte key[], byte value[]) throws IOException {
+            builder.add(key, value);
+            dirty = true;
+        }
+
+        ByteBuffer get(byte key[]) throws IOException {
+            MappedRecordFile f = getFile();
+            if (f == null) {
+                return null;
+            }
+            long i = f.find(key);
+            return (i < 0) ? null : f.getValue(i);
+        }
+
+        /**
+         * @return The record file, after merging in any saved records.
+         */
+        MappedRecordFile getFile() throws IOException {
+            if (dirty) {
+                synchronized (this) {
+                    if (dirty) {
+                        builder.setBase(file);
+                        builder.build(path);
+                        file = new MappedRecordFile(path);
+                        builder.setBase(null);
+                        dirty = false;
+                    }
+                }
+            }
+            return file;
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<PhraseAnalyzerDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class<PhraseAnalyzerDao> getType() {
+            return PhraseAnalyzerDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "phrases.dao";
+        }
+
+        @Override
+        public PhraseAnalyzerDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("compact")) {
+                return null;
+            }
+            boolean isNew = config.getBoolean("isNew");
+
+            File path = new File(getConfig().get().getString("phrases.path"), name);
+            StringNormalizer normalizer = getConfigurator().get(StringNormalizer.class, config.getString("normalizer"));
+
+            try {
+                return new PhraseAnalyzerCompactDao(normalizer, path, isNew);
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.lang.StringNormalizer;
 import org.wikibrain.phrases.PrunedCounts;
+import org.wikibrain.utils.Procedure;
 
 import java.util.Iterator;
 
@@ -52,6 +53,16 @@ public interface PhraseAnalyzerDao {
      */
     public Iterator<Pair<String, PrunedCounts<Integer>>> getAllPhraseCounts(Language lang);
 
+    /**
+     * Calls a procedure on all phrase counts in the specified language, scanning
+     * partitions of the phrases in parallel. The procedure must be thread-safe.
+     * Errors in the procedure are logged and do not stop the scan.
+     * @param lang
+     * @param numThreads
+     * @param fn
+     */
+    public void forEachPhraseCounts(Language lang, int numThreads, Procedure<Pair<String, PrunedCounts<Integer>>> fn);
+
     /**
      * @return The string normalizer used to determine canonical string representations.
      */
@@ -3,9 +3,7 @@ package org.wikibrain.phrases;
 import com.typesafe.config.Config;
 import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.hash.TLongIntHashMap;
-import org.apache.commons.collections.Predicate;
 import org.apache.commons.collections.Transformer;
-import org.apache.commons.collections.iterators.FilterIterator;
 import org.apache.commons.collections.iterators.TransformIterator;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -56,7 +54,7 @@ public class PhraseAnalyzerObjectDbDao implements PhraseAnalyzerDao {
     @Override
     public void savePageCounts(Language lang, int wpId, PrunedCounts<String> counts) throws DaoException {
         try {
-            describeDb.put(lang.getLangCode() + ":" + wpId, counts);
+            describeDb.put(langPrefix(lang) + wpId, counts);
         } catch (IOException e) {
             throw new DaoException(e);
         }
@@ -66,53 +64,54 @@ public class PhraseAnalyzerObjectDbDao implements PhraseAnalyzerDao {
     public void savePhraseCounts(Language lang, String phrase, PrunedCounts<Integer> counts) throws DaoException {
         phrase = normalizer.normalize(lang, phrase);
         try {
-            resolveDb.put(lang.getLangCode() + ":" + phrase, counts);
+            resolveDb.put(langPrefix(lang) + phrase, counts);
         } catch (IOException e) {
             throw new DaoException(e);
         }
     }
 
     @Override
-    public Iterator<String> getAllPhrases(final Language lang) {
-        Predicate langFilter = new Predicate() {
-                @Override
-                public boolean evaluate(Object o) {
-                    String langCode = ((String)o).split(":")[0];
-                    return lang.getLangCode().equals(langCode);
-                }
-            };
+    public Iterator<String> getAllPhrases(Language lang) {
+        final int prefixLength = langPrefix(lang).length();
         Transformer stripLang = new Transformer() {
             @Override
             public Object transform(Object input) {
-                return ((String)input).split(":", 2)[1];
+                return ((String)input).substring(prefixLength);
             }
         };
-        return new TransformIterator(
-                    new FilterIterator(resolveDb.keyIterator(), langFilter),
-                    stripLang);
+        return new TransformIterator(resolveDb.keyIterator(langPrefix(lang)), stripLang);
     }
 
     @Override
-    public Iterator<Pair<String, PrunedCounts<Integer>>> getAllPhraseCounts(final Language lang) {
-        Predicate langFilter = new Predicate() {
-            @Override
-            public boolean evaluate(Object o) {
-                Pair<String, PrunedCounts<Integer>> pair = (Pair<String, PrunedCounts<Integer>>) o;
-                String langCode = pair.getLeft().split(":")[0];
-                return lang.getLangCode().equals(langCode);
-            }
-        };
+    public Iterator<Pair<String, PrunedCounts<Integer>>> getAllPhraseCounts(Language lang) {
+        final int prefixLength = langPrefix(lang).length();
         Transformer stripLang = new Transformer() {
             @Override
             public Object transform(Object o) {
                 Pair<String, PrunedCounts<Integer>> pair = (Pair<String, PrunedCounts<Integer>>) o;
-                String phrase = pair.getLeft().split(":", 2)[1];
-                return Pair.of(phrase, pair.getRight());
+                return Pair.of(pair.getLeft().substring(prefixLength), pair.getRight());
             }
         };
-        return new TransformIterator(
-                new FilterIterator(resolveDb.iterator(), langFilter),
-                stripLang);
+        return new TransformIterator(resolveDb.iterator(langPrefix(lang)), stripLang);
+    }
+
+    @Override
+    public void forEachPhraseCounts(Language lang, int numThreads, final Procedure<Pair<String, PrunedCounts<Integer>>> fn) {
+        final int prefixLength = langPrefix(lang).length();
+        resolveDb.forEach(langPrefix(lang), numThreads, new Procedure<Pair<String, PrunedCounts<Integer>>>() {
+            @Override
+            public void call(Pair<String, PrunedCounts<Integer>> pair) throws Exception {
+                fn.call(Pair.of(pair.getLeft().substring(prefixLength), pair.getRight()));
+            }
+        });
+    }
+
+    /**
+     * Keys of all records in a language start with this prefix, so they are adjacent
+     * in the database.
+     */
+    private static String langPrefix(Language lang) {
+        return lang.getLangCode() + ":";
     }
 
     @Override
@@ -134,7 +133,7 @@ public class PhraseAnalyzerObjectDbDao implements PhraseAnalyzerDao {
     public PrunedCounts<Integer> getPhraseCounts(Language lang, String phrase, int maxPages) throws DaoException {
         phrase = normalizer.normalize(lang, phrase);
         try {
-            PrunedCounts<Integer> counts = resolveDb.get(lang.getLangCode() + ":" + phrase);
+            PrunedCounts<Integer> counts = resolveDb.get(langPrefix(lang) + phrase);
             if (counts == null || counts.size() <= maxPages) {
                 return counts;
             }
@@ -165,7 +164,7 @@ public class PhraseAnalyzerObjectDbDao implements PhraseAnalyzerDao {
     @Override
     public PrunedCounts<String> getPageCounts(Language lang, int wpId, int maxPhrases) throws DaoException {
         try {
-            PrunedCounts<String> counts = describeDb.get(lang.getLangCode() + ":" + wpId);
+            PrunedCounts<String> counts = describeDb.get(langPrefix(lang) + wpId);
             if (counts == null || counts.size() <= maxPhrases) {
                 return counts;
             }
@@ -11,6 +11,7 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.StringNormalizer;
 import org.wikibrain.lucene.LuceneStringNormalizer;
 import org.wikibrain.lucene.TokenizerOptions;
+import org.wikibrain.utils.Procedure;
 
 import java.io.File;
 import java.io.IOException;
@@ -81,6 +82,57 @@ public class TestPhraseAnalyzerDao {
 
         StringNormalizer normalizer = new LuceneStringNormalizer(new TokenizerOptions(true, false, false), Version.LUCENE_43);
         PhraseAnalyzerDao dao = new PhraseAnalyzerObjectDbDao(normalizer, tmp, true);
+        saveCounts(dao);
+        checkCounts(dao);
+    }
+
+    @Test
+    public void testCompactDao() throws IOException, DaoException {
+        File tmp = File.createTempFile("testdb", ".db", null);
+        tmp.delete();
+        FileUtils.forceDeleteOnExit(tmp);
+
+        StringNormalizer normalizer = new LuceneStringNormalizer(new TokenizerOptions(true, false, false), Version.LUCENE_43);
+        PhraseAnalyzerDao dao = new PhraseAnalyzerCompactDao(normalizer, tmp, true);
+        saveCounts(dao);
+        checkCounts(dao);
+
+        // Saving again replaces existing records and keeps the rest
+        PrunedCounts<Integer> c1 = new PrunedCounts<Integer>(20);
+        c1.put(-5, 2);
+        c1.put(100000, 18);
+        dao.savePhraseCounts(Language.getByLangCode("de"), "foo", c1);
+        dao.savePhraseCounts(Language.getByLangCode("de"), "bar", c1);
+        dao.close();
+
+        dao = new PhraseAnalyzerCompactDao(normalizer, tmp, false);
+        checkCounts(dao);
+        PrunedCounts<Integer> c2 = dao.getPhraseCounts(Language.getByLangCode("de"), "foo", 5);
+        assertEquals(new ArrayList<Integer>(c2.keySet()), Arrays.asList(100000, -5));
+        assertEquals(new ArrayList<Integer>(c2.values()), Arrays.asList(18, 2));
+        assertEquals(20, c2.getTotal());
+        assertEquals(IteratorUtils.toList(dao.getAllPhrases(Language.getByLangCode("de"))), Arrays.asList("bar", "foo"));
+        dao.close();
+    }
+
+    @Test
+    public void testImportObjectDb() throws IOException, DaoException {
+        File tmp = File.createTempFile("testdb", ".db", null);
+        tmp.delete();
+        FileUtils.forceDeleteOnExit(tmp);
+
+        StringNormalizer normalizer = new LuceneStringNormalizer(new TokenizerOptions(true, false, false), Version.LUCENE_43);
+        PhraseAnalyzerDao objectDbDao = new PhraseAnalyzerObjectDbDao(normalizer, new File(tmp, "objectdb"), true);
+        saveCounts(objectDbDao);
+        objectDbDao.close();
+
+        PhraseAnalyzerCompactDao dao = new PhraseAnalyzerCompactDao(normalizer, new File(tmp, "compact"), true);
+        dao.importObjectDb(new File(tmp, "objectdb"));
+        checkCounts(dao);
+        dao.close();
+    }
+
+    private void saveCounts(PhraseAnalyzerDao dao) throws DaoException {
         Language en = Language.getByLangCode("en");
 
         PrunedCounts<Integer> c1 = new PrunedCounts<Integer>(12);
@@ -94,7 +146,10 @@ public class TestPhraseAnalyzerDao {
         c2.put("boof", 1);
 
         dao.savePageCounts(en, 3214, c2);
+    }
 
+    private void checkCounts(PhraseAnalyzerDao dao) throws DaoException {
+        Language en = Language.getByLangCode("en");
         assertNull(dao.getPageCounts(en, 34321, 19));
         assertNull(dao.getPhraseCounts(en, "sadfas", 19));
 
@@ -136,5 +191,16 @@ public class TestPhraseAnalyzerDao {
         assertEquals("foo", phraseCounts.get(0).getKey());
         assertEquals(2, phraseCounts.get(0).getValue().size());
         assertEquals((Integer)7, (Integer)phraseCounts.get(0).getValue().get(349));
+
+        final List<String> scanned = new ArrayList<String>();
+        dao.forEachPhraseCounts(en, 2, new Procedure<Pair<String, PrunedCounts<Integer>>>() {
+            @Override
+            public void call(Pair<String, PrunedCounts<Integer>> pair) throws Exception {
+                synchronized (scanned) {
+                    scanned.add(pair.getKey());
+                }
+            }
+        });
+        assertEquals(Arrays.asList("foo"), scanned);
     }
 }
@@ -4,11 +4,12 @@ import com.typesafe.config.Config;
 
 import java.util.*;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntLongMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.ArrayUtils;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.WikiBrainException;
@@ -30,6 +31,7 @@ import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.utils.SrNormalizers;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WbArrayUtils;
 import org.wikibrain.utils.WpIOUtils;
 import org.wikibrain.utils.WpThreadUtils;
 
@@ -57,6 +59,7 @@ public abstract class BaseSRMetric implements SRMetric {
     private SrNormalizers normalizers;
 
     private boolean buildMostSimilarCache = false;
+    private boolean incrementalMostSimilarCache = false;
     private SparseMatrix mostSimilarCache = null;
     private TIntSet mostSimilarCacheRowIds = null;
 
@@ -203,7 +206,9 @@ public abstract class BaseSRMetric implements SRMetric {
         }
         normalizers.trainMostSimilar(this, disambiguator, dataset, validIds, numResults);
         try {
-            if (buildMostSimilarCache) {
+            if (buildMostSimilarCache && incrementalMostSimilarCache) {
+                updateMostSimilarCache(numResults, mostSimilarCacheRowIds, validIds, null);
+            } else if (buildMostSimilarCache) {
                 writeMostSimilarCache(numResults, mostSimilarCacheRowIds, validIds);
             }
         } catch (Exception e) {
@@ -393,6 +398,10 @@ public abstract class BaseSRMetric implements SRMetric {
 
     /**
      * Creates and writes a sparse matrix that records the top-k results for every page.
+     *
+     * Completed rows are journaled as they are computed. If the build dies, calling
+     * this method again with the same parameters resumes where it left off.
+     *
      * @param maxHits
      * @param rowIds
      * @param colIds
@@ -401,29 +410,115 @@ public abstract class BaseSRMetric implements SRMetric {
      * @throws WikiBrainException
      */
     public void writeMostSimilarCache(final int maxHits, TIntSet rowIds, TIntSet colIds) throws IOException, DaoException, WikiBrainException{
+        if (rowIds == null || colIds == null) {
+            TIntSet allPageIds = getAllPageIds();
+            if (rowIds == null) rowIds = allPageIds;
+            if (colIds == null) colIds = allPageIds;
+        }
+        buildMostSimilarCache(maxHits, rowIds, colIds, rowIds, null, null);
+    }
+
+    /**
+     * Refreshes an existing most similar cache, recomputing only the rows that may have changed.
+     *
+     * A row is recomputed if its page changed, if it is missing from the existing cache,
+     * or if its cached results include a changed page or a page that is no longer a valid
+     * column. All other rows, including rows with fewer than maxHits results, are copied
+     * from the existing cache. Pages are considered
+     * changed if they appear in changedIds or if their fingerprint (see
+     * {@link #getMostSimilarFingerprints(gnu.trove.set.TIntSet)}) differs from the one
+     * recorded when the cache was last written. Unchanged rows are not searched for
+     * changed pages that have newly entered their top results.
+     *
+     * If there is no existing cache, or it was built with different parameters,
+     * the full cache is written.
+     *
+     * @param maxHits
+     * @param rowIds Row ids, or null for all pages.
+     * @param colIds Column ids, or null for all pages.
+     * @param changedIds Pages known to have changed. May be null.
+     * @throws IOException
+     * @throws DaoException
+     * @throws WikiBrainException
+     */
+    public void updateMostSimilarCache(int maxHits, TIntSet rowIds, TIntSet colIds, TIntSet changedIds) throws IOException, DaoException, WikiBrainException {
+        SparseMatrix previous = mostSimilarCache;
+        if (previous == null && getMostSimilarMatrixPath().isFile()) {
+            previous = new SparseMatrix(getMostSimilarMatrixPath());
+        }
+        ValueConf vconf = new ValueConf(getConfig().minScore, getConfig().maxScore);
+        if (previous == null || !previous.getValueConf().almostEquals(vconf)) {
+            LOG.info("no compatible most similar cache for " + getName() + "; writing the full cache");
+            if (previous != mostSimilarCache) {
+                IOUtils.closeQuietly(previous);
+            }
+            writeMostSimilarCache(maxHits, rowIds, colIds);
+            return;
+        }
 
-        TIntSet allPageIds = null;
-        // Get all page ids
         if (rowIds == null || colIds == null) {
-            DaoFilter pageFilter = new DaoFilter()
-                    .setLanguages(getLanguage())
-                    .setNameSpaces(NameSpace.ARTICLE)
-                    .setDisambig(false)
-                    .setRedirect(false);
-            Iterable<LocalPage> localPages = localPageDao.get(pageFilter);
-            allPageIds = new TIntHashSet();
-            for (LocalPage page : localPages) {
-                if (page != null) {
-                    allPageIds.add(page.getLocalId());
+            TIntSet allPageIds = getAllPageIds();
+            if (rowIds == null) rowIds = allPageIds;
+            if (colIds == null) colIds = allPageIds;
+        }
+        TIntSet changed = (changedIds == null) ? new TIntHashSet() : new TIntHashSet(changedIds);
+        TIntSet allIds = new TIntHashSet(rowIds);
+        allIds.addAll(colIds);
+        TIntLongMap fingerprints = getMostSimilarFingerprints(allIds);
+        TIntLongMap oldFingerprints = readMostSimilarFingerprints();
+        if (fingerprints != null) {
+            for (int id : allIds.toArray()) {
+                if (oldFingerprints == null
+                ||  !oldFingerprints.containsKey(id)
+                ||  oldFingerprints.get(id) != fingerprints.get(id)) {
+                    changed.add(id);
                 }
             }
+        } else if (changedIds == null) {
+            LOG.warning("metric " + getName() + " cannot detect changed pages and no changed ids were given; recomputing all rows");
+            changed.addAll(allIds);
         }
-        if (rowIds == null) rowIds = allPageIds;
-        if (colIds == null) colIds = allPageIds;
 
+        TIntSet recompute = new TIntHashSet();
+        for (int id : rowIds.toArray()) {
+            if (changed.contains(id)) {
+                recompute.add(id);
+                continue;
+            }
+            MatrixRow row = previous.getRow(id);
+            if (row == null) {
+                recompute.add(id);
+                continue;
+            }
+            for (int i = 0; i < row.getNumCols(); i++) {
+                int id2 = row.getColIndex(i);
+                if (changed.contains(id2) || !colIds.contains(id2)) {
+                    recompute.add(id);
+                    break;
+                }
+            }
+        }
+        LOG.info("recomputing " + recompute.size() + " of " + rowIds.size() + " most similar rows for " +
+                getName() + " (" + changed.size() + " changed pages)");
+        buildMostSimilarCache(maxHits, rowIds, colIds, recompute, previous, fingerprints);
+    }
+
+    /**
+     * Writes the most similar cache. Rows in recompute are calculated, and all other
+     * rows are copied from the previous cache.
+     *
+     * @param fingerprints Fingerprints to record for the cache. If null, only the rows
+     *                     that were calculated are fingerprinted.
+     */
+    private void buildMostSimilarCache(final int maxHits, TIntSet rowIds, TIntSet colIds, TIntSet recompute, final SparseMatrix previous, TIntLongMap fingerprints) throws IOException, DaoException {
         getDataDir().mkdirs();
-        IOUtils.closeQuietly(mostSimilarCache);
 
+        // Stop answering mostSimilar from the cache while it is being rebuilt.
+        SparseMatrix current = mostSimilarCache;
+        mostSimilarCache = null;
+        if (current != previous) {
+            IOUtils.closeQuietly(current);
+        }
 
         SRConfig config = getConfig();
         final AtomicInteger idCounter = new AtomicInteger();
@@ -431,8 +526,30 @@ public abstract class BaseSRMetric implements SRMetric {
         ValueConf vconf = new ValueConf(config.minScore, config.maxScore);
 
         final SparseMatrixWriter writer = new SparseMatrixWriter(getMostSimilarMatrixPath(), vconf);
+        writer.setExpectedNumRows(rowIds.size());
         final TIntSet colIdSet = colIds == null ? null : new TIntHashSet(colIds);
 
+        final SparseRowJournal journal = new SparseRowJournal(
+                getMostSimilarJournalPath(), vconf, getMostSimilarJournalTag(maxHits, colIdSet));
+        TIntSet completed = journal.open(writer);
+
+        TIntArrayList toCompute = new TIntArrayList();
+        for (int id : recompute.toArray()) {
+            if (rowIds.contains(id) && !completed.contains(id)) {
+                toCompute.add(id);
+            }
+        }
+        if (previous != null) {
+            for (int id : rowIds.toArray()) {
+                if (!recompute.contains(id) && !completed.contains(id)) {
+                    SparseMatrixRow row = previous.getRow(id);
+                    if (row != null) {
+                        writer.writeRow(row);
+                    }
+                }
+            }
+        }
+        LOG.info("computing " + toCompute.size() + " most similar rows (" + completed.size() + " resumed from journal)");
 
         Normalizer simNormalizer = getSimilarityNormalizer();
         Normalizer mostSimNormalizer = getMostSimilarNormalizer();
@@ -440,29 +557,109 @@ public abstract class BaseSRMetric implements SRMetric {
         setSimilarityNormalizer(new IdentityNormalizer());
         try {
             ParallelForEach.loop(
-                    Arrays.asList(ArrayUtils.toObject(rowIds.toArray())),
+                    WbArrayUtils.toList(toCompute.toArray()),
                     WpThreadUtils.getMaxThreads(),
                     new Procedure<Integer>() {
                         public void call(Integer wpId) throws IOException, DaoException {
-                            writeSim(writer, wpId, colIdSet, maxHits, idCounter, cellCounter);
+                            writeSim(writer, journal, wpId, colIdSet, maxHits, idCounter, cellCounter);
                         }
                     }, Integer.MAX_VALUE);
         } finally {
             setSimilarityNormalizer(simNormalizer);
             setMostSimilarNormalizer(mostSimNormalizer);
+            journal.close();
         }
 
         LOG.info("wrote " + cellCounter.get() + " non-zero similarity cells");
         writer.finish();
+        IOUtils.closeQuietly(previous);
+        journal.delete();
+
+        if (fingerprints == null) {
+            TIntSet computed = new TIntHashSet(toCompute.toArray());
+            for (int id : completed.toArray()) {
+                if (recompute.contains(id)) {
+                    computed.add(id);
+                }
+            }
+            fingerprints = getMostSimilarFingerprints(computed);
+        }
+        writeMostSimilarFingerprints(fingerprints);
         mostSimilarCache = new SparseMatrix(getMostSimilarMatrixPath());
     }
 
+    /**
+     * Returns a fingerprint for each of the requested pages that changes whenever the
+     * information the metric uses to compare the page changes. Used by
+     * {@link #updateMostSimilarCache(int, gnu.trove.set.TIntSet, gnu.trove.set.TIntSet, gnu.trove.set.TIntSet)}
+     * to detect pages whose most similar results must be recomputed.
+     *
+     * @param pageIds
+     * @return A map from page id to fingerprint, or null if the metric cannot fingerprint pages.
+     * @throws IOException
+     */
+    protected TIntLongMap getMostSimilarFingerprints(TIntSet pageIds) throws IOException {
+        return null;
+    }
+
+    private TIntLongMap readMostSimilarFingerprints() throws IOException {
+        if (!getMostSimilarFingerprintPath().isFile()) {
+            return null;
+        }
+        return (TIntLongMap) WpIOUtils.readObjectFromFile(getMostSimilarFingerprintPath());
+    }
+
+    private void writeMostSimilarFingerprints(TIntLongMap fingerprints) throws IOException {
+        if (fingerprints == null) {
+            FileUtils.deleteQuietly(getMostSimilarFingerprintPath());
+        } else {
+            WpIOUtils.writeObjectToFile(getMostSimilarFingerprintPath(), fingerprints);
+        }
+    }
+
+    private TIntSet getAllPageIds() throws DaoException {
+        DaoFilter pageFilter = new DaoFilter()
+                .setLanguages(getLanguage())
+                .setNameSpaces(NameSpace.ARTICLE)
+                .setDisambig(false)
+                .setRedirect(false);
+        Iterable<LocalPage> localPages = localPageDao.get(pageFilter);
+        TIntSet allPageIds = new TIntHashSet();
+        for (LocalPage page : localPages) {
+            if (page != null) {
+                allPageIds.add(page.getLocalId());
+            }
+        }
+        return allPageIds;
+    }
+
+    /**
+     * Identifies the parameters of a cache build so a journal from a different build is not resumed.
+     */
+    private static long getMostSimilarJournalTag(int maxHits, TIntSet colIds) {
+        long tag = maxHits;
+        long colHash = 0;
+        for (int id : colIds.toArray()) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            colHash += h ^ (h >>> 29);
+        }
+        return tag * 31 + colHash + colIds.size();
+    }
+
     protected File getMostSimilarMatrixPath() {
         return new File(getDataDir(), "mostSimilar.matrix");
     }
 
+    protected File getMostSimilarJournalPath() {
+        return new File(getDataDir(), "mostSimilar.journal");
+    }
+
+    protected File getMostSimilarFingerprintPath() {
+        return new File(getDataDir(), "mostSimilar.fingerprints");
+    }
 
-    private void writeSim(SparseMatrixWriter writer, Integer wpId, TIntSet colIds, int maxSimsPerDoc, AtomicInteger idCounter, AtomicLong cellCounter) throws IOException, DaoException {
+
+    private void writeSim(SparseMatrixWriter writer, SparseRowJournal journal, Integer wpId, TIntSet colIds, int maxSimsPerDoc, AtomicInteger idCounter, AtomicLong cellCounter) throws IOException, DaoException {
         if (idCounter.incrementAndGet() % 10000 == 0) {
             LOG.info("finding matches for page " + idCounter.get());
         }
@@ -470,7 +667,9 @@ public abstract class BaseSRMetric implements SRMetric {
         if (scores != null) {
             int ids[] = scores.getIds();
             cellCounter.getAndIncrement();
-            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), wpId, ids, scores.getScoresAsFloat()));
+            SparseMatrixRow row = new SparseMatrixRow(writer.getValueConf(), wpId, ids, scores.getScoresAsFloat());
+            writer.writeRow(row);
+            journal.append(row);
         }
     }
 
@@ -503,6 +702,8 @@ public abstract class BaseSRMetric implements SRMetric {
     public void clearMostSimilarCache() {
         IOUtils.closeQuietly(mostSimilarCache);
         FileUtils.deleteQuietly(getMostSimilarMatrixPath());
+        FileUtils.deleteQuietly(getMostSimilarJournalPath());
+        FileUtils.deleteQuietly(getMostSimilarFingerprintPath());
         mostSimilarCache = null;
     }
 
@@ -510,6 +711,14 @@ public abstract class BaseSRMetric implements SRMetric {
         this.buildMostSimilarCache = buildMostSimilarCache;
     }
 
+    /**
+     * If true, training refreshes an existing most similar cache instead of rebuilding it.
+     * @see #updateMostSimilarCache(int, gnu.trove.set.TIntSet, gnu.trove.set.TIntSet, gnu.trove.set.TIntSet)
+     */
+    public void setIncrementalMostSimilarCache(boolean incremental) {
+        this.incrementalMostSimilarCache = incremental;
+    }
+
     public void setMostSimilarCacheRowIds(TIntSet rowIds) {
         this.mostSimilarCacheRowIds = rowIds;
     }
@@ -531,6 +740,9 @@ public abstract class BaseSRMetric implements SRMetric {
         if (config.hasPath("buildMostSimilarCache")) {
             sr.setBuildMostSimilarCache(config.getBoolean("buildMostSimilarCache"));
         }
+        if (config.hasPath("incrementalMostSimilarCache")) {
+            sr.setIncrementalMostSimilarCache(config.getBoolean("incrementalMostSimilarCache"));
+        }
 
         try {
             sr.read();
@@ -0,0 +1,417 @@
+package org.wikibrain.sr;
+
+import com.typesafe.config.Config;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.dataset.Dataset;
+import org.wikibrain.sr.normalize.Normalizer;
+import org.wikibrain.utils.StripedLruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An SR metric that caches the results of another metric in memory.
+ *
+ * Similarity scores are cached by page id pair or phrase pair, and most similar lists
+ * by page id or phrase and result count. Requests for explanations or restricted to a
+ * set of valid ids are passed straight through. The cache is bounded by an estimate of
+ * its size in bytes, and is cleared whenever the underlying metric is read, trained,
+ * or has its normalizers replaced through this metric.
+ *
+ * The underlying metric must only be read, trained or reconfigured through this metric,
+ * since the cache cannot detect changes made to it directly. Call invalidate() if that
+ * is unavoidable. The provider constructs a private instance of the underlying metric
+ * for this reason. Results computed before an invalidation are never cached after it.
+ */
+public class CachedSRMetric implements SRMetric {
+    private static final Logger LOG = Logger.getLogger(CachedSRMetric.class.getName());
+
+    public static final int DEFAULT_NUM_STRIPES = 16;
+
+    /**
+     * Stands in for null results from the underlying metric.
+     */
+    private static final Object NULL_RESULT = new Object();
+
+    private static final int SIMILARITY = 0;
+    private static final int PHRASE_SIMILARITY = 1;
+    private static final int MOST_SIMILAR = 2;
+    private static final int PHRASE_MOST_SIMILAR = 3;
+
+    private final SRMetric delegate;
+    private final StripedLruCache<Key, Object> cache;
+
+    /**
+     * Incremented on each invalidation. Results are only cached if no invalidation
+     * happened while they were being computed.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param delegate The metric whose results are cached.
+     * @param maxBytes Approximate maximum size of the cache.
+     * @param numStripes Number of independently locked cache stripes.
+     */
+    public CachedSRMetric(SRMetric delegate, long maxBytes, int numStripes) {
+        this.delegate = delegate;
+        this.cache = new StripedLruCache<Key, Object>(maxBytes, numStripes, new StripedLruCache.Weigher<Key, Object>() {
+            @Override
+            public int weigh(Key key, Object value) {
+                return key.getSizeInBytes() + getSizeInBytes(value);
+            }
+        });
+    }
+
+    public SRMetric getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return The cache, which reports hit rates, evictions and its estimated size.
+     */
+    public StripedLruCache<?, ?> getCache() {
+        return cache;
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public void invalidate() {
+        LOG.info("invalidating cache for metric " + getName() + ": " + cache);
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * Caches a result computed during the specified generation, unless the cache has
+     * been invalidated since.
+     */
+    private void put(Key key, Object value, long computedIn) {
+        if (generation.get() != computedIn) {
+            return;
+        }
+        cache.put(key, value);
+        if (generation.get() != computedIn) {
+            // invalidated while we were storing the result
+            cache.remove(key);
+        }
+    }
+
+    @Override
+    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+        if (explanations) {
+            return delegate.similarity(pageId1, pageId2, true);
+        }
+        Key key = new Key(SIMILARITY, pageId1, pageId2, null, null);
+        long gen = generation.get();
+        Object cached = cache.get(key);
+        if (cached == null) {
+            SRResult result = delegate.similarity(pageId1, pageId2, false);
+            cached = (result == null) ? NULL_RESULT : (Double) result.getScore();
+            put(key, cached, gen);
+        }
+        return toResult(cached);
+    }
+
+    @Override
+    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+        if (explanations) {
+            return delegate.similarity(phrase1, phrase2, true);
+        }
+        Key key = new Key(PHRASE_SIMILARITY, 0, 0, normalize(phrase1), normalize(phrase2));
+        long gen = generation.get();
+        Object cached = cache.get(key);
+        if (cached == null) {
+            SRResult result = delegate.similarity(phrase1, phrase2, false);
+            cached = (result == null) ? NULL_RESULT : (Double) result.getScore();
+            put(key, cached, gen);
+        }
+        return toResult(cached);
+    }
+
+    @Override
+    public SRResultList mostSimilar(int pageId, int maxResults) throws DaoException {
+        return mostSimilar(pageId, maxResults, null);
+    }
+
+    @Override
+    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+        if (validIds != null) {
+            return delegate.mostSimilar(pageId, maxResults, validIds);
+        }
+        Key key = new Key(MOST_SIMILAR, pageId, maxResults, null, null);
+        long gen = generation.get();
+        Object cached = cache.get(key);
+        if (cached == null) {
+            cached = toCached(delegate.mostSimilar(pageId, maxResults));
+            put(key, cached, gen);
+        }
+        return toResultList(cached);
+    }
+
+    @Override
+    public SRResultList mostSimilar(String phrase, int maxResults) throws DaoException {
+        return mostSimilar(phrase, maxResults, null);
+    }
+
+    @Override
+    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+        if (validIds != null) {
+            return delegate.mostSimilar(phrase, maxResults, validIds);
+        }
+        Key key = new Key(PHRASE_MOST_SIMILAR, 0, maxResults, normalize(phrase), null);
+        long gen = generation.get();
+        Object cached = cache.get(key);
+        if (cached == null) {
+            cached = toCached(delegate.mostSimilar(phrase, maxResults));
+            put(key, cached, gen);
+        }
+        return toResultList(cached);
+    }
+
+    private static String normalize(String phrase) {
+        return phrase.trim().replaceAll("\\s+", " ");
+    }
+
+    private static SRResult toResult(Object cached) {
+        return (cached == NULL_RESULT) ? null : new SRResult((Double) cached);
+    }
+
+    private static Object toCached(SRResultList list) {
+        return (list == null) ? NULL_RESULT : new CachedList(list);
+    }
+
+    private static SRResultList toResultList(Object cached) {
+        return (cached == NULL_RESULT) ? null : ((CachedList) cached).toResultList();
+    }
+
+    private static int getSizeInBytes(Object value) {
+        if (value instanceof CachedList) {
+            return ((CachedList) value).getSizeInBytes();
+        } else {
+            return 16;
+        }
+    }
+
+    @Override
+    public void read() throws IOException {
+        invalidate();
+        delegate.read();
+    }
+
+    @Override
+    public void write() throws IOException {
+        delegate.write();
+    }
+
+    @Override
+    public void trainSimilarity(Dataset dataset) throws DaoException {
+        invalidate();
+        delegate.trainSimilarity(dataset);
+        invalidate();
+    }
+
+    @Override
+    public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) {
+        invalidate();
+        delegate.trainMostSimilar(dataset, numResults, validIds);
+        invalidate();
+    }
+
+    @Override
+    public boolean similarityIsTrained() {
+        return delegate.similarityIsTrained();
+    }
+
+    @Override
+    public boolean mostSimilarIsTrained() {
+        return delegate.mostSimilarIsTrained();
+    }
+
+    @Override
+    public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) throws DaoException {
+        return delegate.cosimilarity(wpRowIds, wpColIds);
+    }
+
+    @Override
+    public double[][] cosimilarity(String[] rowPhrases, String[] colPhrases) throws DaoException {
+        return delegate.cosimilarity(rowPhrases, colPhrases);
+    }
+
+    @Override
+    public double[][] cosimilarity(int[] ids) throws DaoException {
+        return delegate.cosimilarity(ids);
+    }
+
+    @Override
+    public double[][] cosimilarity(String[] phrases) throws DaoException {
+        return delegate.cosimilarity(phrases);
+    }
+
+    @Override
+    public Normalizer getMostSimilarNormalizer() {
+        return delegate.getMostSimilarNormalizer();
+    }
+
+    @Override
+    public void setMostSimilarNormalizer(Normalizer n) {
+        delegate.setMostSimilarNormalizer(n);
+        invalidate();
+    }
+
+    @Override
+    public Normalizer getSimilarityNormalizer() {
+        return delegate.getSimilarityNormalizer();
+    }
+
+    @Override
+    public void setSimilarityNormalizer(Normalizer n) {
+        delegate.setSimilarityNormalizer(n);
+        invalidate();
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public Language getLanguage() {
+        return delegate.getLanguage();
+    }
+
+    @Override
+    public File getDataDir() {
+        return delegate.getDataDir();
+    }
+
+    @Override
+    public void setDataDir(File dir) {
+        delegate.setDataDir(dir);
+        invalidate();
+    }
+
+    /**
+     * A cache key. Unused fields are zero or null.
+     */
+    private static final class Key {
+        final int type;
+        final int i1;
+        final int i2;
+        final String s1;
+        final String s2;
+
+        Key(int type, int i1, int i2, String s1, String s2) {
+            this.type = type;
+            this.i1 = i1;
+            this.i2 = i2;
+            this.s1 = s1;
+            this.s2 = s2;
+        }
+
+        int getSizeInBytes() {
+            // object, map entry and linked list overhead, plus strings
+            int size = 96;
+            if (s1 != null) size += 48 + 2 * s1.length();
+            if (s2 != null) size += 48 + 2 * s2.length();
+            return size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return type == that.type && i1 == that.i1 && i2 == that.i2
+                    && (s1 == null ? that.s1 == null : s1.equals(that.s1))
+                    && (s2 == null ? that.s2 == null : s2.equals(that.s2));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = type;
+            h = 31 * h + i1;
+            h = 31 * h + i2;
+            h = 31 * h + (s1 == null ? 0 : s1.hashCode());
+            h = 31 * h + (s2 == null ? 0 : s2.hashCode());
+            return h;
+        }
+    }
+
+    /**
+     * An immutable copy of a most similar list. Explanations are not retained.
+     */
+    private static final class CachedList {
+        final int ids[];
+        final double scores[];
+        final double missingScore;
+
+        CachedList(SRResultList list) {
+            this.ids = new int[list.numDocs()];
+            this.scores = new double[list.numDocs()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = list.getId(i);
+                scores[i] = list.getScore(i);
+            }
+            this.missingScore = list.getMissingScore();
+        }
+
+        SRResultList toResultList() {
+            SRResultList list = new SRResultList(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                list.set(i, ids[i], scores[i]);
+            }
+            list.setMissingScore(missingScore);
+            return list;
+        }
+
+        int getSizeInBytes() {
+            return 64 + 12 * ids.length;
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<SRMetric> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SRMetric.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "sr.metric.local";
+        }
+
+        @Override
+        public SRMetric get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("cached")) {
+                return null;
+            }
+            if (runtimeParams == null || !runtimeParams.containsKey("language")) {
+                throw new IllegalArgumentException("Cached SR Metric requires 'language' runtime parameter");
+            }
+            Language language = Language.getByLangCode(runtimeParams.get("language"));
+            // Construct a private instance so that it can't be changed behind the cache's back
+            String metricName = config.getString("metric");
+            Config metricConfig = getConfig().get().getConfig("sr.metric.local." + metricName);
+            Map<String, String> metricParams = new HashMap<String, String>();
+            metricParams.put("language", language.getLangCode());
+            SRMetric delegate = getConfigurator().construct(SRMetric.class, metricName, metricConfig, metricParams);
+            long maxBytes = config.getLong("maxMb") * 1024L * 1024L;
+            int numStripes = config.hasPath("stripes") ? config.getInt("stripes") : DEFAULT_NUM_STRIPES;
+            return new CachedSRMetric(delegate, maxBytes, numStripes);
+        }
+    }
+}
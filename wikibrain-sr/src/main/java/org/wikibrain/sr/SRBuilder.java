@@ -59,6 +59,7 @@ public class SRBuilder {
 
     // Information that corresponds to building the cosimilarity matrix
     private boolean buildCosimilarity = false;
+    private boolean incrementalCosimilarity = false;
     private TIntSet rowIds = null;
     private TIntSet colIds = null;
 
@@ -204,6 +205,7 @@ public class SRBuilder {
         SRMetric metric = getMetric(name);
         if (metric instanceof BaseSRMetric) {
             ((BaseSRMetric)metric).setBuildMostSimilarCache(buildCosimilarity);
+            ((BaseSRMetric)metric).setIncrementalMostSimilarCache(incrementalCosimilarity);
         }
         if (mode == Mode.SIMILARITY || mode == Mode.BOTH) {
             if (skipBuiltMetrics && metric.similarityIsTrained()) {
@@ -350,6 +352,13 @@ public class SRBuilder {
         this.buildCosimilarity = buildCosimilarity;
     }
 
+    /**
+     * If true, existing cosimilarity matrices are refreshed by recomputing only the rows that changed.
+     */
+    public void setIncrementalCosimilarity(boolean incrementalCosimilarity) {
+        this.incrementalCosimilarity = incrementalCosimilarity;
+    }
+
     public void setMaxResults(int maxResults) {
         this.maxResults = maxResults;
     }
@@ -444,6 +453,13 @@ public class SRBuilder {
                         .withDescription("build cosimilarity matrices")
                         .create("s"));
 
+        // incrementally refresh the cosimilarity matrix
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("incremental")
+                        .withDescription("only recompute changed rows of existing cosimilarity matrices (implies -s and -d false)")
+                        .create("i"));
+
         // sets the mode
         options.addOption(
                 new DefaultOptionBuilder()
@@ -499,6 +515,11 @@ public class SRBuilder {
         if (cmd.hasOption("s")) {
             builder.setBuildCosimilarity(true);
         }
+        if (cmd.hasOption("i")) {
+            builder.setBuildCosimilarity(true);
+            builder.setIncrementalCosimilarity(true);
+            builder.setDeleteExistingData(false);
+        }
         if (cmd.hasOption("k")) {
             builder.setSkipBuiltMetrics(true);
             builder.setDeleteExistingData(false);
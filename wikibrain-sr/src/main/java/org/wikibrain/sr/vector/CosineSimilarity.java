@@ -2,15 +2,18 @@ package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntFloatMap;
+import gnu.trove.iterator.TIntDoubleIterator;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.matrix.MatrixRow;
+import org.wikibrain.matrix.RowCursor;
 import org.wikibrain.matrix.SparseMatrix;
 import org.wikibrain.matrix.SparseMatrixRow;
 import org.wikibrain.sr.SRResultList;
@@ -20,22 +23,66 @@ import org.wikibrain.utils.WpIOUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.logging.Logger;
 
 /**
+ * Cosine similarity between sparse vectors.
+ *
+ * mostSimilar() scores candidates by walking the posting lists of the query's features in
+ * the transpose matrix. By default the walk is pruned in the style of MaxScore: query
+ * features are visited in decreasing order of the most they can add to any candidate's
+ * score, using per-feature bounds computed alongside the transpose matrix. Once no unseen
+ * page can enter the top results, new candidates are no longer created, and candidates
+ * that cannot reach the top results are dropped. When few candidates remain, they are
+ * finished by scoring them directly against their feature vectors. The results are the
+ * same as an exhaustive search.
+ *
+ * If the ids of the pages span a compact range, scores are accumulated in a dense array
+ * instead of a hash map.
+ *
  * @author Shilad Sen
  */
 public class CosineSimilarity implements VectorSimilarity {
     private static final Logger LOG = Logger.getLogger(CosineSimilarity.class.getName());
 
+    /**
+     * Default maximum range of page ids for which dense accumulators are used.
+     * Each thread needs 12 bytes per id in the range.
+     */
+    public static final int DEFAULT_DENSE_ACCUMULATOR_MAX_IDS = 4 * 1024 * 1024;
+
+    /**
+     * Dense accumulators are used if the id range is at most this many times the number of ids.
+     */
+    private static final int DENSE_ACCUMULATOR_MAX_SPARSITY = 4;
+
+    /**
+     * Slack allowed for floating point error when comparing scores to bounds.
+     */
+    private static final double BOUND_EPSILON = 1E-6;
+
     private TIntFloatHashMap lengths = new TIntFloatHashMap();   // lengths of each row
     private TIntSet idsInResults = new TIntHashSet();
     private int maxResults = -1;
+    private FeatureBounds bounds = null;
+
+    private boolean pruning = true;
+    private int denseAccumulatorMaxIds = DEFAULT_DENSE_ACCUMULATOR_MAX_IDS;
+
+    // Lengths of rows in the compact id range, or null if dense accumulators are not used.
+    private int denseMinId = 0;
+    private float denseLengths[] = null;
 
     private SparseMatrix features;
     private SparseMatrix transpose;
 
+    // Cursors and buffers used by mostSimilar(), reused across calls by each thread.
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+
     @Override
     public synchronized  void setMatrices(SparseMatrix features, SparseMatrix transpose, File dataDir) throws IOException {
         this.features = features;
@@ -44,13 +91,16 @@ public class CosineSimilarity implements VectorSimilarity {
         File idCacheFile = new File(dataDir, "cosineSimilarity-ids.bin");
         File lengthCacheFile = new File(dataDir, "cosineSimilarity-lengths.bin");
         File maxCacheFile = new File(dataDir, "cosineSimilarity-maxResults.bin");
+        File boundsCacheFile = new File(dataDir, "cosineSimilarity-bounds.bin");
 
         if (lengthCacheFile.exists() && lengthCacheFile.lastModified() >= features.lastModified()
-                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()) {
+                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()
+                &&  boundsCacheFile.exists() && boundsCacheFile.lastModified() >= transpose.lastModified()) {
             LOG.info("reading matrix information from cache");
             lengths = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(lengthCacheFile);
             idsInResults = (TIntSet) WpIOUtils.readObjectFromFile(idCacheFile);
             maxResults = (Integer) WpIOUtils.readObjectFromFile(maxCacheFile);
+            bounds = (FeatureBounds) WpIOUtils.readObjectFromFile(boundsCacheFile);
         } else {
             LOG.info("building cached matrix information");
             lengths.clear();
@@ -61,10 +111,58 @@ public class CosineSimilarity implements VectorSimilarity {
                 maxResults = Math.max(maxResults, row.getNumCols());
             }
             idsInResults.addAll(transpose.getRowIds());
+            bounds = new FeatureBounds(transpose, lengths);
             WpIOUtils.writeObjectToFile(lengthCacheFile, lengths);
             WpIOUtils.writeObjectToFile(idCacheFile, idsInResults);
             WpIOUtils.writeObjectToFile(maxCacheFile, maxResults);
+            WpIOUtils.writeObjectToFile(boundsCacheFile, bounds);
+        }
+        buildDenseLengths();
+    }
+
+    /**
+     * Builds the dense array of row lengths if the row ids span a compact range.
+     */
+    private void buildDenseLengths() {
+        denseLengths = null;
+        denseMinId = 0;
+        if (lengths.isEmpty() || denseAccumulatorMaxIds <= 0) {
+            return;
+        }
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for (int id : lengths.keys()) {
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
         }
+        long span = 1L + maxId - minId;
+        if (span > denseAccumulatorMaxIds || span > 1L * DENSE_ACCUMULATOR_MAX_SPARSITY * lengths.size()) {
+            return;
+        }
+        float dense[] = new float[(int) span];
+        for (int id : lengths.keys()) {
+            dense[id - minId] = lengths.get(id);
+        }
+        denseMinId = minId;
+        denseLengths = dense;
+        LOG.info("using dense accumulators for " + lengths.size() + " rows with ids in [" + minId + ", " + maxId + "]");
+    }
+
+    /**
+     * @param pruning If true (the default), mostSimilar() prunes candidates that cannot
+     *                enter the results. If false, every candidate is scored.
+     */
+    public void setPruning(boolean pruning) {
+        this.pruning = pruning;
+    }
+
+    /**
+     * Sets the maximum range of page ids for which dense score accumulators are used.
+     * Zero disables dense accumulators.
+     */
+    public synchronized void setDenseAccumulatorMaxIds(int maxIds) {
+        this.denseAccumulatorMaxIds = maxIds;
+        buildDenseLengths();
     }
 
     @Override
@@ -89,12 +187,12 @@ public class CosineSimilarity implements VectorSimilarity {
                 // if matrix a has a lower value, then get the next column
                 float va = a.getColValue(i++);
                 adota += va * va;
-                ca = a.getColIndex(i);
+                if (i < na) ca = a.getColIndex(i);
             } else if (ca > cb) {
                 // if matrix b has a lower value, then get the next column
                 float vb = b.getColValue(j++);
                 bdotb += vb * vb;
-                cb = b.getColIndex(j);
+                if (j < nb) cb = b.getColIndex(j);
             } else {
                 // if both have the same value, increment the intersection and get the next columns in both matrices
                 float va = a.getColValue(i++);
@@ -103,8 +201,8 @@ public class CosineSimilarity implements VectorSimilarity {
                 bdotb += vb * vb;
                 adotb += va * vb;
 
-                ca = a.getColIndex(i);
-                cb = b.getColIndex(j);
+                if (i < na) ca = a.getColIndex(i);
+                if (j < nb) cb = b.getColIndex(j);
             }
         }
 
@@ -133,6 +231,8 @@ public class CosineSimilarity implements VectorSimilarity {
     public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         if (validIds != null && validIds.size() < 10000) {
             return mostSimilarWithRegularIndex(query, maxResults, validIds);
+        } else if (pruning && bounds != null) {
+            return mostSimilarWithPrunedIndex(query, maxResults, validIds);
         } else {
             return mostSimilarWithInvertedIndex(query, maxResults, validIds);
         }
@@ -142,15 +242,15 @@ public class CosineSimilarity implements VectorSimilarity {
         final Leaderboard leaderboard = new Leaderboard(maxResults);
         double rowNorm = norm(query);
 
+        RowCursor row2 = getScratch().featureCursor;
         for (int id : validIds.toArray()) {
-            MatrixRow row2 = features.getRow(id);
-            if (row2 != null) {
+            if (row2.moveTo(id)) {
                 double dot = 0.0;
                 for (int i = 0; i < row2.getNumCols(); i++) {
                     int id2 = row2.getColIndex(i);
                     float val2 = query.get(id2);
                     if (val2 > 0) {
-                        dot += val2 + row2.getColValue(i);
+                        dot += val2 * row2.getColValue(i);
                     }
                 }
                 double l1 = lengths.get(id);
@@ -167,19 +267,25 @@ public class CosineSimilarity implements VectorSimilarity {
 
     private SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         TIntDoubleHashMap dots = new TIntDoubleHashMap(maxResults * 5);
+        Scratch s = getScratch();
+        RowCursor row2 = s.transposeCursor;
 
         // Eschew a for-each loop here for performance reasons.
         int keys[] = query.keys();
         for (int i = 0; i < keys.length; i++) {
             int id = keys[i];
             float val1 = query.get(id);
-            MatrixRow row2 = transpose.getRow(id);
-            if (row2 != null) {
+            if (row2.moveTo(id)) {
                 int n = row2.getNumCols();
+                s.ensureCapacity(n);
+                int ids2[] = s.ids;
+                float vals2[] = s.vals;
+                row2.getColIds(ids2);
+                row2.getColValues(vals2);
                 for (int j = 0; j < n; j++) {
-                    int id2 = row2.getColIndex(j);
+                    int id2 = ids2[j];
                     if (validIds == null || validIds.contains(id2)) {
-                        float val2 = row2.getColValue(j);
+                        float val2 = vals2[j];
                         dots.adjustOrPutValue(id2, val1 * val2, val1 * val2);
                     }
                 }
@@ -203,6 +309,444 @@ public class CosineSimilarity implements VectorSimilarity {
         return result;
     }
 
+    private SRResultList mostSimilarWithPrunedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        Scratch s = getScratch();
+        RowCursor row2 = s.transposeCursor;
+
+        // Order the query's features by the most they can add to a candidate's score.
+        int keys[] = query.keys();
+        int numTerms = 0;
+        int terms[] = new int[keys.length];
+        double upper[] = new double[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            float val1 = query.get(keys[i]);
+            if (val1 != 0 && bounds.contains(keys[i])) {
+                terms[numTerms] = keys[i];
+                upper[numTerms] = bounds.getUpper(keys[i], val1);
+                numTerms++;
+            }
+        }
+        int order[] = new int[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            order[i] = i;
+        }
+        sortByDescendingBound(order, upper);
+
+        // Suffix sums of the bounds of the features that have not been visited.
+        // A candidate may lack any of those features, so only the positive parts of the
+        // upper bounds and the negative parts of the lower bounds count.
+        double remainingUpper[] = new double[numTerms + 1];
+        double remainingLower[] = new double[numTerms + 1];
+        long remainingCells[] = new long[numTerms + 1];
+        for (int i = numTerms - 1; i >= 0; i--) {
+            int t = terms[order[i]];
+            float val1 = query.get(t);
+            remainingUpper[i] = remainingUpper[i+1] + Math.max(0.0, upper[order[i]]);
+            remainingLower[i] = remainingLower[i+1] + Math.min(0.0, bounds.getLower(t, val1));
+            remainingCells[i] = remainingCells[i+1] + bounds.getNumCols(t);
+        }
+
+        Accumulators acc = (denseLengths == null) ? new HashAccumulators(maxResults * 5) : s.getDenseAccumulators(denseLengths.length);
+        boolean addingCandidates = true;
+        long cellsSinceCheck = 0;
+        int visited = 0;
+        for (; visited < numTerms; visited++) {
+            int id = terms[order[visited]];
+            float val1 = query.get(id);
+            if (row2.moveTo(id)) {
+                int n = row2.getNumCols();
+                s.ensureCapacity(n);
+                int ids2[] = s.ids;
+                float vals2[] = s.vals;
+                row2.getColIds(ids2);
+                row2.getColValues(vals2);
+                for (int j = 0; j < n; j++) {
+                    int id2 = ids2[j];
+                    if (validIds == null || validIds.contains(id2)) {
+                        double score = val1 * weight(vals2[j], getLength(id2));
+                        if (addingCandidates) {
+                            acc.add(id2 - denseMinId, score);
+                        } else {
+                            acc.addIfPresent(id2 - denseMinId, score);
+                        }
+                    }
+                }
+                cellsSinceCheck += n;
+            }
+
+            // Checking the threshold requires a pass over the candidates, so only do it
+            // when at least as many cells have been scored since the last check.
+            if (maxResults <= 0 || acc.size() < maxResults || cellsSinceCheck < acc.size()) {
+                continue;
+            }
+            cellsSinceCheck = 0;
+            double threshold = acc.getKthLargest(maxResults) + remainingLower[visited+1] - BOUND_EPSILON;
+            if (remainingUpper[visited+1] < threshold) {
+                addingCandidates = false;
+            }
+            if (!addingCandidates) {
+                acc.prune(threshold - remainingUpper[visited+1]);
+                if (1L * acc.size() * bounds.getMeanRowLength() < remainingCells[visited+1]) {
+                    visited++;
+                    break;
+                }
+            }
+        }
+
+        final Leaderboard leaderboard = new Leaderboard(maxResults);
+        double rowNorm = norm(query);
+        int candidates[] = acc.getKeys();
+        if (visited < numTerms) {
+            // Few candidates remain, so score them directly.
+            RowCursor row = s.featureCursor;
+            for (int i = 0; i < candidates.length; i++) {
+                int id = candidates[i] + denseMinId;
+                if (row.moveTo(id)) {
+                    double length = getLength(id);
+                    double dot = 0.0;
+                    for (int j = 0; j < row.getNumCols(); j++) {
+                        float val1 = query.get(row.getColIndex(j));
+                        if (val1 != 0) {
+                            dot += val1 * weight(row.getColValue(j), length);
+                        }
+                    }
+                    leaderboard.tallyScore(id, dot / rowNorm);
+                }
+            }
+        } else {
+            for (int i = 0; i < candidates.length; i++) {
+                leaderboard.tallyScore(candidates[i] + denseMinId, acc.get(candidates[i]) / rowNorm);
+            }
+        }
+
+        SRResultList result = leaderboard.getTop();
+        result.sortDescending();
+        return result;
+    }
+
+    private double getLength(int id) {
+        return (denseLengths == null) ? lengths.get(id) : denseLengths[id - denseMinId];
+    }
+
+    /**
+     * The contribution of a cell to the cosine similarity per unit of query weight.
+     * Bounds and scores must be calculated the same way, so they agree exactly.
+     */
+    private static float weight(float value, double rowLength) {
+        return (rowLength == 0) ? 0.0f : (float) (value / rowLength);
+    }
+
+    private static void sortByDescendingBound(int order[], final double bounds[]) {
+        // insertion sort for short queries, otherwise sort boxed indexes
+        if (order.length < 32) {
+            for (int i = 1; i < order.length; i++) {
+                int x = order[i];
+                int j = i - 1;
+                while (j >= 0 && bounds[order[j]] < bounds[x]) {
+                    order[j+1] = order[j];
+                    j--;
+                }
+                order[j+1] = x;
+            }
+        } else {
+            Integer boxed[] = new Integer[order.length];
+            for (int i = 0; i < order.length; i++) {
+                boxed[i] = order[i];
+            }
+            Arrays.sort(boxed, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return Double.compare(bounds[i2], bounds[i1]);
+                }
+            });
+            for (int i = 0; i < order.length; i++) {
+                order[i] = boxed[i];
+            }
+        }
+    }
+
+    /**
+     * Per-feature bounds on the contributions of cells to cosine similarities.
+     * For each feature (row in the transpose), records the minimum and maximum
+     * weight of its cells and the number of cells.
+     */
+    private static class FeatureBounds implements Serializable {
+        private final TIntFloatHashMap maxWeights = new TIntFloatHashMap();
+        private final TIntFloatHashMap minWeights = new TIntFloatHashMap();
+        private final TIntIntHashMap numCols = new TIntIntHashMap();
+        private final double meanRowLength;
+
+        FeatureBounds(SparseMatrix transpose, TIntFloatHashMap lengths) {
+            long numCells = 0;
+            for (SparseMatrixRow row : transpose) {
+                float max = -Float.MAX_VALUE;
+                float min = Float.MAX_VALUE;
+                for (int i = 0; i < row.getNumCols(); i++) {
+                    float w = weight(row.getColValue(i), lengths.get(row.getColIndex(i)));
+                    max = Math.max(max, w);
+                    min = Math.min(min, w);
+                }
+                if (row.getNumCols() > 0) {
+                    maxWeights.put(row.getRowIndex(), max);
+                    minWeights.put(row.getRowIndex(), min);
+                    numCols.put(row.getRowIndex(), row.getNumCols());
+                }
+                numCells += row.getNumCols();
+            }
+            meanRowLength = lengths.isEmpty() ? 0.0 : 1.0 * numCells / lengths.size();
+        }
+
+        boolean contains(int feature) {
+            return numCols.containsKey(feature);
+        }
+
+        int getNumCols(int feature) {
+            return numCols.get(feature);
+        }
+
+        double getUpper(int feature, float queryValue) {
+            return queryValue * (queryValue > 0 ? maxWeights.get(feature) : minWeights.get(feature));
+        }
+
+        double getLower(int feature, float queryValue) {
+            return queryValue * (queryValue > 0 ? minWeights.get(feature) : maxWeights.get(feature));
+        }
+
+        double getMeanRowLength() {
+            return meanRowLength;
+        }
+    }
+
+    /**
+     * Partial scores for candidates. Keys are page ids, offset by the minimum id for dense accumulators.
+     */
+    private static abstract class Accumulators {
+        abstract void add(int key, double score);
+        abstract void addIfPresent(int key, double score);
+        abstract double get(int key);
+        abstract int size();
+        abstract int[] getKeys();
+
+        /**
+         * Removes all candidates whose score is below minScore.
+         */
+        abstract void prune(double minScore);
+
+        /**
+         * @return The k-th largest score. There must be at least k candidates.
+         */
+        abstract double getKthLargest(int k);
+
+        /**
+         * Returns the k-th largest value in the first n entries of vals.
+         */
+        static double getKthLargest(double vals[], int n, int k) {
+            double heap[] = new double[k];
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                double v = vals[i];
+                if (size < k) {
+                    int j = size++;
+                    while (j > 0 && heap[(j - 1) / 2] > v) {
+                        heap[j] = heap[(j - 1) / 2];
+                        j = (j - 1) / 2;
+                    }
+                    heap[j] = v;
+                } else if (v > heap[0]) {
+                    int j = 0;
+                    while (true) {
+                        int c = 2 * j + 1;
+                        if (c >= k) break;
+                        if (c + 1 < k && heap[c + 1] < heap[c]) c++;
+                        if (heap[c] >= v) break;
+                        heap[j] = heap[c];
+                        j = c;
+                    }
+                    heap[j] = v;
+                }
+            }
+            return heap[0];
+        }
+    }
+
+    private static class HashAccumulators extends Accumulators {
+        private final TIntDoubleHashMap scores;
+
+        HashAccumulators(int capacity) {
+            scores = new TIntDoubleHashMap(capacity);
+        }
+
+        void add(int key, double score) {
+            scores.adjustOrPutValue(key, score, score);
+        }
+
+        void addIfPresent(int key, double score) {
+            scores.adjustValue(key, score);
+        }
+
+        double get(int key) {
+            return scores.get(key);
+        }
+
+        int size() {
+            return scores.size();
+        }
+
+        int[] getKeys() {
+            return scores.keys();
+        }
+
+        void prune(double minScore) {
+            TIntDoubleIterator iter = scores.iterator();
+            while (iter.hasNext()) {
+                iter.advance();
+                if (iter.value() < minScore) {
+                    iter.remove();
+                }
+            }
+        }
+
+        double getKthLargest(int k) {
+            double vals[] = scores.values();
+            return getKthLargest(vals, vals.length, k);
+        }
+    }
+
+    /**
+     * Accumulators in an array indexed by page id. A per-query stamp marks the live
+     * entries, so the array never has to be cleared.
+     */
+    private static class DenseAccumulators extends Accumulators {
+        private final double scores[];
+        private final int stamps[];
+        private int stamp = 0;
+        private int keys[] = new int[1024];
+        private int numKeys = 0;
+        private int size = 0;
+
+        DenseAccumulators(int n) {
+            scores = new double[n];
+            stamps = new int[n];
+        }
+
+        void reset() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            numKeys = 0;
+            size = 0;
+        }
+
+        void add(int key, double score) {
+            if (stamps[key] == stamp) {
+                scores[key] += score;
+            } else {
+                stamps[key] = stamp;
+                scores[key] = score;
+                if (numKeys == keys.length) {
+                    keys = Arrays.copyOf(keys, keys.length * 2);
+                }
+                keys[numKeys++] = key;
+                size++;
+            }
+        }
+
+        void addIfPresent(int key, double score) {
+            if (stamps[key] == stamp) {
+                scores[key] += score;
+            }
+        }
+
+        double get(int key) {
+            return scores[key];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] getKeys() {
+            compact();
+            return Arrays.copyOf(keys, numKeys);
+        }
+
+        void prune(double minScore) {
+            for (int i = 0; i < numKeys; i++) {
+                int key = keys[i];
+                if (stamps[key] == stamp && scores[key] < minScore) {
+                    stamps[key] = 0;
+                    size--;
+                }
+            }
+            compact();
+        }
+
+        private void compact() {
+            int n = 0;
+            for (int i = 0; i < numKeys; i++) {
+                if (stamps[keys[i]] == stamp) {
+                    keys[n++] = keys[i];
+                }
+            }
+            numKeys = n;
+        }
+
+        double getKthLargest(int k) {
+            compact();
+            double vals[] = new double[numKeys];
+            for (int i = 0; i < numKeys; i++) {
+                vals[i] = scores[keys[i]];
+            }
+            return getKthLargest(vals, numKeys, k);
+        }
+    }
+
+    private Scratch getScratch() {
+        Scratch s = scratch.get();
+        if (s == null || s.features != features || s.transpose != transpose) {
+            s = new Scratch(features, transpose);
+            scratch.set(s);
+        }
+        return s;
+    }
+
+    /**
+     * Per-thread cursors over the matrices and buffers for bulk column reads.
+     */
+    private static class Scratch {
+        final SparseMatrix features;
+        final SparseMatrix transpose;
+        final RowCursor featureCursor;
+        final RowCursor transposeCursor;
+        int ids[] = new int[16];
+        float vals[] = new float[16];
+        DenseAccumulators dense = null;
+
+        Scratch(SparseMatrix features, SparseMatrix transpose) {
+            this.features = features;
+            this.transpose = transpose;
+            this.featureCursor = features.newCursor();
+            this.transposeCursor = transpose.newCursor();
+        }
+
+        DenseAccumulators getDenseAccumulators(int n) {
+            if (dense == null || dense.scores.length != n) {
+                dense = new DenseAccumulators(n);
+            }
+            dense.reset();
+            return dense;
+        }
+
+        void ensureCapacity(int n) {
+            if (ids.length < n) {
+                int size = Math.max(n, ids.length * 2);
+                ids = new int[size];
+                vals = new float[size];
+            }
+        }
+    }
+
     @Override
     public double getMinValue() {
         return -1.0;
@@ -241,7 +785,14 @@ public class CosineSimilarity implements VectorSimilarity {
             if (!config.getString("type").equals("cosine")) {
                 return null;
             }
-            return new CosineSimilarity();
+            CosineSimilarity similarity = new CosineSimilarity();
+            if (config.hasPath("pruning")) {
+                similarity.setPruning(config.getBoolean("pruning"));
+            }
+            if (config.hasPath("denseAccumulatorMaxIds")) {
+                similarity.setDenseAccumulatorMaxIds(config.getInt("denseAccumulatorMaxIds"));
+            }
+            return similarity;
         }
 }
 }
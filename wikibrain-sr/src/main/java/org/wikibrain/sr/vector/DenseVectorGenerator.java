@@ -0,0 +1,31 @@
+package org.wikibrain.sr.vector;
+
+/**
+ * A vector generator whose vectors are dense and share the same dimensions.
+ *
+ * Metrics can score dense vectors directly as float arrays instead of building
+ * sparse feature maps for them.
+ */
+public interface DenseVectorGenerator extends VectorGenerator {
+
+    /**
+     * @return The number of dimensions in each vector.
+     */
+    public int getDimensions();
+
+    /**
+     * Returns the dense vector associated with a Wikipedia id.
+     * The returned array must not be modified.
+     * @param pageId
+     * @return the vector, or null if it does not exist.
+     */
+    public float[] getDenseVector(int pageId);
+
+    /**
+     * Returns the dense vector associated with a phrase.
+     * The returned array must not be modified.
+     * @param phrase
+     * @return the vector, or null if it does not exist.
+     */
+    public float[] getDenseVector(String phrase);
+}
@@ -20,6 +20,7 @@ import org.wikibrain.lucene.QueryBuilder;
 import org.wikibrain.lucene.WikiBrainScoreDoc;
 import org.wikibrain.lucene.WpIdFilter;
 import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixWriter;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
@@ -45,6 +46,8 @@ public class ESAGenerator implements VectorGenerator {
     private final LocalPageDao pageDao;
 
     private WpIdFilter conceptFilter = null;
+    private TIntSet conceptIds = null;
+    private boolean streamingMatrix = false;
     private TIntSet blackListSet;
     private final String blackListFilePath;
 
@@ -107,6 +110,7 @@ public class ESAGenerator implements VectorGenerator {
 
     public void setConcepts(File file) throws IOException {
         conceptFilter = null;
+        conceptIds = null;
         if (!file.isFile()) {
             LOG.warning("concept path " + file + " not a file; defaulting to all concepts");
             return;
@@ -119,9 +123,41 @@ public class ESAGenerator implements VectorGenerator {
             }
         }
         conceptFilter = new WpIdFilter(ids.toArray());
+        conceptIds = ids;
         LOG.warning("installed " + ids.size() + " concepts for " + language);
     }
 
+    /**
+     * Writes the vectors for all the specified pages to the writer in a single streaming
+     * pass over the Lucene index. This is much faster than calling getVector() for each page,
+     * but the vectors are approximations of those returned by getVector().
+     *
+     * @see ESAMatrixBuilder
+     * @param pageIds
+     * @param writer
+     * @throws IOException
+     */
+    public void buildFeatureMatrix(TIntSet pageIds, SparseMatrixWriter writer) throws IOException {
+        ESAMatrixBuilder builder = new ESAMatrixBuilder(
+                searcher.getReaderByLanguage(language),
+                searcher.getOptions().elements.getTextFieldName());
+        builder.setConcepts(conceptIds);
+        builder.build(pageIds, writer);
+    }
+
+    /**
+     * @param streamingMatrix If true, feature matrices are built with
+     *                        {@link #buildFeatureMatrix(gnu.trove.set.TIntSet, org.wikibrain.matrix.SparseMatrixWriter)}
+     *                        instead of calling getVector() for each page.
+     */
+    public void setStreamingMatrix(boolean streamingMatrix) {
+        this.streamingMatrix = streamingMatrix;
+    }
+
+    public boolean isStreamingMatrix() {
+        return streamingMatrix;
+    }
+
     private boolean isBlacklisted(int wpLocalIDNumb) {
         return blackListSet.contains(wpLocalIDNumb);
     }
@@ -261,6 +297,9 @@ public class ESAGenerator implements VectorGenerator {
                     throw new ConfigurationException(e);
                 }
             }
+            if (config.hasPath("streamingMatrix")) {
+                generator.setStreamingMatrix(config.getBoolean("streamingMatrix"));
+            }
             return generator;
         }
     }
@@ -0,0 +1,407 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.QueryBuilder;
+import org.wikibrain.lucene.WikiBrainScoreDoc;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+
+/**
+ * Builds the ESA feature matrix for many pages at once by streaming the postings
+ * of a Lucene index, rather than running a MoreLikeThis query for each page.
+ *
+ * The vectors approximate those of ESAGenerator.getVector(int). Each page's query terms are
+ * the terms MoreLikeThis would choose (the top tf-idf terms that pass the same frequency
+ * cutoffs), and concepts are scored with Lucene's tf-idf formula. As in ESAGenerator,
+ * features are the Lucene ids of concepts, the top hits are pruned, and vectors are normalized.
+ *
+ * The build has two stages:
+ * <ol>
+ *     <li>A single pass over the postings builds an in-memory inverted index restricted
+ *     to the concepts. Its size is proportional to the text of the concepts, so large
+ *     languages should use a concept list.</li>
+ *     <li>The pages are divided into partitions of consecutive Lucene ids that are processed
+ *     in parallel. Each partition skips through the postings to find the query terms of its
+ *     pages, then scores its pages against the in-memory concept index.</li>
+ * </ol>
+ *
+ * Each partition holds maxQueryTerms candidate terms (8 bytes each) per page and two
+ * accumulators (8 bytes in total) per concept, and scans the whole term dictionary once.
+ * Larger partitions mean fewer scans, so unless a partition size is set explicitly it is
+ * the largest size that fits numThreads partitions in the memory budget.
+ */
+public class ESAMatrixBuilder {
+    private static final Logger LOG = Logger.getLogger(ESAMatrixBuilder.class.getName());
+
+    public static final int DEFAULT_MAX_MEMORY_MB = 512;
+    public static final int MIN_PARTITION_SIZE = 1000;
+
+    private final AtomicReader reader;
+    private final String field;
+
+    private TIntSet conceptIds = null;
+    private int maxQueryTerms = QueryBuilder.DEFAULT_MAX_QUERY_TERMS;
+    private int minTermFreq = QueryBuilder.DEFAULT_MIN_TERM_FREQ;
+    private int minDocFreq = QueryBuilder.DEFAULT_MIN_DOC_FREQ;
+    private int maxDocFreqPct = QueryBuilder.DEFAULT_MAX_PERCENTAGE;
+    private int numHits = QueryBuilder.DEFAULT_HIT_COUNT;
+    private int partitionSize = 0;
+    private int maxMemoryMb = DEFAULT_MAX_MEMORY_MB;
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
+    // Filled in by build()
+    private FieldCache.Ints localIds;
+    private Bits liveDocs;
+    private int maxDocFreq;
+    private float[] idfs;               // idf of each term, indexed by term ordinal
+    private int[] conceptDocs;          // lucene id of each concept
+    private float[] conceptNorms;       // length norm of each concept
+    private int[] postingOffsets;       // start of each term's postings, indexed by term ordinal
+    private int[] postingConcepts;      // concept index of each posting
+    private float[] postingWeights;     // sqrt(tf) of each posting
+
+    /**
+     * @param reader A reader for the Lucene index of a language.
+     * @param field The text field used for ESA.
+     * @throws IOException
+     */
+    public ESAMatrixBuilder(IndexReader reader, String field) throws IOException {
+        this.reader = SlowCompositeReaderWrapper.wrap(reader);
+        this.field = field;
+    }
+
+    /**
+     * Restricts the concepts (features) to pages with the specified local ids.
+     * If concepts are not set, all pages are concepts.
+     * @param conceptIds
+     */
+    public void setConcepts(TIntSet conceptIds) {
+        this.conceptIds = conceptIds;
+    }
+
+    public void setMaxQueryTerms(int maxQueryTerms) {
+        this.maxQueryTerms = maxQueryTerms;
+    }
+
+    public void setMinTermFreq(int minTermFreq) {
+        this.minTermFreq = minTermFreq;
+    }
+
+    public void setMinDocFreq(int minDocFreq) {
+        this.minDocFreq = minDocFreq;
+    }
+
+    public void setMaxDocFreqPct(int maxDocFreqPct) {
+        this.maxDocFreqPct = maxDocFreqPct;
+    }
+
+    public void setNumHits(int numHits) {
+        this.numHits = numHits;
+    }
+
+    /**
+     * Sets the number of pages whose query terms are held in memory by each thread.
+     * @param partitionSize The partition size, or 0 to derive it from the memory budget.
+     */
+    public void setPartitionSize(int partitionSize) {
+        this.partitionSize = partitionSize;
+    }
+
+    /**
+     * Sets the approximate memory used by all partitions at once, excluding the concept index.
+     * @param maxMemoryMb
+     */
+    public void setMaxMemoryMb(int maxMemoryMb) {
+        this.maxMemoryMb = maxMemoryMb;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Writes a row for each page in pageIds to the writer.
+     * Pages that are not indexed, or have no query terms, are skipped.
+     *
+     * @param pageIds Local ids of the pages.
+     * @param writer
+     * @throws IOException
+     */
+    public void build(final TIntSet pageIds, final SparseMatrixWriter writer) throws IOException {
+        localIds = FieldCache.DEFAULT.getInts(reader, LuceneOptions.LOCAL_ID_FIELD_NAME, FieldCache.NUMERIC_UTILS_INT_PARSER, false);
+        liveDocs = reader.getLiveDocs();
+        maxDocFreq = (int) ((long) maxDocFreqPct * reader.numDocs() / 100);
+
+        buildConceptIndex();
+
+        final int partitionSize = getPartitionSize();
+        int numPartitions = (reader.maxDoc() + partitionSize - 1) / partitionSize;
+        LOG.info("building ESA vectors for " + pageIds.size() + " pages in " + numPartitions +
+                " partitions of " + partitionSize + " ids");
+        ParallelForEach.range(0, numPartitions, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer partition) throws Exception {
+                int from = partition * partitionSize;
+                int to = Math.min(reader.maxDoc(), from + partitionSize);
+                new Partition(from, to).build(pageIds, writer);
+            }
+        });
+    }
+
+    /**
+     * @return The explicit partition size, or the largest size that fits numThreads
+     * partitions in the memory budget, without leaving any thread idle.
+     */
+    private int getPartitionSize() {
+        if (partitionSize > 0) {
+            return partitionSize;
+        }
+        long bytesPerPartition = maxMemoryMb * 1024L * 1024L / Math.max(1, numThreads);
+        long bytesPerPage = 8L * maxQueryTerms + 4;
+        long size = (bytesPerPartition - 8L * conceptDocs.length) / bytesPerPage;
+        int maxDoc = Math.max(1, reader.maxDoc());
+        size = Math.min(size, (maxDoc + numThreads - 1) / Math.max(1, numThreads));
+        return (int) Math.max(Math.min(MIN_PARTITION_SIZE, maxDoc), size);
+    }
+
+    private boolean isLive(int doc) {
+        return liveDocs == null || liveDocs.get(doc);
+    }
+
+    /**
+     * Reads the postings of the concepts into memory.
+     * Also records the idf of every term, whether or not it occurs in a concept.
+     */
+    private void buildConceptIndex() throws IOException {
+        int conceptIndexes[] = new int[reader.maxDoc()];
+        Arrays.fill(conceptIndexes, -1);
+        TIntArrayList docs = new TIntArrayList();
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            if (isLive(doc) && (conceptIds == null || conceptIds.contains(localIds.get(doc)))) {
+                conceptIndexes[doc] = docs.size();
+                docs.add(doc);
+            }
+        }
+        conceptDocs = docs.toArray();
+        if (conceptIds == null) {
+            LOG.warning("no concepts specified; all " + conceptDocs.length + " pages will be concepts");
+        }
+
+        int numDocs = reader.numDocs();
+        int lengths[] = new int[conceptDocs.length];
+        TFloatArrayList termIdfs = new TFloatArrayList();
+        TIntArrayList offsets = new TIntArrayList();
+        TIntArrayList concepts = new TIntArrayList();
+        TFloatArrayList weights = new TFloatArrayList();
+
+        Terms terms = reader.terms(field);
+        TermsEnum termsEnum = (terms == null) ? TermsEnum.EMPTY : terms.iterator(null);
+        DocsEnum docsEnum = null;
+        while (termsEnum.next() != null) {
+            int df = termsEnum.docFreq();
+            termIdfs.add((float) (Math.log(numDocs / (double) (df + 1)) + 1.0));
+            offsets.add(concepts.size());
+            boolean isQueryTerm = (df >= minDocFreq && df <= maxDocFreq);
+            docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+            for (int doc = docsEnum.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docsEnum.nextDoc()) {
+                int c = conceptIndexes[doc];
+                if (c >= 0) {
+                    int tf = docsEnum.freq();
+                    lengths[c] += tf;
+                    if (isQueryTerm) {
+                        concepts.add(c);
+                        weights.add((float) Math.sqrt(tf));
+                    }
+                }
+            }
+        }
+        offsets.add(concepts.size());
+
+        idfs = termIdfs.toArray();
+        postingOffsets = offsets.toArray();
+        postingConcepts = concepts.toArray();
+        postingWeights = weights.toArray();
+        conceptNorms = new float[conceptDocs.length];
+        for (int c = 0; c < conceptDocs.length; c++) {
+            conceptNorms[c] = (lengths[c] == 0) ? 0.0f : (float) (1.0 / Math.sqrt(lengths[c]));
+        }
+        LOG.info("loaded " + postingConcepts.length + " postings for " + conceptDocs.length +
+                " concepts and " + idfs.length + " terms");
+    }
+
+    /**
+     * A range of Lucene ids whose vectors are built by a single thread.
+     */
+    private class Partition {
+        private final int from;
+        private final int to;
+
+        // A min-heap of the best query terms for each page, stored at (doc - from) * maxQueryTerms
+        private final int[] heapTerms;
+        private final float[] heapScores;
+        private final int[] heapSizes;
+
+        // Score accumulators, indexed by concept
+        private final float[] scores = new float[conceptDocs.length];
+        private final int[] matches = new int[conceptDocs.length];
+        private final TIntArrayList touched = new TIntArrayList();
+
+        Partition(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.heapTerms = new int[(to - from) * maxQueryTerms];
+            this.heapScores = new float[(to - from) * maxQueryTerms];
+            this.heapSizes = new int[to - from];
+        }
+
+        void build(TIntSet pageIds, SparseMatrixWriter writer) throws IOException {
+            findQueryTerms();
+            for (int doc = from; doc < to; doc++) {
+                if (!isLive(doc) || heapSizes[doc - from] == 0) {
+                    continue;
+                }
+                int localId = localIds.get(doc);
+                if (!pageIds.contains(localId)) {
+                    continue;
+                }
+                TIntFloatMap vector = score(doc);
+                if (!vector.isEmpty()) {
+                    writer.writeRow(new SparseMatrixRow(writer.getValueConf(), localId, vector));
+                }
+            }
+        }
+
+        /**
+         * Selects the query terms of each page as MoreLikeThis does:
+         * the terms with the highest tf * idf among those that pass the frequency cutoffs.
+         */
+        private void findQueryTerms() throws IOException {
+            Terms terms = reader.terms(field);
+            if (terms == null) {
+                return;
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+            for (int term = 0; termsEnum.next() != null; term++) {
+                int df = termsEnum.docFreq();
+                if (df < minDocFreq || df > maxDocFreq) {
+                    continue;
+                }
+                docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+                for (int doc = docsEnum.advance(from); doc < to; doc = docsEnum.nextDoc()) {
+                    int tf = docsEnum.freq();
+                    if (tf >= minTermFreq) {
+                        offer(doc - from, term, tf * idfs[term]);
+                    }
+                }
+            }
+        }
+
+        private void offer(int i, int term, float score) {
+            int base = i * maxQueryTerms;
+            int size = heapSizes[i];
+            if (size < maxQueryTerms) {
+                // sift up
+                int j = size;
+                while (j > 0) {
+                    int parent = (j - 1) / 2;
+                    if (heapScores[base + parent] <= score) {
+                        break;
+                    }
+                    heapTerms[base + j] = heapTerms[base + parent];
+                    heapScores[base + j] = heapScores[base + parent];
+                    j = parent;
+                }
+                heapTerms[base + j] = term;
+                heapScores[base + j] = score;
+                heapSizes[i]++;
+            } else if (score > heapScores[base]) {
+                // replace the root and sift down
+                int j = 0;
+                while (true) {
+                    int child = 2 * j + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && heapScores[base + child + 1] < heapScores[base + child]) {
+                        child++;
+                    }
+                    if (heapScores[base + child] >= score) {
+                        break;
+                    }
+                    heapTerms[base + j] = heapTerms[base + child];
+                    heapScores[base + j] = heapScores[base + child];
+                    j = child;
+                }
+                heapTerms[base + j] = term;
+                heapScores[base + j] = score;
+            }
+        }
+
+        /**
+         * Scores the concepts for a page using Lucene's tf-idf formula, including the
+         * coordination factor, and keeps the top hits as ESAGenerator does.
+         */
+        private TIntFloatMap score(int doc) {
+            int base = (doc - from) * maxQueryTerms;
+            int numTerms = heapSizes[doc - from];
+            for (int i = 0; i < numTerms; i++) {
+                int term = heapTerms[base + i];
+                float idf2 = idfs[term] * idfs[term];
+                for (int p = postingOffsets[term]; p < postingOffsets[term + 1]; p++) {
+                    int c = postingConcepts[p];
+                    if (matches[c] == 0) {
+                        touched.add(c);
+                    }
+                    scores[c] += idf2 * postingWeights[p] * conceptNorms[c];
+                    matches[c]++;
+                }
+            }
+
+            WikiBrainScoreDoc hits[] = new WikiBrainScoreDoc[touched.size()];
+            for (int i = 0; i < touched.size(); i++) {
+                int c = touched.get(i);
+                float score = scores[c] * matches[c] / numTerms;
+                hits[i] = new WikiBrainScoreDoc(conceptDocs[c], -1, score);
+                scores[c] = 0.0f;
+                matches[c] = 0;
+            }
+            touched.resetQuick();
+
+            Arrays.sort(hits, new Comparator<WikiBrainScoreDoc>() {
+                @Override
+                public int compare(WikiBrainScoreDoc d1, WikiBrainScoreDoc d2) {
+                    return Float.compare(d2.score, d1.score);
+                }
+            });
+            if (hits.length > numHits) {
+                hits = Arrays.copyOf(hits, numHits);
+            }
+            hits = SimUtils.pruneSimilar(hits);
+
+            TIntFloatMap vector = new TIntFloatHashMap();
+            for (WikiBrainScoreDoc hit : hits) {
+                vector.put(hit.luceneId, hit.score);
+            }
+            return SimUtils.normalizeVector(vector);
+        }
+    }
+}
@@ -117,18 +117,18 @@ public class GoogleSimilarity implements VectorSimilarity {
             if (ca < cb) {
                 // if matrix a has a lower value, then get the next column
                 i++;
-                ca = a.getColIndex(i);
+                if (i < na) ca = a.getColIndex(i);
             } else if (ca > cb) {
                 // if matrix b has a lower value, then get the next column
                 j++;
-                cb = b.getColIndex(j);
+                if (j < nb) cb = b.getColIndex(j);
             } else {
                 // if both have the same value, increment the intersection and get the next columns in both matrices
                 i++;
                 j++;
                 intersect++;
-                ca = a.getColIndex(i);
-                cb = b.getColIndex(j);
+                if (i < na) ca = a.getColIndex(i);
+                if (j < nb) cb = b.getColIndex(j);
             }
         }
 
@@ -2,8 +2,10 @@ package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
 import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntLongMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -63,10 +65,14 @@ public class VectorBasedSRMetric extends BaseSRMetric {
     protected final VectorSimilarity similarity;
     protected final SRConfig config;
     private FeatureFilter featureFilter = null;
+    private RowCodec featureCodec = RowCodec.LEGACY;
 
     private SparseMatrix featureMatrix;
     private SparseMatrix transposeMatrix;
 
+    // Cursors used by similarity(), reused across calls by each thread.
+    private final ThreadLocal<FeatureCursors> featureCursors = new ThreadLocal<FeatureCursors>();
+
 
     public VectorBasedSRMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity) {
         super(name, language, dao, disambig);
@@ -84,6 +90,21 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         if (featureFilter != null) {
             throw new UnsupportedOperationException();
         }
+        if (hasDenseVectors() && !explanations) {
+            // only fetch the dense vectors; the sparse ones would be thrown away
+            DenseVectorGenerator dense = (DenseVectorGenerator) generator;
+            float v1[] = null;
+            float v2[] = null;
+            try {
+                v1 = dense.getDenseVector(phrase1);
+                v2 = dense.getDenseVector(phrase2);
+            } catch (UnsupportedOperationException e) {
+                // try using other methods
+            }
+            if (v1 != null && v2 != null) {
+                return normalize(new SRResult(DenseVectors.cosine(v1, v2)));
+            }
+        }
         TIntFloatMap vector1 = null;
         TIntFloatMap vector2 = null;
         // try using phrases directly
@@ -108,7 +129,30 @@ public class VectorBasedSRMetric extends BaseSRMetric {
     @Override
     public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
         try {
-            if (hasFeatureMatrix()) {
+            if (hasDenseVectors() && !explanations) {
+                DenseVectorGenerator dense = (DenseVectorGenerator) generator;
+                float v1[] = dense.getDenseVector(pageId1);
+                float v2[] = dense.getDenseVector(pageId2);
+                if (v1 == null || v2 == null) {
+                    return null;
+                }
+                return normalize(new SRResult(DenseVectors.cosine(v1, v2)));
+            } else if (hasFeatureMatrix() && featureFilter == null) {
+                // Fast path: score the rows in place with reusable per-thread cursors.
+                RowCursor cursors[] = getFeatureCursors();
+                RowCursor row1 = cursors[0];
+                RowCursor row2 = cursors[1];
+                if (!row1.moveTo(pageId1) || !row2.moveTo(pageId2)) {
+                    return null;
+                }
+                SRResult result= new SRResult(similarity.similarity(row1, row2));
+                if(explanations) {
+                    TIntFloatHashMap tfm1=row1.asTroveMap();
+                    TIntFloatHashMap tfm2=row2.asTroveMap();
+                    result.setExplanations(generator.getExplanations(pageId1, pageId2, tfm1, tfm2, result));
+                }
+                return normalize(result);
+            } else if (hasFeatureMatrix()) {
                 // Optimization that matters: Avoid building page vectors if possible.
                 SparseMatrixRow row1 = featureMatrix.getRow(pageId1);
                 SparseMatrixRow row2 = featureMatrix.getRow(pageId2);
@@ -231,6 +275,23 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         if (rowPhrases.length == 0 || colPhrases.length == 0) {
             return new double[rowPhrases.length][colPhrases.length];
         }
+        if (hasDenseVectors()) {
+            DenseVectorGenerator dense = (DenseVectorGenerator) generator;
+            float rows[][] = new float[rowPhrases.length][];
+            float cols[][] = new float[colPhrases.length][];
+            boolean complete = true;
+            for (int i = 0; i < rowPhrases.length && complete; i++) {
+                rows[i] = dense.getDenseVector(rowPhrases[i]);
+                complete = (rows[i] != null);
+            }
+            for (int i = 0; i < colPhrases.length && complete; i++) {
+                cols[i] = dense.getDenseVector(colPhrases[i]);
+                complete = (cols[i] != null);
+            }
+            if (complete) {
+                return denseCosimilarity(rows, cols);
+            }
+        }
         List<TIntFloatMap> rowVectors = new ArrayList<TIntFloatMap>();
         List<TIntFloatMap> colVectors = new ArrayList<TIntFloatMap>();
         try {
@@ -265,7 +326,18 @@ public class VectorBasedSRMetric extends BaseSRMetric {
      */
     @Override
     public double[][] cosimilarity(int rowIds[], int colIds[]) throws DaoException {
-        if (hasFeatureMatrix()) {
+        if (hasDenseVectors()) {
+            DenseVectorGenerator dense = (DenseVectorGenerator) generator;
+            float rows[][] = new float[rowIds.length][];
+            for (int i = 0; i < rowIds.length; i++) {
+                rows[i] = dense.getDenseVector(rowIds[i]);
+            }
+            float cols[][] = new float[colIds.length][];
+            for (int i = 0; i < colIds.length; i++) {
+                cols[i] = dense.getDenseVector(colIds[i]);
+            }
+            return denseCosimilarity(rows, cols);
+        } else if (hasFeatureMatrix()) {
             // special optimized case
             TIntObjectMap<SparseMatrixRow> vectors = new TIntObjectHashMap<SparseMatrixRow>(rowIds.length + colIds.length);
             for (int id : ArrayUtils.addAll(rowIds, colIds)) {
@@ -322,6 +394,52 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         }
     }
 
+    /**
+     * @return True if similarities can be computed directly from the generator's dense vectors.
+     */
+    protected boolean hasDenseVectors() {
+        return generator instanceof DenseVectorGenerator
+                && similarity instanceof CosineSimilarity
+                && featureFilter == null;
+    }
+
+    /**
+     * Computes the cosimilarity between dense vectors by copying them into contiguous
+     * blocks and scoring the blocks in tiles. Pairs that involve a missing (null)
+     * vector are left as 0.
+     * @param rowVectors
+     * @param colVectors
+     * @return
+     */
+    protected double[][] denseCosimilarity(float rowVectors[][], float colVectors[][]) {
+        int dim = ((DenseVectorGenerator) generator).getDimensions();
+        float rows[] = toBlock(rowVectors, dim);
+        float cols[] = toBlock(colVectors, dim);
+        float scores[][] = DenseVectors.cosimilarity(rows, rowVectors.length, cols, colVectors.length, dim);
+        double results[][] = new double[rowVectors.length][colVectors.length];
+        for (int i = 0; i < rowVectors.length; i++) {
+            if (rowVectors[i] == null) {
+                continue;
+            }
+            for (int j = 0; j < colVectors.length; j++) {
+                if (colVectors[j] != null) {
+                    results[i][j] = normalize(scores[i][j]);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static float[] toBlock(float vectors[][], int dim) {
+        float block[] = new float[vectors.length * dim];
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i] != null) {
+                System.arraycopy(vectors[i], 0, block, i * dim, dim);
+            }
+        }
+        return block;
+    }
+
     /**
      * Computes the cosimilarity between a set of vectors.
      * @param rowVectors
@@ -364,18 +482,26 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         getDataDir().mkdirs();
         ValueConf vconf = new ValueConf((float)similarity.getMinValue(),
                                         (float)similarity.getMaxValue());
-        final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf);
-        ParallelForEach.loop(
-                WbArrayUtils.toList(validIds.toArray()),
-                WpThreadUtils.getMaxThreads(),
-                new Procedure<Integer>() {
-                    public void call(Integer pageId) throws IOException {
-                        TIntFloatMap scores = getPageVector(pageId);
-                        if (scores != null && !scores.isEmpty()) {
-                            writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+        final SparseMatrixWriter writer = new SparseMatrixWriter(getFeatureMatrixPath(), vconf, featureCodec);
+        writer.setExpectedNumRows(validIds.size());
+        if (generator instanceof ESAGenerator
+        &&  ((ESAGenerator) generator).isStreamingMatrix()
+        &&  featureFilter == null) {
+            // The generator was configured to build approximate vectors by streaming the index
+            ((ESAGenerator) generator).buildFeatureMatrix(validIds, writer);
+        } else {
+            ParallelForEach.loop(
+                    WbArrayUtils.toList(validIds.toArray()),
+                    WpThreadUtils.getMaxThreads(),
+                    new Procedure<Integer>() {
+                        public void call(Integer pageId) throws IOException {
+                            TIntFloatMap scores = getPageVector(pageId);
+                            if (scores != null && !scores.isEmpty()) {
+                                writer.writeRow(new SparseMatrixRow(writer.getValueConf(), pageId, scores));
+                            }
                         }
-                    }
-                }, 10000);
+                    }, 10000);
+        }
         writer.finish();
 
         // Reload the feature matrix
@@ -383,7 +509,7 @@ public class VectorBasedSRMetric extends BaseSRMetric {
 
         getDataDir().mkdirs();
         new SparseMatrixTransposer(featureMatrix, getTransposeMatrixPath())
-                .transpose();
+                .transposeExternally(WpThreadUtils.getMaxThreads());
         transposeMatrix = new SparseMatrix(getTransposeMatrixPath());
 
         similarity.setMatrices(featureMatrix, transposeMatrix, getDataDir());
@@ -454,6 +580,64 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         }
     }
 
+    /**
+     * Fingerprints each page by hashing its (possibly filtered) feature vector.
+     */
+    @Override
+    protected TIntLongMap getMostSimilarFingerprints(TIntSet pageIds) throws IOException {
+        final TIntLongMap fingerprints = new TIntLongHashMap(pageIds.size());
+        ParallelForEach.loop(
+                WbArrayUtils.toList(pageIds.toArray()),
+                WpThreadUtils.getMaxThreads(),
+                new Procedure<Integer>() {
+                    public void call(Integer pageId) throws IOException {
+                        long fingerprint = getFingerprint(getPageVector(pageId));
+                        synchronized (fingerprints) {
+                            fingerprints.put(pageId, fingerprint);
+                        }
+                    }
+                }, 100000);
+        return fingerprints;
+    }
+
+    private static long getFingerprint(TIntFloatMap vector) {
+        if (vector == null) {
+            return 0;
+        }
+        int keys[] = vector.keys();
+        Arrays.sort(keys);
+        long h = 1125899906842597L;
+        for (int k : keys) {
+            h = 31 * h + k;
+            h = 31 * h + Float.floatToIntBits(vector.get(k));
+        }
+        return h;
+    }
+
+    /**
+     * Returns a pair of cursors over the feature matrix owned by the calling thread.
+     * The cursors are recreated if the feature matrix has been rebuilt or reloaded.
+     */
+    private RowCursor[] getFeatureCursors() {
+        SparseMatrix matrix = featureMatrix;
+        FeatureCursors cursors = featureCursors.get();
+        if (cursors == null || cursors.matrix != matrix) {
+            cursors = new FeatureCursors(matrix);
+            featureCursors.set(cursors);
+        }
+        return cursors.cursors;
+    }
+
+    private static class FeatureCursors {
+        final SparseMatrix matrix;
+        final RowCursor cursors[];
+
+        FeatureCursors(SparseMatrix matrix) {
+            this.matrix = matrix;
+            this.cursors = new RowCursor[] { matrix.newCursor(), matrix.newCursor() };
+        }
+    }
+
     protected boolean hasFeatureMatrix() {
         return featureMatrix != null && featureMatrix.getNumRows() > 0;
     }
@@ -474,11 +658,57 @@ public class VectorBasedSRMetric extends BaseSRMetric {
         this.featureFilter = filter;
     }
 
+    /**
+     * Sets the codec used to encode the feature matrix (and its transpose) when
+     * they are next built. Defaults to the legacy 16 bit packed format.
+     */
+    public void setFeatureCodec(RowCodec codec) {
+        this.featureCodec = codec;
+    }
+
     @Override
     public SRConfig getConfig() {
         return config;
     }
 
+    /**
+     * Instantiates a vector based metric for {@link #createFromConfig}.
+     */
+    public static interface MetricFactory {
+        public VectorBasedSRMetric create(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity);
+    }
+
+    /**
+     * Constructs a vector based metric from its configuration, including the generator,
+     * similarity, and settings shared by all vector based metrics. Providers of subclasses
+     * use this to share the setup of VectorBasedSRMetric.Provider.
+     */
+    public static VectorBasedSRMetric createFromConfig(Configurator configurator, String name, Config config, Map<String, String> runtimeParams, MetricFactory factory) throws ConfigurationException {
+        if (runtimeParams == null || !runtimeParams.containsKey("language")){
+            throw new IllegalArgumentException("Monolingual requires 'language' runtime parameter.");
+        }
+        Language language = Language.getByLangCode(runtimeParams.get("language"));
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("language", language.getLangCode());
+        VectorGenerator generator = configurator.construct(
+                VectorGenerator.class, null, config.getConfig("generator"), params);
+        VectorSimilarity similarity = configurator.construct(
+                VectorSimilarity.class,  null, config.getConfig("similarity"), params);
+        VectorBasedSRMetric sr = factory.create(
+                name,
+                language,
+                configurator.get(LocalPageDao.class,config.getString("pageDao")),
+                configurator.get(Disambiguator.class,config.getString("disambiguator"),"language", language.getLangCode()),
+                generator,
+                similarity
+        );
+        if (config.hasPath("featureCodec")) {
+            sr.setFeatureCodec(RowCodec.parse(config.getString("featureCodec")));
+        }
+        configureBase(configurator, sr, config);
+        return sr;
+    }
+
     public static class Provider extends org.wikibrain.conf.Provider<SRMetric> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
@@ -499,27 +729,12 @@ public class VectorBasedSRMetric extends BaseSRMetric {
             if (!config.getString("type").equals("vector")) {
                 return null;
             }
-
-            if (runtimeParams == null || !runtimeParams.containsKey("language")){
-                throw new IllegalArgumentException("Monolingual requires 'language' runtime parameter.");
-            }
-            Language language = Language.getByLangCode(runtimeParams.get("language"));
-            Map<String, String> params = new HashMap<String, String>();
-            params.put("language", language.getLangCode());
-            VectorGenerator generator = getConfigurator().construct(
-                    VectorGenerator.class, null, config.getConfig("generator"), params);
-            VectorSimilarity similarity = getConfigurator().construct(
-                    VectorSimilarity.class,  null, config.getConfig("similarity"), params);
-            VectorBasedSRMetric sr = new VectorBasedSRMetric(
-                    name,
-                    language,
-                    getConfigurator().get(LocalPageDao.class,config.getString("pageDao")),
-                    getConfigurator().get(Disambiguator.class,config.getString("disambiguator"),"language", language.getLangCode()),
-                    generator,
-                    similarity
-            );
-            configureBase(getConfigurator(), sr, config);
-            return sr;
+            return createFromConfig(getConfigurator(), name, config, runtimeParams, new MetricFactory() {
+                @Override
+                public VectorBasedSRMetric create(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity) {
+                    return new VectorBasedSRMetric(name, language, dao, disambig, generator, similarity);
+                }
+            });
         }
 
     }
@@ -16,11 +16,14 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.matrix.IvfIndex;
 import org.wikibrain.sr.Explanation;
 import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.vector.DenseVectorGenerator;
 import org.wikibrain.sr.vector.VectorGenerator;
 import org.wikibrain.utils.ObjectDb;
 import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.*;
 import java.util.HashMap;
@@ -37,7 +40,7 @@ import java.util.logging.Logger;
  *
  * @author Shilad Sen
  */
-public class Word2VecGenerator implements VectorGenerator {
+public class Word2VecGenerator implements DenseVectorGenerator {
     private static final Logger LOG = Logger.getLogger(Word2VecGenerator.class.getName());
 
     private final Language language;
@@ -45,6 +48,10 @@ public class Word2VecGenerator implements VectorGenerator {
 
     private ObjectDb<float[]> phraseDb;
     private TIntObjectMap<float[]> articles;
+    private int dimensions = 0;
+
+    private File modelPath;
+    private IvfIndex index;
 
     public Word2VecGenerator(Language language, LocalPageDao localPageDao, File path) throws IOException {
         this.language = language;
@@ -53,6 +60,12 @@ public class Word2VecGenerator implements VectorGenerator {
     }
 
     public void read(File path) throws IOException {
+        synchronized (this) {
+            // The index was built for the previous model
+            IOUtils.closeQuietly(index);
+            index = null;
+        }
+        this.modelPath = path;
         File phraseFile = new File(path.getAbsolutePath() + ".phrases");
         File articleFile = new File(path.getAbsolutePath() + ".articles");
         if (phraseFile.exists()
@@ -65,6 +78,34 @@ public class Word2VecGenerator implements VectorGenerator {
         } else {
             createWikiBrainModel(path, phraseFile, articleFile);
         }
+        for (float[] v : articles.valueCollection()) {
+            dimensions = v.length;
+            break;
+        }
+    }
+
+    /**
+     * Returns an approximate nearest neighbor index over the article vectors.
+     * The index is stored next to the model and rebuilt if the model is newer.
+     * @return
+     * @throws IOException
+     */
+    public synchronized IvfIndex getNearestNeighborIndex() throws IOException {
+        if (index != null) {
+            return index;
+        }
+        File indexFile = new File(modelPath.getAbsolutePath() + ".ivf");
+        if (!indexFile.exists() || indexFile.lastModified() < modelPath.lastModified()) {
+            LOG.info("building nearest neighbor index for " + articles.size() + " article vectors");
+            int ids[] = articles.keys();
+            float vectors[][] = new float[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                vectors[i] = articles.get(ids[i]);
+            }
+            IvfIndex.build(indexFile, ids, vectors, WpThreadUtils.getMaxThreads());
+        }
+        index = new IvfIndex(indexFile);
+        return index;
     }
 
     private void createWikiBrainModel(File path, File phraseFile, File articleFile) throws IOException {
@@ -163,9 +204,30 @@ public class Word2VecGenerator implements VectorGenerator {
     }
 
 
+    @Override
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public float[] getDenseVector(int pageId) {
+        return articles.get(pageId);
+    }
+
+    @Override
+    public float[] getDenseVector(String phrase) {
+        try {
+            return phraseDb.get(normalize(phrase));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public TIntFloatMap getVector(int pageId) throws DaoException {
-        float[] vector = articles.get(pageId);
+        float[] vector = getDenseVector(pageId);
         if (vector == null) {
             return null;
         }
@@ -178,14 +240,7 @@ public class Word2VecGenerator implements VectorGenerator {
 
     @Override
     public TIntFloatMap getVector(String phrase) {
-        float[] vector;
-        try {
-            vector = phraseDb.get(normalize(phrase));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        float[] vector = getDenseVector(phrase);
         if (vector == null) {
             return null;
         }
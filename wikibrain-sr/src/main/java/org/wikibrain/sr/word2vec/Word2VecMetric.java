@@ -1,18 +1,121 @@
 package org.wikibrain.sr.word2vec;
 
+import com.typesafe.config.Config;
+import gnu.trove.set.TIntSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.IvfIndex;
+import org.wikibrain.sr.SRMetric;
+import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.disambig.Disambiguator;
-import org.wikibrain.sr.vector.PhraseVectorCreator;
+import org.wikibrain.sr.utils.Leaderboard;
 import org.wikibrain.sr.vector.VectorBasedSRMetric;
 import org.wikibrain.sr.vector.VectorGenerator;
 import org.wikibrain.sr.vector.VectorSimilarity;
 
+import java.io.IOException;
+import java.util.Map;
+
 /**
+ * A vector based SR metric for word2vec models.
+ *
+ * If approximate most similar is enabled, mostSimilar queries are answered by an
+ * approximate nearest neighbor index over the article vectors instead of an exact
+ * scan over every vector.
+ *
  * @author Shilad Sen
  */
 public class Word2VecMetric extends VectorBasedSRMetric {
+    private boolean approximateMostSimilar = false;
+    private int numProbes = IvfIndex.DEFAULT_NUM_PROBES;
+
     public Word2VecMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity) {
         super(name, language, dao, disambig, generator, similarity);
     }
+
+    /**
+     * @param approximate If true, use a nearest neighbor index for mostSimilar.
+     * @param numProbes Number of index lists scanned per query.
+     */
+    public void setApproximateMostSimilar(boolean approximate, int numProbes) {
+        this.approximateMostSimilar = approximate;
+        this.numProbes = numProbes;
+    }
+
+    @Override
+    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+        if (useIndex()) {
+            float vector[] = ((Word2VecGenerator) generator).getDenseVector(pageId);
+            return (vector == null) ? null : mostSimilarFromIndex(vector, maxResults, validIds);
+        }
+        return super.mostSimilar(pageId, maxResults, validIds);
+    }
+
+    @Override
+    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+        if (useIndex()) {
+            float vector[] = ((Word2VecGenerator) generator).getDenseVector(phrase);
+            if (vector != null) {
+                return mostSimilarFromIndex(vector, maxResults, validIds);
+            }
+        }
+        return super.mostSimilar(phrase, maxResults, validIds);
+    }
+
+    private boolean useIndex() {
+        return approximateMostSimilar && hasDenseVectors() && generator instanceof Word2VecGenerator;
+    }
+
+    private SRResultList mostSimilarFromIndex(float vector[], int maxResults, TIntSet validIds) throws DaoException {
+        try {
+            IvfIndex index = ((Word2VecGenerator) generator).getNearestNeighborIndex();
+            IvfIndex.Neighbors neighbors = index.search(vector, maxResults, numProbes, validIds);
+            Leaderboard leaderboard = new Leaderboard(maxResults);
+            for (int i = 0; i < neighbors.size(); i++) {
+                leaderboard.tallyScore(neighbors.ids[i], neighbors.scores[i]);
+            }
+            return leaderboard.getTop();
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<SRMetric> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SRMetric.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "sr.metric.local";
+        }
+
+        @Override
+        public SRMetric get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("word2vec")) {
+                return null;
+            }
+            Word2VecMetric sr = (Word2VecMetric) createFromConfig(getConfigurator(), name, config, runtimeParams, new MetricFactory() {
+                @Override
+                public VectorBasedSRMetric create(String name, Language language, LocalPageDao dao, Disambiguator disambig, VectorGenerator generator, VectorSimilarity similarity) {
+                    return new Word2VecMetric(name, language, dao, disambig, generator, similarity);
+                }
+            });
+            if (config.hasPath("approximateMostSimilar")) {
+                sr.setApproximateMostSimilar(
+                        config.getBoolean("approximateMostSimilar"),
+                        config.hasPath("numProbes") ? config.getInt("numProbes") : IvfIndex.DEFAULT_NUM_PROBES);
+            }
+            return sr;
+        }
+    }
 }
@@ -8,6 +8,7 @@ import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TLongIntHashMap;
 import org.apache.commons.cli.*;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.ArrayUtils;
 import org.wikibrain.conf.ConfigurationException;
@@ -36,6 +37,10 @@ public class Word2VecTrainer {
     private static final Logger LOG = Logger.getLogger(Word2VecTrainer.class.getName());
     private static final int MAX_EXP = 6;
     private static final int EXP_TABLE_SIZE = 1000;
+    private static final int UNIGRAM_TABLE_SIZE = 10000000;
+
+    // Number of words trained between progress reports
+    private static final long REPORT_INTERVAL = 1000000;
 
     private final Language language;
     private final LocalPageDao pageDao;
@@ -47,9 +52,12 @@ public class Word2VecTrainer {
     // Mapping from article id to hash of string representation ("/w/en/1000/Hercule_Poirot").
     private final TIntIntMap articleIndexes = new TIntIntHashMap();
 
-    // Total number of words, counting repeats many times
+    // Total number of words in the dictionary, counting repeats many times
     private long totalWords;
 
+    // Total number of words in the vocabulary in the encoded corpus, counting repeats many times
+    private long corpusWords;
+
     /**
      * Minimum word frequency for it to be included in the model.
      */
@@ -66,13 +74,31 @@ public class Word2VecTrainer {
     private int maxWords = 5000000;
 
 
+    /**
+     * Number of negative samples for each word.
+     * If zero, hierarchical softmax is used instead of negative sampling.
+     */
+    private int negative = 0;
+
+    /**
+     * Threshold for subsampling frequent words (1e-3 to 1e-5 are typical).
+     * If zero, no words are subsampled.
+     */
+    private double sample = 0.0;
+
+    /**
+     * Number of passes over the corpus. The learning rate decays linearly across all passes.
+     */
+    private int epochs = 1;
+
     private double startingAlpha = 0.025;
-    private double alpha = startingAlpha;
+    private volatile double alpha = startingAlpha;
     private int window = 5;
 
     private int layer1Size = 200;
     private float syn0[][];
     private float syn1[][];
+    private float syn1neg[][];
 
     /**
      * Fast sigmoid function table.
@@ -88,20 +114,57 @@ public class Word2VecTrainer {
     private AtomicLong wordsTrainedSoFar = new AtomicLong();
     private Random random = new Random();
 
+    // Each thread has its own generator, so threads don't contend for a shared seed.
+    private final ThreadLocal<FastRandom> randoms = new ThreadLocal<FastRandom>() {
+        @Override
+        protected FastRandom initialValue() {
+            synchronized (random) {
+                return new FastRandom(random.nextLong());
+            }
+        }
+    };
+
     private byte[][] wordCodes;
     private int[][] wordParents;
     private String[] words = null;
 
+    // Word indexes, each repeated in proportion to count^0.75. Used to draw negative samples.
+    private int[] unigramTable;
+
+    // Probability of keeping each word when subsampling, or null if words are not subsampled.
+    private float[] keepProbabilities;
+
 
     public Word2VecTrainer(LocalPageDao pageDao, Language language) {
         this.pageDao = pageDao;
         this.language = language;
     }
 
+    /**
+     * Trains the model.
+     *
+     * The text corpus is first encoded as arrays of word indexes in corpus.ints in the
+     * same directory, so that words are only looked up once, regardless of the number of epochs.
+     * The encoded corpus is deleted when training finishes.
+     *
+     * @param directory Directory with dictionary.txt and corpus.txt, as generated by WikiTextCorpusCreator.
+     * @throws IOException
+     * @throws DaoException
+     */
     public void train(File directory) throws IOException, DaoException {
         LOG.info("counting word frequencies.");
         readWords(new File(directory, "dictionary.txt"));
-        buildTree();
+        if (negative > 0) {
+            buildUnigramTable();
+        } else {
+            buildTree();
+        }
+
+        File encoded = new File(directory, "corpus.ints");
+        encodeCorpus(new File(directory, "corpus.txt"), encoded);
+        if (sample > 0) {
+            buildKeepProbabilities();
+        }
 
         syn0 = new float[wordIndexes.size()][layer1Size];
         for (float[] row :syn0) {
@@ -109,29 +172,94 @@ public class Word2VecTrainer {
                 row[i] = (random.nextFloat() - 0.5f) / layer1Size;
             }
         }
-        syn1 = new float[wordIndexes.size()][layer1Size];
-
-        LineIterator iterator = FileUtils.lineIterator(new File(directory, "corpus.txt"));
-        ParallelForEach.iterate(iterator,
-                WpThreadUtils.getMaxThreads(),
-                1000,
-                new Procedure<String>() {
-                    @Override
-                    public void call(String sentence) throws Exception {
-                        if (sentence.startsWith("@WikiBrain")) {
-                            return;
+        if (negative > 0) {
+            syn1neg = new float[wordIndexes.size()][layer1Size];
+        } else {
+            syn1 = new float[wordIndexes.size()][layer1Size];
+        }
+
+        final int numThreads = WpThreadUtils.getMaxThreads();
+        final long startTime = System.currentTimeMillis();
+        wordsTrainedSoFar.set(0);
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            LOG.info("starting epoch " + (epoch + 1) + " of " + epochs);
+            IntCorpusIterator iterator = new IntCorpusIterator(encoded);
+            ParallelForEach.iterate(iterator,
+                    numThreads,
+                    1000,
+                    new Procedure<int[]>() {
+                        @Override
+                        public void call(int[] sentence) throws Exception {
+                            trainSentence(sentence, randoms.get());
+                            long before = wordsTrainedSoFar.getAndAdd(sentence.length);
+                            long after = before + sentence.length;
+
+                            // update the learning rate
+                            alpha = Math.max(
+                                    startingAlpha * (1 - after / (epochs * corpusWords + 1.0)),
+                                    startingAlpha * 0.0001);
+
+                            if (before / REPORT_INTERVAL != after / REPORT_INTERVAL) {
+                                reportProgress(after, startTime, numThreads);
+                            }
                         }
-                        int n = trainSentence(sentence);
-                        wordsTrainedSoFar.addAndGet(n);
+                    },
+                    -1);
+            iterator.close();
+        }
+        reportProgress(wordsTrainedSoFar.get(), startTime, numThreads);
+        FileUtils.deleteQuietly(encoded);
+    }
 
-                        // update the learning rate
-                        alpha = Math.max(
-                                startingAlpha * (1 - wordsTrainedSoFar.get() / (totalWords + 1.0)),
-                                startingAlpha * 0.0001);
-                    }
-                },
-                10000);
-        iterator.close();
+    private void reportProgress(long trained, long startTime, int numThreads) {
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - startTime) / 1000.0);
+        LOG.info(String.format("trained %d of %d words (%.1f%%), alpha %.5f, %.0f words/s, %.0f words/s/thread",
+                trained, epochs * corpusWords, 100.0 * trained / Math.max(1, epochs * corpusWords),
+                alpha, trained / seconds, trained / seconds / numThreads));
+    }
+
+    /**
+     * Converts each sentence in the text corpus to an array of word indexes.
+     * Words that are not in the vocabulary are dropped.
+     *
+     * Each sentence is written as its length followed by its word indexes.
+     * Sentences may be written in a different order than they appear in the corpus.
+     */
+    private void encodeCorpus(File corpus, File encoded) throws IOException {
+        LOG.info("encoding " + corpus + " as " + encoded);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(encoded)));
+        final AtomicLong numWords = new AtomicLong();
+        LineIterator iterator = FileUtils.lineIterator(corpus, "UTF-8");
+        try {
+            ParallelForEach.iterate(iterator,
+                    WpThreadUtils.getMaxThreads(),
+                    1000,
+                    new Procedure<String>() {
+                        @Override
+                        public void call(String sentence) throws Exception {
+                            if (sentence.startsWith("@WikiBrain")) {
+                                return;
+                            }
+                            int indexes[] = encodeSentence(sentence, randoms.get());
+                            if (indexes.length == 0) {
+                                return;
+                            }
+                            numWords.addAndGet(indexes.length);
+                            synchronized (out) {
+                                out.writeInt(indexes.length);
+                                for (int i : indexes) {
+                                    out.writeInt(i);
+                                }
+                            }
+                        }
+                    },
+                    100000);
+        } finally {
+            iterator.close();
+            out.close();
+        }
+        corpusWords = numWords.get();
+        LOG.info("encoded " + corpusWords + " words in the vocabulary");
     }
 
     public void readWords(File dictionary) throws IOException, DaoException {
@@ -158,7 +286,7 @@ public class Word2VecTrainer {
         LOG.info("retained " + dict.getNumUnigrams() + " words and " + (words.length - dict.getNumUnigrams()) + " articles");
     }
 
-    private int trainSentence(String sentence) {
+    private int[] encodeSentence(String sentence, FastRandom rng) {
         String words[] = sentence.trim().split(" +");
         TIntList indexList = new TIntArrayList(words.length * 3 / 2);
         for (int i = 0; i < words.length; i++) {
@@ -181,65 +309,225 @@ public class Word2VecTrainer {
                     wordIndex = wordIndexes.get(h);
                 }
             }
-            if (mentionIndex >= 0) {
-                if (random.nextDouble() >= 0.5) {
+            if (mentionIndex >= 0 && wordIndex >= 0) {
+                if (rng.nextFloat() >= 0.5) {
                     indexList.add(wordIndex);
                     indexList.add(mentionIndex);
                 } else {
                     indexList.add(mentionIndex);
                     indexList.add(wordIndex);
                 }
-            } else {
+            } else if (mentionIndex >= 0) {
+                indexList.add(mentionIndex);
+            } else if (wordIndex >= 0) {
                 indexList.add(wordIndex);
             }
         }
-        int indexes[] = indexList.toArray();
-
-        float[] neu1e = new float[layer1Size];
-        for (int i = 0; i < indexes.length; i++) {
-            if (indexes[i] < 0) {
-                continue; // skip out of vocabulary words
-            }
+        return indexList.toArray();
+    }
 
-            byte [] code = wordCodes[indexes[i]];
-            int [] parents = wordParents[indexes[i]];
-            if (code.length != parents.length) {
-                throw new IllegalStateException();
+    private void trainSentence(int[] sentence, FastRandom rng) {
+        int indexes[] = sentence;
+        if (keepProbabilities != null) {
+            indexes = new int[sentence.length];
+            int n = 0;
+            for (int i : sentence) {
+                if (keepProbabilities[i] >= rng.nextFloat()) {
+                    indexes[n++] = i;
+                }
             }
+            indexes = Arrays.copyOf(indexes, n);
+        }
 
+        double alpha = this.alpha;
+        float[] neu1e = new float[layer1Size];
+        for (int i = 0; i < indexes.length; i++) {
             // now go over all words from the (reduced) window, predicting each one in turn
-            int reducedWindow = random.nextInt(window);
+            int reducedWindow = rng.nextInt(window);
             int start = Math.max(0, i - window + reducedWindow);
             int end = Math.min(indexes.length, i + window + 1 - reducedWindow);
 
             for (int j = start; j < end; j++) {
-                if (i == j || indexes[j] < 0) {
-                    continue; // skip the word itself and out of vocabulary words
+                if (i == j) {
+                    continue; // skip the word itself
                 }
                 Arrays.fill(neu1e, 0f);
                 float l1[] = syn0[indexes[j]];
-
-                for (int k = 0; k < parents.length; k++) {
-                    float l2[] = syn1[parents[k]];
-                    double f = WbMathUtils.dot(l1, l2);
-                    if (f <= -MAX_EXP || f >= MAX_EXP) {
-                        continue;
-                    }
-                    double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
-                    double g = (1 - code[k] - s) * alpha;
-
-                    for (int c = 0; c < layer1Size; c++) {
-                        neu1e[c] += g * l2[c];
-                        l2[c] += g * l1[c];
-                    }
+                if (negative > 0) {
+                    trainNegativeSampling(indexes[i], l1, neu1e, alpha, rng);
+                } else {
+                    trainHierarchicalSoftmax(indexes[i], l1, neu1e, alpha);
                 }
                 for (int c = 0; c < layer1Size; c++) {
                     l1[c] += neu1e[c];
                 }
             }
+        }
+    }
+
+    private void trainHierarchicalSoftmax(int word, float[] l1, float[] neu1e, double alpha) {
+        byte [] code = wordCodes[word];
+        int [] parents = wordParents[word];
+        if (code.length != parents.length) {
+            throw new IllegalStateException();
+        }
+        for (int k = 0; k < parents.length; k++) {
+            float l2[] = syn1[parents[k]];
+            double f = WbMathUtils.dot(l1, l2);
+            if (f <= -MAX_EXP || f >= MAX_EXP) {
+                continue;
+            }
+            double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
+            double g = (1 - code[k] - s) * alpha;
+
+            for (int c = 0; c < layer1Size; c++) {
+                neu1e[c] += g * l2[c];
+                l2[c] += g * l1[c];
+            }
+        }
+    }
+
+    private void trainNegativeSampling(int word, float[] l1, float[] neu1e, double alpha, FastRandom rng) {
+        for (int d = 0; d <= negative; d++) {
+            int target;
+            int label;
+            if (d == 0) {
+                target = word;
+                label = 1;
+            } else {
+                target = unigramTable[rng.nextInt(unigramTable.length)];
+                if (target == word) {
+                    continue;
+                }
+                label = 0;
+            }
+            float l2[] = syn1neg[target];
+            double f = WbMathUtils.dot(l1, l2);
+            double g;
+            if (f >= MAX_EXP) {
+                g = (label - 1) * alpha;
+            } else if (f <= -MAX_EXP) {
+                g = label * alpha;
+            } else {
+                g = (label - EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))]) * alpha;
+            }
+            for (int c = 0; c < layer1Size; c++) {
+                neu1e[c] += g * l2[c];
+                l2[c] += g * l1[c];
+            }
+        }
+    }
+
+    private int[] getCountsByIndex() {
+        int counts[] = new int[wordIndexes.size()];
+        for (long hash : wordIndexes.keys()) {
+            counts[wordIndexes.get(hash)] = wordCounts.get(hash);
+        }
+        return counts;
+    }
 
+    private void buildUnigramTable() {
+        LOG.info("building unigram table for negative sampling");
+        int counts[] = getCountsByIndex();
+        double total = 0.0;
+        for (int c : counts) {
+            total += Math.pow(c, 0.75);
+        }
+        unigramTable = new int[UNIGRAM_TABLE_SIZE];
+        int i = 0;
+        double cumulative = Math.pow(counts[0], 0.75) / total;
+        for (int t = 0; t < unigramTable.length; t++) {
+            unigramTable[t] = i;
+            if (t / (double) unigramTable.length > cumulative && i < counts.length - 1) {
+                i++;
+                cumulative += Math.pow(counts[i], 0.75) / total;
+            }
+        }
+    }
+
+    private void buildKeepProbabilities() {
+        int counts[] = getCountsByIndex();
+        double threshold = sample * corpusWords;
+        keepProbabilities = new float[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            keepProbabilities[i] = (counts[i] == 0) ? 1.0f :
+                    (float) ((Math.sqrt(counts[i] / threshold) + 1) * threshold / counts[i]);
+        }
+    }
+
+    /**
+     * The linear congruential generator used by the original word2vec.
+     * Instances are not threadsafe, so each thread should have its own.
+     */
+    private static class FastRandom {
+        private long seed;
+
+        FastRandom(long seed) {
+            this.seed = seed;
+        }
+
+        private long next() {
+            seed = seed * 25214903917L + 11;
+            return seed >>> 16;
+        }
+
+        int nextInt(int n) {
+            return (int) (next() % n);
+        }
+
+        float nextFloat() {
+            return (next() & 0xFFFF) / 65536.0f;
+        }
+    }
+
+    /**
+     * Iterates over the sentences in an encoded corpus.
+     */
+    private static class IntCorpusIterator implements Iterator<int[]> {
+        private final DataInputStream in;
+        private int[] next = null;
+        private boolean finished = false;
+
+        IntCorpusIterator(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                try {
+                    int sentence[] = new int[in.readInt()];
+                    for (int i = 0; i < sentence.length; i++) {
+                        sentence[i] = in.readInt();
+                    }
+                    next = sentence;
+                } catch (EOFException e) {
+                    finished = true;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public int[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int tmp[] = next;
+            next = null;
+            return tmp;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        void close() {
+            IOUtils.closeQuietly(in);
         }
-        return indexes.length;
     }
 
 
@@ -401,6 +689,24 @@ public class Word2VecTrainer {
                         .withLongOpt("minfreq")
                         .withDescription("minimum word frequency")
                         .create("f"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("negative")
+                        .withDescription("number of negative samples (0 uses hierarchical softmax)")
+                        .create("n"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("sample")
+                        .withDescription("threshold for subsampling frequent words (0 disables subsampling)")
+                        .create("s"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("epochs")
+                        .withDescription("number of passes over the corpus")
+                        .create("e"));
 
         EnvBuilder.addStandardOptions(options);
 
@@ -428,6 +734,15 @@ public class Word2VecTrainer {
         if (cmd.hasOption("z")) {
             trainer.layer1Size = Integer.valueOf(cmd.getOptionValue("z"));
         }
+        if (cmd.hasOption("n")) {
+            trainer.negative = Integer.valueOf(cmd.getOptionValue("n"));
+        }
+        if (cmd.hasOption("s")) {
+            trainer.sample = Double.valueOf(cmd.getOptionValue("s"));
+        }
+        if (cmd.hasOption("e")) {
+            trainer.epochs = Integer.valueOf(cmd.getOptionValue("e"));
+        }
 
         trainer.train(new File(cmd.getOptionValue("i")));
         trainer.save(new File(cmd.getOptionValue("o")));
@@ -0,0 +1,91 @@
+package org.wikibrain.sr;
+
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikibrain.core.dao.DaoException;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TestCachedSRMetric {
+
+    @Test
+    public void testSimilarity() throws DaoException, IOException {
+        SRMetric delegate = Mockito.mock(SRMetric.class);
+        when(delegate.similarity(1, 2, false)).thenReturn(new SRResult(0.5));
+        when(delegate.similarity("foo", "bar", false)).thenReturn(new SRResult(0.25));
+        CachedSRMetric cached = new CachedSRMetric(delegate, 1024 * 1024, 4);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0.5, cached.similarity(1, 2, false).getScore(), 0.0001);
+            assertEquals(0.25, cached.similarity("foo", "bar", false).getScore(), 0.0001);
+            assertEquals(0.25, cached.similarity(" foo ", "bar", false).getScore(), 0.0001);
+            assertNull(cached.similarity(2, 1, false));
+        }
+        verify(delegate, times(1)).similarity(1, 2, false);
+        verify(delegate, times(1)).similarity(2, 1, false);
+        verify(delegate, times(1)).similarity("foo", "bar", false);
+        verify(delegate, times(1)).similarity(" foo ", "bar", false);
+
+        // explanations are never cached
+        cached.similarity(1, 2, true);
+        cached.similarity(1, 2, true);
+        verify(delegate, times(2)).similarity(1, 2, true);
+
+        // reading the metric invalidates the cache
+        cached.read();
+        verify(delegate).read();
+        cached.similarity(1, 2, false);
+        verify(delegate, times(2)).similarity(1, 2, false);
+        assertTrue(cached.getCache().getHitRate() > 0.5);
+    }
+
+    @Test
+    public void testMostSimilar() throws DaoException {
+        SRResultList list = new SRResultList(2);
+        list.set(0, 7, 0.9);
+        list.set(1, 8, 0.3);
+        SRMetric delegate = Mockito.mock(SRMetric.class);
+        when(delegate.mostSimilar(3, 10)).thenReturn(list);
+        CachedSRMetric cached = new CachedSRMetric(delegate, 1024 * 1024, 4);
+
+        for (int i = 0; i < 3; i++) {
+            SRResultList result = cached.mostSimilar(3, 10);
+            assertEquals(2, result.numDocs());
+            assertEquals(7, result.getId(0));
+            assertEquals(0.3, result.getScore(1), 0.0001);
+            result.set(0, 100, 100.0);      // callers may modify the returned list
+        }
+        verify(delegate, times(1)).mostSimilar(3, 10);
+
+        // restricted queries are passed through
+        TIntHashSet validIds = new TIntHashSet(new int[] { 7 });
+        cached.mostSimilar(3, 10, validIds);
+        cached.mostSimilar(3, 10, validIds);
+        verify(delegate, times(2)).mostSimilar(3, 10, validIds);
+    }
+
+    @Test
+    public void testInvalidateDuringComputation() throws DaoException {
+        SRMetric delegate = Mockito.mock(SRMetric.class);
+        final CachedSRMetric cached = new CachedSRMetric(delegate, 1024 * 1024, 4);
+        when(delegate.similarity(1, 2, false)).thenAnswer(new Answer<SRResult>() {
+            @Override
+            public SRResult answer(InvocationOnMock invocation) {
+                cached.invalidate();    // e.g. the metric is retrained concurrently
+                return new SRResult(0.5);
+            }
+        });
+
+        // the stale result is returned but not cached
+        assertEquals(0.5, cached.similarity(1, 2, false).getScore(), 0.0001);
+        assertEquals(0, cached.getCache().size());
+        cached.similarity(1, 2, false);
+        verify(delegate, times(2)).similarity(1, 2, false);
+    }
+}
@@ -2,12 +2,19 @@ package org.wikibrain.sr.vector;
 
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.junit.Ignore;
 import org.junit.Test;
-import org.wikibrain.matrix.SparseMatrixRow;
-import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.utils.WpIOUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -55,6 +62,89 @@ public class TestCosineSimilarity {
         assertEquals(expected, actual, 0.0001);
     }
 
+    @Test
+    public void testMostSimilarPruned() throws IOException {
+        checkMostSimilarPruned(true);
+    }
+
+    @Test
+    public void testMostSimilarPrunedPositive() throws IOException {
+        checkMostSimilarPruned(false);
+    }
+
+    @Test
+    public void testMostSimilarPrunedMissingFeatures() throws IOException {
+        // Page 2 only has the query's strongest feature, but page 1 matches more of the query.
+        File dir = WpIOUtils.createTempDirectory("cosine");
+        ValueConf vconf = new ValueConf(-1.0f, 1.0f);
+        SparseMatrixWriter writer = new SparseMatrixWriter(new File(dir, "feature.matrix"), vconf);
+        writer.writeRow(new SparseMatrixRow(vconf, 1, new int[] { 2, 3 }, new float[] { 1.0f, 1.0f }));
+        writer.writeRow(new SparseMatrixRow(vconf, 2, new int[] { 1 }, new float[] { 1.0f }));
+        writer.finish();
+        SparseMatrix features = new SparseMatrix(new File(dir, "feature.matrix"));
+        new SparseMatrixTransposer(features, new File(dir, "transpose.matrix")).transposeExternally(2);
+        SparseMatrix transpose = new SparseMatrix(new File(dir, "transpose.matrix"));
+
+        CosineSimilarity pruned = new CosineSimilarity();
+        pruned.setMatrices(features, transpose, dir);
+        TIntFloatMap query = getMap(new int[] { 1, 2, 3 }, new float[] { 0.8f, 1.0f, 1.0f });
+        SRResultList result = pruned.mostSimilar(query, 1, null);
+        assertEquals(1, result.numDocs());
+        assertEquals(1, result.getId(0));
+        features.close();
+        transpose.close();
+    }
+
+    private void checkMostSimilarPruned(boolean negativeValues) throws IOException {
+        // Compact ids use dense accumulators, spread out ids use hash accumulators
+        for (int idGap : new int[] { 1, 100 }) {
+            File dir = WpIOUtils.createTempDirectory("cosine");
+            Random random = new Random(idGap);
+            List<TIntFloatMap> vectors = new ArrayList<TIntFloatMap>();
+            ValueConf vconf = new ValueConf(-1.0f, 1.0f);
+            SparseMatrixWriter writer = new SparseMatrixWriter(new File(dir, "feature.matrix"), vconf);
+            for (int i = 0; i < 2000; i++) {
+                TIntFloatMap vector = new TIntFloatHashMap();
+                int n = 5 + random.nextInt(40);
+                for (int j = 0; j < n; j++) {
+                    int feature = (int) (Math.pow(random.nextDouble(), 2.0) * 500);
+                    float value = (float) Math.pow(random.nextDouble(), 3.0);
+                    vector.put(feature, (negativeValues && random.nextInt(10) == 0) ? -value : value);
+                }
+                vectors.add(vector);
+                writer.writeRow(new SparseMatrixRow(vconf, i * idGap, vector));
+            }
+            writer.finish();
+            SparseMatrix features = new SparseMatrix(new File(dir, "feature.matrix"));
+            new SparseMatrixTransposer(features, new File(dir, "transpose.matrix")).transposeExternally(2);
+            SparseMatrix transpose = new SparseMatrix(new File(dir, "transpose.matrix"));
+
+            CosineSimilarity exhaustive = new CosineSimilarity();
+            exhaustive.setPruning(false);
+            exhaustive.setMatrices(features, transpose, dir);
+            CosineSimilarity pruned = new CosineSimilarity();
+            pruned.setMatrices(features, transpose, dir);
+
+            TIntSet validIds = new TIntHashSet();
+            for (int i = 0; i < 2000; i += 3) {
+                validIds.add(i * idGap);
+            }
+            for (int i = 0; i < 100; i++) {
+                TIntFloatMap query = vectors.get(random.nextInt(vectors.size()));
+                int k = 1 + random.nextInt(20);
+                TIntSet ids = (i % 2 == 0) ? null : validIds;
+                SRResultList expected = exhaustive.mostSimilar(query, k, ids);
+                SRResultList actual = pruned.mostSimilar(query, k, ids);
+                assertEquals(expected.numDocs(), actual.numDocs());
+                for (int j = 0; j < expected.numDocs(); j++) {
+                    assertEquals(expected.getScore(j), actual.getScore(j), 0.00001);
+                }
+            }
+            features.close();
+            transpose.close();
+        }
+    }
+
     private double cosineSimilarity(TIntFloatMap row1, TIntFloatMap row2) {
         double adota = 0.0;
         double bdotb = 0.0;
@@ -0,0 +1,122 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.WikiBrainAnalyzer;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestESAMatrixBuilder {
+    private static final int[] IDS = { 10, 20, 30, 31, 40 };
+    private static final String[] TEXTS = {
+            "apple banana cherry apple banana cherry",
+            "apple banana cherry apple banana",
+            "zebra yak walrus zebra yak walrus",
+            "zebra yak walrus zebra yak",
+            "apple zebra",
+    };
+
+    private RAMDirectory dir;
+
+    @Before
+    public void createIndex() throws IOException {
+        LuceneOptions opts = LuceneOptions.getDefaultOptions();
+        IndexWriterConfig iwc = new IndexWriterConfig(opts.matchVersion, new WikiBrainAnalyzer(Language.getByLangCode("en")));
+        dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, iwc);
+        for (int i = 0; i < IDS.length; i++) {
+            Document d = new Document();
+            d.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, IDS[i], Field.Store.YES));
+            d.add(new TextField("text", TEXTS[i], Field.Store.YES));
+            writer.addDocument(d);
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        ESAMatrixBuilder builder = newBuilder();
+        SparseMatrix matrix = build(builder, new TIntHashSet(IDS));
+
+        // pages are most similar to the concepts that share their text
+        TIntFloatMap row = matrix.getRow(10).asTroveMap();
+        assertTrue(row.containsKey(0));
+        assertTrue(row.containsKey(1));
+        assertFalse(row.containsKey(2));
+        assertFalse(row.containsKey(3));
+        assertTrue(row.get(0) > row.get(4));
+
+        row = matrix.getRow(31).asTroveMap();
+        assertTrue(row.containsKey(2));
+        assertTrue(row.containsKey(3));
+        assertFalse(row.containsKey(0));
+        assertFalse(row.containsKey(1));
+
+        for (SparseMatrixRow r : matrix) {
+            assertEquals(1.0, norm(r.asTroveMap()), 0.01);
+        }
+    }
+
+    @Test
+    public void testConceptsAndPages() throws IOException {
+        ESAMatrixBuilder builder = newBuilder();
+        builder.setConcepts(new TIntHashSet(new int[] { 10, 30 }));
+        SparseMatrix matrix = build(builder, new TIntHashSet(new int[] { 20, 31 }));
+        assertEquals(2, matrix.getNumRows());
+
+        TIntFloatMap row = matrix.getRow(20).asTroveMap();
+        assertEquals(1, row.size());
+        assertTrue(row.containsKey(0));
+
+        row = matrix.getRow(31).asTroveMap();
+        assertEquals(1, row.size());
+        assertTrue(row.containsKey(2));
+    }
+
+    private ESAMatrixBuilder newBuilder() throws IOException {
+        ESAMatrixBuilder builder = new ESAMatrixBuilder(DirectoryReader.open(dir), "text");
+        builder.setMinDocFreq(1);
+        builder.setMinTermFreq(1);
+        builder.setMaxDocFreqPct(100);
+        builder.setPartitionSize(2);
+        builder.setNumThreads(2);
+        return builder;
+    }
+
+    private SparseMatrix build(ESAMatrixBuilder builder, TIntSet pageIds) throws IOException {
+        File tmp = File.createTempFile("esa", ".matrix");
+        tmp.deleteOnExit();
+        SparseMatrixWriter writer = new SparseMatrixWriter(tmp, new ValueConf());
+        builder.build(pageIds, writer);
+        writer.finish();
+        return new SparseMatrix(tmp);
+    }
+
+    private double norm(TIntFloatMap row) {
+        double sum = 0.0;
+        for (float x : row.values()) {
+            sum += x * x;
+        }
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,57 @@
+package org.wikibrain.utils;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Iterates over the elements in a queue that is filled by other threads.
+ * Iteration ends once the producers have set the finished flag and the queue is empty,
+ * so producers must add all their elements before setting the flag.
+ *
+ * This makes it possible to feed ParallelForEach.iterate from several producer threads.
+ * The iterator itself should only be used by a single consumer.
+ */
+public class BlockingQueueIterator<T> implements Iterator<T> {
+    private final BlockingQueue<T> queue;
+    private final AtomicBoolean finished;
+    private T next = null;
+
+    public BlockingQueueIterator(BlockingQueue<T> queue, AtomicBoolean finished) {
+        this.queue = queue;
+        this.finished = finished;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            // check finished before the queue, because elements are added before it is set
+            if (finished.get() && queue.isEmpty()) {
+                return false;
+            }
+            try {
+                next = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T tmp = next;
+        next = null;
+        return tmp;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
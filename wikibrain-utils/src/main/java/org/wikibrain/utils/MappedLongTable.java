@@ -0,0 +1,378 @@
+package org.wikibrain.utils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A read-only, memory mapped map from 64-bit keys (typically string hashes) to 32-bit
+ * int or float values.
+ *
+ * Keys are located with a minimal perfect hash function in the style of BBHash: each key
+ * is hashed into a bit array at successive levels until it lands in a position no other
+ * remaining key hashed to. The slot of a key is the rank of its bit across all levels, so
+ * the table needs about 3 bits per key plus the keys and values themselves. Keys are
+ * stored so that lookups of absent keys can be detected. The few keys that do not find a
+ * position within the maximum number of levels are kept in a small sorted array.
+ *
+ * Because the file is mapped read-only, it opens instantly and its pages are shared by
+ * every JVM on the host that maps it. Lookups are thread-safe.
+ *
+ * Each section of the file (bit arrays, keys, values) must be smaller than 2GB, which
+ * limits a table to about 250 million keys.
+ */
+public class MappedLongTable implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MappedLongTable.class.getName());
+
+    public static final int FILE_HEADER = 0xabcd7f;
+    public static final int VERSION = 1;
+
+    /**
+     * Size of each level's bit array relative to the number of keys that reach it.
+     */
+    private static final double GAMMA = 2.0;
+    private static final int MAX_LEVELS = 32;
+
+    /**
+     * Number of 64-bit words between rank samples.
+     */
+    private static final int RANK_WORDS = 8;
+
+    private final File path;
+    private final long numKeys;
+    private final long levelWords[];        // number of words in each level
+    private final long levelOffsets[];      // offset of each level's first word in bits
+    private final LongBuffer bits;
+    private final LongBuffer ranks;         // number of set bits before every RANK_WORDS words
+    private final LongBuffer fallbackKeys;
+    private final LongBuffer keys;
+    private final ByteBuffer values;
+
+    /**
+     * Maps an existing table.
+     * @param path
+     * @throws IOException
+     */
+    public MappedLongTable(File path) throws IOException {
+        this.path = path;
+        FileInputStream input = new FileInputStream(path);
+        try {
+            FileChannel channel = input.getChannel();
+            DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+            int numLevels;
+            long numFallback;
+            try {
+                if (header.readInt() != FILE_HEADER) {
+                    throw new IOException("invalid table header in " + path);
+                }
+                int version = header.readInt();
+                if (version != VERSION) {
+                    throw new IOException("unknown table version " + version + " in " + path);
+                }
+                numKeys = header.readLong();
+                numFallback = header.readLong();
+                numLevels = header.readInt();
+                levelWords = new long[numLevels];
+                for (int i = 0; i < numLevels; i++) {
+                    levelWords[i] = header.readLong();
+                }
+            } finally {
+                IOUtils.closeQuietly(header);
+            }
+            long totalWords = 0;
+            levelOffsets = new long[numLevels];
+            for (int i = 0; i < numLevels; i++) {
+                levelOffsets[i] = totalWords;
+                totalWords += levelWords[i];
+            }
+            long numRanks = totalWords / RANK_WORDS + 1;
+
+            long offset = getHeaderSize(numLevels);
+            bits = map(channel, offset, 8 * totalWords).asLongBuffer();
+            offset += 8 * totalWords;
+            ranks = map(channel, offset, 8 * numRanks).asLongBuffer();
+            offset += 8 * numRanks;
+            fallbackKeys = map(channel, offset, 8 * numFallback).asLongBuffer();
+            offset += 8 * numFallback;
+            keys = map(channel, offset, 8 * numKeys).asLongBuffer();
+            offset += 8 * numKeys;
+            values = map(channel, offset, 4 * numKeys);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        LOG.info("mapped table with " + numKeys + " keys from " + path);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("table section of " + length + " bytes is too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private static long getHeaderSize(int numLevels) {
+        return 4 + 4 + 8 + 8 + 4 + 8L * numLevels;
+    }
+
+    public long size() {
+        return numKeys;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    public boolean containsKey(long key) {
+        return getSlot(key) >= 0;
+    }
+
+    /**
+     * @return The value associated with the key, or noEntryValue if the key is not in the table.
+     */
+    public float getFloat(long key, float noEntryValue) {
+        long slot = getSlot(key);
+        return (slot < 0) ? noEntryValue : values.getFloat((int) (4 * slot));
+    }
+
+    /**
+     * @return The value associated with the key, or noEntryValue if the key is not in the table.
+     */
+    public int getInt(long key, int noEntryValue) {
+        long slot = getSlot(key);
+        return (slot < 0) ? noEntryValue : values.getInt((int) (4 * slot));
+    }
+
+    /**
+     * @return The slot of the key, or -1 if it is not in the table.
+     */
+    private long getSlot(long key) {
+        long slot = findSlot(key, levelWords, levelOffsets, bits, ranks, fallbackKeys, numKeys);
+        return (slot >= 0 && keys.get((int) slot) == key) ? slot : -1;
+    }
+
+    /**
+     * Finds the slot a key would occupy. The result is only meaningful for keys in the table.
+     * @return The slot, or -1 if the key cannot be in the table.
+     */
+    private static long findSlot(long key, long levelWords[], long levelOffsets[],
+                                 LongBuffer bits, LongBuffer ranks, LongBuffer fallbackKeys, long numKeys) {
+        for (int level = 0; level < levelWords.length; level++) {
+            long pos = levelOffsets[level] * 64 + hash(key, level, levelWords[level] * 64);
+            long word = bits.get((int) (pos >>> 6));
+            if ((word & (1L << (pos & 63))) != 0) {
+                return rank(bits, ranks, pos);
+            }
+        }
+        int i = binarySearch(fallbackKeys, key);
+        return (i < 0) ? -1 : numKeys - fallbackKeys.limit() + i;
+    }
+
+    /**
+     * @return The number of set bits before position pos.
+     */
+    private static long rank(LongBuffer bits, LongBuffer ranks, long pos) {
+        int wordIndex = (int) (pos >>> 6);
+        int block = wordIndex / RANK_WORDS;
+        long r = ranks.get(block);
+        for (int i = block * RANK_WORDS; i < wordIndex; i++) {
+            r += Long.bitCount(bits.get(i));
+        }
+        long mask = (1L << (pos & 63)) - 1;
+        return r + Long.bitCount(bits.get(wordIndex) & mask);
+    }
+
+    private static int binarySearch(LongBuffer buffer, long key) {
+        int lo = 0;
+        int hi = buffer.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = buffer.get(mid);
+            if (v < key) {
+                lo = mid + 1;
+            } else if (v > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hashes a key to a position in [0, numBits) that depends on the level.
+     */
+    private static long hash(long key, int level, long numBits) {
+        long h = key + (level + 1) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return (h >>> 1) % numBits;
+    }
+
+    @Override
+    public void close() {
+        // mapped buffers are released when they are garbage collected
+    }
+
+    /**
+     * Writes a table. Keys must be distinct.
+     * @param path
+     * @param keys
+     * @param values values[i] is associated with keys[i].
+     * @throws IOException
+     */
+    public static void write(File path, long keys[], float values[]) throws IOException {
+        int bits[] = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bits[i] = Float.floatToRawIntBits(values[i]);
+        }
+        write(path, keys, bits);
+    }
+
+    /**
+     * Writes a table. Keys must be distinct.
+     * @param path
+     * @param keys
+     * @param values values[i] is associated with keys[i].
+     * @throws IOException
+     */
+    public static void write(File path, long keys[], int values[]) throws IOException {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("keys and values have different lengths");
+        }
+        int n = keys.length;
+        if (8L * n > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many keys: " + n);
+        }
+
+        // Place keys in successive levels until no collisions remain
+        List<long[]> levels = new ArrayList<long[]>();
+        long remaining[] = Arrays.copyOf(keys, n);
+        int numRemaining = n;
+        long totalWords = 0;
+        while (numRemaining > 0 && levels.size() < MAX_LEVELS) {
+            long numWords = Math.max(1, (long) Math.ceil(GAMMA * numRemaining / 64.0));
+            totalWords += numWords;
+            if (totalWords > Integer.MAX_VALUE / 8) {
+                throw new IllegalArgumentException("too many keys: " + n);
+            }
+            long numBits = numWords * 64;
+            long placed[] = new long[(int) numWords];
+            long collided[] = new long[(int) numWords];
+            for (int i = 0; i < numRemaining; i++) {
+                long pos = hash(remaining[i], levels.size(), numBits);
+                int w = (int) (pos >>> 6);
+                long b = 1L << (pos & 63);
+                if ((placed[w] & b) != 0) {
+                    collided[w] |= b;
+                } else {
+                    placed[w] |= b;
+                }
+            }
+            int numCollided = 0;
+            for (int i = 0; i < numRemaining; i++) {
+                long pos = hash(remaining[i], levels.size(), numBits);
+                if ((collided[(int) (pos >>> 6)] & (1L << (pos & 63))) != 0) {
+                    remaining[numCollided++] = remaining[i];
+                }
+            }
+            for (int i = 0; i < placed.length; i++) {
+                placed[i] &= ~collided[i];
+            }
+            levels.add(placed);
+            numRemaining = numCollided;
+        }
+        long fallback[] = Arrays.copyOf(remaining, numRemaining);
+        Arrays.sort(fallback);
+        remaining = null;
+
+        // Duplicate keys collide at every level, so they always end up here
+        for (int i = 1; i < fallback.length; i++) {
+            if (fallback[i] == fallback[i - 1]) {
+                throw new IllegalArgumentException("duplicate key " + fallback[i]);
+            }
+        }
+
+        // Concatenate the levels and sample ranks
+        long levelWords[] = new long[levels.size()];
+        long levelOffsets[] = new long[levels.size()];
+        long bits[] = new long[(int) totalWords];
+        int offset = 0;
+        for (int i = 0; i < levels.size(); i++) {
+            long level[] = levels.get(i);
+            levelWords[i] = level.length;
+            levelOffsets[i] = offset;
+            System.arraycopy(level, 0, bits, offset, level.length);
+            offset += level.length;
+        }
+        levels = null;
+        long ranks[] = new long[bits.length / RANK_WORDS + 1];
+        long r = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (i % RANK_WORDS == 0) {
+                ranks[i / RANK_WORDS] = r;
+            }
+            r += Long.bitCount(bits[i]);
+        }
+        if (bits.length % RANK_WORDS == 0) {
+            ranks[ranks.length - 1] = r;
+        }
+
+        // Arrange keys and values by slot
+        long slotKeys[] = new long[n];
+        int slotValues[] = new int[n];
+        LongBuffer bitsBuffer = LongBuffer.wrap(bits);
+        LongBuffer ranksBuffer = LongBuffer.wrap(ranks);
+        LongBuffer fallbackBuffer = LongBuffer.wrap(fallback);
+        for (int i = 0; i < n; i++) {
+            long slot = findSlot(keys[i], levelWords, levelOffsets, bitsBuffer, ranksBuffer, fallbackBuffer, n);
+            slotKeys[(int) slot] = keys[i];
+            slotValues[(int) slot] = values[i];
+        }
+
+        File tmp = new File(path.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(VERSION);
+            out.writeLong(n);
+            out.writeLong(fallback.length);
+            out.writeInt(levelWords.length);
+            for (long w : levelWords) {
+                out.writeLong(w);
+            }
+            for (long w : bits) {
+                out.writeLong(w);
+            }
+            for (long x : ranks) {
+                out.writeLong(x);
+            }
+            for (long k : fallback) {
+                out.writeLong(k);
+            }
+            for (long k : slotKeys) {
+                out.writeLong(k);
+            }
+            for (int v : slotValues) {
+                out.writeInt(v);
+            }
+        } finally {
+            out.close();
+        }
+        if (path.exists() && !path.delete()) {
+            throw new IOException("could not replace " + path);
+        }
+        if (!tmp.renameTo(path)) {
+            throw new IOException("could not rename " + tmp + " to " + path);
+        }
+        LOG.info(String.format("wrote table with %d keys (%d in fallback) in %d levels to %s",
+                n, fallback.length, levelWords.length, path));
+    }
+}
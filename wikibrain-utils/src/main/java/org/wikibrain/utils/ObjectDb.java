@@ -8,7 +8,11 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -124,63 +128,22 @@ public class ObjectDb<V extends Serializable> implements Iterable<Pair<String, V
      * @return an iterator over keys.
      */
     public Iterator<String> keyIterator() {
-        final DatabaseEntry key = new DatabaseEntry();
-        final DatabaseEntry val = new DatabaseEntry();
-        val.setPartial(0, 0, true);
-        final Cursor cursor;
-        try {
-            cursor = this.db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
-        } catch (DatabaseException e) {
-            throw new RuntimeException(e);  // what else to do?
-        }
-        return new Iterator<String>() {
-            boolean finished = false;
-            boolean hasValue = false;
-
-            @Override
-            public boolean hasNext() {
-                advance();
-                return !finished;
-            }
-
-            @Override
-            public String next() {
-                advance();
-                if (finished) return null;
-                hasValue = false;
-                try {
-                    return new String(key.getData(), "UTF-8");
-                } catch (IOException e) {
-                    close();
-                    throw new RuntimeException(e);
-                }
-            }
+        return keyIterator("");
+    }
 
+    /**
+     * Iterate over keys that start with a prefix.
+     * Keys are stored in sorted order, so only the range of keys with the prefix is read.
+     * The cursor is closed under the same conditions as keyIterator().
+     * @param prefix
+     * @return an iterator over keys starting with the prefix.
+     */
+    public Iterator<String> keyIterator(String prefix) {
+        byte bytes[] = toBytes(prefix);
+        return new CursorIterator<String>(bytes, bytes, null, false) {
             @Override
-            public void remove() {
-                try {
-                    cursor.delete();
-                } catch (DatabaseException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-
-            private void advance() {
-                if (finished || hasValue) return;
-                try {
-                    if (cursor.getNext(key, val, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS) {
-                        close();
-                        finished = true;
-                    }
-                } catch (DatabaseException e) {
-                    close();
-                    throw new RuntimeException(e);
-                }
-                hasValue = true;
-            }
-
-            private void close() {
-                try { cursor.close(); } catch (DatabaseException e) {}
+            protected String convert(DatabaseEntry key, DatabaseEntry val) throws IOException {
+                return new String(key.getData(), "UTF-8");
             }
         };
     }
@@ -193,69 +156,238 @@ public class ObjectDb<V extends Serializable> implements Iterable<Pair<String, V
      */
     @Override
     public Iterator<Pair<String, V>> iterator() {
-        final DatabaseEntry key = new DatabaseEntry();
-        final DatabaseEntry val = new DatabaseEntry();
-        final Cursor cursor;
+        return iterator("");
+    }
+
+    /**
+     * Iterate over key / value pairs whose keys start with a prefix.
+     * Keys are stored in sorted order, so only the range of keys with the prefix is read.
+     * The cursor is closed under the same conditions as iterator().
+     * @param prefix
+     * @return an iterator over key / value pairs whose keys start with the prefix.
+     */
+    public Iterator<Pair<String, V>> iterator(String prefix) {
+        byte bytes[] = toBytes(prefix);
+        return new PairIterator(bytes, bytes, null);
+    }
+
+    /**
+     * Calls a procedure on every key / value pair whose key starts with a prefix.
+     *
+     * The key range is partitioned by the byte following the prefix, and the partitions
+     * are scanned (and their values deserialized) in parallel by separate cursors.
+     * Errors in the procedure are logged and do not stop the scan.
+     *
+     * @param prefix
+     * @param numThreads
+     * @param fn
+     */
+    public void forEach(String prefix, int numThreads, final Procedure<Pair<String, V>> fn) {
+        final byte bytes[] = toBytes(prefix);
+        List<byte[]> starts = getPartitionStarts(bytes);
+        List<Integer> partitions = new ArrayList<Integer>();
+        for (int i = 0; i < starts.size(); i++) {
+            partitions.add(i);
+        }
+        final List<byte[]> finalStarts = starts;
+        ParallelForEach.loop(partitions, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws Exception {
+                byte end[] = (i + 1 < finalStarts.size()) ? finalStarts.get(i + 1) : null;
+                PairIterator iter = new PairIterator(finalStarts.get(i), bytes, end);
+                while (iter.hasNext()) {
+                    Pair<String, V> pair = iter.next();
+                    try {
+                        fn.call(pair);
+                    } catch (Exception e) {
+                        LOG.log(Level.SEVERE, "error processing key " + pair.getKey(), e);
+                    }
+                }
+            }
+        }, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds the distinct bytes that follow the prefix in keys by seeking the cursor
+     * from one to the next, which takes at most 256 seeks.
+     * @return The first key of each partition, in sorted order.
+     */
+    private List<byte[]> getPartitionStarts(byte prefix[]) {
+        List<byte[]> starts = new ArrayList<byte[]>();
+        starts.add(prefix);
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry val = new DatabaseEntry();
+        val.setPartial(0, 0, true);
+        Cursor cursor = null;
         try {
             cursor = this.db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            int next = 0;
+            while (next < 256) {
+                byte seek[] = Arrays.copyOf(prefix, prefix.length + 1);
+                seek[prefix.length] = (byte) next;
+                key.setData(seek);
+                if (cursor.getSearchKeyRange(key, val, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS
+                ||  !startsWith(key.getData(), prefix)) {
+                    break;
+                }
+                // the first partition starts at the prefix itself
+                int b = key.getData()[prefix.length] & 0xff;
+                if (next > 0) {
+                    byte start[] = Arrays.copyOf(prefix, prefix.length + 1);
+                    start[prefix.length] = (byte) b;
+                    starts.add(start);
+                }
+                next = b + 1;
+            }
         } catch (DatabaseException e) {
-            throw new RuntimeException(e);  // what else to do?
+            throw new RuntimeException(e);
+        } finally {
+            if (cursor != null) {
+                try { cursor.close(); } catch (DatabaseException e) {}
+            }
         }
-        return new Iterator<Pair<String, V>>() {
-            boolean finished = false;
-            boolean hasValue = false;
+        return starts;
+    }
 
-            @Override
-            public boolean hasNext() {
-                advance();
-                return !finished;
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean startsWith(byte bytes[], byte prefix[]) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            @Override
-            public Pair<String, V> next() {
-                advance();
-                if (finished) return null;
-                hasValue = false;
-                try {
-                    return Pair.of(
-                            new String(key.getData(), "UTF-8"),
-                            (V)WpIOUtils.bytesToObject(val.getData())
-                    );
-                } catch (IOException e) {
-                    close();
-                    throw new RuntimeException(e);
-                } catch (ClassNotFoundException e) {
-                    close();
-                    throw new RuntimeException(e);
-                }
+    /**
+     * Compares keys the way the database orders them: as unsigned bytes.
+     */
+    private static int compareKeys(byte k1[], byte k2[]) {
+        int n = Math.min(k1.length, k2.length);
+        for (int i = 0; i < n; i++) {
+            int c = (k1[i] & 0xff) - (k2[i] & 0xff);
+            if (c != 0) {
+                return c;
             }
+        }
+        return k1.length - k2.length;
+    }
 
-            @Override
-            public void remove() {
-                try {
-                    cursor.delete();
-                } catch (DatabaseException e) {
-                    throw new RuntimeException(e);
-                }
+    private class PairIterator extends CursorIterator<Pair<String, V>> {
+        PairIterator(byte start[], byte prefix[], byte end[]) {
+            super(start, prefix, end, true);
+        }
+
+        @Override
+        protected Pair<String, V> convert(DatabaseEntry key, DatabaseEntry val) throws IOException, ClassNotFoundException {
+            return Pair.of(
+                    new String(key.getData(), "UTF-8"),
+                    (V)WpIOUtils.bytesToObject(val.getData())
+            );
+        }
+    }
+
+    /**
+     * Iterates over a range of keys starting at the first key greater than or equal to
+     * start, and ending before end (if it is not null) or the first key that does not
+     * start with the prefix.
+     */
+    private abstract class CursorIterator<T> implements Iterator<T> {
+        private final DatabaseEntry key = new DatabaseEntry();
+        private final DatabaseEntry val = new DatabaseEntry();
+        private final byte start[];
+        private final byte prefix[];
+        private final byte end[];
+        private final Cursor cursor;
+        private boolean started = false;
+        private boolean finished = false;
+        private boolean hasValue = false;
+
+        CursorIterator(byte start[], byte prefix[], byte end[], boolean readValues) {
+            this.start = start;
+            this.prefix = prefix;
+            this.end = end;
+            if (!readValues) {
+                val.setPartial(0, 0, true);
+            }
+            try {
+                cursor = db.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+            } catch (DatabaseException e) {
+                throw new RuntimeException(e);  // what else to do?
             }
+        }
 
-            private void advance() {
-                if (finished || hasValue) return;
-                try {
-                    if (cursor.getNext(key, val, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS) {
-                        close();
-                        finished = true;
-                    }
-                } catch (DatabaseException e) {
+        protected abstract T convert(DatabaseEntry key, DatabaseEntry val) throws IOException, ClassNotFoundException;
+
+        @Override
+        public boolean hasNext() {
+            advance();
+            return !finished;
+        }
+
+        @Override
+        public T next() {
+            advance();
+            if (finished) return null;
+            hasValue = false;
+            try {
+                return convert(key, val);
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException(e);
+            } catch (ClassNotFoundException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            try {
+                cursor.delete();
+            } catch (DatabaseException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void advance() {
+            if (finished || hasValue) return;
+            try {
+                OperationStatus status;
+                if (started) {
+                    status = cursor.getNext(key, val, LockMode.READ_UNCOMMITTED);
+                } else if (start.length == 0) {
+                    status = cursor.getFirst(key, val, LockMode.READ_UNCOMMITTED);
+                } else {
+                    key.setData(start);
+                    status = cursor.getSearchKeyRange(key, val, LockMode.READ_UNCOMMITTED);
+                }
+                started = true;
+                if (status != OperationStatus.SUCCESS
+                ||  !startsWith(key.getData(), prefix)
+                ||  (end != null && compareKeys(key.getData(), end) >= 0)) {
                     close();
-                    throw new RuntimeException(e);
+                    finished = true;
                 }
-                hasValue = true;
+            } catch (DatabaseException e) {
+                close();
+                throw new RuntimeException(e);
             }
+            hasValue = true;
+        }
 
-            private void close() {
-                try { cursor.close(); } catch (DatabaseException e) {}
-            }
-        };
+        private void close() {
+            try { cursor.close(); } catch (DatabaseException e) {}
+        }
     }
 }
@@ -0,0 +1,78 @@
+package org.wikibrain.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment without contending.
+ *
+ * This is a simplified version of Java 8's LongAdder. Each thread adds to one of
+ * several cells, chosen by its thread id, that live on separate cache lines.
+ * Reading the counter sums the cells, so it is slower than an increment.
+ *
+ * Like LongAdder, sum() is not an atomic snapshot when other threads are adding.
+ */
+public class StripedCounter {
+    // Longs per 64-byte cache line, so neighboring cells don't share a line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param minStripes The minimum number of cells. Rounded up to a power of two.
+     */
+    public StripedCounter(int minStripes) {
+        int stripes = 1;
+        while (stripes < minStripes) {
+            stripes *= 2;
+        }
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long n) {
+        cells.addAndGet(getStripe() * PADDING, n);
+    }
+
+    /**
+     * @return The sum of all cells.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mask; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Resets the counter to zero. Concurrent adds may or may not be counted.
+     */
+    public void reset() {
+        for (int i = 0; i <= mask; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    private int getStripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h & mask;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,183 @@
+package org.wikibrain.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe, memory-bounded LRU cache.
+ *
+ * Keys are spread over a power-of-two number of stripes by hash code. Each stripe is an
+ * access-ordered LinkedHashMap guarded by its own lock and owns an equal share of the
+ * total weight budget, so threads working on different keys rarely contend. When a
+ * stripe exceeds its budget its least recently used entries are evicted.
+ *
+ * The weight of each entry is an estimate of its size in bytes supplied by a Weigher.
+ */
+public class StripedLruCache<K, V> {
+
+    /**
+     * Estimates the number of bytes used by a cache entry.
+     */
+    public static interface Weigher<K, V> {
+        public int weigh(K key, V value);
+    }
+
+    private final Stripe<K, V> stripes[];
+    private final int mask;
+    private final Weigher<K, V> weigher;
+    private final long maxWeightPerStripe;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxWeight Maximum total weight (bytes) of all entries.
+     * @param numStripes Number of independently locked stripes. Rounded up to a power of two.
+     * @param weigher Estimates the weight of each entry.
+     */
+    public StripedLruCache(long maxWeight, int numStripes, Weigher<K, V> weigher) {
+        int n = 1;
+        while (n < numStripes) {
+            n <<= 1;
+        }
+        @SuppressWarnings("unchecked")
+        Stripe<K, V> stripes[] = (Stripe<K, V>[]) new Stripe<?, ?>[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe<K, V>();
+        }
+        this.stripes = stripes;
+        this.mask = n - 1;
+        this.weigher = weigher;
+        this.maxWeightPerStripe = Math.max(1, maxWeight / n);
+    }
+
+    private Stripe<K, V> getStripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return stripes[h & mask];
+    }
+
+    /**
+     * @return The cached value, or null if the key is not cached.
+     */
+    public V get(K key) {
+        Stripe<K, V> s = getStripe(key);
+        V value;
+        synchronized (s) {
+            value = s.map.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        int weight = weigher.weigh(key, value);
+        if (weight > maxWeightPerStripe) {
+            return;     // would evict everything else in the stripe
+        }
+        Stripe<K, V> s = getStripe(key);
+        synchronized (s) {
+            V old = s.map.put(key, value);
+            if (old != null) {
+                s.weight -= weigher.weigh(key, old);
+            }
+            s.weight += weight;
+            Iterator<Map.Entry<K, V>> iter = s.map.entrySet().iterator();
+            while (s.weight > maxWeightPerStripe && iter.hasNext()) {
+                Map.Entry<K, V> eldest = iter.next();
+                s.weight -= weigher.weigh(eldest.getKey(), eldest.getValue());
+                iter.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes the entry for a key, if it is cached.
+     */
+    public void remove(K key) {
+        Stripe<K, V> s = getStripe(key);
+        synchronized (s) {
+            V old = s.map.remove(key);
+            if (old != null) {
+                s.weight -= weigher.weigh(key, old);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries. Statistics are not reset.
+     */
+    public void clear() {
+        for (Stripe<K, V> s : stripes) {
+            synchronized (s) {
+                s.map.clear();
+                s.weight = 0;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<K, V> s : stripes) {
+            synchronized (s) {
+                size += s.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The estimated number of bytes used by all entries.
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Stripe<K, V> s : stripes) {
+            synchronized (s) {
+                weight += s.weight;
+            }
+        }
+        return weight;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The fraction of lookups that were hits, or 0 if there have been no lookups.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : 1.0 * h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StripedLruCache{size=%d, bytes=%d, hitRate=%.3f, hits=%d, misses=%d, evictions=%d}",
+                size(), getWeight(), getHitRate(), getHits(), getMisses(), getEvictions());
+    }
+
+    private static class Stripe<K, V> {
+        final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+        long weight = 0;
+    }
+}
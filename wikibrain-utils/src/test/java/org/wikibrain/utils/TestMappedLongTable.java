@@ -0,0 +1,71 @@
+package org.wikibrain.utils;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestMappedLongTable {
+
+    @Test
+    public void testLookup() throws IOException {
+        for (int n : new int[] { 0, 1, 10, 100000 }) {
+            Random random = new Random(n);
+            TLongSet used = new TLongHashSet();
+            long keys[] = new long[n];
+            float values[] = new float[n];
+            for (int i = 0; i < n; i++) {
+                do {
+                    keys[i] = random.nextLong();
+                } while (!used.add(keys[i]));
+                values[i] = random.nextFloat();
+            }
+            File path = File.createTempFile("table", ".bin");
+            path.deleteOnExit();
+            MappedLongTable.write(path, keys, values);
+
+            MappedLongTable table = new MappedLongTable(path);
+            assertEquals(n, table.size());
+            for (int i = 0; i < n; i++) {
+                assertTrue(table.containsKey(keys[i]));
+                assertEquals(values[i], table.getFloat(keys[i], -1f), 0.0);
+            }
+            for (int i = 0; i < 10000; i++) {
+                long key = random.nextLong();
+                if (!used.contains(key)) {
+                    assertFalse(table.containsKey(key));
+                    assertEquals(-1f, table.getFloat(key, -1f), 0.0);
+                }
+            }
+            table.close();
+        }
+    }
+
+    @Test
+    public void testIntValues() throws IOException {
+        long keys[] = { 7, -3, Long.MAX_VALUE, 0 };
+        int values[] = { -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 42 };
+        File path = File.createTempFile("table", ".bin");
+        path.deleteOnExit();
+        MappedLongTable.write(path, keys, values);
+
+        MappedLongTable table = new MappedLongTable(path);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(values[i], table.getInt(keys[i], 99));
+        }
+        assertEquals(99, table.getInt(8, 99));
+        table.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateKeys() throws IOException {
+        File path = File.createTempFile("table", ".bin");
+        path.deleteOnExit();
+        MappedLongTable.write(path, new long[] { 3, 4, 3 }, new float[] { 1f, 2f, 3f });
+    }
+}
@@ -7,9 +7,7 @@ import org.wikibrain.conf.ConfigurationException;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.*;
 
 import static org.junit.Assert.*;
 
@@ -72,6 +70,62 @@ public class TestObjectDb {
         assertNull(db.get("foo"));
     }
 
+    @Test
+    public void testIteratePrefix() throws ConfigurationException, IOException, DatabaseException, ClassNotFoundException {
+        ObjectDb<Integer> db = getObjectDb();
+        db.put("de:foo", 1);
+        db.put("en:", 2);
+        db.put("en:bar", 3);
+        db.put("en:baz", 4);
+        db.put("en:\u00e9t\u00e9", 5);
+        db.put("en:zab", 6);
+        db.put("enx", 7);
+        db.put("fr:foo", 8);
+
+        List<String> keys = new ArrayList<String>();
+        Iterator<String> keyIter = db.keyIterator("en:");
+        while (keyIter.hasNext()) {
+            keys.add(keyIter.next());
+        }
+        assertEquals(Arrays.asList("en:", "en:bar", "en:baz", "en:zab", "en:\u00e9t\u00e9"), keys);
+
+        Map<String, Integer> iteratedMap = new HashMap<String, Integer>();
+        Iterator<Pair<String, Integer>> iter = db.iterator("en:");
+        while (iter.hasNext()) {
+            Pair<String, Integer> pair = iter.next();
+            iteratedMap.put(pair.getKey(), pair.getValue());
+        }
+        assertEquals(5, iteratedMap.size());
+        assertEquals(6, (int) iteratedMap.get("en:zab"));
+
+        assertFalse(db.iterator("es:").hasNext());
+        assertFalse(db.keyIterator("zz").hasNext());
+    }
+
+    @Test
+    public void testForEach() throws ConfigurationException, IOException, DatabaseException, ClassNotFoundException {
+        ObjectDb<Integer> db = getObjectDb();
+        for (int i = 0; i < 1000; i++) {
+            db.put("en:" + i, i);
+            db.put("de:" + i, -i);
+        }
+        db.put("en:", 1000);
+        final Map<String, Integer> iteratedMap = new HashMap<String, Integer>();
+        db.forEach("en:", 4, new Procedure<Pair<String, Integer>>() {
+            @Override
+            public void call(Pair<String, Integer> pair) throws Exception {
+                synchronized (iteratedMap) {
+                    assertNull(iteratedMap.put(pair.getKey(), pair.getValue()));
+                }
+            }
+        });
+        assertEquals(1001, iteratedMap.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) iteratedMap.get("en:" + i));
+        }
+        assertEquals(1000, (int) iteratedMap.get("en:"));
+    }
+
     private ObjectDb getObjectDb() throws IOException, DatabaseException {
         File tmp = File.createTempFile("testdb", ".db", null);
         tmp.deleteOnExit();
@@ -0,0 +1,42 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestStripedCounter {
+    @Test
+    public void testSimple() {
+        StripedCounter counter = new StripedCounter(3);
+        assertEquals(0, counter.sum());
+        for (int i = 1; i <= 100; i++) {
+            counter.increment();
+            assertEquals(i, counter.sum());
+        }
+        counter.add(-50);
+        assertEquals(50, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        Thread threads[] = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(800000, counter.sum());
+    }
+}
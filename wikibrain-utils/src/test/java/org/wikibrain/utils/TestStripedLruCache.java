@@ -0,0 +1,94 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestStripedLruCache {
+    private static final StripedLruCache.Weigher<Integer, String> WEIGHER = new StripedLruCache.Weigher<Integer, String>() {
+        @Override
+        public int weigh(Integer key, String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void testGetPut() {
+        StripedLruCache<Integer, String> cache = new StripedLruCache<Integer, String>(1000, 4, WEIGHER);
+        assertNull(cache.get(3));
+        cache.put(3, "foo");
+        cache.put(4, "bar");
+        assertEquals("foo", cache.get(3));
+        assertEquals("bar", cache.get(4));
+        assertEquals(2, cache.size());
+        assertEquals(6, cache.getWeight());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRate(), 0.0001);
+
+        cache.put(3, "foobar");
+        assertEquals("foobar", cache.get(3));
+        assertEquals(9, cache.getWeight());
+
+        cache.remove(4);
+        cache.remove(5);
+        assertNull(cache.get(4));
+        assertEquals(1, cache.size());
+        assertEquals(6, cache.getWeight());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertNull(cache.get(3));
+    }
+
+    @Test
+    public void testEviction() {
+        // A single stripe holding at most ten one-byte values
+        StripedLruCache<Integer, String> cache = new StripedLruCache<Integer, String>(10, 1, WEIGHER);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, "x");
+        }
+        assertEquals("x", cache.get(0));    // 0 is now the most recently used
+        cache.put(10, "x");
+        assertEquals(10, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(1));
+        assertEquals("x", cache.get(0));
+        assertEquals("x", cache.get(10));
+
+        // entries larger than a stripe are never cached
+        cache.put(11, "xxxxxxxxxxxx");
+        assertNull(cache.get(11));
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final StripedLruCache<Integer, String> cache = new StripedLruCache<Integer, String>(5000, 8, WEIGHER);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        int key = (i * 7 + offset) % 2000;
+                        String value = cache.get(key);
+                        if (value == null) {
+                            cache.put(key, "v" + key);
+                        } else {
+                            assertEquals("v" + key, value);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        assertTrue(cache.getWeight() <= 5000);
+        assertEquals(800000, cache.getHits() + cache.getMisses());
+    }
+}